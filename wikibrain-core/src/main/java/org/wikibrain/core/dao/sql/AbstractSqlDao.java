@@ -1,9 +1,12 @@
 package org.wikibrain.core.dao.sql;
 
 import org.jodah.typetools.TypeResolver;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
+import org.jooq.Field;
 import org.jooq.SQLDialect;
 import org.jooq.TableField;
+import org.jooq.impl.DSL;
 import org.wikibrain.core.dao.Dao;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.MetaInfoDao;
@@ -13,6 +16,10 @@ import javax.sql.DataSource;
 import java.io.*;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,6 +37,11 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
 
     public static final int DEFAULT_FETCH_SIZE = 1000;
 
+    /**
+     * Maximum number of values placed in a single IN (...) clause by bulk lookups.
+     */
+    public static final int MAX_IN_CLAUSE_SIZE = 1000;
+
     protected final SQLDialect dialect;
     private final String sqlScriptPrefix;
     private final TableField[] fields;
@@ -126,6 +138,14 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
         loader.load(values);
     }
 
+    /**
+     * Starts a row for the fast loader. Values are added in field order without
+     * boxing, and the row is saved when end() is called.
+     */
+    protected FastLoader.Row insertRow() {
+        return loader.row();
+    }
+
 
     @Override
     public void endLoad() throws  DaoException {
@@ -162,6 +182,34 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
         }
     }
 
+    /**
+     * Splits values into distinct chunks that fit in an IN (...) clause.
+     * Null values are dropped.
+     */
+    protected static <V> List<List<V>> toInClauseChunks(Collection<V> values) {
+        List<V> distinct = new ArrayList<V>(new LinkedHashSet<V>(values));
+        distinct.remove(null);
+        List<List<V>> chunks = new ArrayList<List<V>>();
+        for (int i = 0; i < distinct.size(); i += MAX_IN_CLAUSE_SIZE) {
+            chunks.add(distinct.subList(i, Math.min(distinct.size(), i + MAX_IN_CLAUSE_SIZE)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the condition field IN (values) with the values inlined as literals.
+     * H2 only uses an index for an IN list of literals; bound parameters cause a scan.
+     * Other conditions on the same index should be inlined with DSL.inline as well.
+     */
+    protected static <V> Condition inlinedIn(Field<V> field, Collection<V> values) {
+        Field[] literals = new Field[values.size()];
+        int i = 0;
+        for (V value : values) {
+            literals[i++] = DSL.inline(value, field);
+        }
+        return field.in(literals);
+    }
+
     public int getFetchSize() {
         return fetchSize;
     }
@@ -0,0 +1,244 @@
+package org.wikibrain.core.dao.sql;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.lang3.StringUtils;
+import org.jooq.tools.jdbc.JDBCUtils;
+import org.postgresql.PGConnection;
+
+import java.io.*;
+import java.sql.*;
+
+/**
+ * Writes batches of rows to a single table over one connection.
+ * Each inserter thread in a FastLoader owns one BulkInserter.
+ */
+abstract class BulkInserter {
+    protected final Connection cnx;
+    protected final String table;
+    protected final String[] fields;
+
+    protected BulkInserter(Connection cnx, String table, String[] fields) {
+        this.cnx = cnx;
+        this.table = table;
+        this.fields = fields;
+    }
+
+    /**
+     * Inserts all rows in the batch. The caller commits or rolls back the transaction.
+     */
+    abstract void insert(RowBatch batch) throws SQLException;
+
+    /**
+     * Releases resources other than the connection, which is owned by the caller.
+     */
+    void close() {}
+
+    /**
+     * Returns the postgres connection underlying a (possibly pooled) connection.
+     */
+    static PGConnection getPgConnection(Connection cnx) throws SQLException {
+        if (cnx instanceof PGConnection) {
+            return (PGConnection) cnx;
+        }
+        return cnx.unwrap(PGConnection.class);
+    }
+
+    /**
+     * Binds the values of one row in a batch of cells to consecutive statement parameters.
+     */
+    static void bind(PreparedStatement statement, int offset, RowBatch.Cells cells, int row) throws SQLException {
+        for (int i = 0; i < cells.numFields; i++) {
+            int param = offset + i + 1;
+            switch (cells.getType(row, i)) {
+                case RowBatch.Cells.NULL:
+                    statement.setObject(param, null);
+                    break;
+                case RowBatch.Cells.INT:
+                    statement.setInt(param, cells.getInt(row, i));
+                    break;
+                case RowBatch.Cells.LONG:
+                    statement.setLong(param, cells.getLong(row, i));
+                    break;
+                case RowBatch.Cells.DOUBLE:
+                    statement.setDouble(param, cells.getDouble(row, i));
+                    break;
+                case RowBatch.Cells.BOOLEAN:
+                    statement.setBoolean(param, cells.getBoolean(row, i));
+                    break;
+                case RowBatch.Cells.STRING:
+                    statement.setString(param, (String) cells.getObject(row, i));
+                    break;
+                case RowBatch.Cells.TIMESTAMP:
+                    statement.setTimestamp(param, (Timestamp) cells.getObject(row, i));
+                    break;
+                default:
+                    statement.setObject(param, cells.getObject(row, i));
+            }
+        }
+    }
+
+    static String getInsertSql(String table, String[] fields, int numRows) {
+        String questions[] = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            questions[i] = "?";
+        }
+        String tuple = "(" + StringUtils.join(questions, ",") + ")";
+        StringBuilder sql = new StringBuilder("INSERT INTO " + table + "(" + StringUtils.join(fields, ",") + ") VALUES ");
+        for (int i = 0; i < numRows; i++) {
+            if (i > 0) sql.append(',');
+            sql.append(tuple);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * JDBC batches of single row inserts. Works with any database and value type.
+     */
+    static class Batch extends BulkInserter {
+        private final PreparedStatement statement;
+
+        Batch(Connection cnx, String table, String[] fields) throws SQLException {
+            super(cnx, table, fields);
+            this.statement = cnx.prepareStatement(getInsertSql(table, fields, 1));
+        }
+
+        @Override
+        void insert(RowBatch batch) throws SQLException {
+            RowBatch.Cells cells = (RowBatch.Cells) batch;
+            try {
+                for (int i = 0; i < cells.getNumRows(); i++) {
+                    bind(statement, 0, cells, i);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } finally {
+                statement.clearBatch();
+            }
+        }
+
+        @Override
+        void close() {
+            JDBCUtils.safeClose(statement);
+        }
+    }
+
+    /**
+     * Multi-row INSERT ... VALUES (...), (...) statements, which cut the
+     * number of statements executed by a factor of ROWS_PER_STATEMENT.
+     */
+    static class MultiRow extends BulkInserter {
+        static final int ROWS_PER_STATEMENT = 100;
+
+        private final PreparedStatement statement;
+
+        MultiRow(Connection cnx, String table, String[] fields) throws SQLException {
+            super(cnx, table, fields);
+            this.statement = cnx.prepareStatement(getInsertSql(table, fields, ROWS_PER_STATEMENT));
+        }
+
+        @Override
+        void insert(RowBatch batch) throws SQLException {
+            RowBatch.Cells cells = (RowBatch.Cells) batch;
+            int n = cells.getNumRows();
+            int row = 0;
+            try {
+                for (; row + ROWS_PER_STATEMENT <= n; row += ROWS_PER_STATEMENT) {
+                    for (int i = 0; i < ROWS_PER_STATEMENT; i++) {
+                        bind(statement, i * fields.length, cells, row + i);
+                    }
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } finally {
+                statement.clearBatch();
+            }
+            if (row < n) {
+                PreparedStatement remainder = cnx.prepareStatement(getInsertSql(table, fields, n - row));
+                try {
+                    for (int i = 0; row + i < n; i++) {
+                        bind(remainder, i * fields.length, cells, row + i);
+                    }
+                    remainder.execute();
+                } finally {
+                    JDBCUtils.safeClose(remainder);
+                }
+            }
+        }
+
+        @Override
+        void close() {
+            JDBCUtils.safeClose(statement);
+        }
+    }
+
+    /**
+     * Writes each batch to a temporary CSV file that H2 inserts directly with CSVREAD.
+     */
+    static class H2Csv extends BulkInserter {
+        private final File file;
+        private final String sql;
+
+        H2Csv(Connection cnx, String table, String[] fields) throws SQLException {
+            super(cnx, table, fields);
+            try {
+                file = File.createTempFile("fastloader-" + table, ".csv");
+                file.deleteOnExit();
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            sql = "INSERT INTO " + table + "(" + StringUtils.join(fields, ",") + ") " +
+                    "DIRECT SELECT * FROM CSVREAD(" +
+                    "'" + file.getAbsolutePath().replace("'", "''") + "', " +
+                    "'" + StringUtils.join(fields, ",") + "', " +
+                    "'charset=UTF-8')";
+        }
+
+        @Override
+        void insert(RowBatch batch) throws SQLException {
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+                writer.append(((RowBatch.Text) batch).getText());
+            } catch (IOException e) {
+                throw new SQLException(e);
+            } finally {
+                IOUtils.closeQuietly(writer);
+            }
+            Statement statement = cnx.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                JDBCUtils.safeClose(statement);
+            }
+        }
+
+        @Override
+        void close() {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Streams each batch through PostgreSQL's COPY ... FROM STDIN.
+     */
+    static class PostgresCopy extends BulkInserter {
+        private final String sql;
+
+        PostgresCopy(Connection cnx, String table, String[] fields) throws SQLException {
+            super(cnx, table, fields);
+            sql = "COPY " + table + "(" + StringUtils.join(fields, ",") + ") FROM STDIN";
+        }
+
+        @Override
+        void insert(RowBatch batch) throws SQLException {
+            try {
+                getPgConnection(cnx).getCopyAPI().copyIn(
+                        sql, new CharSequenceReader(((RowBatch.Text) batch).getText()));
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        }
+    }
+}
@@ -1,43 +1,119 @@
 package org.wikibrain.core.dao.sql;
 
-import org.apache.commons.lang3.StringUtils;
-import org.jooq.Table;
+import org.jooq.SQLDialect;
 import org.jooq.TableField;
-import org.jooq.tools.jdbc.JDBCUtils;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Bulk loads data in batch form to speed up insertions.
  *
+ * Rows are encoded into batches by the threads that call load(), and the
+ * batches are written by one or more inserter threads, each with its own
+ * connection. How a batch is encoded and written depends on the Strategy.
+ * By default, PostgreSQL uses COPY with several inserters and H2 uses
+ * multi-row inserts with a single inserter.
+ *
+ * Rows can be loaded either as an Object array with load(), or field by field
+ * with row(), which encodes primitive values without boxing them:
+ *
+ *      loader.row().add(langId).add(title).add(pageId).end();
+ *
  * @author Shilad Sen
  */
 public class FastLoader {
 
-    private static final Object POSION_PILL = new Object();
+    /**
+     * The ways rows can be written to the database.
+     */
+    public static enum Strategy {
+        /**
+         * JDBC batches of single-row prepared inserts. Works with any database and value type.
+         */
+        BATCH,
+
+        /**
+         * JDBC batches of prepared INSERT ... VALUES (...), (...) statements.
+         */
+        MULTI_ROW,
+
+        /**
+         * H2 only: each batch is written to a CSV file that is inserted directly with CSVREAD.
+         */
+        H2_CSV,
+
+        /**
+         * PostgreSQL only: each batch is streamed through COPY ... FROM STDIN.
+         */
+        POSTGRES_COPY;
+
+        RowBatch newBatch(int numFields) {
+            switch (this) {
+                case H2_CSV:
+                    return new RowBatch.Csv(numFields, TEXT_BATCH_SIZE, MAX_BATCH_CHARS);
+                case POSTGRES_COPY:
+                    return new RowBatch.CopyText(numFields, TEXT_BATCH_SIZE, MAX_BATCH_CHARS);
+                default:
+                    return new RowBatch.Cells(numFields, BATCH_SIZE, MAX_BATCH_CHARS);
+            }
+        }
+
+        BulkInserter newInserter(Connection cnx, String table, String[] fields) throws SQLException {
+            switch (this) {
+                case MULTI_ROW:
+                    return new BulkInserter.MultiRow(cnx, table, fields);
+                case H2_CSV:
+                    return new BulkInserter.H2Csv(cnx, table, fields);
+                case POSTGRES_COPY:
+                    return new BulkInserter.PostgresCopy(cnx, table, fields);
+                default:
+                    return new BulkInserter.Batch(cnx, table, fields);
+            }
+        }
+    }
+
+    /**
+     * Loads a single row, one value per field in field order, followed by a call to end().
+     * Instances are owned by the thread that called row() and must not be shared.
+     */
+    public interface Row {
+        Row add(int value);
+        Row add(long value);
+        Row add(double value);
+        Row add(boolean value);
+        Row add(char value);
+        Row add(String value);
+        Row add(Object value);
+        void end() throws DaoException;
+    }
+
+    private static final RowBatch POSION_PILL = new RowBatch.Cells(0, 0, 0);
     private boolean isPostGisLoader = false;
 
     static final Logger LOG = Logger.getLogger(FastLoader.class.getName());
     static final int BATCH_SIZE = 2000;
+    static final int TEXT_BATCH_SIZE = 20000;
+    static final int MAX_BATCH_CHARS = 8 * 1024 * 1024;
+    static final int MAX_POSTGRES_INSERTERS = 4;
+    static final long LOG_INTERVAL_MILLIS = 30000;
 
     private final WpDataSource ds;
     private final String table;
     private final String[] fields;
+    private final Strategy strategy;
 
-    private BlockingQueue<Object[]> rowBuffer =
-            new ArrayBlockingQueue<Object[]>(BATCH_SIZE * 2);
+    private final BlockingQueue<RowBatch> batchQueue;
 
     static enum InserterState {
         RUNNING,            // In normal working mode
@@ -46,42 +122,121 @@ public class FastLoader {
         SHUTDOWN            // Already shutdown
     }
 
-    private Thread inserter = null;
+    private final List<Thread> inserters = new ArrayList<Thread>();
     private volatile InserterState inserterState = null;
+    private volatile Exception failure = null;
+
+    // Each thread that loads rows fills its own batch.
+    private final ThreadLocal<RowEncoder> encoders = new ThreadLocal<RowEncoder>();
+    private final List<RowEncoder> allEncoders = new ArrayList<RowEncoder>();
+
+    // Throughput counters
+    private final long startMillis = System.currentTimeMillis();
+    private final AtomicLong lastLogMillis = new AtomicLong(startMillis);
+    private final AtomicLong rowsInserted = new AtomicLong();
+    private final AtomicLong batchesInserted = new AtomicLong();
+    private final AtomicLong batchesFailed = new AtomicLong();
+    private final AtomicLong queueStalls = new AtomicLong();
+    private final AtomicLong queueStallMillis = new AtomicLong();
+    private final AtomicLong inserterIdleMillis = new AtomicLong();
 
     public FastLoader(WpDataSource ds, TableField[] fields) throws DaoException {
         this(ds, fields[0].getTable().getName(), getFieldNames(fields));
     }
 
     public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader) throws DaoException {
-        this(ds,table, fields);
-        this.isPostGisLoader = isPostGisLoader;
+        this(ds, table, fields, isPostGisLoader,
+                isPostGisLoader ? Strategy.BATCH : getDefaultStrategy(ds),
+                getDefaultNumInserters(ds));
     }
 
     public FastLoader(WpDataSource ds, String table, String[] fields) throws DaoException {
+        this(ds, table, fields, false);
+    }
+
+    /**
+     * @param ds
+     * @param table
+     * @param fields
+     * @param isPostGisLoader If true, PostGIS geometry types are registered with each connection.
+     * @param strategy The way rows are written to the database.
+     * @param numInserters The number of inserter threads, each with its own connection.
+     * @throws DaoException
+     */
+    public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader, Strategy strategy, int numInserters) throws DaoException {
+        if ((strategy == Strategy.H2_CSV && ds.getDialect() != SQLDialect.H2)
+        ||  (strategy == Strategy.POSTGRES_COPY && ds.getDialect() != SQLDialect.POSTGRES)) {
+            throw new IllegalArgumentException("strategy " + strategy + " is not supported by " + ds.getDialect());
+        }
         this.ds = ds;
         this.table = table;
         this.fields = fields;
+        this.isPostGisLoader = isPostGisLoader;
+        this.strategy = strategy;
+        this.batchQueue = new ArrayBlockingQueue<RowBatch>(numInserters * 2);
 
-        inserter = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    insertBatches();
-                } catch (DaoException e) {
-                    LOG.log(Level.SEVERE, "inserter failed", e);
-                    inserterState = InserterState.FAILED;
-                } catch (SQLException e) {
-                    LOG.log(Level.SEVERE, "inserter failed", e);
-                    inserterState = InserterState.FAILED;
-                } catch (InterruptedException e) {
-                    LOG.log(Level.SEVERE, "inserter interrupted", e);
-                    inserterState = InserterState.FAILED;
+        for (int i = 0; i < numInserters; i++) {
+            Thread inserter = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        insertBatches();
+                    } catch (DaoException e) {
+                        fail(e);
+                    } catch (SQLException e) {
+                        fail(e);
+                    } catch (InterruptedException e) {
+                        fail(e);
+                    }
                 }
-                rowBuffer.clear();  // allow any existing puts to go through
-            }
-        });
-        inserter.start();
+            }, "fastloader-" + table + "-" + i);
+            inserters.add(inserter);
+        }
         inserterState = InserterState.RUNNING;
+        for (Thread inserter : inserters) {
+            inserter.start();
+        }
+        LOG.info("loading " + table + " with strategy " + strategy + " and " + numInserters + " inserters");
+    }
+
+    /**
+     * Marks the loader as failed. Threads blocked in load() or endLoad() notice the
+     * failure and rethrow it; batches that are already queued are left in place.
+     */
+    private void fail(Exception e) {
+        LOG.log(Level.SEVERE, "inserter failed", e);
+        failure = e;
+        inserterState = InserterState.FAILED;
+    }
+
+    private DaoException getFailure() {
+        return new DaoException("inserter for " + table + " failed", failure);
+    }
+
+    /**
+     * Returns COPY for PostgreSQL, multi-row inserts for H2 (the fastest
+     * strategy in BenchmarkFastLoader) and JDBC batches for other databases.
+     */
+    public static Strategy getDefaultStrategy(WpDataSource ds) {
+        switch (ds.getDialect()) {
+            case POSTGRES:
+                return Strategy.POSTGRES_COPY;
+            case H2:
+                return Strategy.MULTI_ROW;
+            default:
+                return Strategy.BATCH;
+        }
+    }
+
+    /**
+     * PostgreSQL accepts concurrent inserts into a table, but H2 serializes them
+     * under a table lock, so it gets a single inserter.
+     */
+    public static int getDefaultNumInserters(WpDataSource ds) {
+        if (ds.getDialect() == SQLDialect.POSTGRES) {
+            return Math.max(1, Math.min(MAX_POSTGRES_INSERTERS, WpThreadUtils.getMaxThreads()));
+        } else {
+            return 1;
+        }
     }
 
     private static String[] getFieldNames(TableField[] fields) {
@@ -97,110 +252,217 @@ public class FastLoader {
      * @param values
      * @throws DaoException
      */
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
     public void load(Object ... values) throws DaoException {
-        if (inserter == null || inserterState != InserterState.RUNNING) {
-            throw new IllegalStateException("inserter thread in state " + inserterState);
+        if (values.length != fields.length) {
+            throw new IllegalArgumentException();
+        }
+        if (inserterState == InserterState.FAILED) {
+            throw getFailure();
         }
-        // Hack convert dates to Timestamps
-        for (int i = 0; i < values.length; i++) {
-            if (values[i] instanceof Date && !(values[i] instanceof Timestamp)) {
-                values[i] = new Timestamp(((Date)values[i]).getTime());
+        RowEncoder row = getEncoder();
+        for (Object v : values) {
+            row.batch.addObject(v);
+        }
+        row.end();
+    }
+
+    /**
+     * Starts a new row for the calling thread. See Row.
+     */
+    public Row row() {
+        return getEncoder();
+    }
+
+    private RowEncoder getEncoder() {
+        if (inserterState != InserterState.RUNNING) {
+            throw new IllegalStateException("inserter thread in state " + inserterState, failure);
+        }
+        RowEncoder encoder = encoders.get();
+        if (encoder == null) {
+            encoder = new RowEncoder();
+            encoders.set(encoder);
+            synchronized (allEncoders) {
+                allEncoders.add(encoder);
             }
         }
-        if (values.length != fields.length) {
-            throw new IllegalArgumentException();
+        return encoder;
+    }
+
+    /**
+     * Encodes rows for one thread and hands off each batch when it fills up.
+     */
+    private class RowEncoder implements Row {
+        private RowBatch batch = strategy.newBatch(fields.length);
+
+        @Override
+        public Row add(int value) { batch.addInt(value); return this; }
+
+        @Override
+        public Row add(long value) { batch.addLong(value); return this; }
+
+        @Override
+        public Row add(double value) { batch.addDouble(value); return this; }
+
+        @Override
+        public Row add(boolean value) { batch.addBoolean(value); return this; }
+
+        @Override
+        public Row add(char value) { batch.addString(String.valueOf(value)); return this; }
+
+        @Override
+        public Row add(String value) { batch.addString(value); return this; }
+
+        @Override
+        public Row add(Object value) { batch.addObject(value); return this; }
+
+        @Override
+        public void end() throws DaoException {
+            batch.endRow();
+            if (batch.isFull()) {
+                flush();
+            }
         }
+
+        private synchronized void flush() throws DaoException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            enqueue(batch);
+            batch = strategy.newBatch(fields.length);
+        }
+    }
+
+    /**
+     * Queues a batch, waiting for space while the inserters are alive.
+     * @throws DaoException If an inserter fails before the batch is queued.
+     */
+    private void enqueue(RowBatch batch) throws DaoException {
         try {
-            rowBuffer.put(values);
+            if (!batchQueue.offer(batch)) {
+                long start = System.currentTimeMillis();
+                while (!batchQueue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    if (inserterState == InserterState.FAILED) {
+                        throw getFailure();
+                    }
+                }
+                queueStalls.incrementAndGet();
+                queueStallMillis.addAndGet(System.currentTimeMillis() - start);
+            }
         } catch (InterruptedException e) {
             throw new DaoException(e);
         }
     }
 
     private void insertBatches() throws DaoException, SQLException, InterruptedException {
-        boolean finished = false;
-
         Connection cnx = ds.getConnection();
         if (isPostGisLoader){
             try {
 
-                ((org.postgresql.PGConnection) cnx).addDataType("geometry", Class.forName("org.postgis.PGgeometry"));
+                BulkInserter.getPgConnection(cnx).addDataType("geometry", Class.forName("org.postgis.PGgeometry"));
 //                ((org.postgresql.PGConnection) cnx).addDataType("geometry", Class.forName("org.postgis.Multipolygon"));
 
             }catch(ClassNotFoundException e){
+                AbstractSqlDao.quietlyCloseConn(cnx);
                 throw new DaoException("Could not find PostGIS geometry type. Is the PostGIS library in the class path?: " + e.getMessage());
             }
         }
 
-        PreparedStatement statement = null;
+        BulkInserter inserter = null;
         try {
-            String [] names = new String[fields.length];
-            String [] questions = new String[fields.length];
-            for (int i = 0; i < fields.length; i++) {
-                names[i] = fields[i];
-                questions[i] = "?";
-            }
-            String sql = "INSERT INTO " +
-                    table + "(" + StringUtils.join(names, ",") + ") " +
-                    "VALUES (" + StringUtils.join(questions, ",") + ");";
-            statement = cnx.prepareStatement(sql);
-
-
-            while (!finished) {
-                // accumulate batch
-                int batchSize = 0;
-                while (!finished && batchSize < BATCH_SIZE) {
-                    Object row[] = rowBuffer.poll(100, TimeUnit.MILLISECONDS);
-                    if (row == null) {
-                        // do nothing
-                    } else if (row[0] == POSION_PILL) {
-                        finished = true;
-                    } else {
-                        batchSize++;
-                        for (int i = 0; i < row.length; i++) {
-                            if(row[i].getClass().equals(java.lang.Character.class))
-                                 statement.setObject(i + 1, row[i].toString());
-                            else
-                                statement.setObject(i + 1, row[i]);
-                        }
-                        statement.addBatch();
+            inserter = strategy.newInserter(cnx, table, fields);
+            while (true) {
+                long start = System.currentTimeMillis();
+                RowBatch batch = batchQueue.poll(100, TimeUnit.MILLISECONDS);
+                inserterIdleMillis.addAndGet(System.currentTimeMillis() - start);
+                if (batch == null) {
+                    if (inserterState == InserterState.FAILED) {
+                        break;
                     }
+                    continue;
+                } else if (batch == POSION_PILL) {
+                    break;
                 }
                 try {
-                    statement.executeBatch();
+                    inserter.insert(batch);
                     cnx.commit();
+                    rowsInserted.addAndGet(batch.getNumRows());
+                    batchesInserted.incrementAndGet();
                 } catch (SQLException e) {
                     cnx.rollback();
+                    batchesFailed.incrementAndGet();
                     LOG.log(Level.SEVERE, "insert batch failed, attempting to continue:", e);
                 }
-                statement.clearBatch();
+                maybeLogStats();
             }
         } finally {
-            if (statement != null) {
-                JDBCUtils.safeClose(statement);
+            if (inserter != null) {
+                inserter.close();
             }
             AbstractSqlDao.quietlyCloseConn(cnx);
         }
     }
 
+    private void maybeLogStats() {
+        long last = lastLogMillis.get();
+        long now = System.currentTimeMillis();
+        if (now - last >= LOG_INTERVAL_MILLIS && lastLogMillis.compareAndSet(last, now)) {
+            logStats();
+        }
+    }
+
+    private void logStats() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startMillis);
+        LOG.info(String.format(
+                "%s: inserted %d rows in %d batches (%.0f rows per second), %d failed batches, " +
+                "%d queue stalls (%.1fs), inserters idle %.1fs",
+                table, rowsInserted.get(), batchesInserted.get(),
+                1000.0 * rowsInserted.get() / elapsed,
+                batchesFailed.get(), queueStalls.get(), queueStallMillis.get() / 1000.0,
+                inserterIdleMillis.get() / 1000.0));
+    }
+
+    /**
+     * Flushes all rows and waits for the inserters to finish.
+     * @throws DaoException If an inserter failed. Rows that were not yet inserted are lost.
+     */
     public void endLoad() throws DaoException {
+        boolean wasShutdown = (inserterState == InserterState.SHUTDOWN);
         try {
             if (inserterState == InserterState.RUNNING) {
-                rowBuffer.put(new Object[]{POSION_PILL});
+                synchronized (allEncoders) {
+                    for (RowEncoder encoder : allEncoders) {
+                        encoder.flush();
+                    }
+                }
+                for (int i = 0; i < inserters.size(); i++) {
+                    enqueue(POSION_PILL);
+                }
             }
-            inserterState = InserterState.SHUTTING_DOWN;
-        } catch (InterruptedException e) {
-            throw new DaoException(e);
+        } finally {
+            // Surviving inserters of a failed loader stop once the queue is empty.
+            if (inserterState != InserterState.FAILED) {
+                inserterState = InserterState.SHUTTING_DOWN;
+            }
+            joinInserters();
         }
-        if (inserter != null) {
+        if (!wasShutdown) {
+            logStats();
+        }
+        if (inserterState == InserterState.FAILED) {
+            inserterState = InserterState.SHUTDOWN;
+            throw getFailure();
+        }
+        inserterState = InserterState.SHUTDOWN;
+    }
+
+    private void joinInserters() throws DaoException {
+        for (Thread inserter : inserters) {
             try {
                 inserter.join(60000);
             } catch (InterruptedException e) {
                 throw new DaoException(e);
             }
         }
-        inserterState = InserterState.SHUTDOWN;
     }
 
     public void close() throws  DaoException {
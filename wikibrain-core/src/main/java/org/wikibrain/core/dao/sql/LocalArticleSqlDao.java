@@ -47,6 +47,11 @@ public class LocalArticleSqlDao extends LocalPageSqlDao<LocalArticle> implements
         return super.getByTitles(language, titles, NameSpace.ARTICLE);
     }
 
+    @Override
+    protected boolean followsRedirectsOnBuild() {
+        return false;
+    }
+
     @Override
     protected LocalArticle buildLocalPage(Record record) throws DaoException {
         if (record == null) {
@@ -1,13 +1,18 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
-import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.dao.*;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.*;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.File;
 import java.util.*;
@@ -23,6 +28,8 @@ public class LocalCategoryGraphBuilder {
     private static final Logger LOG = Logger.getLogger(LocalCategoryGraphBuilder.class.getName());
 
     /**
+     * Builds the graph from a single pass over the category members.
+     * The three adjacency structures are then assembled in parallel.
      *
      * @param language
      * @param lpDao
@@ -31,96 +38,114 @@ public class LocalCategoryGraphBuilder {
      * @throws DaoException
      */
     public CategoryGraph build(Language language, LocalPageDao lpDao, LocalCategoryMemberDao lcmDao) throws DaoException {
-        CategoryGraph graph = new CategoryGraph(language);
-        loadCategories(graph, lpDao);
-        buildGraph(graph, lcmDao);
-        computePageRanks(graph);
-        return graph;
-    }
-
-    private void loadCategories(CategoryGraph graph, LocalPageDao lpDao) throws DaoException {
         LOG.info("loading categories...");
-        graph.catIndexes = new TIntIntHashMap();
-        List<String> catList = new ArrayList<String>();
+        TIntObjectMap<String> names = new TIntObjectHashMap<String>();
         Iterable<LocalPage> catIter = lpDao.get(new DaoFilter()
                 .setNameSpaces(NameSpace.CATEGORY)
-                .setLanguages(graph.language)
+                .setLanguages(language)
         );
         for (LocalPage cat : catIter) {
             if (cat != null) {
-                catList.add(cat.getTitle().getCanonicalTitle());
-                graph.catIndexes.put (cat.getLocalId(),graph.catIndexes.size());
+                names.put(cat.getLocalId(), cat.getTitle().getCanonicalTitle());
             }
         }
-        graph.cats = catList.toArray(new String[0]);
-        LOG.info("finished loading " + graph.cats.length + " categories");
+        int catIds[] = names.keys();
+        Arrays.sort(catIds);
+        String catNames[] = new String[catIds.length];
+        for (int i = 0; i < catIds.length; i++) {
+            catNames[i] = names.get(catIds[i]);
+        }
+        LOG.info("finished loading " + catIds.length + " categories");
+
+        LOG.info("reading category members");
+        TIntArrayList categories = new TIntArrayList();
+        TIntArrayList members = new TIntArrayList();
+        for (LocalCategoryMember lcm : lcmDao.get(new DaoFilter().setLanguages(language))) {
+            categories.add(lcm.getCategoryId());
+            members.add(lcm.getArticleId());
+        }
+        LOG.info("read " + categories.size() + " category members");
+
+        CategoryGraph graph = build(language, catIds, catNames, categories.toArray(), members.toArray(), WpThreadUtils.getMaxThreads());
+        computePageRanks(graph);
+        return graph;
     }
 
-    private void buildGraph(CategoryGraph graph, LocalCategoryMemberDao lcmDao) throws DaoException {
+    /**
+     * Builds a graph, without costs, from category membership edges.
+     *
+     * @param catIds The sorted ids of all categories.
+     * @param catNames The name of each category.
+     * @param categories The category of each membership edge.
+     * @param members The member page of each membership edge.
+     */
+    public CategoryGraph build(Language language, final int catIds[], String catNames[],
+                               final int categories[], final int members[], int numThreads) throws DaoException {
         LOG.info("building category graph");
-        graph.catPages = new int[graph.catIndexes.size()][];
-        graph.catParents = new int[graph.catIndexes.size()][];
-        graph.catChildren = new int[graph.catIndexes.size()][];
-        graph.catCosts = new double[graph.catIndexes.size()];
-
-        Arrays.fill(graph.catPages, new int[0]);
-        Arrays.fill(graph.catParents, new int[0]);
-        Arrays.fill(graph.catChildren, new int[0]);
-
-        // count reverse edges
-        int totalEdges = 0;
-        int numCatChildren[] = new int[graph.catIndexes.size()];
-        int numCatParents[] = new int[graph.catIndexes.size()];
-        int numCatPages[] = new int[graph.catIndexes.size()];
-
-        DaoFilter filter = new DaoFilter().setLanguages(graph.language);
-        for (LocalCategoryMember lcm : lcmDao.get(filter)) {
-            int catIndex1 = graph.getCategoryIndex(lcm.getArticleId());     // cat index for page (probably -1)
-            int catIndex2 = graph.getCategoryIndex(lcm.getCategoryId());    // cat index for cat
-            if (catIndex1 >= 0 && catIndex2 >= 0) {
-                numCatChildren[catIndex2]++;
-                numCatParents[catIndex1]++;
-            } else if (catIndex2 >= 0) {
-                numCatPages[catIndex2]++;
-            }
-            totalEdges++;
+        final int catIndexes[] = new int[categories.length];
+        final int memberIndexes[] = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            catIndexes[i] = Arrays.binarySearch(catIds, categories[i]);
+            memberIndexes[i] = Arrays.binarySearch(catIds, members[i]);
         }
 
-        // allocate space
-        for (int i = 0; i < graph.catIndexes.size(); i++) {
-            graph.catPages[i] = new int[numCatPages[i]];
-            graph.catChildren[i] = new int[numCatChildren[i]];
-            graph.catParents[i] = new int[numCatParents[i]];
+        // 0 = parents, 1 = children, 2 = pages
+        List<CategoryGraph.Adjacency> adjacencies = ParallelForEach.range(0, 3, numThreads,
+                new Function<Integer, CategoryGraph.Adjacency>() {
+            @Override
+            public CategoryGraph.Adjacency call(Integer kind) throws Exception {
+                int sources[] = (kind == 0) ? memberIndexes : catIndexes;
+                int targets[] = (kind == 0) ? catIndexes : (kind == 1) ? memberIndexes : members;
+                boolean pages = (kind == 2);
+                return buildAdjacency(catIds.length, sources, targets, catIndexes, memberIndexes, pages);
+            }
+        });
+        if (adjacencies.contains(null)) {
+            throw new DaoException("building the category graph for " + language + " failed");
         }
+        CategoryGraph graph = new CategoryGraph(language, catIds, catNames,
+                adjacencies.get(0), adjacencies.get(1), adjacencies.get(2));
+        LOG.info("loaded " + categories.length + " edges in category graph");
+        return graph;
+    }
 
-        // fill it
-        for (LocalCategoryMember lcm : lcmDao.get(filter)) {
-            int catIndex1 = graph.getCategoryIndex(lcm.getArticleId());     // cat index for page (probably -1)
-            int catIndex2 = graph.getCategoryIndex(lcm.getCategoryId());    // cat index for cat
-            if (catIndex1 >= 0 && catIndex2 >= 0) {
-                graph.catChildren[catIndex2][--numCatChildren[catIndex2]] = catIndex1;
-                graph.catParents[catIndex1][--numCatParents[catIndex1]] = catIndex2;
-            } else if (catIndex2 >= 0) {
-                graph.catPages[catIndex2][--numCatPages[catIndex2]] = lcm.getArticleId();
+    /**
+     * Counting sort of the edges from sources to targets, keeping category to category
+     * edges or, if pages is true, category to page edges. Each category's targets are sorted.
+     */
+    private static CategoryGraph.Adjacency buildAdjacency(int numCats, int sources[], int targets[],
+                                                          int catIndexes[], int memberIndexes[], boolean pages) {
+        int offsets[] = new int[numCats + 1];
+        for (int i = 0; i < sources.length; i++) {
+            if (catIndexes[i] >= 0 && (memberIndexes[i] >= 0) != pages) {
+                offsets[sources[i] + 1]++;
             }
         }
-
-        for (int n : numCatChildren) { assert(n == 0); }
-        for (int n : numCatPages) { assert(n == 0); }
-        for (int n : numCatParents) { assert(n == 0); }
-        LOG.info("loaded " + totalEdges + " edges in category graph");
+        for (int i = 0; i < numCats; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int next[] = Arrays.copyOf(offsets, numCats);
+        int adjacent[] = new int[offsets[numCats]];
+        for (int i = 0; i < sources.length; i++) {
+            if (catIndexes[i] >= 0 && (memberIndexes[i] >= 0) != pages) {
+                adjacent[next[sources[i]]++] = targets[i];
+            }
+        }
+        for (int i = 0; i < numCats; i++) {
+            Arrays.sort(adjacent, offsets[i], offsets[i + 1]);
+        }
+        return new CategoryGraph.Adjacency(offsets, adjacent);
     }
 
     public void computePageRanks(CategoryGraph graph) {
         LOG.info("computing category page ranks...");
 
         // initialize page rank
-        long sumCredits = graph.catPages.length;    // each category gets 1 credit to start
-        for (int i = 0; i < graph.catPages.length; i++) {
-            sumCredits += graph.catPages[i].length; // one more credit per page that references it.
-        }
-        for (int i = 0; i < graph.catPages.length; i++) {
-            graph.catCosts[i] = (1.0 + graph.catPages[i].length) / sumCredits;
+        int numCats = graph.getNumCategories();
+        long sumCredits = numCats;    // each category gets 1 credit to start
+        sumCredits += graph.pages.getNumEdges(); // one more credit per page that references it.
+        for (int i = 0; i < numCats; i++) {
+            graph.catCosts[i] = (1.0 + graph.pages.size(i)) / sumCredits;
         }
 
         for (int i = 0; i < 20; i++) {
@@ -132,7 +157,7 @@ public class LocalCategoryGraphBuilder {
             }
         }
         Integer sortedIndexes[] = new Integer[graph.catCosts.length];
-        for (int i = 0; i < graph.catParents.length; i++) {
+        for (int i = 0; i < numCats; i++) {
             graph.catCosts[i] = 1.0/-Math.log(graph.catCosts[i]);
             sortedIndexes[i] = i;
         }
@@ -148,9 +173,9 @@ public class LocalCategoryGraphBuilder {
         });
 
         StringBuilder b = new StringBuilder();
-        for (int i = 0; i < 20; i++) {
+        for (int i = 0; i < 20 && i < numCats; i++) {
             int j = sortedIndexes[i];
-            b.append("" + i + ". " + graph.cats[j] + "=" + graph.catCosts[j]);
+            b.append("" + i + ". " + graph.getCategoryName(j) + "=" + graph.catCosts[j]);
             b.append(", ");
         }
         graph.minCost = graph.catCosts[sortedIndexes[sortedIndexes.length - 1]];
@@ -163,15 +188,16 @@ public class LocalCategoryGraphBuilder {
     public double onePageRankIteration(CategoryGraph graph) {
         double nextRanks [] = new double[graph.catCosts.length];
         Arrays.fill(nextRanks, (1.0 - DAMPING_FACTOR) / graph.catCosts.length);
-        for (int i = 0; i < graph.catParents.length; i++) {
-            int d = graph.catParents[i].length;   // degree
+        CategoryGraph.Adjacency parents = graph.parents;
+        for (int i = 0; i < nextRanks.length; i++) {
+            int d = parents.size(i);   // degree
             double pr = graph.catCosts[i];    // current page-rank
-            for (int j : graph.catParents[i]) {
-                nextRanks[j] += DAMPING_FACTOR * pr / d;
+            for (int k = parents.start(i); k < parents.end(i); k++) {
+                nextRanks[parents.get(k)] += DAMPING_FACTOR * pr / d;
             }
         }
         double diff = 0.0;
-        for (int i = 0; i < graph.catParents.length; i++) {
+        for (int i = 0; i < nextRanks.length; i++) {
             diff += Math.abs(graph.catCosts[i] - nextRanks[i]);
         }
         graph.catCosts = nextRanks;
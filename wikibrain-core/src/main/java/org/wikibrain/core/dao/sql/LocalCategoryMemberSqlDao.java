@@ -12,6 +12,7 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
@@ -167,17 +168,26 @@ public class LocalCategoryMemberSqlDao extends AbstractSqlDao<LocalCategoryMembe
 
     @Override
     public CategoryGraph getGraph(Language language) throws DaoException {
-        String key = "cat-graph-" + language.getLangCode();
-        if (cache != null) {
-            CategoryGraph graph = (CategoryGraph) cache.get(key, LocalPage.class, LocalCategoryMember.class);
-            if (graph != null) {
-                return graph;
+        String key = "cat-graph-" + language.getLangCode() + ".csr";
+        try {
+            if (cache != null) {
+                File file = cache.getUpToDateFile(key, LocalPage.class, LocalCategoryMember.class);
+                if (file != null) {
+                    return CategoryGraph.read(file);
+                }
+            }
+            LocalCategoryGraphBuilder builder = new LocalCategoryGraphBuilder();
+            CategoryGraph graph =  builder.build(language, localPageDao, this);
+            if (cache != null) {
+                // reopen the graph memory mapped so the built arrays can be collected
+                File file = cache.getCacheFile(key);
+                graph.write(file);
+                graph = CategoryGraph.read(file);
             }
+            return graph;
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
-        LocalCategoryGraphBuilder builder = new LocalCategoryGraphBuilder();
-        CategoryGraph graph =  builder.build(language, localPageDao, this);
-        cache.put(key, graph);
-        return graph;
     }
 
     private Collection<Integer> extractIds(Result<Record> result, boolean categoryIds) {
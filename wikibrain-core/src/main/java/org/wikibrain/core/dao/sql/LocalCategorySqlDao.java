@@ -48,6 +48,11 @@ public class LocalCategorySqlDao extends LocalPageSqlDao<LocalCategory> implemen
     }
 
 
+    @Override
+    protected boolean followsRedirectsOnBuild() {
+        return false;
+    }
+
     @Override
     protected LocalCategory buildLocalPage(Record record) throws DaoException {
         if (record == null) {
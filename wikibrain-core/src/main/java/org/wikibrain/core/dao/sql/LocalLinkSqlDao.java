@@ -36,15 +36,15 @@ public class LocalLinkSqlDao extends AbstractSqlDao<LocalLink> implements LocalL
 
     @Override
     public void save(LocalLink localLink) throws DaoException {
-        insert(
-            localLink.getLanguage().getId(),
-            localLink.getAnchorText(),
-            localLink.getSourceId(),
-            localLink.getDestId(),
-            localLink.getLocation(),
-            localLink.isParseable(),
-            localLink.getLocType().ordinal()
-        );
+        insertRow()
+            .add(localLink.getLanguage().getId())
+            .add(localLink.getAnchorText())
+            .add(localLink.getSourceId())
+            .add(localLink.getDestId())
+            .add(localLink.getLocation())
+            .add(localLink.isParseable())
+            .add(localLink.getLocType().ordinal())
+            .end();
     }
 
     @Override
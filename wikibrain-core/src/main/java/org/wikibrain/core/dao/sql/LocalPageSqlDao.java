@@ -1,9 +1,10 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import org.jooq.*;
+import org.jooq.impl.DSL;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -16,18 +17,26 @@ import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.WpArrayUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 
 /**
  */
 public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> implements LocalPageDao<T> {
-    private volatile TLongIntHashMap titlesToIds = null;
+    /**
+     * Maximum length of a redirect chain followed by bulk lookups.
+     */
+    private static final int MAX_REDIRECT_DEPTH = 10;
+
+    private volatile TitleIndex titlesToIds = null;
     private RedirectSqlDao redirectSqlDao;
 
     public LocalPageSqlDao(WpDataSource dataSource) throws DaoException {
@@ -176,9 +185,31 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
         if (pageIds == null || pageIds.isEmpty()) {
             return null;
         }
+        return getByIds(language, pageIds, 0);
+    }
+
+    /**
+     * Fetches pages with one query per chunk of ids, resolving redirects in bulk.
+     * @param depth The number of redirects followed so far.
+     */
+    private Map<Integer, T> getByIds(Language language, Collection<Integer> pageIds, int depth) throws DaoException {
+        List<Record> records = new ArrayList<Record>();
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : toInClauseChunks(pageIds)) {
+                records.addAll(context.select().
+                        from(Tables.LOCAL_PAGE).
+                        where(inlinedIn(Tables.LOCAL_PAGE.PAGE_ID, chunk)).
+                        and(Tables.LOCAL_PAGE.LANG_ID.eq(DSL.inline(language.getId(), Tables.LOCAL_PAGE.LANG_ID))).
+                        fetch());
+            }
+        } finally {
+            freeJooq(context);
+        }
+        Map<Integer, T> pages = buildLocalPages(language, records, depth);
         Map<Integer, T> map = new HashMap<Integer, T>();
         for (Integer pageId : pageIds){
-            map.put(pageId, getById(language, pageId));
+            map.put(pageId, pages.get(pageId));
         }
         return map;
     }
@@ -188,13 +219,99 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
         if (titles == null || titles.isEmpty()) {
             return null;
         }
+        // Titles are matched in their own language, as in getByTitle.
+        Map<Language, List<String>> titlesByLang = new HashMap<Language, List<String>>();
+        for (Title title : titles) {
+            if (!titlesByLang.containsKey(title.getLanguage())) {
+                titlesByLang.put(title.getLanguage(), new ArrayList<String>());
+            }
+            titlesByLang.get(title.getLanguage()).add(title.getCanonicalTitle());
+        }
+        Map<Language, Map<String, T>> pagesByLang = new HashMap<Language, Map<String, T>>();
+        for (Language lang : titlesByLang.keySet()) {
+            Map<String, Record> records = new HashMap<String, Record>();
+            DSLContext context = getJooq();
+            try {
+                for (List<String> chunk : toInClauseChunks(titlesByLang.get(lang))) {
+                    Result<Record> result = context.select().
+                            from(Tables.LOCAL_PAGE).
+                            where(inlinedIn(Tables.LOCAL_PAGE.TITLE, chunk)).
+                            and(Tables.LOCAL_PAGE.LANG_ID.eq(DSL.inline(lang.getId(), Tables.LOCAL_PAGE.LANG_ID))).
+                            and(Tables.LOCAL_PAGE.NAME_SPACE.eq(DSL.inline(nameSpace.getArbitraryId(), Tables.LOCAL_PAGE.NAME_SPACE))).
+                            fetch();
+                    for (Record record : result) {
+                        String title = record.getValue(Tables.LOCAL_PAGE.TITLE);
+                        if (!records.containsKey(title)) {
+                            records.put(title, record);
+                        }
+                    }
+                }
+            } finally {
+                freeJooq(context);
+            }
+            Map<Integer, T> pages = buildLocalPages(lang, records.values(), 0);
+            Map<String, T> byTitle = new HashMap<String, T>();
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                byTitle.put(entry.getKey(), pages.get(entry.getValue().getValue(Tables.LOCAL_PAGE.PAGE_ID)));
+            }
+            pagesByLang.put(lang, byTitle);
+        }
         Map<Title, T> map = new HashMap<Title, T>();
         for (Title title : titles){
-            map.put(title, getByTitle(title, nameSpace));
+            map.put(title, pagesByLang.get(title.getLanguage()).get(title.getCanonicalTitle()));
         }
         return map;
     }
 
+    /**
+     * Builds pages from records in one language, keyed by the id of each record.
+     * Redirects are resolved with a single bulk lookup per level of the redirect chain.
+     *
+     * @param language
+     * @param records
+     * @param depth The number of redirects followed so far.
+     * @return
+     * @throws DaoException
+     */
+    private Map<Integer, T> buildLocalPages(Language language, Collection<Record> records, int depth) throws DaoException {
+        Map<Integer, T> pages = new HashMap<Integer, T>();
+        List<Record> redirects = new ArrayList<Record>();
+        for (Record record : records) {
+            if (followsRedirectsOnBuild() && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)) {
+                redirects.add(record);
+            } else {
+                pages.put(record.getValue(Tables.LOCAL_PAGE.PAGE_ID), (T) buildLocalPage(record));
+            }
+        }
+        if (redirects.isEmpty()) {
+            return pages;
+        }
+
+        TIntIntMap dests = new TIntIntHashMap();
+        Map<Integer, T> destPages = new HashMap<Integer, T>();
+        if (depth < MAX_REDIRECT_DEPTH) {
+            List<Integer> redirectIds = new ArrayList<Integer>();
+            for (Record record : redirects) {
+                redirectIds.add(record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
+            }
+            dests = redirectSqlDao.resolveRedirects(language, redirectIds);
+            if (!dests.isEmpty()) {
+                destPages = getByIds(language, WpArrayUtils.toList(dests.values()), depth + 1);
+            }
+        } else {
+            LOG.warning("not following redirects beyond depth " + depth + " in " + language);
+        }
+        for (Record record : redirects) {
+            int pageId = record.getValue(Tables.LOCAL_PAGE.PAGE_ID);
+            T page = dests.containsKey(pageId) ? destPages.get(dests.get(pageId)) : null;
+            if (page == null) {
+                page = (T) newLocalPage(record);
+            }
+            pages.put(pageId, page);
+        }
+        return pages;
+    }
+
     @Override
     public int getIdByTitle(String title, Language language, NameSpace nameSpace) throws DaoException {
         if (titlesToIds==null){
@@ -211,6 +328,19 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
         return titlesToIds.get(title.longHashCode());
     }
 
+    /**
+     * Opens or builds the title index used by getIdByTitle for the language, so
+     * threads that look up titles later do not wait on the build. The index covers
+     * every language, so this only does work on the first call.
+     * @param language
+     * @throws DaoException
+     */
+    public void ensureTitleIndex(Language language) throws DaoException {
+        if (titlesToIds == null) {
+            buildTitlesToIds();
+        }
+    }
+
     /**
      * Build a LocalPage from a database record representation.
      * Classes that extend class this should override this method.
@@ -240,6 +370,14 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
                 return page;
             }
         }
+        return newLocalPage(record);
+    }
+
+    /**
+     * Builds a LocalPage from exactly the given record, without following redirects.
+     */
+    private LocalPage newLocalPage(Record record) {
+        Language lang = Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID));
         Title title = new Title(
                 record.getValue(Tables.LOCAL_PAGE.TITLE), true,
                 LanguageInfo.getByLanguage(lang));
@@ -254,63 +392,92 @@ public class LocalPageSqlDao<T extends LocalPage> extends AbstractSqlDao<T> impl
         );
     }
 
+    /**
+     * Returns true if buildLocalPage(Record) follows redirects. Bulk lookups use
+     * this to resolve redirects in batches while matching the single-page lookups.
+     * Subclasses that override buildLocalPage(Record) without following redirects
+     * must return false.
+     */
+    protected boolean followsRedirectsOnBuild() {
+        return redirectSqlDao != null;
+    }
+
+    /**
+     * Opens the title index, building it if it does not exist or is stale.
+     * With a cache directory, the index is written there and memory mapped, so later
+     * processes open it in constant time. Redirects are resolved with a join in the
+     * same query that reads the titles.
+     */
     protected synchronized void buildTitlesToIds() throws DaoException {
         if (titlesToIds != null) {
             return;
         }
-        String key = "titlesToIds";
+        String key = "titlesToIds.idx";
         if (redirectSqlDao == null) {
             key += ".noRedirect";
         }
-        if (cache!=null) {
-            TLongIntHashMap map = (TLongIntHashMap)cache.get(key, LocalPage.class);
-            if (map!=null){
-                titlesToIds = map;
-                return;
-            }
-        }
-        LOG.info("Building title to id cache. This will only happen once!");
-        int n = getCount(new DaoFilter());
-        DSLContext context = getJooq();
         try {
-            Cursor<Record> cursor = context.select().
-                    from(Tables.LOCAL_PAGE).
-                    fetchLazy(getFetchSize());
-            TLongIntHashMap map = new TLongIntHashMap(
-                    Constants.DEFAULT_CAPACITY,
-                    Constants.DEFAULT_LOAD_FACTOR,
-                    -1, -1);
-            int numRedirects = 0;
-            int numResolved = 0;
-            for (Record record : cursor){
-                long hash = Title.longHashCode(
-                        record.getValue(Tables.LOCAL_PAGE.LANG_ID),
-                        record.getValue(Tables.LOCAL_PAGE.TITLE),
-                        record.getValue(Tables.LOCAL_PAGE.NAME_SPACE));
-                if (redirectSqlDao != null && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)){
-                    numRedirects++;
-                    Integer dest = redirectSqlDao.resolveRedirect(
-                            Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID)),
-                            record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                    if (dest != null) {
-                        numResolved++;
-                        map.put(hash, dest);
-                    }
+            if (cache!=null) {
+                File file = cache.getUpToDateFile(key, LocalPage.class);
+                if (file != null) {
+                    titlesToIds = new TitleIndex(file);
+                    return;
                 }
-                else{
-                    map.put(hash, record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
+            }
+            LOG.info("Building title to id index. This will only happen once!");
+            int n = getCount(new DaoFilter());
+            TitleIndex.Builder builder = new TitleIndex.Builder(n);
+            DSLContext context = getJooq();
+            try {
+                Table<?> pages = Tables.LOCAL_PAGE;
+                Field<Integer> dest = DSL.val(null, Integer.class);
+                if (redirectSqlDao != null && context.meta().getTables().contains(Tables.REDIRECT)) {
+                    pages = Tables.LOCAL_PAGE.
+                            leftOuterJoin(Tables.REDIRECT).
+                            on(Tables.REDIRECT.LANG_ID.equal(Tables.LOCAL_PAGE.LANG_ID)).
+                            and(Tables.REDIRECT.SRC_PAGE_ID.equal(Tables.LOCAL_PAGE.PAGE_ID));
+                    dest = Tables.REDIRECT.DEST_PAGE_ID;
                 }
-                if (map.size() % 50000 == 0) {
-                    LOG.info("built title cache entry " + map.size() + " of " + n);
+                Cursor<Record6<Short, String, Short, Integer, Boolean, Integer>> cursor = context.select(
+                            Tables.LOCAL_PAGE.LANG_ID,
+                            Tables.LOCAL_PAGE.TITLE,
+                            Tables.LOCAL_PAGE.NAME_SPACE,
+                            Tables.LOCAL_PAGE.PAGE_ID,
+                            Tables.LOCAL_PAGE.IS_REDIRECT,
+                            dest).
+                        from(pages).
+                        fetchLazy(getFetchSize());
+                int numRows = 0;
+                int numRedirects = 0;
+                int numResolved = 0;
+                for (Record6<Short, String, Short, Integer, Boolean, Integer> record : cursor) {
+                    long hash = Title.longHashCode(record.value1(), record.value2(), record.value3());
+                    if (redirectSqlDao != null && record.value5()) {
+                        numRedirects++;
+                        if (record.value6() != null) {
+                            numResolved++;
+                            builder.put(hash, record.value6());
+                        }
+                    } else {
+                        builder.put(hash, record.value4());
+                    }
+                    if (++numRows % 500000 == 0) {
+                        LOG.info("built title index entry " + numRows + " of " + n);
+                    }
                 }
+                LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
+            } finally {
+                freeJooq(context);
             }
-            LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
             if (cache!=null){
-                cache.put(key, map);
+                File file = cache.getCacheFile(key);
+                builder.write(file);
+                titlesToIds = new TitleIndex(file);
+            } else {
+                titlesToIds = builder.build();
             }
-            titlesToIds = map;
-        } finally {
-            freeJooq(context);
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
     }
 
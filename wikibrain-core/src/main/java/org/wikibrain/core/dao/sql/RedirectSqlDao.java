@@ -6,6 +6,7 @@ import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.jooq.*;
+import org.jooq.impl.DSL;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -19,6 +20,7 @@ import org.wikibrain.core.model.Redirect;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -114,6 +116,40 @@ public class RedirectSqlDao extends AbstractSqlDao<Redirect> implements Redirect
         }
     }
 
+    /**
+     * Resolves many potential redirects with one query per chunk of ids.
+     * @param lang The language to be considered
+     * @param ids The ids of the potential redirects
+     * @return A map from each id that is a redirect to the local id of its destination.
+     * Ids that are not redirects are absent; the map returns -1 for them.
+     * @throws DaoException
+     */
+    public TIntIntMap resolveRedirects(Language lang, Collection<Integer> ids) throws DaoException {
+        TIntIntMap dests = new TIntIntHashMap(
+                gnu.trove.impl.Constants.DEFAULT_CAPACITY,
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        if (ids.isEmpty()) {
+            return dests;
+        }
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : toInClauseChunks(ids)) {
+                Result<Record> result = context.select().from(Tables.REDIRECT)
+                        .where(inlinedIn(Tables.REDIRECT.SRC_PAGE_ID, chunk))
+                        .and(Tables.REDIRECT.LANG_ID.equal(DSL.inline(lang.getId(), Tables.REDIRECT.LANG_ID)))
+                        .fetch();
+                for (Record record : result) {
+                    dests.put(record.getValue(Tables.REDIRECT.SRC_PAGE_ID),
+                              record.getValue(Tables.REDIRECT.DEST_PAGE_ID));
+                }
+            }
+            return dests;
+        } finally {
+            freeJooq(context);
+        }
+    }
+
     @Override
     public boolean isRedirect(Language lang, int id) throws DaoException {
         DSLContext context = getJooq();
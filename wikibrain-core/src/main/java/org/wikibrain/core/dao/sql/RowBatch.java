@@ -0,0 +1,396 @@
+package org.wikibrain.core.dao.sql;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * A batch of rows encoded for a bulk insert.
+ *
+ * Values are appended one field at a time through typed methods, so rows
+ * built from primitives are encoded without boxing. Each subclass encodes
+ * values in the form its BulkInserter sends to the database.
+ *
+ * A batch is filled by a single thread and then handed to an inserter thread.
+ */
+abstract class RowBatch {
+    protected final int numFields;
+    protected final int maxRows;
+    protected int numRows = 0;
+    protected int field = 0;
+
+    protected RowBatch(int numFields, int maxRows) {
+        this.numFields = numFields;
+        this.maxRows = maxRows;
+    }
+
+    abstract void addNull();
+    abstract void addInt(int value);
+    abstract void addLong(long value);
+    abstract void addDouble(double value);
+    abstract void addBoolean(boolean value);
+    abstract void addString(String value);
+    abstract void addTimestamp(Timestamp value);
+
+    /**
+     * Adds a value that has no typed add method (e.g. a PostGIS geometry).
+     */
+    abstract void addOther(Object value);
+
+    /**
+     * Adds a value of any type, dispatching to the typed add methods.
+     * Characters are stored as strings and dates as timestamps.
+     */
+    void addObject(Object value) {
+        if (value == null) {
+            addNull();
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            addInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            addLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            addDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            addBoolean((Boolean) value);
+        } else if (value instanceof String || value instanceof Character) {
+            addString(value.toString());
+        } else if (value instanceof Timestamp) {
+            addTimestamp((Timestamp) value);
+        } else if (value instanceof Date) {
+            addTimestamp(new Timestamp(((Date) value).getTime()));
+        } else {
+            addOther(value);
+        }
+    }
+
+    /**
+     * Completes the current row.
+     * @throws IllegalArgumentException if the row does not have exactly one value per field.
+     */
+    void endRow() {
+        if (field != numFields) {
+            int n = field;
+            abortRow();
+            throw new IllegalArgumentException("expected " + numFields + " values in row, found " + n);
+        }
+        field = 0;
+        numRows++;
+    }
+
+    /**
+     * Discards the values added to the current row.
+     */
+    abstract void abortRow();
+
+    int getNumRows() {
+        return numRows;
+    }
+
+    boolean isEmpty() {
+        return numRows == 0;
+    }
+
+    boolean isFull() {
+        return numRows >= maxRows;
+    }
+
+    /**
+     * Stores each value in a typed cell that is later bound to a PreparedStatement.
+     * Numbers and booleans live in a primitive array.
+     */
+    static class Cells extends RowBatch {
+        static final byte NULL = 0;
+        static final byte INT = 1;
+        static final byte LONG = 2;
+        static final byte DOUBLE = 3;
+        static final byte BOOLEAN = 4;
+        static final byte STRING = 5;
+        static final byte TIMESTAMP = 6;
+        static final byte OTHER = 7;
+
+        private final int maxChars;
+        private final byte[] types;
+        private final long[] numbers;
+        private final Object[] objects;
+        private int numChars = 0;
+
+        Cells(int numFields, int maxRows, int maxChars) {
+            super(numFields, maxRows);
+            this.maxChars = maxChars;
+            this.types = new byte[numFields * maxRows];
+            this.numbers = new long[numFields * maxRows];
+            this.objects = new Object[numFields * maxRows];
+        }
+
+        private int nextCell(byte type) {
+            if (field >= numFields) {
+                throw new IllegalArgumentException("more than " + numFields + " values in row");
+            }
+            int i = numRows * numFields + field++;
+            types[i] = type;
+            return i;
+        }
+
+        @Override
+        void addNull() {
+            objects[nextCell(NULL)] = null;
+        }
+
+        @Override
+        void addInt(int value) {
+            numbers[nextCell(INT)] = value;
+        }
+
+        @Override
+        void addLong(long value) {
+            numbers[nextCell(LONG)] = value;
+        }
+
+        @Override
+        void addDouble(double value) {
+            numbers[nextCell(DOUBLE)] = Double.doubleToRawLongBits(value);
+        }
+
+        @Override
+        void addBoolean(boolean value) {
+            numbers[nextCell(BOOLEAN)] = value ? 1 : 0;
+        }
+
+        @Override
+        void addString(String value) {
+            if (value == null) {
+                addNull();
+            } else {
+                objects[nextCell(STRING)] = value;
+                numChars += value.length();
+            }
+        }
+
+        @Override
+        void addTimestamp(Timestamp value) {
+            objects[nextCell(TIMESTAMP)] = value;
+        }
+
+        @Override
+        void addOther(Object value) {
+            objects[nextCell(OTHER)] = value;
+        }
+
+        @Override
+        void abortRow() {
+            for (int i = numRows * numFields; i < numRows * numFields + field; i++) {
+                if (types[i] == STRING) {
+                    numChars -= ((String) objects[i]).length();
+                }
+                objects[i] = null;
+            }
+            field = 0;
+        }
+
+        @Override
+        boolean isFull() {
+            return super.isFull() || numChars >= maxChars;
+        }
+
+        byte getType(int row, int field) {
+            return types[row * numFields + field];
+        }
+
+        int getInt(int row, int field) {
+            return (int) numbers[row * numFields + field];
+        }
+
+        long getLong(int row, int field) {
+            return numbers[row * numFields + field];
+        }
+
+        double getDouble(int row, int field) {
+            return Double.longBitsToDouble(numbers[row * numFields + field]);
+        }
+
+        boolean getBoolean(int row, int field) {
+            return numbers[row * numFields + field] != 0;
+        }
+
+        Object getObject(int row, int field) {
+            return objects[row * numFields + field];
+        }
+    }
+
+    /**
+     * Encodes rows directly as delimited text. Subclasses define the escaping rules.
+     */
+    abstract static class Text extends RowBatch {
+        protected final StringBuilder buffer;
+        private final int maxChars;
+        private int rowStart = 0;
+
+        Text(int numFields, int maxRows, int maxChars) {
+            super(numFields, maxRows);
+            this.maxChars = maxChars;
+            this.buffer = new StringBuilder(Math.min(maxChars, 1024 * 1024));
+        }
+
+        protected abstract char getDelimiter();
+        protected abstract String getNullString();
+        protected abstract String getBooleanString(boolean value);
+        protected abstract void appendEscaped(String value);
+
+        private void beginField() {
+            if (field >= numFields) {
+                throw new IllegalArgumentException("more than " + numFields + " values in row");
+            }
+            if (field++ > 0) {
+                buffer.append(getDelimiter());
+            }
+        }
+
+        @Override
+        void addNull() {
+            beginField();
+            buffer.append(getNullString());
+        }
+
+        @Override
+        void addInt(int value) {
+            beginField();
+            buffer.append(value);
+        }
+
+        @Override
+        void addLong(long value) {
+            beginField();
+            buffer.append(value);
+        }
+
+        @Override
+        void addDouble(double value) {
+            beginField();
+            buffer.append(value);
+        }
+
+        @Override
+        void addBoolean(boolean value) {
+            beginField();
+            buffer.append(getBooleanString(value));
+        }
+
+        @Override
+        void addString(String value) {
+            if (value == null) {
+                addNull();
+            } else {
+                beginField();
+                appendEscaped(value);
+            }
+        }
+
+        @Override
+        void addTimestamp(Timestamp value) {
+            addString(value.toString());
+        }
+
+        @Override
+        void addOther(Object value) {
+            addString(value.toString());
+        }
+
+        @Override
+        void endRow() {
+            super.endRow();
+            buffer.append('\n');
+            rowStart = buffer.length();
+        }
+
+        @Override
+        void abortRow() {
+            buffer.setLength(rowStart);
+            field = 0;
+        }
+
+        @Override
+        boolean isFull() {
+            return super.isFull() || buffer.length() >= maxChars;
+        }
+
+        CharSequence getText() {
+            return buffer;
+        }
+    }
+
+    /**
+     * The text format read by PostgreSQL's COPY ... FROM STDIN.
+     */
+    static class CopyText extends Text {
+        CopyText(int numFields, int maxRows, int maxChars) {
+            super(numFields, maxRows, maxChars);
+        }
+
+        @Override
+        protected char getDelimiter() {
+            return '\t';
+        }
+
+        @Override
+        protected String getNullString() {
+            return "\\N";
+        }
+
+        @Override
+        protected String getBooleanString(boolean value) {
+            return value ? "t" : "f";
+        }
+
+        @Override
+        protected void appendEscaped(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\\': buffer.append("\\\\"); break;
+                    case '\t': buffer.append("\\t"); break;
+                    case '\n': buffer.append("\\n"); break;
+                    case '\r': buffer.append("\\r"); break;
+                    case '\0': break;   // postgres text cannot store NUL characters
+                    default: buffer.append(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * The CSV format read by H2's CSVREAD function.
+     * Strings are always quoted so that an unquoted empty field can represent null.
+     */
+    static class Csv extends Text {
+        Csv(int numFields, int maxRows, int maxChars) {
+            super(numFields, maxRows, maxChars);
+        }
+
+        @Override
+        protected char getDelimiter() {
+            return ',';
+        }
+
+        @Override
+        protected String getNullString() {
+            return "";
+        }
+
+        @Override
+        protected String getBooleanString(boolean value) {
+            return value ? "TRUE" : "FALSE";
+        }
+
+        @Override
+        protected void appendEscaped(String value) {
+            buffer.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    buffer.append('"');
+                }
+                buffer.append(c);
+            }
+            buffer.append('"');
+        }
+    }
+}
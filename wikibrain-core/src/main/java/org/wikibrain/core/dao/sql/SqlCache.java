@@ -38,22 +38,25 @@ public class SqlCache {
         }
     }
 
-    private File getCacheFile(String name) {
+    /**
+     * Returns the file in which a named object is saved.
+     * Objects that are not serializable can be written here directly.
+     * @param name
+     * @return
+     */
+    public File getCacheFile(String name) {
         return new File(directory, name);
     }
 
     /**
-     * Returns the object if it exists and is up to date, otherwise returns null.
+     * Returns the file for the named object if it exists and is up to date, otherwise returns null.
      *
-     * @param name Name of the object as passed to "put"
-     * @param dependsOn List of classes the object depends on.
-     *                  The cache is up to date iff for each class k in dependsOn:
-     *                  - The MetaInfoDao knows about k
-     *                  - The cache entry was created after k was last updated.
+     * @param name Name of the object
+     * @param dependsOn List of classes the object depends on, as in get().
      * @return
      * @throws DaoException
      */
-    public Object get(String name, Class ... dependsOn) throws DaoException {
+    public File getUpToDateFile(String name, Class ... dependsOn) throws DaoException {
         File cacheFile = getCacheFile(name);
         if (!cacheFile.isFile()) {
             return null;
@@ -69,6 +72,24 @@ public class SqlCache {
                 return null;
             }
         }
+        return cacheFile;
+    }
+
+    /**
+     * Returns the object if it exists and is up to date, otherwise returns null.
+     *
+     * @param name Name of the object as passed to "put"
+     * @param dependsOn List of classes the object depends on.
+     *                  The cache is up to date iff for each class k in dependsOn:
+     *                  - The MetaInfoDao knows about k
+     *                  - The cache entry was created after k was last updated.
+     * @return
+     * @throws DaoException
+     */
+    public Object get(String name, Class ... dependsOn) throws DaoException {
+        if (getUpToDateFile(name, dependsOn) == null) {
+            return null;
+        }
         try {
             FileInputStream fis = new FileInputStream(getCacheFile(name));
             ObjectInputStream ois = new ObjectInputStream(fis);
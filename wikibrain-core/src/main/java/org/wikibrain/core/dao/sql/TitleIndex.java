@@ -0,0 +1,210 @@
+package org.wikibrain.core.dao.sql;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An immutable open addressing hash table from 64 bit title hashes to page ids.
+ *
+ * The file contains a header, the keys of every slot as little endian longs, and then
+ * the values of every slot as little endian ints. Empty slots have the value -1, and
+ * collisions are resolved by linear probing. Because the table is used exactly as it
+ * is stored, opening it is a constant time memory mapping, and processes that open
+ * the same file share its pages.
+ */
+class TitleIndex {
+    static final int FILE_HEADER = 0x717e0001;
+
+    /**
+     * Magic, capacity, size, padding.
+     */
+    static final int HEADER_SIZE = 16;
+
+    private final int mask;
+    private final int size;
+    private final LongBuffer keys;
+    private final IntBuffer values;
+
+    TitleIndex(File path) throws IOException {
+        FileChannel channel = new FileInputStream(path).getChannel();
+        try {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER_SIZE || header.getInt(0) != FILE_HEADER) {
+                throw new IOException("invalid file header in " + path);
+            }
+            int capacity = header.getInt(4);
+            size = header.getInt(8);
+            if (channel.size() != HEADER_SIZE + 12L * capacity) {
+                throw new IOException("expected " + capacity + " slots in " + path + " but found " + channel.size() + " bytes");
+            }
+            mask = capacity - 1;
+            keys = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 8L * capacity)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            values = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 8L * capacity, 4L * capacity)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        } finally {
+            channel.close();    // the mapping remains valid
+        }
+    }
+
+    private TitleIndex(long keys[], int values[], int size) {
+        this.mask = keys.length - 1;
+        this.size = size;
+        this.keys = LongBuffer.wrap(keys);
+        this.values = IntBuffer.wrap(values);
+    }
+
+    /**
+     * @return The page id for the title hash, or -1 if there is none.
+     */
+    int get(long hash) {
+        int slot = slot(hash, mask);
+        while (true) {
+            int value = values.get(slot);
+            if (value == -1 || keys.get(slot) == hash) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static int slot(long hash, int mask) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Accumulates a table in memory. Later puts of a hash replace earlier ones.
+     */
+    static class Builder {
+        private long keys[];
+        private int values[];
+        private int size = 0;
+
+        Builder(int expectedSize) {
+            allocate(capacityFor(expectedSize));
+        }
+
+        void put(long hash, int pageId) {
+            if (pageId < 0) {
+                throw new IllegalArgumentException("invalid page id " + pageId);
+            }
+            if (4L * (size + 1) > 3L * keys.length) {
+                grow();
+            }
+            if (insert(keys, values, hash, pageId)) {
+                size++;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        TitleIndex build() {
+            return new TitleIndex(keys, values, size);
+        }
+
+        /**
+         * Writes the table to a temporary file that replaces path when it is complete,
+         * so other processes never map a partial index.
+         */
+        void write(File path) throws IOException {
+            File tmp = new File(path.getPath() + ".tmp");
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(FILE_HEADER);
+                buffer.putInt(keys.length);
+                buffer.putInt(size);
+                buffer.putInt(0);
+                for (long key : keys) {
+                    if (buffer.remaining() < 8) {
+                        flush(buffer, output);
+                    }
+                    buffer.putLong(key);
+                }
+                for (int value : values) {
+                    if (buffer.remaining() < 4) {
+                        flush(buffer, output);
+                    }
+                    buffer.putInt(value);
+                }
+                flush(buffer, output);
+                output.close();
+                output = null;
+                if (!tmp.renameTo(path)) {
+                    FileUtils.deleteQuietly(path);
+                    FileUtils.moveFile(tmp, path);
+                }
+            } finally {
+                if (output != null) {
+                    output.close();
+                    FileUtils.deleteQuietly(tmp);
+                }
+            }
+        }
+
+        private static void flush(ByteBuffer buffer, OutputStream output) throws IOException {
+            output.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        private void grow() {
+            long oldKeys[] = keys;
+            int oldValues[] = values;
+            allocate(keys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != -1) {
+                    insert(keys, values, oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            if (capacity <= 0 || 8L * capacity > Integer.MAX_VALUE) {
+                throw new IllegalStateException("title index is too large to map");
+            }
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, -1);
+        }
+
+        /**
+         * @return True if the hash was not already present.
+         */
+        private static boolean insert(long keys[], int values[], long hash, int pageId) {
+            int mask = keys.length - 1;
+            int slot = slot(hash, mask);
+            while (values[slot] != -1 && keys[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            boolean added = (values[slot] == -1);
+            keys[slot] = hash;
+            values[slot] = pageId;
+            return added;
+        }
+
+        /**
+         * @return The smallest power of two that holds n entries at a load of at most 3/4.
+         */
+        private static int capacityFor(int n) {
+            int capacity = 16;
+            while (3L * capacity < 4L * n) {
+                capacity *= 2;
+            }
+            return capacity;
+        }
+    }
+}
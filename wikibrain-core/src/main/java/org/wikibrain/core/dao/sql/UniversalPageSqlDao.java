@@ -6,6 +6,7 @@ import com.typesafe.config.Config;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import org.jooq.*;
+import org.jooq.impl.DSL;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -133,9 +134,29 @@ public class UniversalPageSqlDao<T extends UniversalPage> extends AbstractSqlDao
         if (univIds == null || univIds.isEmpty()) {
             return null;
         }
+        Map<Integer, List<Record>> records = new HashMap<Integer, List<Record>>();
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : toInClauseChunks(univIds)) {
+                Result<Record> result = context.select()
+                        .from(Tables.UNIVERSAL_PAGE)
+                        .where(inlinedIn(Tables.UNIVERSAL_PAGE.UNIV_ID, chunk))
+                        .and(Tables.UNIVERSAL_PAGE.ALGORITHM_ID.eq(DSL.inline(algorithmId, Tables.UNIVERSAL_PAGE.ALGORITHM_ID)))
+                        .fetch();
+                for (Record record : result) {
+                    int univId = record.getValue(Tables.UNIVERSAL_PAGE.UNIV_ID);
+                    if (!records.containsKey(univId)) {
+                        records.put(univId, new ArrayList<Record>());
+                    }
+                    records.get(univId).add(record);
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
         Map<Integer, T> map = new HashMap<Integer, T>();
         for (Integer univId : univIds){
-            map.put(univId, getById(univId, algorithmId));
+            map.put(univId, (T)buildUniversalPage(records.get(univId)));
         }
         return map;
     }
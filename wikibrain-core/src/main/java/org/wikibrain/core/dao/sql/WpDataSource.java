@@ -53,6 +53,10 @@ public class WpDataSource  {
         }
     }
 
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
     public Connection getConnection() throws SQLException {
         Connection conn = dataSource.getConnection();
         if (conn.getAutoCommit()) {
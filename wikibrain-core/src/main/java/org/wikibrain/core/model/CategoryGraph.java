@@ -1,41 +1,312 @@
 package org.wikibrain.core.model;
 
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
 import org.wikibrain.core.lang.Language;
 
-import java.io.Serializable;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.Set;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A compact graph representation of the category structure.
  *
- * The internals of this data structure are public for historical reasons.
- * TODO: It would probably be better to not expose the internal id scheme if it's not a performance hit.
+ * Categories are identified by a dense index, their position in the sorted list of
+ * category page ids. Parents, children, and member pages are stored in compressed
+ * sparse row form: the neighbors of category i are entries [start(i), end(i)) of a
+ * single int array. A graph written with write() is memory mapped by read(), so
+ * loading it takes little time or heap.
+ *
+ * The costs are public for historical reasons.
  *
  * @author Matt Lesicko
  * @author Shilad Sen
  */
-public class CategoryGraph implements Serializable{
-    public Language language;
+public class CategoryGraph {
+    static final int FILE_HEADER = 0xca7e0002;
+
+    /**
+     * Magic, language id, num categories, num parent, child, and page edges,
+     * num bytes of names, padding, min cost.
+     */
+    static final int HEADER_SIZE = 40;
 
-    // Mapping from local page id to internal dense index.
-    public TIntIntMap catIndexes;
+    public final Language language;
 
     public double[] catCosts;  // the cost of travelling through each category
-    public int[][] catParents;
-    public int[][] catPages;
-    public int[][] catChildren;
-    public String[] cats;
     public double minCost = -1;
 
-    public CategoryGraph(Language language){
+    // category page ids, sorted; the index of an id is the category's index
+    private final IntBuffer catIds;
+
+    private final IntBuffer nameOffsets;
+    private final ByteBuffer names;
+
+    public final Adjacency parents;
+    public final Adjacency children;
+    public final Adjacency pages;
+
+    /**
+     * Creates an in-memory graph.
+     *
+     * @param catIds The sorted category page ids.
+     * @param names The title of each category.
+     * @param parents For each category index, the indexes of its parent categories.
+     * @param children For each category index, the indexes of its child categories.
+     * @param pages For each category index, the page ids of its members that are not categories.
+     */
+    public CategoryGraph(Language language, int catIds[], String names[], Adjacency parents, Adjacency children, Adjacency pages) {
+        for (int i = 1; i < catIds.length; i++) {
+            if (catIds[i - 1] >= catIds[i]) {
+                throw new IllegalArgumentException("category ids must be sorted and distinct");
+            }
+        }
         this.language = language;
+        this.catIds = IntBuffer.wrap(catIds);
+        this.parents = parents;
+        this.children = children;
+        this.pages = pages;
+        this.catCosts = new double[catIds.length];
+
+        byte encoded[][] = new byte[names.length][];
+        int offsets[] = new int[names.length + 1];
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = toBytes(names[i]);
+            offsets[i + 1] = offsets[i] + encoded[i].length;
+        }
+        byte bytes[] = new byte[offsets[names.length]];
+        for (int i = 0; i < names.length; i++) {
+            System.arraycopy(encoded[i], 0, bytes, offsets[i], encoded[i].length);
+        }
+        this.nameOffsets = IntBuffer.wrap(offsets);
+        this.names = ByteBuffer.wrap(bytes);
+    }
+
+    private CategoryGraph(Language language, IntBuffer catIds, IntBuffer nameOffsets, ByteBuffer names,
+                          Adjacency parents, Adjacency children, Adjacency pages) {
+        this.language = language;
+        this.catIds = catIds;
+        this.nameOffsets = nameOffsets;
+        this.names = names;
+        this.parents = parents;
+        this.children = children;
+        this.pages = pages;
+    }
+
+    public int getNumCategories() {
+        return catIds.capacity();
     }
 
+    /**
+     * @return The index of the category, or -1 if the id is not a category.
+     */
     public int getCategoryIndex(int catId) {
-        return catIndexes.containsKey(catId) ?  catIndexes.get(catId) : -1;
+        int lo = 0;
+        int hi = catIds.capacity() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = catIds.get(mid);
+            if (id < catId) {
+                lo = mid + 1;
+            } else if (id > catId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int getCategoryId(int catIndex) {
+        return catIds.get(catIndex);
+    }
+
+    public String getCategoryName(int catIndex) {
+        int start = nameOffsets.get(catIndex);
+        byte bytes[] = new byte[nameOffsets.get(catIndex + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = names.get(start + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the graph, including its costs, in the format read by read().
+     */
+    public void write(File path) throws IOException {
+        File tmp = new File(path.getPath() + ".tmp");
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(FILE_HEADER);
+            header.putInt(language.getId());
+            header.putInt(getNumCategories());
+            header.putInt(parents.getNumEdges());
+            header.putInt(children.getNumEdges());
+            header.putInt(pages.getNumEdges());
+            header.putInt(names.capacity());
+            header.putInt(0);
+            header.putDouble(minCost);
+            output.write(header.array());
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            for (double cost : catCosts) {
+                if (buffer.remaining() < 8) {
+                    flush(buffer, output);
+                }
+                buffer.putDouble(cost);
+            }
+            for (IntBuffer ints : new IntBuffer[] {
+                    catIds,
+                    parents.offsets, parents.targets,
+                    children.offsets, children.targets,
+                    pages.offsets, pages.targets,
+                    nameOffsets }) {
+                for (int i = 0; i < ints.capacity(); i++) {
+                    if (buffer.remaining() < 4) {
+                        flush(buffer, output);
+                    }
+                    buffer.putInt(ints.get(i));
+                }
+            }
+            for (int i = 0; i < names.capacity(); i++) {
+                if (!buffer.hasRemaining()) {
+                    flush(buffer, output);
+                }
+                buffer.put(names.get(i));
+            }
+            flush(buffer, output);
+            output.close();
+            output = null;
+            if (!tmp.renameTo(path)) {
+                FileUtils.deleteQuietly(path);
+                FileUtils.moveFile(tmp, path);
+            }
+        } finally {
+            if (output != null) {
+                output.close();
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, OutputStream output) throws IOException {
+        output.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Memory maps a graph written by write(). Only the costs are copied onto the heap.
+     */
+    public static CategoryGraph read(File path) throws IOException {
+        FileChannel channel = new FileInputStream(path).getChannel();
+        try {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER_SIZE || buffer.getInt(0) != FILE_HEADER) {
+                throw new IOException("invalid file header in " + path);
+            }
+            Language language = Language.getById(buffer.getInt(4));
+            int numCats = buffer.getInt(8);
+            int numParents = buffer.getInt(12);
+            int numChildren = buffer.getInt(16);
+            int numPages = buffer.getInt(20);
+            int numNameBytes = buffer.getInt(24);
+            double minCost = buffer.getDouble(32);
+
+            long expected = HEADER_SIZE + 8L * numCats
+                    + 4L * (numCats + 3 * (numCats + 1) + numParents + numChildren + numPages + numCats + 1)
+                    + numNameBytes;
+            if (channel.size() != expected) {
+                throw new IOException("expected " + expected + " bytes in " + path + " but found " + channel.size());
+            }
+
+            double costs[] = new double[numCats];
+            buffer.position(HEADER_SIZE);
+            buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(costs);
+            buffer.position(HEADER_SIZE + 8 * numCats);
+
+            IntBuffer catIds = slice(buffer, numCats);
+            Adjacency parents = new Adjacency(slice(buffer, numCats + 1), slice(buffer, numParents));
+            Adjacency children = new Adjacency(slice(buffer, numCats + 1), slice(buffer, numChildren));
+            Adjacency pages = new Adjacency(slice(buffer, numCats + 1), slice(buffer, numPages));
+            IntBuffer nameOffsets = slice(buffer, numCats + 1);
+            ByteBuffer names = buffer.slice();
+
+            CategoryGraph graph = new CategoryGraph(language, catIds, nameOffsets, names, parents, children, pages);
+            graph.catCosts = costs;
+            graph.minCost = minCost;
+            return graph;
+        } finally {
+            channel.close();    // the mapping remains valid
+        }
+    }
+
+    /**
+     * Returns the next n ints of the buffer and advances past them.
+     */
+    private static IntBuffer slice(ByteBuffer buffer, int n) {
+        ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(4 * n);
+        buffer.position(buffer.position() + 4 * n);
+        return slice.asIntBuffer();
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Edges from each category index in compressed sparse row form.
+     * The targets of category i are get(start(i)) ... get(end(i) - 1).
+     */
+    public static final class Adjacency {
+        private final IntBuffer offsets;
+        private final IntBuffer targets;
+
+        /**
+         * @param offsets num categories + 1 offsets into targets, starting at 0.
+         * @param targets The targets of all categories, concatenated.
+         */
+        public Adjacency(int offsets[], int targets[]) {
+            this(IntBuffer.wrap(offsets), IntBuffer.wrap(targets));
+        }
+
+        private Adjacency(IntBuffer offsets, IntBuffer targets) {
+            if (offsets.capacity() == 0 || offsets.get(offsets.capacity() - 1) != targets.capacity()) {
+                throw new IllegalArgumentException("offsets do not end at the number of targets");
+            }
+            this.offsets = offsets;
+            this.targets = targets;
+        }
+
+        public int start(int catIndex) {
+            return offsets.get(catIndex);
+        }
+
+        public int end(int catIndex) {
+            return offsets.get(catIndex + 1);
+        }
+
+        public int size(int catIndex) {
+            return offsets.get(catIndex + 1) - offsets.get(catIndex);
+        }
+
+        public int get(int i) {
+            return targets.get(i);
+        }
+
+        public int getNumEdges() {
+            return targets.capacity();
+        }
     }
 }
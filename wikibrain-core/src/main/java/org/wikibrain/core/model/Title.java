@@ -5,7 +5,6 @@ import org.apache.log4j.Logger;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
-import org.wikibrain.utils.WpStringUtils;
 
 import java.io.*;
 import java.net.URLEncoder;
@@ -145,8 +144,24 @@ public class Title implements Externalizable {
         return longHashCode(l.getId(), title, ns.getArbitraryId());
     }
 
+    /**
+     * A 64 bit FNV-1a hash of the language, namespace and characters of the title,
+     * computed without building any intermediate strings.
+     */
     public static long longHashCode(int langId, String title, int nsArbitraryId) {
-        return WpStringUtils.longHashCode(langId + "." + nsArbitraryId + "." + title);
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ langId) * 0x100000001b3L;
+        h = (h ^ nsArbitraryId) * 0x100000001b3L;
+        for (int i = 0; i < title.length(); i++) {
+            h = (h ^ title.charAt(i)) * 0x100000001b3L;
+        }
+        // spread the bits so that the low bits can index hash tables
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
     /**
@@ -9,6 +9,7 @@ import org.wikibrain.core.jooq.Tables;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
@@ -22,9 +23,15 @@ import java.sql.SQLException;
  * non csv load, non-batch: 43K per second
  * non csv load, batch: 363K per second
  *
+ * Strategies on a single core, warm jvm, 2M rows (object rows / primitive rows):
+ * BATCH: 342K / 337K per second
+ * MULTI_ROW: 389K / 489K per second
+ * H2_CSV: 272K / 215K per second
+ *
+ * Usage: BenchmarkFastLoader [strategy]
  */
 public class BenchmarkFastLoader {
-    public static int NUM_ENTRIES = 10000000;
+    public static int NUM_ENTRIES = 2000000;
 
     private static final String JDBC_URL_OPTS = ";LOG=0;CACHE_SIZE=65536;LOCK_MODE=0;UNDO_LOG=0";
 
@@ -39,6 +46,23 @@ public class BenchmarkFastLoader {
     };
 
     public static void main(String args[]) throws IOException, DaoException, SQLException {
+        FastLoader.Strategy strategies[] = {
+                FastLoader.Strategy.BATCH, FastLoader.Strategy.MULTI_ROW, FastLoader.Strategy.H2_CSV
+        };
+        if (args.length > 0) {
+            strategies = new FastLoader.Strategy[] { FastLoader.Strategy.valueOf(args[0]) };
+        }
+        // the first pass warms up the jvm
+        for (int pass = 0; pass < 2; pass++) {
+            for (FastLoader.Strategy strategy : strategies) {
+                for (boolean primitive : new boolean[] { false, true }) {
+                    benchmark(strategy, primitive);
+                }
+            }
+        }
+    }
+
+    private static void benchmark(FastLoader.Strategy strategy, boolean primitive) throws IOException, DaoException, SQLException {
         File dbPath = new File("tmp/benchmark-loader-db");
         if (dbPath.exists()) FileUtils.forceDelete(dbPath);
         dbPath.mkdirs();
@@ -63,34 +87,44 @@ public class BenchmarkFastLoader {
 
         ds.getConnection().createStatement().execute(schema);
 
-        FastLoader loader = new FastLoader(new WpDataSource(ds), INSERT_FIELDS);
+        String fields[] = new String[INSERT_FIELDS.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = INSERT_FIELDS[i].getName();
+        }
+        FastLoader loader = new FastLoader(new WpDataSource(ds), "local_link", fields, false, strategy, 1);
 
         long t1 = System.currentTimeMillis();
         for (int i = 0; i < NUM_ENTRIES; i++) {
-            loader.load(new Object[] {
-                    10,
-                    "Foo bar baz",
-                    324234,
-                    3219,
-                    313,
-                    true,
-                    99
-            });
+            if (primitive) {
+                loader.row().add(10).add("Foo bar baz").add(324234).add(3219).add(313).add(true).add(99).end();
+            } else {
+                loader.load(new Object[] {
+                        10,
+                        "Foo bar baz",
+                        324234,
+                        3219,
+                        313,
+                        true,
+                        99
+                });
+            }
         }
         long t2 = System.currentTimeMillis();
+        System.err.println(strategy + (primitive ? " primitive rows" : " object rows"));
         System.err.println("insert time was " + (t2-t1) / 1000.0 + " seconds");
         System.err.println("inserted " + 1000.0 * NUM_ENTRIES / (t2-t1) + " entries per second");
         loader.endLoad();
 
         long t3 = System.currentTimeMillis();
-        System.err.println("load time was " + (t3-t2) / 1000.0 + " seconds");
-        System.err.println("loaded " + 1000.0 * NUM_ENTRIES / (t3-t2) + " entries per second");
+        System.err.println("load time was " + (t3-t1) / 1000.0 + " seconds");
+        System.err.println("loaded " + 1000.0 * NUM_ENTRIES / (t3-t1) + " entries per second");
 
-        ResultSet rs = ds.getConnection().createStatement()
+        Connection cnx = ds.getConnection();
+        ResultSet rs = cnx.createStatement()
                 .executeQuery("select count(*) from local_link");
         rs.next();
         System.err.println("inserted " + rs.getInt(1) + " records");
-        rs = ds.getConnection().createStatement()
+        rs = cnx.createStatement()
                 .executeQuery("select * from local_link limit 100000");
 
         while (rs.next()) {
@@ -102,5 +136,7 @@ public class BenchmarkFastLoader {
             assert(rs.getBoolean(6));
             assert(rs.getInt(7) == 99);
         }
+        cnx.close();
+        ds.close();
     }
 }
@@ -0,0 +1,93 @@
+package org.wikibrain.core.dao;
+
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.RedirectSqlDao;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.util.*;
+
+/**
+ * Compares hydrating pages one at a time with the bulk getByIds and getByTitles
+ * lookups in LocalPageSqlDao against an H2 database.
+ *
+ * Every tenth page is a redirect to another page.
+ */
+public class BenchmarkLocalPageDao {
+    public static int NUM_PAGES = 50000;
+    public static int PAGES_PER_REQUEST = 500;
+    public static int NUM_REQUESTS = 20;
+
+    public static void main(String args[]) throws Exception {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LanguageInfo langInfo = LanguageInfo.getByLangCode("en");
+        Language lang = langInfo.getLanguage();
+
+        LocalPageSqlDao<LocalPage> dao = new LocalPageSqlDao<LocalPage>(wpDs);
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        Random random = new Random(0);
+        dao.beginLoad();
+        redirectDao.beginLoad();
+        for (int i = 0; i < NUM_PAGES; i++) {
+            boolean isRedirect = (i % 10 == 9);
+            dao.save(new LocalPage(lang, i, new Title("page " + i, langInfo), NameSpace.ARTICLE, isRedirect, false));
+            if (isRedirect) {
+                redirectDao.save(lang, i, random.nextInt(NUM_PAGES / 10) * 10);
+            }
+        }
+        redirectDao.endLoad();
+        dao.endLoad();
+        System.err.println("loaded " + NUM_PAGES + " pages");
+
+        List<List<Integer>> requests = new ArrayList<List<Integer>>();
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            List<Integer> ids = new ArrayList<Integer>();
+            for (int j = 0; j < PAGES_PER_REQUEST; j++) {
+                ids.add(random.nextInt(NUM_PAGES));
+            }
+            requests.add(ids);
+        }
+
+        // warm up both paths before timing them
+        for (int pass = 0; pass < 2; pass++) {
+            long t1 = System.currentTimeMillis();
+            int found1 = 0;
+            for (List<Integer> ids : requests) {
+                for (int id : ids) {
+                    if (dao.getById(lang, id) != null) found1++;
+                }
+            }
+            long t2 = System.currentTimeMillis();
+            int found2 = 0;
+            for (List<Integer> ids : requests) {
+                for (LocalPage page : dao.getByIds(lang, ids).values()) {
+                    if (page != null) found2++;
+                }
+            }
+            long t3 = System.currentTimeMillis();
+            int found3 = 0;
+            for (List<Integer> ids : requests) {
+                List<Title> titles = new ArrayList<Title>();
+                for (int id : ids) {
+                    titles.add(new Title("page " + id, langInfo));
+                }
+                for (LocalPage page : dao.getByTitles(lang, titles, NameSpace.ARTICLE).values()) {
+                    if (page != null) found3++;
+                }
+            }
+            long t4 = System.currentTimeMillis();
+            if (pass == 1) {
+                System.err.println("requests of " + PAGES_PER_REQUEST + " pages:" +
+                        " getById loop=" + ((t2 - t1) / NUM_REQUESTS) + "ms per request," +
+                        " getByIds=" + ((t3 - t2) / NUM_REQUESTS) + "ms per request," +
+                        " getByTitles=" + ((t4 - t3) / NUM_REQUESTS) + "ms per request" +
+                        " (found " + found1 + ", " + found2 + ", " + found3 + ")");
+            }
+        }
+    }
+}
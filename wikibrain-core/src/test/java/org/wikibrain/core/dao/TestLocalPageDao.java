@@ -4,17 +4,24 @@ package org.wikibrain.core.dao;
 import org.junit.Test;
 import org.wikibrain.core.dao.sql.LocalArticleSqlDao;
 import org.wikibrain.core.dao.sql.LocalCategorySqlDao;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.RedirectSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
 import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.*;
 
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 public class TestLocalPageDao {
     @Test
     public void testArticle() throws ClassNotFoundException, IOException, SQLException, DaoException {
@@ -106,4 +113,103 @@ public class TestLocalPageDao {
         int savedId = dao.getIdByTitle("Test", lang.getLanguage(), NameSpace.CATEGORY);
         assert (savedId==7);
     }
+
+    @Test
+    public void testBulkLookups() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LanguageInfo langInfo = LanguageInfo.getByLangCode("en");
+        Language lang = langInfo.getLanguage();
+
+        LocalPageSqlDao<LocalPage> dao = new LocalPageSqlDao<LocalPage>(wpDs);
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        dao.beginLoad();
+        redirectDao.beginLoad();
+        for (int i = 1; i <= 2500; i++) {
+            dao.save(new LocalPage(lang, i, new Title("page " + i, langInfo), NameSpace.ARTICLE));
+        }
+        // a redirect, a chain of two redirects, and a redirect to a missing page
+        dao.save(new LocalPage(lang, 5000, new Title("redirect 1", langInfo), NameSpace.ARTICLE, true, false));
+        dao.save(new LocalPage(lang, 5001, new Title("redirect 2", langInfo), NameSpace.ARTICLE, true, false));
+        dao.save(new LocalPage(lang, 5002, new Title("redirect 3", langInfo), NameSpace.ARTICLE, true, false));
+        redirectDao.save(lang, 5000, 10);
+        redirectDao.save(lang, 5001, 5000);
+        redirectDao.save(lang, 5002, 99999);
+        redirectDao.endLoad();
+        dao.endLoad();
+
+        List<Integer> pageIds = new ArrayList<Integer>();
+        for (int i = 1; i <= 2500; i += 2) {
+            pageIds.add(i);
+        }
+        pageIds.add(5000);
+        pageIds.add(5001);
+        pageIds.add(5002);
+        pageIds.add(7777);
+        Map<Integer, LocalPage> pages = dao.getByIds(lang, pageIds);
+        assertEquals(pageIds.size(), pages.size());
+        for (int pageId : pageIds) {
+            assertEquals(dao.getById(lang, pageId), pages.get(pageId));
+        }
+        assertEquals(10, pages.get(5000).getLocalId());
+        assertEquals(10, pages.get(5001).getLocalId());
+        assertEquals(5002, pages.get(5002).getLocalId());
+        assertNull(pages.get(7777));
+
+        List<Title> titles = new ArrayList<Title>();
+        for (int i = 1; i <= 2500; i += 3) {
+            titles.add(new Title("page " + i, langInfo));
+        }
+        titles.add(new Title("redirect 2", langInfo));
+        titles.add(new Title("no such page", langInfo));
+        Map<Title, LocalPage> byTitle = dao.getByTitles(lang, titles, NameSpace.ARTICLE);
+        assertEquals(titles.size(), byTitle.size());
+        for (Title title : titles) {
+            assertEquals(dao.getByTitle(title, NameSpace.ARTICLE), byTitle.get(title));
+        }
+        assertEquals(10, byTitle.get(new Title("redirect 2", langInfo)).getLocalId());
+        assertNull(byTitle.get(new Title("no such page", langInfo)));
+    }
+
+    @Test
+    public void testTitleIndexResolvesRedirects() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LanguageInfo langInfo = LanguageInfo.getByLangCode("en");
+        Language lang = langInfo.getLanguage();
+
+        LocalPageSqlDao<LocalPage> dao = new LocalPageSqlDao<LocalPage>(wpDs);
+        RedirectSqlDao redirectDao = new RedirectSqlDao(wpDs);
+        dao.beginLoad();
+        redirectDao.beginLoad();
+        dao.save(new LocalPage(lang, 10, new Title("target", langInfo), NameSpace.ARTICLE));
+        dao.save(new LocalPage(lang, 11, new Title("other", langInfo), NameSpace.ARTICLE));
+        dao.save(new LocalPage(lang, 5000, new Title("redirect", langInfo), NameSpace.ARTICLE, true, false));
+        dao.save(new LocalPage(lang, 5001, new Title("unresolved redirect", langInfo), NameSpace.ARTICLE, true, false));
+        redirectDao.save(lang, 5000, 10);
+        redirectDao.endLoad();
+        dao.endLoad();
+
+        assertEquals(10, dao.getIdByTitle(new Title("redirect", langInfo)));
+        assertEquals(10, dao.getIdByTitle("Redirect", lang, NameSpace.ARTICLE));
+        assertEquals(10, dao.getIdByTitle(new Title("target", langInfo)));
+        assertEquals(11, dao.getIdByTitle(new Title("other", langInfo)));
+        assertEquals(-1, dao.getIdByTitle(new Title("unresolved redirect", langInfo)));
+
+        // without redirects, redirect titles map to their own pages
+        LocalPageSqlDao<LocalPage> noRedirects = new LocalPageSqlDao<LocalPage>(wpDs, false);
+        assertEquals(5000, noRedirects.getIdByTitle(new Title("redirect", langInfo)));
+        assertEquals(11, noRedirects.getIdByTitle(new Title("other", langInfo)));
+
+        // without a redirect table, redirect titles are not resolved
+        Connection cnx = wpDs.getConnection();
+        try {
+            cnx.createStatement().execute("DROP TABLE REDIRECT");
+            cnx.commit();
+        } finally {
+            cnx.close();
+        }
+        LocalPageSqlDao<LocalPage> noTable = new LocalPageSqlDao<LocalPage>(wpDs);
+        assertEquals(-1, noTable.getIdByTitle(new Title("redirect", langInfo)));
+        assertEquals(10, noTable.getIdByTitle(new Title("target", langInfo)));
+        assertEquals(11, noTable.getIdByTitle(new Title("other", langInfo)));
+    }
 }
@@ -0,0 +1,206 @@
+package org.wikibrain.core.dao.sql;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestFastLoader {
+    private static final String FIELDS[] = {
+            "ID", "NAME", "FLAG", "BIG", "SCORE", "CODE", "CREATED", "NOTE"
+    };
+    private static final String NAMES[] = {
+            "plain", "", "comma, separated", "\"quoted\"", "tab\there", "new\nline",
+            "back\\slash \\N", "unicode é中", "'single'"
+    };
+
+    @Test
+    public void testStrategies() throws Exception {
+        FastLoader.Strategy strategies[] = {
+                FastLoader.Strategy.BATCH, FastLoader.Strategy.MULTI_ROW, FastLoader.Strategy.H2_CSV
+        };
+        for (FastLoader.Strategy strategy : strategies) {
+            for (int numInserters : new int[] { 1, 3 }) {
+                testStrategy(strategy, numInserters);
+            }
+        }
+    }
+
+    private void testStrategy(FastLoader.Strategy strategy, int numInserters) throws Exception {
+        final int numThreads = 3;
+        final int rowsPerThread = 3001;
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+        createTable(ds);
+
+        final FastLoader loader = new FastLoader(ds, "LOADER_TEST", FIELDS, false, strategy, numInserters);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t * rowsPerThread;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int i = offset; i < offset + rowsPerThread; i++) {
+                            if (i % 2 == 0) {
+                                loader.load(i, nameOf(i), i % 3 == 0, i * 1000000000L, i / 8.0,
+                                        (char) ('a' + i % 26), new Timestamp(i * 1000L), getNote(i));
+                            } else {
+                                loader.row().add(i).add(nameOf(i)).add(i % 3 == 0).add(i * 1000000000L)
+                                        .add(i / 8.0).add((char) ('a' + i % 26)).add(new Timestamp(i * 1000L))
+                                        .add(getNote(i)).end();
+                            }
+                        }
+                    } catch (DaoException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        loader.endLoad();
+        assertEquals(0, failures.get());
+
+        Connection cnx = ds.getConnection();
+        try {
+            ResultSet rs = cnx.createStatement().executeQuery("SELECT * FROM LOADER_TEST ORDER BY ID");
+            int n = 0;
+            while (rs.next()) {
+                int i = rs.getInt("ID");
+                assertEquals(n, i);
+                assertEquals(nameOf(i), rs.getString("NAME"));
+                assertEquals(i % 3 == 0, rs.getBoolean("FLAG"));
+                assertEquals(i * 1000000000L, rs.getLong("BIG"));
+                assertEquals(i / 8.0, rs.getDouble("SCORE"), 0.0);
+                assertEquals("" + (char) ('a' + i % 26), rs.getString("CODE"));
+                assertEquals(new Timestamp(i * 1000L), rs.getTimestamp("CREATED"));
+                assertEquals(getNote(i), rs.getString("NOTE"));
+                n++;
+            }
+            assertEquals(numThreads * rowsPerThread, n);
+        } finally {
+            cnx.close();
+        }
+    }
+
+    @Test
+    public void testWrongNumberOfValues() throws Exception {
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+        createTable(ds);
+        FastLoader loader = new FastLoader(ds, "LOADER_TEST", FIELDS);
+        try {
+            loader.load(1, "foo");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            loader.row().add(1).add("foo").end();
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        loader.load(2, "bar", true, 3L, 4.0, 'c', new Timestamp(5), null);
+        loader.endLoad();
+
+        Connection cnx = ds.getConnection();
+        try {
+            ResultSet rs = cnx.createStatement().executeQuery("SELECT ID FROM LOADER_TEST");
+            assertTrue(rs.next());
+            assertEquals(2, rs.getInt(1));
+            assertFalse(rs.next());
+        } finally {
+            cnx.close();
+        }
+    }
+
+    @Test
+    public void testFailedInserter() throws Exception {
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+        FastLoader loader = new FastLoader(ds, "NO_SUCH_TABLE", FIELDS, false, FastLoader.Strategy.MULTI_ROW, 1);
+        try {
+            for (int i = 0; i < 100000; i++) {
+                loader.load(i, nameOf(i), true, 3L, 4.0, 'c', new Timestamp(5), null);
+            }
+            loader.endLoad();
+            fail();
+        } catch (DaoException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+    }
+
+    @Test
+    public void testAbortRowReleasesChars() {
+        RowBatch batch = new RowBatch.Cells(2, 10, 5);
+        batch.addString("too long");
+        try {
+            batch.endRow();
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertFalse(batch.isFull());
+        batch.addString("ok");
+        batch.addInt(1);
+        batch.endRow();
+        assertFalse(batch.isFull());
+    }
+
+    @Test
+    public void testCopyText() {
+        RowBatch batch = new RowBatch.CopyText(4, 10, 1000);
+        batch.addInt(3);
+        batch.addString("a\tb\nc\\d\re");
+        batch.addBoolean(false);
+        batch.addNull();
+        batch.endRow();
+        batch.addLong(-4);
+        batch.addString("\\N");
+        batch.addBoolean(true);
+        batch.addDouble(0.5);
+        batch.endRow();
+        assertEquals(
+                "3\ta\\tb\\nc\\\\d\\re\tf\t\\N\n" +
+                "-4\t\\\\N\tt\t0.5\n",
+                ((RowBatch.Text) batch).getText().toString());
+    }
+
+    private static String nameOf(int i) {
+        return NAMES[i % NAMES.length] + i;
+    }
+
+    private static String getNote(int i) {
+        switch (i % 3) {
+            case 0: return null;
+            case 1: return "";
+            default: return "note";
+        }
+    }
+
+    private static void createTable(WpDataSource ds) throws SQLException, IOException, ClassNotFoundException, DaoException {
+        Connection cnx = ds.getConnection();
+        try {
+            Statement s = cnx.createStatement();
+            s.execute("DROP TABLE IF EXISTS LOADER_TEST");
+            s.execute("CREATE TABLE LOADER_TEST (" +
+                    "ID INT NOT NULL, " +
+                    "NAME VARCHAR(100) NOT NULL, " +
+                    "FLAG BOOLEAN NOT NULL, " +
+                    "BIG BIGINT NOT NULL, " +
+                    "SCORE DOUBLE NOT NULL, " +
+                    "CODE CHAR(1) NOT NULL, " +
+                    "CREATED TIMESTAMP NOT NULL, " +
+                    "NOTE VARCHAR(100))");
+            cnx.commit();
+        } finally {
+            cnx.close();
+        }
+    }
+}
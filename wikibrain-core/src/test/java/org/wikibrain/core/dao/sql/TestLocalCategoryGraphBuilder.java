@@ -0,0 +1,84 @@
+package org.wikibrain.core.dao.sql;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.CategoryGraph;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestLocalCategoryGraphBuilder {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+
+    @Test
+    public void testBuildAndMap() throws DaoException, IOException {
+        int catIds[] = { 10, 20, 30, 40 };
+        String names[] = { "Science", "Physics", "Chemistry", "Physical chemistry é" };
+        // category, member pairs
+        int edges[][] = {
+                { 10, 20 }, { 10, 30 }, { 20, 40 }, { 30, 40 },
+                { 20, 100 }, { 40, 102 }, { 40, 101 }, { 30, 101 },
+                { 99, 103 },    // not a category
+        };
+        int categories[] = new int[edges.length];
+        int members[] = new int[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            categories[i] = edges[i][0];
+            members[i] = edges[i][1];
+        }
+
+        LocalCategoryGraphBuilder builder = new LocalCategoryGraphBuilder();
+        CategoryGraph graph = builder.build(SIMPLE, catIds, names, categories, members, 2);
+        builder.computePageRanks(graph);
+        assertGraph(graph);
+
+        File file = File.createTempFile("cat-graph", ".csr");
+        try {
+            graph.write(file);
+            CategoryGraph mapped = CategoryGraph.read(file);
+            assertGraph(mapped);
+            assertEquals(graph.minCost, mapped.minCost, 0.0);
+            for (int i = 0; i < catIds.length; i++) {
+                assertEquals(graph.catCosts[i], mapped.catCosts[i], 0.0);
+                assertEquals(names[i], mapped.getCategoryName(i));
+            }
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private void assertGraph(CategoryGraph graph) {
+        assertEquals(SIMPLE, graph.language);
+        assertEquals(4, graph.getNumCategories());
+        assertEquals(2, graph.getCategoryIndex(30));
+        assertEquals(-1, graph.getCategoryIndex(35));
+        assertEquals(-1, graph.getCategoryIndex(100));
+        assertEquals(40, graph.getCategoryId(3));
+
+        assertEquals(4, graph.parents.getNumEdges());
+        assertEquals(4, graph.children.getNumEdges());
+        assertEquals(4, graph.pages.getNumEdges());
+        assertAdjacent(graph.parents, 0);
+        assertAdjacent(graph.parents, 3, 1, 2);
+        assertAdjacent(graph.children, 0, 1, 2);
+        assertAdjacent(graph.children, 3);
+        assertAdjacent(graph.pages, 1, 100);
+        assertAdjacent(graph.pages, 3, 101, 102);
+
+        assertTrue(graph.minCost > 0 && graph.minCost < 1.0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(graph.catCosts[i] >= graph.minCost);
+        }
+    }
+
+    private void assertAdjacent(CategoryGraph.Adjacency adjacency, int catIndex, int ... expected) {
+        assertEquals(expected.length, adjacency.size(catIndex));
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], adjacency.get(adjacency.start(catIndex) + i));
+        }
+    }
+}
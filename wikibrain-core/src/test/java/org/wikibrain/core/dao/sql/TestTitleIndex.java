@@ -0,0 +1,53 @@
+package org.wikibrain.core.dao.sql;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestTitleIndex {
+    @Test
+    public void testBuildAndMap() throws IOException {
+        Random random = new Random(7);
+        TLongIntHashMap expected = new TLongIntHashMap();
+        TitleIndex.Builder builder = new TitleIndex.Builder(10);    // forces growth
+        for (int i = 0; i < 20000; i++) {
+            long hash = random.nextLong();
+            if (i % 10 == 0) {
+                hash &= 0xffff;     // many hashes that share slots
+            }
+            int id = random.nextInt(1000000);
+            builder.put(hash, id);
+            expected.put(hash, id);
+        }
+        // later puts replace earlier ones
+        long first = expected.keys()[0];
+        builder.put(first, 42);
+        expected.put(first, 42);
+        assertEquals(expected.size(), builder.size());
+
+        File file = File.createTempFile("titles", ".idx");
+        try {
+            builder.write(file);
+            for (TitleIndex index : new TitleIndex[] { builder.build(), new TitleIndex(file) }) {
+                assertEquals(expected.size(), index.size());
+                for (long hash : expected.keys()) {
+                    assertEquals(expected.get(hash), index.get(hash));
+                }
+                for (int i = 0; i < 1000; i++) {
+                    long hash = random.nextLong();
+                    if (!expected.containsKey(hash)) {
+                        assertEquals(-1, index.get(hash));
+                    }
+                }
+            }
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
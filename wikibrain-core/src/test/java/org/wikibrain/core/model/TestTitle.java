@@ -25,4 +25,14 @@ public class TestTitle {
         assert (badCategory.getNamespace()==NameSpace.CATEGORY);
         assert (badCategory.getTitleStringWithoutNamespace().equals(""));
     }
+
+    @Test
+    public void testLongHashCode() {
+        LanguageInfo lang = LanguageInfo.getByLangCode("en");
+        Title title = new Title("Talk:Pokemon: The Movie", lang);
+        assert (title.longHashCode() == Title.longHashCode(lang.getLanguage(), "Pokemon: The Movie", NameSpace.TALK));
+        assert (title.longHashCode() != Title.longHashCode(lang.getLanguage(), "Pokemon: The Movie", NameSpace.ARTICLE));
+        assert (Title.longHashCode(1, "Aa", 0) != Title.longHashCode(1, "BB", 0));
+        assert (Title.longHashCode(1, "Aa", 0) != Title.longHashCode(2, "Aa", 0));
+    }
 }
@@ -21,6 +21,7 @@ import org.wikibrain.core.model.RawPage;
 import org.wikibrain.parser.xml.DumpPageXmlParser;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.*;
 import java.sql.SQLException;
@@ -46,6 +47,9 @@ public class DumpLoader {
     private Integer maxPerLang = null;
     private final Map<Language, AtomicInteger> langCounters = new ConcurrentHashMap<Language, AtomicInteger>();
 
+    // Number of threads parsing each dump file
+    private int parserThreads = 1;
+
     private final LocalPageDao localPageDao;
     private final RawPageDao rawPageDao;
     private final MetaInfoDao metaDao;
@@ -71,7 +75,7 @@ public class DumpLoader {
             return;
         }
         DumpPageXmlParser parser = new DumpPageXmlParser(file,
-                LanguageInfo.getByLanguage(lang));
+                LanguageInfo.getByLanguage(lang), parserThreads);
         for (RawPage rp : parser) {
             if (allPages.incrementAndGet() % 10000 == 0) {
                 LOG.info("processing article " + allPages.get() + " found " + interestingPages.get() + " interesting articles");
@@ -189,6 +193,11 @@ public class DumpLoader {
         if (cmd.hasOption("x")) {
             loader.maxPerLang = Integer.valueOf(cmd.getOptionValue("x"));
         }
+        // split threads not used by parallel files among the parsers of each file
+        if (!paths.isEmpty()) {
+            int maxThreads = WpThreadUtils.getMaxThreads();
+            loader.parserThreads = Math.max(1, maxThreads / Math.min(paths.size(), maxThreads));
+        }
 
         if (cmd.hasOption("d")) {
             lpDao.clear();
@@ -0,0 +1,78 @@
+package org.wikibrain.lucene;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps between lucene document ids and local page ids for a single index reader.
+ *
+ * Local ids are read from the local id column: the field's doc values if the index
+ * has them, and otherwise the field cache, which is built once per segment from
+ * the indexed terms. Stored fields are never loaded.
+ */
+class LocalIdMapping {
+    private final DirectoryReader reader;
+
+    // local ids indexed by lucene doc id, -1 for deleted documents
+    private final int[] localIds;
+    private final TIntIntMap docIds;
+
+    LocalIdMapping(DirectoryReader reader) throws IOException {
+        this.reader = reader;
+        this.localIds = new int[reader.maxDoc()];
+        this.docIds = new TIntIntHashMap(reader.numDocs() * 4 / 3 + 1, 0.75f, -1, -1);
+        for (AtomicReaderContext context : reader.leaves()) {
+            int ids[] = getLocalIds(context.reader());
+            System.arraycopy(ids, 0, localIds, context.docBase, ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] >= 0) {
+                    docIds.putIfAbsent(ids[i], context.docBase + i);
+                }
+            }
+        }
+    }
+
+    DirectoryReader getReader() {
+        return reader;
+    }
+
+    /**
+     * @return The local id of the document, or -1 if it has been deleted.
+     */
+    int getLocalId(int docId) {
+        return localIds[docId];
+    }
+
+    /**
+     * @return The lucene id of the document for the page, or -1 if it is not indexed.
+     */
+    int getDocId(int localId) {
+        return docIds.get(localId);
+    }
+
+    /**
+     * Returns the local ids of documents in a single segment, indexed by the segment's
+     * doc ids. Deleted documents have local id -1.
+     */
+    static int[] getLocalIds(AtomicReader reader) throws IOException {
+        FieldCache.Ints values = FieldCache.DEFAULT.getInts(
+                reader, LuceneOptions.LOCAL_ID_FIELD_NAME, FieldCache.NUMERIC_UTILS_INT_PARSER, false);
+        Bits live = reader.getLiveDocs();
+        int ids[] = new int[reader.maxDoc()];
+        Arrays.fill(ids, -1);
+        for (int i = 0; i < ids.length; i++) {
+            if (live == null || live.get(i)) {
+                ids[i] = values.get(i);
+            }
+        }
+        return ids;
+    }
+}
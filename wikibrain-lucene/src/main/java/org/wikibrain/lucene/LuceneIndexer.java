@@ -5,6 +5,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
@@ -115,6 +116,8 @@ public class LuceneIndexer implements Closeable {
             Field langIdField = new IntField(LuceneOptions.LANG_ID_FIELD_NAME, page.getLanguage().getId(), Field.Store.YES);
             Field canonicalTitleField = builder.buildTextField(page, new TextFieldElements().addTitle());
             document.add(localIdField);
+            // lets searchers map lucene ids to local ids without loading stored fields
+            document.add(new NumericDocValuesField(LuceneOptions.LOCAL_ID_FIELD_NAME, page.getLocalId()));
             document.add(langIdField);
             document.add(canonicalTitleField);
             if (!page.isRedirect()) {
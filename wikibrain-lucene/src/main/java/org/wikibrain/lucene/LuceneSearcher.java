@@ -1,7 +1,6 @@
 package org.wikibrain.lucene;
 
 import com.typesafe.config.Config;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
@@ -17,6 +16,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +38,7 @@ public class LuceneSearcher {
     private final Map<Language, IndexSearcher> searchers;
     private final Map<Language, DirectoryReader> readers;
     private final Map<Language, WikiBrainAnalyzer> analyzers;
+    private final ConcurrentHashMap<Language, LocalIdMapping> idMappings = new ConcurrentHashMap<Language, LocalIdMapping>();
     private final LuceneOptions options;
 
     private int hitCount = DEFAULT_HIT_COUNT;
@@ -150,10 +151,11 @@ public class LuceneSearcher {
         try {
             this.hitCount = hitCount;
             ScoreDoc[] scoreDocs = searchers.get(language).search(query, filter, hitCount).scoreDocs;
+            LocalIdMapping mapping = resolveWpIds ? getIdMapping(language) : null;
             WikiBrainScoreDoc[] wikibrainScoreDocs = new WikiBrainScoreDoc[scoreDocs.length];
             for (int i = 0; i < scoreDocs.length; i++) {
                 ScoreDoc scoreDoc = scoreDocs[i];
-                int wpId = resolveWpIds ? getLocalIdFromDocId(scoreDoc.doc, language) : -1;
+                int wpId = resolveWpIds ? mapping.getLocalId(scoreDoc.doc) : -1;
                 wikibrainScoreDocs[i] = new WikiBrainScoreDoc(scoreDoc.doc, wpId, scoreDoc.score);
             }
             return wikibrainScoreDocs;
@@ -173,8 +175,7 @@ public class LuceneSearcher {
     public int getLocalIdFromDocId(int docId, Language language) {
         try {
             if (docId != -1) {
-                Document document = searchers.get(language).doc(docId);
-                return (Integer) document.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue();
+                return getIdMapping(language).getLocalId(docId);
             } else {
                 LOG.log(Level.WARNING, "This docId does not exist: " + docId);
                 return -1;
@@ -184,20 +185,48 @@ public class LuceneSearcher {
         }
     }
 
+    /**
+     * Retrieves the lucene document for a specified local ID,
+     * within a given language.
+     *
+     * @param localId
+     * @param language
+     * @return the lucene id, or -1 if the page is not indexed.
+     * @throws DaoException
+     */
     public int getDocIdFromLocalId(int localId, Language language) throws DaoException {
-        Query query = NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, localId, true, true);
         try {
-            ScoreDoc[] hits = searchers.get(language).search(query, 1).scoreDocs;
-            if (hits.length == 0) {
-                return -1;
-            } else {
-                return hits[0].doc;
-            }
+            return getIdMapping(language).getDocId(localId);
         } catch (IOException e) {
             throw new DaoException(e);
         }
     }
 
+    /**
+     * Returns the mapping between lucene and local ids for the current reader
+     * of the language, building it on first use. Only building takes a lock.
+     */
+    private LocalIdMapping getIdMapping(Language language) throws IOException {
+        DirectoryReader reader = getReaderByLanguage(language);
+        LocalIdMapping mapping = idMappings.get(language);
+        if (mapping != null && mapping.getReader() == reader) {
+            return mapping;
+        }
+        return buildIdMapping(language, reader);
+    }
+
+    private synchronized LocalIdMapping buildIdMapping(Language language, DirectoryReader reader) throws IOException {
+        LocalIdMapping mapping = idMappings.get(language);
+        if (mapping == null || mapping.getReader() != reader) {
+            long start = System.currentTimeMillis();
+            mapping = new LocalIdMapping(reader);
+            idMappings.put(language, mapping);
+            LOG.info("built lucene id mapping for " + reader.numDocs() + " documents in " + language +
+                    " in " + (System.currentTimeMillis() - start) + " millis");
+        }
+        return mapping;
+    }
+
     public DirectoryReader getReaderByLanguage(Language language) {
         if (!readers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
         return readers.get(language);
@@ -2,7 +2,6 @@ package org.wikibrain.lucene;
 
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.search.DocIdSet;
@@ -55,11 +54,9 @@ public class WpIdFilter extends Filter {
         LOG.fine("building WpId filter for " + wpIds.length + " ids with hash " + Arrays.hashCode(wpIds));
         TIntSet wpIdSet = new TIntHashSet(wpIds);
         TIntSet luceneIdSet = new TIntHashSet();
-        Set<String> fields = new HashSet<String>(Arrays.asList(LuceneOptions.LOCAL_ID_FIELD_NAME));
-        for (int i = 0; i < reader.numDocs(); i++) {
-            Document d = reader.document(i, fields);
-            int wpId = Integer.valueOf(d.get(LuceneOptions.LOCAL_ID_FIELD_NAME));
-            if (wpIdSet.contains(wpId)) {
+        int localIds[] = LocalIdMapping.getLocalIds(reader);
+        for (int i = 0; i < localIds.length; i++) {
+            if (localIds[i] >= 0 && wpIdSet.contains(localIds[i])) {
                 luceneIdSet.add(i);
             }
         }
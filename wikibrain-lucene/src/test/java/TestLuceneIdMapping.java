@@ -0,0 +1,109 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.WikiBrainScoreDoc;
+import org.wikibrain.lucene.WpIdFilter;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestLuceneIdMapping {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+    private static final int NUM_DOCS = 500;
+
+    @Test
+    public void testWithDocValues() throws Exception {
+        testMapping(true);
+    }
+
+    @Test
+    public void testWithoutDocValues() throws Exception {
+        testMapping(false);
+    }
+
+    private void testMapping(boolean docValues) throws Exception {
+        File root = WpIOUtils.createTempDirectory("lucene");
+        try {
+            writeIndex(new File(root, SIMPLE.getLangCode()), docValues);
+            LuceneSearcher searcher = new LuceneSearcher(new LanguageSet(Arrays.asList(SIMPLE)), root);
+
+            // local ids come from the stored field when checked against the mapping
+            for (int docId = 0; docId < searcher.getReaderByLanguage(SIMPLE).maxDoc(); docId++) {
+                Document d = searcher.getReaderByLanguage(SIMPLE).document(docId);
+                int localId = searcher.getLocalIdFromDocId(docId, SIMPLE);
+                if (d.get("text").equals("deleted")) {
+                    assertEquals(-1, localId);
+                } else {
+                    assertEquals(d.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue(), localId);
+                    assertEquals(docId, searcher.getDocIdFromLocalId(localId, SIMPLE));
+                }
+            }
+            assertEquals(-1, searcher.getDocIdFromLocalId(getLocalId(0), SIMPLE));   // deleted
+            assertEquals(-1, searcher.getDocIdFromLocalId(-7, SIMPLE));
+
+            Query query = new TermQuery(new Term("text", "even"));
+            WikiBrainScoreDoc docs[] = searcher.search(query, SIMPLE, NUM_DOCS);
+            assertEquals(NUM_DOCS / 2 - 1, docs.length);
+            for (WikiBrainScoreDoc doc : docs) {
+                assertEquals(doc.luceneId, searcher.getDocIdFromLocalId(doc.wpId, SIMPLE));
+                assertEquals(0, ((doc.wpId - 3) / 7) % 2);
+            }
+
+            WpIdFilter filter = new WpIdFilter(new int[] { getLocalId(0), getLocalId(2), getLocalId(3), getLocalId(498) });
+            docs = searcher.search(query, SIMPLE, NUM_DOCS, filter);
+            int wpIds[] = new int[docs.length];
+            for (int i = 0; i < docs.length; i++) {
+                wpIds[i] = docs[i].wpId;
+            }
+            Arrays.sort(wpIds);
+            assertArrayEquals(new int[] { getLocalId(2), getLocalId(498) }, wpIds);
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    /**
+     * Writes documents in several segments and deletes the first one.
+     */
+    private static void writeIndex(File dir, boolean docValues) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_43, new StandardAnalyzer(Version.LUCENE_43));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(dir), iwc);
+        for (int i = 0; i < NUM_DOCS; i++) {
+            Document d = new Document();
+            d.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, getLocalId(i), Field.Store.YES));
+            if (docValues) {
+                d.add(new NumericDocValuesField(LuceneOptions.LOCAL_ID_FIELD_NAME, getLocalId(i)));
+            }
+            d.add(new StringField("text", (i == 0) ? "deleted" : (i % 2 == 0 ? "even" : "odd"), Field.Store.YES));
+            writer.addDocument(d);
+            if (i % 150 == 0) {
+                writer.commit();
+            }
+        }
+        writer.deleteDocuments(NumericRangeQuery.newIntRange(
+                LuceneOptions.LOCAL_ID_FIELD_NAME, getLocalId(0), getLocalId(0), true, true));
+        writer.close();
+    }
+
+    private static int getLocalId(int i) {
+        return i * 7 + 3;
+    }
+}
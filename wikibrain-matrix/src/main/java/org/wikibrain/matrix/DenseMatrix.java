@@ -22,11 +22,31 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
 
     public static final Logger LOG = Logger.getLogger(DenseMatrix.class.getName());
 
+    /**
+     * Header of the legacy format, whose row offsets are read into a hash map.
+     */
     public static final int FILE_HEADER = 0xabccba;
 
+    /**
+     * Header of the current format, whose row offsets are memory mapped (see MappedRowIndex).
+     */
+    public static final int FILE_HEADER_V2 = 0xabccb2;
+
+    /**
+     * Size of the fixed part of the current header:
+     * magic, min score, max score, num rows, max row bytes, and num cols.
+     */
+    public static final int HEADER_V2_SIZE = 24;
+
     private TIntLongHashMap rowOffsets = new TIntLongHashMap();
     private int rowIds[];
+    private int numRows;
     private int colIds[];
+
+    /**
+     * Mapped index for files in the current format, null for legacy files.
+     */
+    private MappedRowIndex offsetIndex;
     private FileChannel channel;
     private File path;
 
@@ -45,8 +65,43 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         this.path = path;
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
-        readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets);
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_V2_SIZE));
+        int magic = header.getInt(0);
+        if (magic == FILE_HEADER_V2) {
+            readMappedHeaders(header);
+        } else if (magic == FILE_HEADER) {
+            readHeaders();
+            rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets);
+            rowOffsets = null;  // row locations are now tracked by rowBuffers
+        } else {
+            throw new IOException("invalid file header: " + magic);
+        }
+    }
+
+    private void readMappedHeaders(ByteBuffer header) throws IOException {
+        this.vconf = new ValueConf(header.getFloat(4), header.getFloat(8));
+        this.numRows = header.getInt(12);
+        int maxRowBytes = header.getInt(16);
+        int numCols = header.getInt(20);
+        info("mapping offsets for " + numRows + " rows");
+        offsetIndex = new MappedRowIndex(channel, HEADER_V2_SIZE, numRows);
+
+        long pos = HEADER_V2_SIZE + MappedRowIndex.sizeInBytes(numRows);
+        colIds = new int[numCols];
+        channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * numCols).asIntBuffer().get(colIds);
+        info("read " + colIds.length + " column ids");
+
+        long bodyStart = getBodyStart(numRows, numCols);
+        rowBuffers = new MemoryMappedMatrix(path, channel, offsetIndex, bodyStart, maxRowBytes);
+    }
+
+    /**
+     * Returns the offset of the first row in a file with the current header format.
+     * The body is aligned to an 8 byte boundary.
+     */
+    static long getBodyStart(int numRows, int numCols) {
+        long size = HEADER_V2_SIZE + MappedRowIndex.sizeInBytes(numRows) + 4L * numCols;
+        return (size + 7) / 8 * 8;
     }
 
     private void readHeaders() throws IOException {
@@ -55,13 +110,10 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
 
         // read header
-        if (buffer.getInt(pos) != FILE_HEADER) {
-            throw new IOException("invalid file header: " + buffer.getInt(pos));
-        }
         pos += 4;
         this.vconf = new ValueConf(buffer.getFloat(pos), buffer.getFloat(pos + 4));
         pos += 8;
-        int numRows = buffer.getInt(pos);
+        numRows = buffer.getInt(pos);
         pos += 4;
 
         // read row ids and offsets
@@ -99,18 +151,29 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         }
     }
 
+    /**
+     * Returns the row ids in the order they appear in the file.
+     * For mapped matrices the ids are copied into the heap on the first call.
+     */
     @Override
-    public int[] getRowIds() {
+    public synchronized int[] getRowIds() {
+        if (rowIds == null) {
+            rowIds = offsetIndex.getRowIds();
+        }
         return rowIds;
     }
 
+    private int getRowId(int i) {
+        return (offsetIndex == null) ? rowIds[i] : offsetIndex.getRowId(i);
+    }
+
     public int[] getColIds() {
         return colIds;
     }
 
     @Override
     public int getNumRows() {
-        return rowIds.length;
+        return numRows;
     }
 
     public ValueConf getValueConf() {
@@ -118,7 +181,7 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
     }
 
     public void dump() throws IOException {
-        for (int id : rowIds) {
+        for (int id : getRowIds()) {
             System.out.print("" + id + ": ");
             MatrixRow row = getRow(id);
             for (int i = 0; i < row.getNumCols(); i++) {
@@ -139,12 +202,12 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         private int i = 0;
         @Override
         public boolean hasNext() {
-            return i < rowIds.length;
+            return i < numRows;
         }
         @Override
         public DenseMatrixRow next() {
             try {
-                return getRow(rowIds[i++]);
+                return getRow(getRowId(i++));
             } catch (IOException e) {
                 LOG.log(Level.SEVERE, "getRow failed", e);
                 return null;
@@ -20,7 +20,7 @@ import java.util.logging.Logger;
  * This means that the object can wrap data from an mmap'd file in the correct format.
  */
 public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
-    Logger LOG = Logger.getLogger(DenseMatrixRow.class.getName());
+    private static final Logger LOG = Logger.getLogger(DenseMatrixRow.class.getName());
 
     public static final Float MIN_SCORE = -1.1f;
     public static final Float MAX_SCORE = 1.1f;
@@ -140,6 +140,14 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
         return buffer;
     }
 
+    /**
+     * @return The number of bytes at the start of the buffer that are used by the row.
+     * The buffer may extend beyond the row if it wraps a memory mapped file.
+     */
+    public int getNumBytes() {
+        return 4 + 4 + 2 * colIds.length;
+    }
+
     public ValueConf getValueConf() {
         return vconf;
     }
@@ -1,7 +1,7 @@
 package org.wikibrain.matrix;
 
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.list.array.TLongArrayList;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
@@ -19,11 +19,12 @@ public class DenseMatrixWriter {
     private static final Logger LOG = Logger.getLogger(DenseMatrixWriter.class.getName());
 
     private File path;
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
+    private TLongArrayList rowOffsets = new TLongArrayList();
     private TIntArrayList rowIndexes = new TIntArrayList();
     private File bodyPath;
     private BufferedOutputStream body;
     private long bodyOffset = 0;
+    private int maxRowBytes = 0;
     private ValueConf vconf;
     private int colIds[];
 
@@ -50,12 +51,14 @@ public class DenseMatrixWriter {
         if (!Arrays.equals(colIds, row.getColIds())) {
             throw new IllegalArgumentException("Column id mismatch for row " + row.getRowIndex());
         }
-        row.getBuffer().rewind();
-        byte[] bytes = new byte[row.getBuffer().remaining()];
-        row.getBuffer().get(bytes, 0, bytes.length);
+        ByteBuffer buffer = row.getBuffer().duplicate();
+        buffer.position(0);
+        byte[] bytes = new byte[row.getNumBytes()];
+        buffer.get(bytes, 0, bytes.length);
 
-        rowOffsets.put(row.getRowIndex(), bodyOffset);
+        rowOffsets.add(bodyOffset);
         rowIndexes.add(row.getRowIndex());
+        maxRowBytes = Math.max(maxRowBytes, bytes.length);
 
         body.write(bytes);
         bodyOffset += bytes.length;
@@ -73,22 +76,29 @@ public class DenseMatrixWriter {
 
         // write offset file
         info("generating header");
-        int sizeHeader = 16 + rowOffsets.size() * 12 + 4 + colIds.length * 4;
-        body = new BufferedOutputStream(new FileOutputStream(path));
-        body.write(intToBytes(DenseMatrix.FILE_HEADER));
-        body.write(floatToBytes(vconf.minScore));
-        body.write(floatToBytes(vconf.maxScore));
-        body.write(intToBytes(rowOffsets.size()));
-        for (int i = 0; i < rowIndexes.size(); i++) {
-            int rowIndex = rowIndexes.get(i);
-            long rowOffset = rowOffsets.get(rowIndex);
-            body.write(intToBytes(rowIndex));
-            body.write(longToBytes(rowOffset + sizeHeader));
+        int numRows = rowIndexes.size();
+        int numCols = (colIds == null) ? 0 : colIds.length;
+        long sizeHeader = DenseMatrix.getBodyStart(numRows, numCols);
+        long offsets[] = rowOffsets.toArray();
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] += sizeHeader;
         }
-        body.write(intToBytes(colIds.length));
-        for (int c : colIds) {
-            body.write(intToBytes(c));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        out.writeInt(DenseMatrix.FILE_HEADER_V2);
+        out.writeFloat(vconf.minScore);
+        out.writeFloat(vconf.maxScore);
+        out.writeInt(numRows);
+        out.writeInt(maxRowBytes);
+        out.writeInt(numCols);
+        MappedRowIndex.write(out, rowIndexes.toArray(), offsets);
+        for (int i = 0; i < numCols; i++) {
+            out.writeInt(colIds[i]);
         }
+        long padding = sizeHeader - (DenseMatrix.HEADER_V2_SIZE + MappedRowIndex.sizeInBytes(numRows) + 4L * numCols);
+        for (int i = 0; i < padding; i++) {
+            out.write(ROW_PADDING);
+        }
+        body = new BufferedOutputStream(out);
 
         InputStream r = new FileInputStream(bodyPath);
 
@@ -115,16 +125,4 @@ public class DenseMatrixWriter {
         }
         w.finish();
     }
-
-
-    private static byte[] intToBytes(int i) {
-        return ByteBuffer.allocate(4).putInt(i).array();
-    }
-
-    private static byte[] longToBytes(long i) {
-        return ByteBuffer.allocate(8).putLong(i).array();
-    }
-    private static byte[] floatToBytes(float f) {
-        return ByteBuffer.allocate(4).putFloat(f).array();
-    }
 }
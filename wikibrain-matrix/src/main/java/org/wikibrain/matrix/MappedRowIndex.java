@@ -0,0 +1,133 @@
+package org.wikibrain.matrix;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An index from row ids to file offsets that is memory mapped directly from a matrix file.
+ * Opening the index does not read the offsets into the heap, and lookups binary search
+ * the sorted id table, so opening a matrix with tens of millions of rows is nearly instant.
+ *
+ * The on-disk layout of the index consists of three tables:
+ * - the row ids in the order they were written (int[numRows]),
+ * - the row ids in sorted order (int[numRows]),
+ * - the file offsets of the rows in sorted id order (long[numRows]).
+ *
+ * Each table must be smaller than 2GB, so the index supports up to 2^28 rows.
+ */
+public class MappedRowIndex {
+    private final int numRows;
+
+    /**
+     * Row ids in the order they appear in the file.
+     */
+    private final IntBuffer rowIds;
+
+    /**
+     * Row ids in sorted order.
+     */
+    private final IntBuffer sortedIds;
+
+    /**
+     * Row offsets, in the same order as sortedIds.
+     */
+    private final LongBuffer offsets;
+
+    /**
+     * Maps the index beginning at the specified position in the channel.
+     * @param channel
+     * @param position
+     * @param numRows
+     * @throws IOException
+     */
+    public MappedRowIndex(FileChannel channel, long position, int numRows) throws IOException {
+        this.numRows = numRows;
+        long tableBytes = 4L * numRows;
+        this.rowIds = channel.map(FileChannel.MapMode.READ_ONLY, position, tableBytes).asIntBuffer();
+        this.sortedIds = channel.map(FileChannel.MapMode.READ_ONLY, position + tableBytes, tableBytes).asIntBuffer();
+        this.offsets = channel.map(FileChannel.MapMode.READ_ONLY, position + 2 * tableBytes, 2 * tableBytes).asLongBuffer();
+    }
+
+    /**
+     * @param rowId
+     * @return The file offset of the row, or -1 if the row does not exist.
+     */
+    public long getOffset(int rowId) {
+        int lo = 0;
+        int hi = numRows - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = sortedIds.get(mid);
+            if (id < rowId) {
+                lo = mid + 1;
+            } else if (id > rowId) {
+                hi = mid - 1;
+            } else {
+                return offsets.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param i
+     * @return The id of the i'th row in file order.
+     */
+    public int getRowId(int i) {
+        return rowIds.get(i);
+    }
+
+    /**
+     * @return A copy of all row ids in file order.
+     */
+    public int[] getRowIds() {
+        int result[] = new int[numRows];
+        rowIds.duplicate().get(result);
+        return result;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * @param numRows
+     * @return The number of bytes required by an index with the specified number of rows.
+     */
+    public static long sizeInBytes(int numRows) {
+        return 16L * numRows;
+    }
+
+    /**
+     * Writes an index to the specified stream.
+     * @param out
+     * @param rowIds Row ids in the order they were written.
+     * @param rowOffsets File offsets of the rows, in the same order as rowIds.
+     * @throws IOException
+     */
+    public static void write(DataOutputStream out, int rowIds[], long rowOffsets[]) throws IOException {
+        if (rowIds.length != rowOffsets.length) {
+            throw new IllegalArgumentException("row ids and offsets differ in length");
+        }
+        // sort by row id, packing the original index into the low bits
+        long packed[] = new long[rowIds.length];
+        for (int i = 0; i < rowIds.length; i++) {
+            packed[i] = ((long) rowIds[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+
+        for (int id : rowIds) {
+            out.writeInt(id);
+        }
+        for (long p : packed) {
+            out.writeInt((int) (p >> 32));
+        }
+        for (long p : packed) {
+            out.writeLong(rowOffsets[(int) p]);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package org.wikibrain.matrix;
 
 import gnu.trove.map.hash.TIntLongHashMap;
 import org.apache.commons.collections.map.LinkedMap;
-import org.apache.commons.lang3.ArrayUtils;
 
 import java.io.File;
 import java.io.IOException;
@@ -14,8 +13,6 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -24,6 +21,11 @@ import java.util.logging.Logger;
 /**
  * A wrapper around a file channel that contains a matrix in row major order.
  * Returns rows at a particular offset in the form of ByteBuffers backed by a memory mapped file.
+ *
+ * Matrices with a legacy header are split into pages aligned with row boundaries, and the page
+ * of each row is stored in a hash map. Matrices with a mapped row index are split into fixed
+ * size pages that overlap by the length of the longest row, so the page is computed directly
+ * from the row offset.
  */
 public class MemoryMappedMatrix {
     public static final Logger LOG = Logger.getLogger(MemoryMappedMatrix.class.getName());
@@ -31,15 +33,47 @@ public class MemoryMappedMatrix {
     public static final int PAGE_SIZE = 1024 * 1024 * 1024;     // 1GB
 
     private TIntLongHashMap rowOffsets = new TIntLongHashMap();
+
+    /**
+     * Maps each row id to its location packed into a long.
+     * The high 32 bits hold the page index, the low 32 bits the position within the page.
+     */
+    private TIntLongHashMap rowLocations;
     private FileChannel channel;
     protected List<MappedBufferWrapper> buffers = new ArrayList<MappedBufferWrapper>();
     private File path;
+    private final int pageSize;
+
+    /**
+     * Index used instead of rowLocations for matrices with mapped headers.
+     */
+    private MappedRowIndex rowIndex;
+    private long bodyStart;
 
     public MemoryMappedMatrix(File path, FileChannel channel,TIntLongHashMap rowOffsets) throws IOException {
+        this(path, channel, rowOffsets, PAGE_SIZE);
+    }
+
+    public MemoryMappedMatrix(File path, FileChannel channel,TIntLongHashMap rowOffsets, int pageSize) throws IOException {
         this.path = path;
         this.channel = channel;
         this.rowOffsets = rowOffsets;
+        this.pageSize = pageSize;
         pageInRows();
+        this.rowOffsets = null;     // row locations are now tracked by rowLocations
+    }
+
+    public MemoryMappedMatrix(File path, FileChannel channel, MappedRowIndex rowIndex, long bodyStart, int maxRowBytes) throws IOException {
+        this(path, channel, rowIndex, bodyStart, maxRowBytes, PAGE_SIZE);
+    }
+
+    public MemoryMappedMatrix(File path, FileChannel channel, MappedRowIndex rowIndex, long bodyStart, int maxRowBytes, int pageSize) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.rowIndex = rowIndex;
+        this.bodyStart = bodyStart;
+        this.pageSize = pageSize;
+        pageInFixedPages(maxRowBytes);
     }
 
     public void close() throws IOException {
@@ -52,6 +86,7 @@ public class MemoryMappedMatrix {
 
     private void pageInRows() throws IOException {
         int rowIds[] = getRowIdsInOrder();
+        rowLocations = new TIntLongHashMap(Math.max(rowIds.length, 10));
         if (rowIds.length == 0) {
             return;
         }
@@ -59,48 +94,83 @@ public class MemoryMappedMatrix {
         // tricky: pages must align with row boundaries
         long startPos = rowOffsets.get(rowIds[0]);
         long lastPos = startPos;
+        int pageStartIndex = 0;     // index in rowIds of the first row in the current page
 
         for (int i = 1; i < rowIds.length; i++) {
             long pos = rowOffsets.get(rowIds[i]);
-            if (pos - startPos > PAGE_SIZE) {
+            if (pos - startPos > pageSize) {
                 assert(lastPos != startPos);
-                addBuffer(startPos, lastPos);
+                addBuffer(startPos, lastPos, rowIds, pageStartIndex, i - 1);
                 startPos = lastPos;
+                pageStartIndex = i - 1;
             }
             lastPos = pos;
         }
-        addBuffer(startPos, channel.size());
+        addBuffer(startPos, channel.size(), rowIds, pageStartIndex, rowIds.length);
     }
 
 
-    private void addBuffer(long startPos, long endPos) throws IOException {
+    /**
+     * Creates pages starting at multiples of the page size.
+     * Each page extends past the start of the next by the length of the longest row,
+     * so every row is entirely contained in the page containing its offset.
+     */
+    private void pageInFixedPages(int maxRowBytes) throws IOException {
+        long fileSize = channel.size();
+        for (long start = bodyStart; start < fileSize; start += pageSize) {
+            long end = Math.min(fileSize, start + pageSize + maxRowBytes);
+            debug("adding page at " + start + " of length " + (end - start));
+            buffers.add(new MappedBufferWrapper(channel, start, end));
+        }
+    }
+
+    /**
+     * Adds a page spanning [startPos, endPos) in the file and records the location of
+     * the rows rowIds[beginIndex] through rowIds[endIndex - 1], which reside in the page.
+     */
+    private void addBuffer(long startPos, long endPos, int rowIds[], int beginIndex, int endIndex) throws IOException {
         long length = endPos - startPos;
         debug("adding page at " + startPos + " of length " + length);
+        long pageNum = buffers.size();
         buffers.add(new MappedBufferWrapper(channel, startPos, endPos));
+        for (int i = beginIndex; i < endIndex; i++) {
+            long relative = rowOffsets.get(rowIds[i]) - startPos;
+            assert(0 <= relative && relative < Integer.MAX_VALUE);
+            rowLocations.put(rowIds[i], (pageNum << 32) | relative);
+        }
     }
 
+    /**
+     * Returns a buffer whose position 0 is the start of the requested row.
+     * This method does not acquire any locks once the row's page is mapped, and the
+     * returned buffer is independent of the buffers returned to other threads.
+     *
+     * @param rowId
+     * @return The buffer, or null if the row does not exist.
+     * @throws IOException
+     */
     public ByteBuffer getRow(int rowId) throws IOException {
-        if (!rowOffsets.containsKey(rowId)) {
-            return null;
-        }
-        long targetOffset = rowOffsets.get(rowId);
-        MappedBufferWrapper row = null;
-        // TODO: binary search
-        for (int i = 0; i < buffers.size(); i++) {
-            MappedBufferWrapper wrapper = buffers.get(i);
-            if (wrapper.start <= targetOffset && targetOffset < wrapper.end) {
-                row = wrapper;
+        if (rowIndex != null) {
+            long offset = rowIndex.getOffset(rowId);
+            if (offset < 0) {
+                return null;
             }
+            long relative = offset - bodyStart;
+            int page = (int) (relative / pageSize);
+            return buffers.get(page).get((int) (relative - (long) page * pageSize));
         }
-        if (row == null) {
-            throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
+        long location = rowLocations.get(rowId);
+        if (location == rowLocations.getNoEntryValue() && !rowLocations.containsKey(rowId)) {
+            return null;
         }
-        return row.get(targetOffset);
+        int page = (int) (location >>> 32);
+        int position = (int) (location & 0xFFFFFFFFL);
+        return buffers.get(page).get(position);
     }
 
     static class MappedBufferWrapper {
         FileChannel channel;
-        MappedByteBuffer buffer;
+        volatile MappedByteBuffer buffer;
         long start;
         long end;
 
@@ -109,27 +179,73 @@ public class MemoryMappedMatrix {
             this.start = start;
             this.end = end;
         }
-        public synchronized ByteBuffer get(long position) throws IOException {
+
+        /**
+         * Returns a slice of the page beginning at the specified position relative to the page start.
+         * The shared buffer's position is never modified, so concurrent readers do not interfere.
+         */
+        public ByteBuffer get(int relativePosition) throws IOException {
+            MappedByteBuffer mapped = buffer;
+            if (mapped == null) {
+                mapped = map();
+            }
+            ByteBuffer view = mapped.duplicate();
+            view.position(relativePosition);
+            return view.slice();
+        }
+
+        private synchronized MappedByteBuffer map() throws IOException {
             if (buffer == null) {
                 buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
             }
-            buffer.position((int) (position - start));
-            return buffer.slice();
+            return buffer;
         }
+
         public synchronized void close() {
             buffer = null;
         }
     }
 
+    /**
+     * Returns the row ids sorted by offset, using a primitive heap sort on parallel arrays.
+     */
     private int[] getRowIdsInOrder() {
-        Integer rowIds[] = ArrayUtils.toObject(rowOffsets.keys());
-        Arrays.sort(rowIds, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer r1, Integer r2) {
-                return new Long(rowOffsets.get(r1)).compareTo(rowOffsets.get(r2));
+        int rowIds[] = rowOffsets.keys();
+        long offsets[] = new long[rowIds.length];
+        for (int i = 0; i < rowIds.length; i++) {
+            offsets[i] = rowOffsets.get(rowIds[i]);
+        }
+        int n = rowIds.length;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(offsets, rowIds, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(offsets, rowIds, 0, end);
+            siftDown(offsets, rowIds, 0, end);
+        }
+        return rowIds;
+    }
+
+    private static void siftDown(long keys[], int vals[], int i, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                return;
+            }
+            if (child + 1 < n && keys[child + 1] > keys[child]) {
+                child++;
             }
-        });
-        return ArrayUtils.toPrimitive(rowIds);
+            if (keys[i] >= keys[child]) {
+                return;
+            }
+            swap(keys, vals, i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(long keys[], int vals[], int i, int j) {
+        long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+        int v = vals[i]; vals[i] = vals[j]; vals[j] = v;
     }
 
     private void info(String message) {
@@ -24,12 +24,32 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
     // default header page size is 100MB, will be expanded if necessary
     public static final int DEFAULT_HEADER_SIZE = 100 * 1024 * 1024;
 
+    /**
+     * Header of the legacy format, whose row offsets are read into a hash map.
+     */
     public static final int FILE_HEADER = 0xabcdef;
 
+    /**
+     * Header of the current format, whose row offsets are memory mapped (see MappedRowIndex).
+     */
+    public static final int FILE_HEADER_V2 = 0xabcdf2;
+
+    /**
+     * Size of the fixed part of the current header:
+     * magic, min score, max score, num rows, max row bytes, and padding.
+     */
+    public static final int HEADER_V2_SIZE = 24;
+
     MemoryMappedMatrix rowBuffers;
 
     private TIntLongHashMap rowOffsets = new TIntLongHashMap();
     private int rowIds[];
+    private int numRows;
+
+    /**
+     * Mapped index for files in the current format, null for legacy files.
+     */
+    private MappedRowIndex offsetIndex;
     private FileChannel channel;
     private File path;
 
@@ -44,18 +64,34 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         }
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
-        readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets);
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_V2_SIZE));
+        int magic = header.getInt(0);
+        if (magic == FILE_HEADER_V2) {
+            readMappedHeaders(header);
+        } else if (magic == FILE_HEADER) {
+            readHeaders();
+            rowBuffers = new MemoryMappedMatrix(path, channel, rowOffsets);
+            rowOffsets = null;  // row locations are now tracked by rowBuffers
+        } else {
+            throw new IOException("invalid file header: " + magic);
+        }
+    }
+
+    private void readMappedHeaders(ByteBuffer header) throws IOException {
+        this.vconf = new ValueConf(header.getFloat(4), header.getFloat(8));
+        this.numRows = header.getInt(12);
+        int maxRowBytes = header.getInt(16);
+        debug("mapping offsets for " + numRows + " rows");
+        offsetIndex = new MappedRowIndex(channel, HEADER_V2_SIZE, numRows);
+        long bodyStart = HEADER_V2_SIZE + MappedRowIndex.sizeInBytes(numRows);
+        rowBuffers = new MemoryMappedMatrix(path, channel, offsetIndex, bodyStart, maxRowBytes);
     }
 
     private void readHeaders() throws IOException {
         long size = Math.min(channel.size(), DEFAULT_HEADER_SIZE);
         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
-        if (buffer.getInt(0) != FILE_HEADER) {
-            throw new IOException("invalid file header: " + buffer.getInt(0));
-        }
         this.vconf = new ValueConf(buffer.getFloat(4), buffer.getFloat(8));
-        int numRows = buffer.getInt(12);
+        numRows = buffer.getInt(12);
         int headerSize = 16 + 12*numRows;
         if (headerSize > DEFAULT_HEADER_SIZE) {
             info("maxPageSize not large enough for entire header. Resizing to " + headerSize);
@@ -86,14 +122,25 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         }
     }
 
+    /**
+     * Returns the row ids in the order they appear in the file.
+     * For mapped matrices the ids are copied into the heap on the first call.
+     */
     @Override
-    public int[] getRowIds() {
+    public synchronized int[] getRowIds() {
+        if (rowIds == null) {
+            rowIds = offsetIndex.getRowIds();
+        }
         return rowIds;
     }
 
     @Override
     public int getNumRows() {
-        return rowIds.length;
+        return numRows;
+    }
+
+    private int getRowId(int i) {
+        return (offsetIndex == null) ? rowIds[i] : offsetIndex.getRowId(i);
     }
 
     public ValueConf getValueConf() {
@@ -101,7 +148,7 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
     }
 
     public void dump() throws IOException {
-        for (int id : rowIds) {
+        for (int id : getRowIds()) {
             System.out.print("" + id + ": ");
             MatrixRow row = getRow(id);
             for (int i = 0; i < row.getNumCols(); i++) {
@@ -122,12 +169,12 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         private int i = 0;
         @Override
         public boolean hasNext() {
-            return i < rowIds.length;
+            return i < numRows;
         }
         @Override
         public SparseMatrixRow next() {
             try {
-                return (SparseMatrixRow)getRow(rowIds[i++]);
+                return getRow(getRowId(i++));
             } catch (IOException e) {
                 LOG.log(Level.SEVERE, "getRow failed", e);
                 return null;
@@ -6,6 +6,7 @@ import org.apache.commons.lang3.ArrayUtils;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
@@ -14,11 +15,16 @@ import java.util.logging.Logger;
  * - a row id (int),
  * - a set of n columns, each with an id (int) and value (float packed into two bytes)
  *
+ * Rows may optionally be compressed. A compressed row stores the column ids as
+ * zigzag encoded deltas between consecutive ids in variable length (7 bits per byte)
+ * form, which requires one or two bytes per column when the ids are sorted.
+ * The ids of a compressed row are decoded once when the row is wrapped.
+ *
  * The row can either be created from the component data, or from a byte buffer.
  * This means that the object can wrap data from an mmap'd file in the correct format.
  */
 public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
-    Logger LOG = Logger.getLogger(SparseMatrixRow.class.getName());
+    private static final Logger LOG = Logger.getLogger(SparseMatrixRow.class.getName());
     public static final Float MIN_SCORE = -1.1f;
     public static final Float MAX_SCORE = 1.1f;
 
@@ -27,6 +33,8 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
 
     public static final int HEADER = 0xfefefefe;
 
+    public static final int COMPRESSED_HEADER = 0xfefefefd;
+
     /**
      * The main "source" buffer.
      */
@@ -48,6 +56,11 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     private ShortBuffer valBuffer;
     private ValueConf vconf;
 
+    /**
+     * The number of bytes in the buffer used by the row.
+     */
+    private int numBytes;
+
     public SparseMatrixRow(ValueConf vconf, int rowIndex, TIntFloatMap row) {
         this(vconf, rowIndex, row.keys(), row.values());
     }
@@ -73,16 +86,24 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
         createBuffer(rowIndex, colIds, colVals);
     }
 
+    public SparseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], short colVals[], boolean compressed) {
+        this.vconf = vconf;
+        if (compressed) {
+            createCompressedBuffer(rowIndex, colIds, colVals);
+        } else {
+            createBuffer(rowIndex, colIds, colVals);
+        }
+    }
+
     public void createBuffer(int rowIndex, int colIds[], short colVals[]) {
         assert(colIds.length == colVals.length);
 
-        buffer = ByteBuffer.allocate(
-                4 +                 // header
-                4 +                 // row index
-                4 +                 // num cols
+        numBytes = 4 +                  // header
+                4 +                     // row index
+                4 +                     // num cols
                 4 * colVals.length +    // col indexes
-                2 * colVals.length      // col values
-        );
+                2 * colVals.length;     // col values
+        buffer = ByteBuffer.allocate(numBytes);
         createViewBuffers(colVals.length);
 
         headerBuffer.put(0, HEADER);
@@ -101,6 +122,41 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
         valBuffer = buffer.asShortBuffer();
     }
 
+    public void createCompressedBuffer(int rowIndex, int colIds[], short colVals[]) {
+        assert(colIds.length == colVals.length);
+
+        byte encoded[] = new byte[5 * colIds.length];
+        int idBytes = 0;
+        int prev = 0;
+        for (int id : colIds) {
+            int delta = id - prev;
+            int v = (delta << 1) ^ (delta >> 31);   // zigzag
+            while ((v & ~0x7F) != 0) {
+                encoded[idBytes++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            encoded[idBytes++] = (byte) v;
+            prev = id;
+        }
+
+        numBytes = 4 +                  // header
+                4 +                     // row index
+                4 +                     // num cols
+                4 +                     // num bytes in encoded col indexes
+                idBytes +               // encoded col indexes
+                2 * colVals.length;     // col values
+        buffer = ByteBuffer.allocate(numBytes);
+        buffer.putInt(COMPRESSED_HEADER);
+        buffer.putInt(rowIndex);
+        buffer.putInt(colIds.length);
+        buffer.putInt(idBytes);
+        buffer.put(encoded, 0, idBytes);
+        valBuffer = buffer.slice().asShortBuffer();
+        valBuffer.put(colVals, 0, colVals.length);
+        headerBuffer = IntBuffer.wrap(new int[] { COMPRESSED_HEADER, rowIndex, colIds.length });
+        idBuffer = IntBuffer.wrap(Arrays.copyOf(colIds, colIds.length));
+    }
+
     /**
      * Wrap an existing byte buffer that contains a row.
      * @param buffer
@@ -108,10 +164,42 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public SparseMatrixRow(ValueConf vconf, ByteBuffer buffer) {
         this.vconf = vconf;
         this.buffer = buffer;
-        if (this.buffer.getInt(0) != HEADER) {
+        int header = this.buffer.getInt(0);
+        if (header == HEADER) {
+            int numCols = buffer.getInt(8);
+            numBytes = 12 + 6 * numCols;
+            createViewBuffers(numCols);
+        } else if (header == COMPRESSED_HEADER) {
+            wrapCompressedBuffer();
+        } else {
             throw new IllegalArgumentException("Invalid header in byte buffer");
         }
-        createViewBuffers(buffer.getInt(8));
+    }
+
+    private void wrapCompressedBuffer() {
+        int numCols = buffer.getInt(8);
+        int idBytes = buffer.getInt(12);
+        numBytes = 16 + idBytes + 2 * numCols;
+
+        int ids[] = new int[numCols];
+        int pos = 16;
+        int prev = 0;
+        for (int i = 0; i < numCols; i++) {
+            int b = buffer.get(pos++);
+            int v = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = buffer.get(pos++);
+                v |= (b & 0x7F) << shift;
+            }
+            prev += (v >>> 1) ^ -(v & 1);
+            ids[i] = prev;
+        }
+
+        headerBuffer = IntBuffer.wrap(new int[] { COMPRESSED_HEADER, buffer.getInt(4), numCols });
+        idBuffer = IntBuffer.wrap(ids);
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos);
+        valBuffer = view.slice().asShortBuffer();
     }
 
     @Override
@@ -142,6 +230,35 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
         return buffer;
     }
 
+    /**
+     * @return The number of bytes at the start of the buffer that are used by the row.
+     * The buffer may extend beyond the row if it wraps a memory mapped file.
+     */
+    public int getNumBytes() {
+        return numBytes;
+    }
+
+    public boolean isCompressed() {
+        return buffer.getInt(0) == COMPRESSED_HEADER;
+    }
+
+    /**
+     * @return The row in the requested format, either this row or a converted copy.
+     */
+    public SparseMatrixRow toFormat(boolean compressed) {
+        if (compressed == isCompressed()) {
+            return this;
+        }
+        int n = getNumCols();
+        int ids[] = new int[n];
+        short vals[] = new short[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = getColIndex(i);
+            vals[i] = getPackedColValue(i);
+        }
+        return new SparseMatrixRow(vconf, getRowIndex(), ids, vals, compressed);
+    }
+
     public ValueConf getValueConf() {
         return vconf;
     }
@@ -3,25 +3,42 @@ package org.wikibrain.matrix;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TShortArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.set.hash.TIntHashSet;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.Map;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
+/**
+ * Transposes a sparse matrix using an external sort.
+ *
+ * The source matrix is read exactly once. Each cell is buffered as a (col, row, value)
+ * triple in primitive arrays, and full buffers are sorted and spilled to disk as runs on a
+ * background thread while the next buffer fills. The runs are then merged in parallel:
+ * the column ids are split into ranges with roughly equal numbers of cells, and each range
+ * is merged by a separate thread that reads only its section of every run.
+ *
+ * Memory use is bounded by bufferMb for the cell buffers, plus a small read buffer per run
+ * for each merge thread.
+ */
 public class SparseMatrixTransposer {
     final static Logger LOG = Logger.getLogger(SparseMatrixTransposer.class.getName());
 
+    /**
+     * Bytes used by a buffered or spilled cell: column id, row id, and packed value.
+     */
+    private static final int BYTES_PER_CELL = 4 + 4 + 2;
+
+    private static final int MIN_READ_BUFFER = 4 * 1024;
+    private static final int MAX_READ_BUFFER = 256 * 1024;
+
     private SparseMatrixWriter writer;
     private SparseMatrix matrix;
-    private int colIds[];
     private TIntIntHashMap colCounts = new TIntIntHashMap();
     private int bufferMb;
-    private int numColsTransposed = 0;
+    private int numThreads;
+    private List<File> runs = new ArrayList<File>();
+    private long numCells = 0;
 
 
     public SparseMatrixTransposer(SparseMatrix m, File f) throws IOException {
@@ -29,111 +46,384 @@ public class SparseMatrixTransposer {
     }
 
     public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb) throws IOException {
+        this(m, f, bufferMb, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb, int numThreads) throws IOException {
         this.matrix = m;
         this.writer = new SparseMatrixWriter(f, m.getValueConf());
         this.bufferMb = bufferMb;
-        this.numColsTransposed = 0;
+        this.numThreads = Math.max(1, numThreads);
     }
 
     public void transpose() throws IOException {
-        countCellsPerColumn();
-        while (numColsTransposed < colIds.length) {
-            Map<Integer, RowAccumulator> batch = accumulateBatch();
-            writeBatch(batch.values());
+        long t1 = System.currentTimeMillis();
+        try {
+            spillRuns();
+            long t2 = System.currentTimeMillis();
+            LOG.info("pass 1 of 1 over source matrix read " + numCells + " cells in " +
+                    matrix.getNumRows() + " rows and spilled " + runs.size() + " sorted runs in " +
+                    (t2 - t1) / 1000.0 + " seconds");
+            mergeRuns();
+            long t3 = System.currentTimeMillis();
+            LOG.info("merged " + runs.size() + " runs into " + colCounts.size() + " rows with " +
+                    numThreads + " threads in " + (t3 - t2) / 1000.0 + " seconds");
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
         }
         this.writer.finish();
+        LOG.info("transposed matrix in " + (System.currentTimeMillis() - t1) / 1000.0 +
+                " seconds using 1 pass over the source matrix");
     }
 
-    private void countCellsPerColumn() throws IOException {
-        for (int id : matrix.getRowIds()) {
-            MatrixRow row = matrix.getRow(id);
-            for (int i = 0; i < row.getNumCols(); i++) {
-                colCounts.adjustOrPutValue(row.getColIndex(i), 1, 1);
+    /**
+     * Reads the source matrix once, spilling sorted runs of cells to disk.
+     * Runs are sorted and written on a background thread while the next buffer fills.
+     */
+    private void spillRuns() throws IOException {
+        // two buffers are live at once: one filling and one spilling
+        long capacity = bufferMb * 1024L * 1024L / 2 / BYTES_PER_CELL;
+        capacity = Math.max(1024, Math.min(Integer.MAX_VALUE - 8, capacity));
+
+        ExecutorService spiller = Executors.newSingleThreadExecutor();
+        try {
+            CellBuffer filling = new CellBuffer((int) capacity);
+            CellBuffer spilling = null;
+            Future<File> pending = null;
+
+            for (SparseMatrixRow row : matrix) {
+                int rowId = row.getRowIndex();
+                for (int i = 0; i < row.getNumCols(); i++) {
+                    if (filling.isFull()) {
+                        waitForRun(pending);
+                        pending = spiller.submit(new RunSpiller(filling));
+                        CellBuffer free = spilling;
+                        spilling = filling;
+                        filling = (free == null) ? new CellBuffer((int) capacity) : free;
+                        filling.clear();
+                    }
+                    int colId = row.getColIndex(i);
+                    filling.add(colId, rowId, row.getPackedColValue(i));
+                    colCounts.adjustOrPutValue(colId, 1, 1);
+                    numCells++;
+                }
+            }
+            waitForRun(pending);
+            if (filling.size() > 0) {
+                waitForRun(spiller.submit(new RunSpiller(filling)));
             }
+        } finally {
+            spiller.shutdown();
         }
+    }
 
-        colIds = colCounts.keys();
-        LOG.info("found " + colIds.length + " unique column ids in matrix");
+    private void waitForRun(Future<File> pending) throws IOException {
+        if (pending != null) {
+            runs.add(get(pending));
+        }
+    }
+
+    /**
+     * Merges the runs in parallel, one range of column ids per task.
+     */
+    private void mergeRuns() throws IOException {
+        int colIds[] = colCounts.keys();
         Arrays.sort(colIds);
+        LOG.info("found " + colIds.length + " unique column ids in matrix");
+        if (colIds.length == 0) {
+            return;
+        }
+
+        // split the columns into ranges with roughly equal numbers of cells
+        int numRanges = Math.min(numThreads, colIds.length);
+        List<int[]> ranges = new ArrayList<int[]>();
+        long cellsPerRange = numCells / numRanges + 1;
+        long cellsInRange = 0;
+        int rangeStart = 0;
+        for (int i = 0; i < colIds.length; i++) {
+            cellsInRange += colCounts.get(colIds[i]);
+            if (cellsInRange >= cellsPerRange || i == colIds.length - 1) {
+                ranges.add(new int[] { colIds[rangeStart], colIds[i] });
+                rangeStart = i + 1;
+                cellsInRange = 0;
+            }
+        }
+
+        int readBufferSize = (int) (bufferMb * 1024L * 1024L / Math.max(1, runs.size() * ranges.size()));
+        readBufferSize = Math.max(MIN_READ_BUFFER, Math.min(MAX_READ_BUFFER, readBufferSize));
+
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int range[] : ranges) {
+                results.add(exec.submit(new RangeMerger(range[0], range[1], readBufferSize)));
+            }
+            for (Future<Void> f : results) {
+                get(f);
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sorts a buffer of cells and writes it to a temporary file.
+     */
+    private class RunSpiller implements Callable<File> {
+        private final CellBuffer buffer;
+
+        RunSpiller(CellBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public File call() throws IOException {
+            buffer.sort();
+            File file = File.createTempFile("transpose-run", null);
+            file.deleteOnExit();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), MAX_READ_BUFFER));
+            try {
+                for (int i = 0; i < buffer.size(); i++) {
+                    long key = buffer.keys[i];
+                    out.writeInt((int) (key >> 32));
+                    out.writeInt((int) key);
+                    out.writeShort(buffer.vals[i]);
+                }
+            } finally {
+                out.close();
+            }
+            return file;
+        }
     }
 
-    protected Map<Integer, RowAccumulator> accumulateBatch() {
-        Map<Integer, RowAccumulator> transposedBatch = new LinkedHashMap<Integer, RowAccumulator>();
-
-        // figure out which columns we are tracking
-        double mbs = 0;
-        TIntHashSet colIdsInBatch = new TIntHashSet();
-        for (int i = numColsTransposed; i  < colIds.length; i++) {
-            int colId = colIds[i];
-            int colSize = colCounts.get(colId);
-            double rowMbs = getSizeInMbOfRowDataStructure(colSize);
-            if (mbs + rowMbs > bufferMb) {
-                break;
-            }
-            colIdsInBatch.add(colId);
-            mbs += rowMbs;
-        }
-        numColsTransposed += colIdsInBatch.size();
-        LOG.info("processing " + colIdsInBatch.size() + " columns in batch (total=" + numColsTransposed + " of " + colCounts.size() + ")");
-
-        for (SparseMatrixRow row : matrix) {
-            int rowId = row.getRowIndex();
-            for (int i = 0; i < row.getNumCols(); i++) {
-                int colId = row.getColIndex(i);
-                if (!colIdsInBatch.contains(colId)) {
-                    continue;
+    /**
+     * Merges the sections of all runs that contain columns in [minColId, maxColId]
+     * and writes the resulting transposed rows.
+     */
+    private class RangeMerger implements Callable<Void> {
+        private final int minColId;
+        private final int maxColId;
+        private final int readBufferSize;
+
+        RangeMerger(int minColId, int maxColId, int readBufferSize) {
+            this.minColId = minColId;
+            this.maxColId = maxColId;
+            this.readBufferSize = readBufferSize;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+            try {
+                for (File run : runs) {
+                    RunReader reader = new RunReader(run, minColId, maxColId, readBufferSize);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
                 }
-                short colValue = row.getPackedColValue(i);
-                if (!transposedBatch.containsKey(colId)) {
-                    transposedBatch.put(colId, new RowAccumulator(colId));
+
+                TIntArrayList rowIds = new TIntArrayList();
+                TShortArrayList vals = new TShortArrayList();
+                int colId = minColId;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    if (reader.colId != colId && !rowIds.isEmpty()) {
+                        writeRow(colId, rowIds, vals);
+                    }
+                    colId = reader.colId;
+                    rowIds.add(reader.rowId);
+                    vals.add(reader.val);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                if (!rowIds.isEmpty()) {
+                    writeRow(colId, rowIds, vals);
+                }
+            } finally {
+                for (RunReader reader : queue) {
+                    reader.close();
                 }
-                transposedBatch.get(colId).addCol(rowId, colValue);
             }
+            return null;
         }
 
-        for (int id : transposedBatch.keySet()) {
-            if (colCounts.get(id) != transposedBatch.get(id).size()) {
+        private void writeRow(int colId, TIntArrayList rowIds, TShortArrayList vals) throws IOException {
+            if (colCounts.get(colId) != rowIds.size()) {
                 throw new IllegalArgumentException("row size unexpected!");
             }
+            writer.writeRow(new SparseMatrixRow(matrix.getValueConf(), colId, rowIds.toArray(), vals.toArray()));
+            rowIds.resetQuick();
+            vals.resetQuick();
         }
-
-        return transposedBatch;
     }
 
-    protected void writeBatch(Collection<RowAccumulator> batch) throws IOException {
-        for (RowAccumulator ra: batch) {
-            writer.writeRow(ra.toRow(matrix.getValueConf()));
+    /**
+     * Reads the cells of a run whose column ids fall in a particular range.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private long remaining;
+        int colId;
+        int rowId;
+        short val;
+
+        RunReader(File run, int minColId, int maxColId, int bufferSize) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(run, "r");
+            long numRecords = raf.length() / BYTES_PER_CELL;
+            long begin = findFirstRecord(raf, numRecords, minColId);
+            long end = (maxColId == Integer.MAX_VALUE) ? numRecords : findFirstRecord(raf, numRecords, maxColId + 1);
+            raf.seek(begin * BYTES_PER_CELL);
+            this.remaining = end - begin;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), bufferSize) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    raf.close();
+                }
+            });
+        }
+
+        /**
+         * Returns the index of the first record with a column id >= colId.
+         */
+        private static long findFirstRecord(RandomAccessFile raf, long numRecords, int colId) throws IOException {
+            long lo = 0;
+            long hi = numRecords;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                raf.seek(mid * BYTES_PER_CELL);
+                if (raf.readInt() < colId) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining <= 0) {
+                return false;
+            }
+            colId = in.readInt();
+            rowId = in.readInt();
+            val = in.readShort();
+            remaining--;
+            return true;
         }
-    }
 
-    private static final int BYTES_PER_REF =
-            Integer.valueOf(System.getProperty("sun.arch.data.model")) / 8;
-    private static final int BYTES_PER_OBJECT = 40;     // an estimate at overhead
-
-    private double getSizeInMbOfRowDataStructure(int numEntries) {
-        return (
-            // row accumulator object itself
-            BYTES_PER_OBJECT + 4 + 2 * BYTES_PER_REF +
-            // ids and values in accumulator
-            numEntries * (4 + 2)
-        ) / (1024.0 * 1024.0);
+        void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public int compareTo(RunReader that) {
+            if (colId != that.colId) {
+                return colId < that.colId ? -1 : 1;
+            } else if (rowId != that.rowId) {
+                return rowId < that.rowId ? -1 : 1;
+            } else {
+                return 0;
+            }
+        }
     }
 
-    private static class RowAccumulator {
-        int id;
-        TIntArrayList colIds = new TIntArrayList();
-        TShortArrayList colVals = new TShortArrayList();
-        RowAccumulator(int id) {
-            this.id = id;
+    /**
+     * A buffer of cells stored in parallel primitive arrays.
+     * Each key packs the column id in the high 32 bits and the row id in the low 32 bits.
+     */
+    static class CellBuffer {
+        final long keys[];
+        final short vals[];
+        private int size = 0;
+
+        CellBuffer(int capacity) {
+            keys = new long[capacity];
+            vals = new short[capacity];
+        }
+
+        void add(int colId, int rowId, short val) {
+            keys[size] = ((long) colId << 32) | (rowId & 0xFFFFFFFFL);
+            vals[size] = val;
+            size++;
+        }
+
+        boolean isFull() { return size == keys.length; }
+        int size() { return size; }
+        void clear() { size = 0; }
+
+        /**
+         * Sorts the cells by column id, then by row id.
+         * The row id is stored unsigned, so it is flipped to sort negative ids first.
+         */
+        void sort() {
+            for (int i = 0; i < size; i++) {
+                keys[i] ^= 0x80000000L;
+            }
+            sort(0, size - 1);
+            for (int i = 0; i < size; i++) {
+                keys[i] ^= 0x80000000L;
+            }
         }
-        SparseMatrixRow toRow(ValueConf vconf) {
-            return new SparseMatrixRow(vconf, id, colIds.toArray(), colVals.toArray());
+
+        private void sort(int lo, int hi) {
+            while (hi - lo > 16) {
+                // median of three pivot
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < keys[lo]) swap(mid, lo);
+                if (keys[hi] < keys[lo]) swap(hi, lo);
+                if (keys[hi] < keys[mid]) swap(hi, mid);
+                long pivot = keys[mid];
+
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (keys[i] < pivot) i++;
+                    while (keys[j] > pivot) j--;
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // recurse into the smaller half to bound the stack depth
+                if (j - lo < hi - i) {
+                    sort(lo, j);
+                    lo = i;
+                } else {
+                    sort(i, hi);
+                    hi = j;
+                }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                for (int j = i; j > lo && keys[j] < keys[j - 1]; j--) {
+                    swap(j, j - 1);
+                }
+            }
         }
-        void addCol(int id, short val) {
-            this.colIds.add(id);
-            this.colVals.add(val);
+
+        private void swap(int i, int j) {
+            long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+            short v = vals[i]; vals[i] = vals[j]; vals[j] = v;
         }
-        int size() { return this.colIds.size(); }
     }
 
     /**
@@ -1,7 +1,7 @@
 package org.wikibrain.matrix;
 
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.list.array.TLongArrayList;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
@@ -18,17 +18,32 @@ public class SparseMatrixWriter {
     private static final Logger LOG = Logger.getLogger(SparseMatrixWriter.class.getName());
 
     private File path;
-    private TIntLongHashMap rowOffsets = new TIntLongHashMap();
+    private TLongArrayList rowOffsets = new TLongArrayList();
     private TIntArrayList rowIndexes = new TIntArrayList();
     private File bodyPath;
     private BufferedOutputStream body;
     private long bodyOffset = 0;
+    private int maxRowBytes = 0;
     private ValueConf vconf;
+    private boolean compressRows;
 
     public SparseMatrixWriter(File path, ValueConf conf) throws IOException {
+        this(path, conf, false);
+    }
+
+    /**
+     * Creates a new writer.
+     * @param path
+     * @param conf
+     * @param compressRows If true, rows are written in the compressed format (see SparseMatrixRow).
+     *                     Compressed rows are smallest when their column ids are sorted.
+     * @throws IOException
+     */
+    public SparseMatrixWriter(File path, ValueConf conf, boolean compressRows) throws IOException {
         this.path = path;
         this.vconf = conf;
-        info("writing matrix to " + path);
+        this.compressRows = compressRows;
+        info("writing matrix to " + path + (compressRows ? " with compressed rows" : ""));
 
         // write tmp matrix file
         this.bodyPath = File.createTempFile("matrix", null);
@@ -42,18 +57,21 @@ public class SparseMatrixWriter {
         if (!row.getValueConf().almostEquals(vconf)) {
             throw new IllegalArgumentException("Value conf for row does not match the writer's value conf");
         }
-        row.getBuffer().rewind();
-        byte[] bytes = new byte[row.getBuffer().remaining()];
-        row.getBuffer().get(bytes, 0, bytes.length);
+        row = row.toFormat(compressRows);
+        ByteBuffer buffer = row.getBuffer().duplicate();
+        buffer.position(0);
+        byte[] bytes = new byte[row.getNumBytes()];
+        buffer.get(bytes, 0, bytes.length);
 
-        rowOffsets.put(row.getRowIndex(), bodyOffset);
+        rowOffsets.add(bodyOffset);
         rowIndexes.add(row.getRowIndex());
+        maxRowBytes = Math.max(maxRowBytes, bytes.length);
 
         body.write(bytes);
         bodyOffset += bytes.length;
 
-        // pad rows to 8 byte offsets to speed things up.
-        while (bodyOffset % 8 != 0) {
+        // pad uncompressed rows to 8 byte offsets to speed things up.
+        while (!compressRows && bodyOffset % 8 != 0) {
             bodyOffset++;
             body.write(ROW_PADDING);
         }
@@ -65,18 +83,21 @@ public class SparseMatrixWriter {
 
         // write offset file
         info("generating header");
-        int sizeHeader = 16 + rowOffsets.size() * 12;
-        body = new BufferedOutputStream(new FileOutputStream(path));
-        body.write(intToBytes(SparseMatrix.FILE_HEADER));
-        body.write(floatToBytes(vconf.minScore));
-        body.write(floatToBytes(vconf.maxScore));
-        body.write(intToBytes(rowOffsets.size()));
-        for (int i = 0; i < rowIndexes.size(); i++) {
-            int rowIndex = rowIndexes.get(i);
-            long rowOffset = rowOffsets.get(rowIndex);
-            body.write(intToBytes(rowIndex));
-            body.write(longToBytes(rowOffset + sizeHeader));
+        int numRows = rowIndexes.size();
+        long sizeHeader = SparseMatrix.HEADER_V2_SIZE + MappedRowIndex.sizeInBytes(numRows);
+        long offsets[] = rowOffsets.toArray();
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] += sizeHeader;
         }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        out.writeInt(SparseMatrix.FILE_HEADER_V2);
+        out.writeFloat(vconf.minScore);
+        out.writeFloat(vconf.maxScore);
+        out.writeInt(numRows);
+        out.writeInt(maxRowBytes);
+        out.writeInt(0);    // padding to align the row index
+        MappedRowIndex.write(out, rowIndexes.toArray(), offsets);
+        body = new BufferedOutputStream(out);
 
         InputStream r = new FileInputStream(bodyPath);
 
@@ -97,7 +118,10 @@ public class SparseMatrixWriter {
         write(file, rows, new ValueConf());
     }
     public static void write(File file, Iterator<SparseMatrixRow> rows, ValueConf vconf) throws IOException {
-        SparseMatrixWriter w = new SparseMatrixWriter(file, vconf);
+        write(file, rows, vconf, false);
+    }
+    public static void write(File file, Iterator<SparseMatrixRow> rows, ValueConf vconf, boolean compressRows) throws IOException {
+        SparseMatrixWriter w = new SparseMatrixWriter(file, vconf, compressRows);
         while (rows.hasNext()) {
             w.writeRow(rows.next());
         }
@@ -107,15 +131,4 @@ public class SparseMatrixWriter {
     public ValueConf getValueConf() {
         return vconf;
     }
-
-    private static byte[] intToBytes(int i) {
-        return ByteBuffer.allocate(4).putInt(i).array();
-    }
-
-    private static byte[] longToBytes(long i) {
-        return ByteBuffer.allocate(8).putLong(i).array();
-    }
-    private static byte[] floatToBytes(float f) {
-        return ByteBuffer.allocate(4).putFloat(f).array();
-    }
 }
@@ -0,0 +1,91 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the file size and full scan speed of matrices with uncompressed and compressed rows.
+ *
+ * Usage: BenchmarkCompressedSparseMatrix [matrix_path]
+ * If a matrix is specified, it is rewritten in both formats.
+ * Otherwise a synthetic matrix with sorted column ids is generated.
+ */
+public class BenchmarkCompressedSparseMatrix {
+    public static int NUM_ROWS = 200000;
+    public static int MAX_COLS = 500;
+    public static int MAX_COL_ID = 5000000;
+    public static int NUM_SCANS = 5;
+
+    public static void main(String args[]) throws IOException {
+        File plain = File.createTempFile("matrix", null);
+        File compressed = File.createTempFile("matrix", null);
+        plain.deleteOnExit();
+        compressed.deleteOnExit();
+
+        if (args.length > 0) {
+            SparseMatrix src = new SparseMatrix(new File(args[0]));
+            SparseMatrixWriter.write(plain, src.iterator(), src.getValueConf(), false);
+            SparseMatrixWriter.write(compressed, src.iterator(), src.getValueConf(), true);
+            src.close();
+        } else {
+            writeSynthetic(plain, false);
+            writeSynthetic(compressed, true);
+        }
+
+        System.err.println("uncompressed size: " + FileUtils.sizeOf(plain));
+        System.err.println("compressed size: " + FileUtils.sizeOf(compressed));
+
+        for (File file : new File[] { plain, compressed }) {
+            SparseMatrix m = new SparseMatrix(file);
+            scan(m);    // warm up
+            long t1 = System.currentTimeMillis();
+            long cells = 0;
+            for (int i = 0; i < NUM_SCANS; i++) {
+                cells += scan(m);
+            }
+            long t2 = System.currentTimeMillis();
+            System.err.println((file == plain ? "uncompressed" : "compressed") +
+                    " scan: " + (1000.0 * cells / (t2 - t1)) + " cells per second");
+            m.close();
+        }
+    }
+
+    private static long scan(SparseMatrix m) {
+        long cells = 0;
+        double sum = 0.0;
+        for (SparseMatrixRow row : m) {
+            for (int i = 0; i < row.getNumCols(); i++) {
+                sum += row.getColIndex(i) * row.getColValue(i);
+            }
+            cells += row.getNumCols();
+        }
+        if (sum == 42.0) System.err.println("unlikely!");
+        return cells;
+    }
+
+    private static void writeSynthetic(File file, boolean compressRows) throws IOException {
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf, compressRows);
+        for (int id = 1; id <= NUM_ROWS; id++) {
+            TIntHashSet picked = new TIntHashSet();
+            int n = 1 + random.nextInt(MAX_COLS);
+            while (picked.size() < n) {
+                picked.add(1 + random.nextInt(MAX_COL_ID));
+            }
+            int colIds[] = picked.toArray();
+            Arrays.sort(colIds);
+            float vals[] = new float[n];
+            for (int i = 0; i < n; i++) {
+                vals[i] = random.nextFloat();
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, id, colIds, vals));
+        }
+        writer.finish();
+    }
+}
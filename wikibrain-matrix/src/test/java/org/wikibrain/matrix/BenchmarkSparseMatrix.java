@@ -0,0 +1,74 @@
+package org.wikibrain.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput of random SparseMatrix.getRow calls across different thread counts.
+ *
+ * Usage: BenchmarkSparseMatrix [matrix_path]
+ * If no matrix is specified, a synthetic matrix is generated.
+ */
+public class BenchmarkSparseMatrix {
+    public static int NUM_ROWS = 200000;
+    public static int MAX_COLS = 200;
+    public static int READS_PER_THREAD = 2000000;
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        final SparseMatrix matrix;
+        if (args.length > 0) {
+            matrix = new SparseMatrix(new File(args[0]));
+        } else {
+            System.err.println("generating synthetic matrix with " + NUM_ROWS + " rows");
+            matrix = TestUtils.createSparseTestMatrix(NUM_ROWS, MAX_COLS, false);
+        }
+        final int rowIds[] = matrix.getRowIds();
+
+        // warm up
+        readRandomRows(matrix, rowIds, READS_PER_THREAD);
+
+        int maxThreads = Math.max(32, Runtime.getRuntime().availableProcessors());
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < numThreads; i++) {
+                threads.add(new Thread() {
+                    public void run() {
+                        try {
+                            readRandomRows(matrix, rowIds, READS_PER_THREAD);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+            long t1 = System.currentTimeMillis();
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            long t2 = System.currentTimeMillis();
+            long total = 1L * numThreads * READS_PER_THREAD;
+            System.err.println("threads=" + numThreads +
+                    ", rows per second=" + (1000.0 * total / (t2 - t1)) +
+                    ", rows per second per thread=" + (1000.0 * total / (t2 - t1) / numThreads));
+        }
+        matrix.close();
+    }
+
+    private static double readRandomRows(SparseMatrix matrix, int rowIds[], int n) throws IOException {
+        Random random = new Random();
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            SparseMatrixRow row = matrix.getRow(rowIds[random.nextInt(rowIds.length)]);
+            if (row.getNumCols() > 0) {
+                sum += row.getColValue(0);
+            }
+        }
+        return sum;
+    }
+}
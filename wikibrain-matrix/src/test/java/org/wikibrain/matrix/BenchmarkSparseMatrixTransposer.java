@@ -0,0 +1,67 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times the transposition of a synthetic matrix whose column ids follow a power law,
+ * like the link and ESA matrices where a few popular pages appear in many rows.
+ *
+ * Usage: BenchmarkSparseMatrixTransposer [buffer_in_MBs]
+ */
+public class BenchmarkSparseMatrixTransposer {
+    public static int NUM_ROWS = 500000;
+    public static int NUM_COLS = 2000000;
+    public static int MAX_ROW_LENGTH = 1000;
+    public static double EXPONENT = 3.0;
+
+    public static void main(String args[]) throws IOException {
+        int bufferMb = (args.length > 0) ? Integer.valueOf(args[0]) : 50;
+
+        File src = File.createTempFile("matrix", null);
+        File dest = File.createTempFile("matrix", null);
+        src.deleteOnExit();
+        dest.deleteOnExit();
+        writePowerLawMatrix(src);
+        SparseMatrix matrix = new SparseMatrix(src);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            long t1 = System.currentTimeMillis();
+            new SparseMatrixTransposer(matrix, dest, bufferMb, numThreads).transpose();
+            long t2 = System.currentTimeMillis();
+            System.err.println("threads=" + numThreads + ", bufferMb=" + bufferMb +
+                    ", transpose time=" + (t2 - t1) / 1000.0 + " seconds");
+        }
+        matrix.close();
+    }
+
+    /**
+     * Row lengths and column ids are both skewed towards small values.
+     */
+    private static void writePowerLawMatrix(File file) throws IOException {
+        Random random = new Random(0);
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+        long cells = 0;
+        for (int id = 1; id <= NUM_ROWS; id++) {
+            int n = 1 + (int) (MAX_ROW_LENGTH * Math.pow(random.nextDouble(), EXPONENT));
+            TIntHashSet picked = new TIntHashSet();
+            while (picked.size() < n) {
+                picked.add(1 + (int) (NUM_COLS * Math.pow(random.nextDouble(), EXPONENT)));
+            }
+            int colIds[] = picked.toArray();
+            float vals[] = new float[n];
+            for (int i = 0; i < n; i++) {
+                vals[i] = random.nextFloat();
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, id, colIds, vals));
+            cells += n;
+        }
+        writer.finish();
+        System.err.println("wrote power law matrix with " + NUM_ROWS + " rows and " + cells + " cells");
+    }
+}
@@ -36,6 +36,28 @@ public class TestDenseMatrix {
         DenseMatrix m2 = new DenseMatrix(tmp);
     }
 
+    @Test
+    public void testRewriteMappedRows() throws IOException {
+        File tmp1 = File.createTempFile("matrix", null);
+        File tmp2 = File.createTempFile("matrix", null);
+        DenseMatrixWriter.write(tmp1, srcRows.iterator());
+        DenseMatrix m1 = new DenseMatrix(tmp1);
+
+        // mapped rows are slices that run to the end of their page
+        DenseMatrixWriter.write(tmp2, m1.iterator());
+        assertEquals(tmp1.length(), tmp2.length());
+        verifyIsSourceMatrix(new DenseMatrix(tmp2));
+    }
+
+    @Test
+    public void testLegacyFormat() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        TestUtils.writeLegacyDenseMatrix(tmp, srcRows);
+        DenseMatrix m = new DenseMatrix(tmp);
+        assertEquals(srcRows.size(), m.getNumRows());
+        verifyIsSourceMatrix(m);
+    }
+
     @Test
     public void testTranspose() throws IOException {
         for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
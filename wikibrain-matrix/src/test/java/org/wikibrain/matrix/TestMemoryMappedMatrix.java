@@ -0,0 +1,131 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.map.hash.TIntLongHashMap;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestMemoryMappedMatrix {
+    private static final int NUM_ROWS = 1000;
+
+    @Test
+    public void testSmallPages() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        tmp.deleteOnExit();
+        TIntLongHashMap offsets = writeRows(tmp);
+        for (int pageSize : new int[] { 64, 100, 1000, MemoryMappedMatrix.PAGE_SIZE }) {
+            FileChannel channel = new FileInputStream(tmp).getChannel();
+            MemoryMappedMatrix mmm = new MemoryMappedMatrix(tmp, channel, offsets, pageSize);
+            if (pageSize < 1000) {
+                assertTrue(mmm.buffers.size() > 100);
+            }
+            for (int id : offsets.keys()) {
+                verifyRow(id, mmm.getRow(id));
+            }
+            assertNull(mmm.getRow(-1));
+            mmm.close();
+        }
+    }
+
+    @Test
+    public void testSmallFixedPages() throws IOException {
+        List<SparseMatrixRow> rows = TestUtils.createSparseTestMatrixRows(NUM_ROWS, 50, false);
+        File tmp = File.createTempFile("matrix", null);
+        tmp.deleteOnExit();
+        SparseMatrixWriter.write(tmp, rows.iterator());
+        SparseMatrix matrix = new SparseMatrix(tmp);
+        FileChannel channel = new FileInputStream(tmp).getChannel();
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SparseMatrix.HEADER_V2_SIZE);
+        MappedRowIndex index = new MappedRowIndex(channel, SparseMatrix.HEADER_V2_SIZE, NUM_ROWS);
+        long bodyStart = SparseMatrix.HEADER_V2_SIZE + MappedRowIndex.sizeInBytes(NUM_ROWS);
+        MemoryMappedMatrix mmm = new MemoryMappedMatrix(tmp, channel, index, bodyStart, header.getInt(16), 1000);
+        assertTrue(mmm.buffers.size() > 10);
+        for (SparseMatrixRow row : rows) {
+            SparseMatrixRow row2 = new SparseMatrixRow(matrix.getValueConf(), mmm.getRow(row.getRowIndex()));
+            assertEquals(row.getRowIndex(), row2.getRowIndex());
+            assertEquals(row.getNumCols(), row2.getNumCols());
+            for (int i = 0; i < row.getNumCols(); i++) {
+                assertEquals(row.getColIndex(i), row2.getColIndex(i));
+                assertEquals(row.getPackedColValue(i), row2.getPackedColValue(i));
+            }
+        }
+        assertNull(mmm.getRow(-1));
+        mmm.close();
+        matrix.close();
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        File tmp = File.createTempFile("matrix", null);
+        tmp.deleteOnExit();
+        final TIntLongHashMap offsets = writeRows(tmp);
+        final MemoryMappedMatrix mmm = new MemoryMappedMatrix(
+                tmp, new FileInputStream(tmp).getChannel(), offsets, 1000);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    Random random = new Random();
+                    int ids[] = offsets.keys();
+                    for (int i = 0; i < 20000; i++) {
+                        int id = ids[random.nextInt(ids.length)];
+                        try {
+                            verifyRow(id, mmm.getRow(id));
+                        } catch (Throwable e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        mmm.close();
+    }
+
+    /**
+     * Writes rows of varying length, each containing its id followed by its length (in ints)
+     * and then the id repeated length times.
+     */
+    private TIntLongHashMap writeRows(File file) throws IOException {
+        TIntLongHashMap offsets = new TIntLongHashMap();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        long offset = 0;
+        for (int i = 0; i < NUM_ROWS; i++) {
+            int id = i * 3 + 1;
+            int len = i % 7;
+            offsets.put(id, offset);
+            out.writeInt(id);
+            out.writeInt(len);
+            for (int j = 0; j < len; j++) {
+                out.writeInt(id);
+            }
+            offset += 8 + 4 * len;
+        }
+        out.close();
+        return offsets;
+    }
+
+    private static void verifyRow(int id, ByteBuffer row) {
+        assertEquals(id, row.getInt(0));
+        int len = row.getInt(4);
+        for (int j = 0; j < len; j++) {
+            assertEquals(id, row.getInt(8 + 4 * j));
+        }
+    }
+}
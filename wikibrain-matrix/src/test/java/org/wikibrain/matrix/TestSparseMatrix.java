@@ -5,10 +5,13 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class TestSparseMatrix {
@@ -45,6 +48,54 @@ public class TestSparseMatrix {
         assertEquals(1000, m1.getNumRows());
     }
 
+    @Test
+    public void testLegacyFormat() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        TestUtils.writeLegacySparseMatrix(tmp, srcRows);
+        SparseMatrix m = new SparseMatrix(tmp);
+        assertEquals(srcRows.size(), m.getNumRows());
+        verifyIsSourceMatrix(m);
+        verifyRowOrder(m);
+    }
+
+    @Test
+    public void testMappedFormat() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        SparseMatrix m = new SparseMatrix(tmp);
+        assertEquals(srcRows.size(), m.getNumRows());
+        assertNull(m.getRow(-1));
+        assertNull(m.getRow(Integer.MAX_VALUE));
+        verifyIsSourceMatrix(m);
+        verifyRowOrder(m);
+    }
+
+    @Test
+    public void testCompressedRows() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        File tmp2 = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator(), new ValueConf(), true);
+        SparseMatrix m = new SparseMatrix(tmp);
+        assertEquals(srcRows.size(), m.getNumRows());
+        verifyIsSourceMatrix(m);
+        verifyRowOrder(m);
+
+        // rewriting rows from a mapped matrix should only copy the bytes in each row
+        SparseMatrixWriter.write(tmp2, m.iterator(), m.getValueConf(), false);
+        verifyIsSourceMatrix(new SparseMatrix(tmp2));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, new ArrayList<SparseMatrixRow>().iterator());
+        SparseMatrix m = new SparseMatrix(tmp);
+        assertEquals(0, m.getNumRows());
+        assertEquals(0, m.getRowIds().length);
+        assertNull(m.getRow(1));
+        assertFalse(m.iterator().hasNext());
+    }
+
     @Test
     public void testTranspose() throws IOException {
         for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
@@ -63,6 +114,21 @@ public class TestSparseMatrix {
     }
 
 
+    @Test
+    public void testTransposeThreads() throws IOException {
+        File tmp1 = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp1, srcRows.iterator());
+        SparseMatrix m = new SparseMatrix(tmp1);
+        for (int numThreads : new int[] { 1, 3, 8 }) {
+            File tmp2 = File.createTempFile("matrix", null);
+            File tmp3 = File.createTempFile("matrix", null);
+            new SparseMatrixTransposer(m, tmp2, 1, numThreads).transpose();
+            SparseMatrix m2 = new SparseMatrix(tmp2);
+            new SparseMatrixTransposer(m2, tmp3, 100, numThreads).transpose();
+            verifyIsSourceMatrixUnordered(new SparseMatrix(tmp3), .001);
+        }
+    }
+
     @Test
     public void testRows() throws IOException {
         for (int numOpenPages: new int[] { 1, Integer.MAX_VALUE}) {
@@ -86,6 +152,17 @@ public class TestSparseMatrix {
         }
     }
 
+    private void verifyRowOrder(SparseMatrix m) throws IOException {
+        int rowIds[] = m.getRowIds();
+        int i = 0;
+        for (SparseMatrixRow row : m) {
+            assertEquals(srcRows.get(i).getRowIndex(), rowIds[i]);
+            assertEquals(srcRows.get(i).getRowIndex(), row.getRowIndex());
+            i++;
+        }
+        assertEquals(srcRows.size(), i);
+    }
+
     private void verifyIsSourceMatrixUnordered(Matrix m, double delta) throws IOException {
         for (SparseMatrixRow srcRow : srcRows) {
             MatrixRow destRow = m.getRow(srcRow.getRowIndex());
@@ -2,9 +2,12 @@ package org.wikibrain.matrix;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class TestSparseMatrixRow {
     private int[] keys = new int[] { 9, 11, 3, 26, 54 };
@@ -30,6 +33,41 @@ public class TestSparseMatrixRow {
         }
     }
 
+    @Test
+    public void testCompressed() {
+        int ids[] = new int[] { 3, 9, 11, 26, 54, 1000000, -5, Integer.MAX_VALUE, Integer.MIN_VALUE, 0 };
+        short packed[] = new short[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            packed[i] = (short) (i * 1000 - 3000);
+        }
+        SparseMatrixRow row = new SparseMatrixRow(new ValueConf(), ROW_INDEX, ids, packed, true);
+        assertTrue(row.isCompressed());
+        verifyRow(row, ids, packed);
+
+        // wrap a copy of the buffer with trailing junk, as a memory mapped row would be
+        ByteBuffer bb = ByteBuffer.allocate(row.getNumBytes() + 20);
+        for (int i = 0; i < row.getNumBytes(); i++) {
+            bb.put(i, row.getBuffer().get(i));
+        }
+        SparseMatrixRow wrapped = new SparseMatrixRow(new ValueConf(), bb);
+        assertTrue(wrapped.isCompressed());
+        assertEquals(row.getNumBytes(), wrapped.getNumBytes());
+        verifyRow(wrapped, ids, packed);
+
+        SparseMatrixRow uncompressed = wrapped.toFormat(false);
+        assertFalse(uncompressed.isCompressed());
+        verifyRow(uncompressed, ids, packed);
+    }
+
+    private void verifyRow(SparseMatrixRow row, int ids[], short packed[]) {
+        assertEquals(ROW_INDEX, row.getRowIndex());
+        assertEquals(ids.length, row.getNumCols());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], row.getColIndex(i));
+            assertEquals(packed[i], row.getPackedColValue(i));
+        }
+    }
+
     public MatrixRow createRow() {
         LinkedHashMap<Integer, Float> m = new LinkedHashMap<Integer, Float>();
         assertEquals(keys.length, vals.length);
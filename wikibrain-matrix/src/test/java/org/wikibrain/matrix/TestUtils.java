@@ -2,8 +2,8 @@ package org.wikibrain.matrix;
 
 import gnu.trove.set.hash.TIntHashSet;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -165,4 +165,57 @@ public class TestUtils {
         }
         return picked.toArray();
     }
+
+    /**
+     * Writes rows in the legacy sparse matrix format, whose offsets are read into a hash map.
+     * @param file
+     * @param rows
+     * @throws IOException
+     */
+    public static void writeLegacySparseMatrix(File file, List<SparseMatrixRow> rows) throws IOException {
+        writeLegacyMatrix(file, SparseMatrix.FILE_HEADER, rows, null);
+    }
+
+    /**
+     * Writes rows in the legacy dense matrix format, whose offsets are read into a hash map.
+     * @param file
+     * @param rows
+     * @throws IOException
+     */
+    public static void writeLegacyDenseMatrix(File file, List<DenseMatrixRow> rows) throws IOException {
+        writeLegacyMatrix(file, DenseMatrix.FILE_HEADER, rows, rows.get(0).getColIds());
+    }
+
+    private static void writeLegacyMatrix(File file, int magic, List<? extends MatrixRow> rows, int colIds[]) throws IOException {
+        ValueConf vconf = new ValueConf();
+        long offset = 16 + 12 * rows.size() + (colIds == null ? 0 : 4 + 4 * colIds.length);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(magic);
+        out.writeFloat(vconf.minScore);
+        out.writeFloat(vconf.maxScore);
+        out.writeInt(rows.size());
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        for (MatrixRow row : rows) {
+            ByteBuffer buffer = (row instanceof SparseMatrixRow)
+                    ? ((SparseMatrixRow)row).getBuffer() : ((DenseMatrixRow)row).getBuffer();
+            byte bytes[] = new byte[buffer.capacity()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(i);
+            }
+            out.writeInt(row.getRowIndex());
+            out.writeLong(offset);
+            offset += bytes.length;
+            bodies.add(bytes);
+        }
+        if (colIds != null) {
+            out.writeInt(colIds.length);
+            for (int c : colIds) {
+                out.writeInt(c);
+            }
+        }
+        for (byte bytes[] : bodies) {
+            out.write(bytes);
+        }
+        out.close();
+    }
 }
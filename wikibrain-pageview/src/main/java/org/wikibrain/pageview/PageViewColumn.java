@@ -0,0 +1,263 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable, memory mapped column of page view counts for a span of hours.
+ *
+ * The file contains a header followed by little endian (page id, views) int pairs
+ * sorted by page id, so the views of one page are found by binary search and a
+ * whole column can be summed without any decoding. Counts that overflow an int
+ * are capped at Integer.MAX_VALUE.
+ */
+class PageViewColumn {
+    static final int FILE_HEADER = 0x9a9e0001;
+
+    /**
+     * Magic, num pages, num hours aggregated, padding.
+     */
+    static final int HEADER_SIZE = 16;
+
+    private final int size;
+    private final int numHours;
+    private final IntBuffer pairs;
+
+    PageViewColumn(File path) throws IOException {
+        FileChannel channel = new FileInputStream(path).getChannel();
+        try {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != FILE_HEADER) {
+                throw new IOException("invalid file header in " + path + ": " + buffer.getInt(0));
+            }
+            size = buffer.getInt(4);
+            numHours = buffer.getInt(8);
+            if (channel.size() != HEADER_SIZE + 8L * size) {
+                throw new IOException("expected " + size + " pages in " + path + " but found " + channel.size() + " bytes");
+            }
+            buffer.position(HEADER_SIZE);
+            pairs = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        } finally {
+            channel.close();    // the mapping remains valid
+        }
+    }
+
+    /**
+     * @return The number of pages with views.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of hours summed in the column.
+     */
+    int getNumHours() {
+        return numHours;
+    }
+
+    int getPageId(int i) {
+        return pairs.get(2 * i);
+    }
+
+    int getViews(int i) {
+        return pairs.get(2 * i + 1);
+    }
+
+    /**
+     * @return The views of the page, or 0 if it has none.
+     */
+    int getPageViews(int pageId) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = pairs.get(2 * mid);
+            if (id < pageId) {
+                lo = mid + 1;
+            } else if (id > pageId) {
+                hi = mid - 1;
+            } else {
+                return pairs.get(2 * mid + 1);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the views in the column to the views in the map.
+     */
+    void addTo(TIntIntMap views) {
+        for (int i = 0; i < size; i++) {
+            int n = pairs.get(2 * i + 1);
+            if (views.adjustOrPutValue(pairs.get(2 * i), n, n) < 0) {
+                views.put(pairs.get(2 * i), Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    static int add(int views1, int views2) {
+        long sum = (long) views1 + views2;
+        return (sum > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) sum;
+    }
+
+    /**
+     * Writes the views of one hour, skipping pages without views.
+     */
+    static void write(File path, TIntIntMap views) throws IOException {
+        int ids[] = views.keys();
+        Arrays.sort(ids);
+        Writer writer = new Writer(path, 1);
+        try {
+            for (int id : ids) {
+                writer.add(id, views.get(id));
+            }
+            writer.finish();
+        } finally {
+            writer.abort();
+        }
+    }
+
+    /**
+     * Writes the sum of several columns.
+     */
+    static void merge(File path, List<PageViewColumn> columns) throws IOException {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, columns.size()), new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor c1, Cursor c2) {
+                int id1 = c1.getPageId();
+                int id2 = c2.getPageId();
+                return (id1 < id2) ? -1 : (id1 > id2 ? 1 : 0);
+            }
+        });
+        int numHours = 0;
+        for (PageViewColumn column : columns) {
+            numHours += column.getNumHours();
+            if (column.size() > 0) {
+                queue.add(new Cursor(column));
+            }
+        }
+        Writer writer = new Writer(path, numHours);
+        try {
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                int id = cursor.getPageId();
+                int views = cursor.getViews();
+                while (!queue.isEmpty() && queue.peek().getPageId() == id) {
+                    Cursor other = queue.poll();
+                    views = add(views, other.getViews());
+                    if (other.advance()) {
+                        queue.add(other);
+                    }
+                }
+                writer.add(id, views);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            writer.finish();
+        } finally {
+            writer.abort();
+        }
+    }
+
+    private static class Cursor {
+        final PageViewColumn column;
+        int i = 0;
+
+        Cursor(PageViewColumn column) {
+            this.column = column;
+        }
+
+        int getPageId() {
+            return column.getPageId(i);
+        }
+
+        int getViews() {
+            return column.getViews(i);
+        }
+
+        boolean advance() {
+            return ++i < column.size();
+        }
+    }
+
+    /**
+     * Streams pairs, in increasing order of page id, to a temporary file that replaces the
+     * column when it is finished.
+     */
+    private static class Writer {
+        private final File path;
+        private final File tmp;
+        private final DataOutputStream output;
+        private final ByteBuffer pair = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        private final int numHours;
+        private int size = 0;
+        private int lastId = Integer.MIN_VALUE;
+        private boolean finished = false;
+
+        Writer(File path, int numHours) throws IOException {
+            this.path = path;
+            this.tmp = new File(path.getPath() + ".tmp");
+            this.numHours = numHours;
+            this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+            output.write(new byte[HEADER_SIZE]);     // rewritten by finish()
+        }
+
+        void add(int pageId, int views) throws IOException {
+            if (size > 0 && pageId <= lastId) {
+                throw new IllegalArgumentException("page ids must be added in increasing order");
+            }
+            if (views <= 0) {
+                return;
+            }
+            pair.clear();
+            pair.putInt(pageId).putInt(views);
+            output.write(pair.array());
+            lastId = pageId;
+            size++;
+        }
+
+        void finish() throws IOException {
+            output.close();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(FILE_HEADER);
+            header.putInt(size);
+            header.putInt(numHours);
+            header.putInt(0);
+            RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+            try {
+                file.write(header.array());
+            } finally {
+                file.close();
+            }
+            if (!tmp.renameTo(path)) {
+                FileUtils.deleteQuietly(path);
+                FileUtils.moveFile(tmp, path);
+            }
+            finished = true;
+        }
+
+        void abort() {
+            if (!finished) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.apache.commons.lang3.StringUtils;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses hourly page count files such as pagecounts-20140101-000000.gz, in which
+ * each line looks like "en Main_Page 42 1234567" (project, title, views, bytes).
+ *
+ * Lines are filtered by their project on raw bytes, so lines in unwanted languages
+ * are never decoded. The views of each distinct title are summed before the titles
+ * are resolved, together, against the page dao's in-memory title index.
+ *
+ * A single parser is shared by all threads and keeps counts of the work it has done.
+ */
+public class PageViewHourParser {
+    private static final byte SPACE = ' ';
+    private static final byte NEWLINE = '\n';
+
+    private final LocalPageDao pageDao;
+    private final Language langs[];
+    private final byte langCodes[][];
+
+    private final AtomicLong numFiles = new AtomicLong();
+    private final AtomicLong numBytes = new AtomicLong();
+    private final AtomicLong numLines = new AtomicLong();
+    private final AtomicLong numMatched = new AtomicLong();
+    private final AtomicLong numTitles = new AtomicLong();
+    private final AtomicLong numResolved = new AtomicLong();
+
+    public PageViewHourParser(LanguageSet langs, LocalPageDao pageDao) throws DaoException {
+        this.pageDao = pageDao;
+        this.langs = langs.getLanguages().toArray(new Language[0]);
+        this.langCodes = new byte[this.langs.length][];
+        for (int i = 0; i < this.langs.length; i++) {
+            langCodes[i] = toBytes(this.langs[i].getLangCode());
+        }
+        // build the dao's title index once, before parser threads need it
+        if (pageDao instanceof LocalPageSqlDao) {
+            for (Language lang : this.langs) {
+                ((LocalPageSqlDao) pageDao).ensureTitleIndex(lang);
+            }
+        }
+    }
+
+    /**
+     * @param file An hourly page count file, possibly compressed.
+     * @return The views of each page in each language. Every language is included,
+     * and titles that do not resolve to a page are dropped.
+     */
+    public Map<Language, TIntIntMap> parse(File file) throws IOException, DaoException {
+        Map<Language, TObjectIntMap<String>> titleViews = new LinkedHashMap<Language, TObjectIntMap<String>>();
+        TObjectIntMap<String> byLang[] = new TObjectIntMap[langs.length];
+        for (int i = 0; i < langs.length; i++) {
+            byLang[i] = new TObjectIntHashMap<String>();
+            titleViews.put(langs[i], byLang[i]);
+        }
+
+        long lines = 0;
+        long matched = 0;
+        long bytes = 0;
+        InputStream in = WpIOUtils.openInputStream(file);
+        try {
+            byte buffer[] = new byte[1024 * 1024];
+            int length = 0;     // bytes in buffer
+            while (true) {
+                int n = in.read(buffer, length, buffer.length - length);
+                if (n < 0) {
+                    break;
+                }
+                bytes += n;
+                length += n;
+                int start = 0;
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] == NEWLINE) {
+                        lines++;
+                        if (parseLine(buffer, start, i, byLang)) {
+                            matched++;
+                        }
+                        start = i + 1;
+                    }
+                }
+                // keep the partial last line, growing the buffer for very long lines
+                System.arraycopy(buffer, start, buffer, 0, length - start);
+                length -= start;
+                if (length == buffer.length) {
+                    byte larger[] = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+            }
+            if (length > 0) {
+                lines++;
+                if (parseLine(buffer, 0, length, byLang)) {
+                    matched++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        Map<Language, TIntIntMap> views = new HashMap<Language, TIntIntMap>();
+        for (Language lang : titleViews.keySet()) {
+            views.put(lang, resolve(lang, titleViews.get(lang)));
+        }
+        numFiles.incrementAndGet();
+        numBytes.addAndGet(bytes);
+        numLines.addAndGet(lines);
+        numMatched.addAndGet(matched);
+        return views;
+    }
+
+    /**
+     * Adds the views of a line in [start, end) if its project is a wanted language.
+     * @return True if the line was in a wanted language.
+     */
+    private boolean parseLine(byte[] line, int start, int end, TObjectIntMap<String> byLang[]) {
+        int space1 = indexOf(line, SPACE, start, end);
+        if (space1 < 0) {
+            return false;
+        }
+        int lang = -1;
+        for (int i = 0; i < langCodes.length; i++) {
+            if (regionEquals(line, start, space1, langCodes[i])) {
+                lang = i;
+                break;
+            }
+        }
+        if (lang < 0) {
+            return false;
+        }
+        int space2 = indexOf(line, SPACE, space1 + 1, end);
+        if (space2 < 0) {
+            return false;
+        }
+        int views = 0;
+        for (int i = space2 + 1; i < end && line[i] != SPACE; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') {
+                return false;
+            }
+            views = views * 10 + (b - '0');
+        }
+        if (views <= 0 || space2 == space1 + 1) {
+            return false;
+        }
+        String title = decodeTitle(line, space1 + 1, space2);
+        byLang[lang].adjustOrPutValue(title, views, views);
+        return true;
+    }
+
+    /**
+     * Resolves each distinct title once, combining the views of titles that name the same page.
+     */
+    private TIntIntMap resolve(Language lang, TObjectIntMap<String> titleViews) throws DaoException {
+        TIntIntMap views = new TIntIntHashMap(titleViews.size());
+        long resolved = 0;
+        TObjectIntIterator<String> iter = titleViews.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            int id = resolveTitle(lang, iter.key());
+            if (id >= 0) {
+                resolved++;
+                views.adjustOrPutValue(id, iter.value(), iter.value());
+            }
+        }
+        numTitles.addAndGet(titleViews.size());
+        numResolved.addAndGet(resolved);
+        return views;
+    }
+
+    private int resolveTitle(Language lang, String title) throws DaoException {
+        if (title.indexOf(':') < 0 && title.indexOf('#') < 0) {
+            // The common case: an article, which needs no namespace parsing.
+            String canonical = StringUtils.capitalize(title.replace('_', ' ').trim());
+            return pageDao.getIdByTitle(canonical, lang, NameSpace.ARTICLE);
+        }
+        Title t = new Title(title, lang);
+        NameSpace ns = t.getNamespace();
+        if (ns != NameSpace.ARTICLE && ns != NameSpace.CATEGORY) {
+            return -1;
+        }
+        return pageDao.getIdByTitle(t);
+    }
+
+    /**
+     * Decodes percent escapes in the title's bytes, which are otherwise UTF-8.
+     * Malformed escapes are kept as they are.
+     */
+    static String decodeTitle(byte[] line, int start, int end) {
+        if (indexOf(line, (byte) '%', start, end) < 0) {
+            return toString(line, start, end - start);
+        }
+        byte decoded[] = new byte[end - start];
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            int hi, lo;
+            if (line[i] == '%' && i + 2 < end
+            &&  (hi = Character.digit(line[i + 1], 16)) >= 0
+            &&  (lo = Character.digit(line[i + 2], 16)) >= 0) {
+                decoded[n++] = (byte) (hi * 16 + lo);
+                i += 2;
+            } else {
+                decoded[n++] = line[i];
+            }
+        }
+        return toString(decoded, 0, n);
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] bytes, int start, int end, byte[] target) {
+        if (end - start != target.length) {
+            return false;
+        }
+        for (int i = 0; i < target.length; i++) {
+            if (bytes[start + i] != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toString(byte[] bytes, int start, int length) {
+        try {
+            return new String(bytes, start, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getNumFiles() {
+        return numFiles.get();
+    }
+
+    public long getNumBytes() {
+        return numBytes.get();
+    }
+
+    public long getNumLines() {
+        return numLines.get();
+    }
+
+    /**
+     * @return Number of lines in a wanted language.
+     */
+    public long getNumMatched() {
+        return numMatched.get();
+    }
+
+    /**
+     * @return Number of distinct titles that were looked up.
+     */
+    public long getNumTitles() {
+        return numTitles.get();
+    }
+
+    /**
+     * @return Number of distinct titles that resolved to a page.
+     */
+    public long getNumResolved() {
+        return numResolved.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PageViewHourParser{files=%d, MB=%.1f, lines=%d, matched=%d, titles=%d, resolved=%d}",
+                getNumFiles(), getNumBytes() / (1024.0 * 1024.0), getNumLines(),
+                getNumMatched(), getNumTitles(), getNumResolved());
+    }
+}
@@ -1,11 +1,9 @@
 package org.wikibrain.pageview;
 
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
 import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 import org.wikibrain.conf.ConfigurationException;
-import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
@@ -13,14 +11,13 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
-import org.wikibrain.core.model.Title;
 
 import java.io.*;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.zip.GZIPInputStream;
 
@@ -38,6 +35,7 @@ public class PageViewIterator implements Iterator {
     private LanguageSet langs;
     private static String BASE_URL = "http://dumps.wikimedia.your.org/other/pagecounts-raw/";
     private List<PageViewDataStruct> nextData;
+    private PageViewHourParser parser;
 
     /**
      * constructs a PageViewIterator and parses a PageViewDataStruct from the first hour input in the constructor,
@@ -68,6 +66,15 @@ public class PageViewIterator implements Iterator {
         this.endDate = endDate;
     }
 
+    /**
+     * Constructs an iterator that resolves titles with a parser shared by other iterators or loaders.
+     */
+    public PageViewIterator(PageViewHourParser parser, LanguageSet langs, DateTime startDate, DateTime endDate)
+            throws WikiBrainException, DaoException {
+        this(langs, startDate, endDate);
+        this.parser = parser;
+    }
+
     public PageViewIterator(LanguageSet langs, DateTime currentDate){
         this.langs = langs;
         this.currentDate = currentDate;
@@ -127,59 +134,83 @@ public class PageViewIterator implements Iterator {
             return null;
         }
 
+        File pageViewDataFile = downloadHour(currentDate);
+        if(pageViewDataFile == null) {
+            DateTime tempDate = currentDate;
+            currentDate = currentDate.plusHours(1);
+            throw new WikiBrainException("null pageViewDataFile for date " + tempDate);
+        }
+
+        DateTime nextDate = currentDate.plusHours(1);
+        List<PageViewDataStruct> dataStructs = parseHour(getParser(), currentDate, pageViewDataFile);
+        //TODO: Not deleting the dump files now for debugging purpose
+        //pageViewDataFile.delete();
+
+        currentDate = nextDate;
+        return dataStructs;
+    }
+
+    /**
+     * Creates the parser, and the title index it shares across hours, the first time it is needed.
+     */
+    private PageViewHourParser getParser() throws ConfigurationException, DaoException {
+        if (parser == null) {
+            Env env = new EnvBuilder().build();
+            LocalPageDao pdao = env.getConfigurator().get(LocalPageDao.class, "sql");
+            parser = new PageViewHourParser(langs, pdao);
+        }
+        return parser;
+    }
+
+    /**
+     * Parses the page views for each of the parser's languages in an hourly page view file.
+     */
+    static List<PageViewDataStruct> parseHour(PageViewHourParser parser, DateTime hour, File file) throws WikiBrainException, DaoException {
+        Map<Language, TIntIntMap> views;
+        try {
+            views = parser.parse(file);
+        } catch (IOException e) {
+            throw new WikiBrainException(e);
+        }
+        List<PageViewDataStruct> dataStructs = new ArrayList<PageViewDataStruct>();
+        DateTime nextHour = hour.plusHours(1);
+        for (Language lang : views.keySet()) {
+            dataStructs.add(new PageViewDataStruct(lang, hour, nextHour, views.get(lang)));
+        }
+        return dataStructs;
+    }
+
+    /**
+     * Downloads the page view file for an hour, unless it has already been downloaded.
+     * @return The uncompressed file, or null if no file could be found for the hour.
+     */
+    static File downloadHour(DateTime hour) {
         //set up temp folder where page view data file will be stored
         File tempFolder = new File("./download/" + "_page_view_data");
         if (!tempFolder.exists()){
-            tempFolder.mkdir();
+            tempFolder.mkdirs();
         }
 
         // build up the file name for the page view data file from the current date
-        String yearString = ((Integer) currentDate.getYear()).toString();
-        String monthString = twoDigIntStr(currentDate.getMonthOfYear());
-        String dayString = twoDigIntStr(currentDate.getDayOfMonth());
-        String hourString = twoDigIntStr(currentDate.getHourOfDay());
+        String yearString = ((Integer) hour.getYear()).toString();
+        String monthString = twoDigIntStr(hour.getMonthOfYear());
+        String dayString = twoDigIntStr(hour.getDayOfMonth());
+        String hourString = twoDigIntStr(hour.getHourOfDay());
         String fileNameSuffix = ".gz";
 
         String homeFolder = BASE_URL + String.format("%s/%s-%s/", yearString, yearString, monthString);
-        File pageViewDataFile = null;
-        int minutes = 0;
-        while (pageViewDataFile == null && minutes < 60) {
-            int seconds = 0;
-            boolean flag = false;
-            while (pageViewDataFile == null && seconds < 60) {
+        for (int minutes = 0; minutes < 60; minutes++) {
+            for (int seconds = 0; seconds < 60; seconds++) {
                 String minutesString = twoDigIntStr(minutes);
                 String secondsString = twoDigIntStr(seconds);
                 String fileName = "pagecounts-" + yearString + monthString + dayString + "-" + hourString + minutesString + secondsString + fileNameSuffix;
-                pageViewDataFile = downloadFile(homeFolder, fileName, tempFolder);
-                if(pageViewDataFile != null){
-                    flag = true;
-                    break;
+                File pageViewDataFile = downloadFile(homeFolder, fileName, tempFolder);
+                if (pageViewDataFile != null) {
+                    return pageViewDataFile;
                 }
-                seconds++;
             }
-            if(flag)
-                break;
-            minutes++;
-        }
-        if(pageViewDataFile == null) {
-            DateTime tempDate = currentDate;
-            currentDate = currentDate.plusHours(1);
-            throw new WikiBrainException("null pageViewDataFile for date " + tempDate);
-        }
-
-        List<PageViewDataStruct> dataStructs = new ArrayList<PageViewDataStruct>();
-        DateTime nextDate = currentDate.plusHours(1);
-        for (Language lang : langs) {
-            TIntIntMap pageViewCounts = parsePageViewDataFromFile(lang, pageViewDataFile);
-            PageViewDataStruct pageViewData = new PageViewDataStruct(lang, currentDate, nextDate, pageViewCounts);
-            dataStructs.add(pageViewData);
         }
-        //TODO: Not deleting the dump files now for debugging purpose
-        //pageViewDataFile.delete();
-        //tempFolder.delete();
-
-        currentDate = nextDate;
-        return dataStructs;
+        return null;
     }
 
     private static String twoDigIntStr(int time){
@@ -226,46 +257,4 @@ public class PageViewIterator implements Iterator {
         gbin.close();
     }
 
-    private static TIntIntMap parsePageViewDataFromFile(Language lang, File f) throws WikiBrainException, DaoException, ConfigurationException {
-
-        try{
-            Env env = new EnvBuilder().build();
-            TIntIntMap data = new TIntIntHashMap();
-            Configurator configurator = env.getConfigurator();
-            LocalPageDao pdao = configurator.get(LocalPageDao.class, "sql");
-
-            BufferedReader br =  new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
-            String curLine;
-            System.out.println("Beginning to parse file");
-            while ((curLine = br.readLine()) != null) {
-                String[] cols = curLine.split(" ");
-                if (cols.length < 3) {
-                    continue;
-                }
-                if (cols[0].equals(lang.getLangCode())) {
-                    try{
-                        String title = URLDecoder.decode(cols[1], "UTF-8");
-                        int pageId = pdao.getIdByTitle(new Title(title, lang));
-                        int numPageViews = Integer.parseInt(cols[2]);
-                        data.adjustOrPutValue(pageId, numPageViews, numPageViews);
-                    }
-                    catch(IllegalArgumentException e){
-                        System.out.println("Decoding error examining this line: " + curLine);
-                    }
-                    catch(DaoException de) {
-                        System.out.println("Error using page DAO to get page ID for line:\n\t" + curLine);
-                        System.out.println(de.getMessage());
-                    }
-                }
-            }
-            br.close();
-
-            return data;
-        }
-        catch(IOException e){
-            throw new WikiBrainException(e);
-        }
-
-    }
-
 }
@@ -11,13 +11,19 @@ import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalCategoryMemberDao;
+import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.dao.sql.LocalCategoryMemberSqlDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,47 +38,106 @@ public class PageViewLoader {
     private static final Logger LOG = Logger.getLogger(PageViewLoader.class.getName());
     private final LanguageSet languageSet;
     private final PageViewSqlDao dao;
+    private final PageViewMappedDao mappedDao;
+    private LocalPageDao pageDao;
+    private PageViewHourParser parser;
 
     public PageViewLoader(LanguageSet languageSet, PageViewSqlDao dao) {
+        this(languageSet, dao, null);
+    }
+
+    /**
+     * @param pageDao Resolves page titles. If null, the default sql dao is used.
+     */
+    public PageViewLoader(LanguageSet languageSet, PageViewSqlDao dao, LocalPageDao pageDao) {
         this.languageSet = languageSet;
         this.dao = dao;
+        this.mappedDao = null;
+        this.pageDao = pageDao;
+    }
+
+    public PageViewLoader(LanguageSet languageSet, PageViewMappedDao mappedDao, LocalPageDao pageDao) {
+        this.languageSet = languageSet;
+        this.dao = null;
+        this.mappedDao = mappedDao;
+        this.pageDao = pageDao;
     }
 
     public PageViewSqlDao getDao() {
         return dao;
     }
 
+    /**
+     * Downloads, parses, and saves the hours in [startDate, endDate).
+     * Hours are processed in parallel, sharing one parser and title index.
+     */
     public void load(DateTime startDate, DateTime endDate) throws ConfigurationException, WikiBrainException {
-        double start = System.currentTimeMillis();
+        final long start = System.currentTimeMillis();
         try {
             LOG.log(Level.INFO, "Loading Page Views");
-            PageViewIterator iterator = dao.getPageViewIterator(languageSet, startDate, endDate);
-            int i = 0;
-            while (iterator.hasNext()) {
-                List<PageViewDataStruct> dataStructs = iterator.next();
-                for (PageViewDataStruct data : dataStructs) {
-                    dao.addData(data);
-                }
-                i++;
-                if (i % 24 == 0) {
-                    double elapsed = (System.currentTimeMillis() - start) / 60000;
-                    LOG.log(Level.INFO, "Loaded " + (i/24) + " days worth of Page View files in " + elapsed + " minutes");
-                }
-                if (i % 744 == 0) {
-                    double elapsed = (System.currentTimeMillis() - start) / 60000;
-                    LOG.log(Level.INFO, "Loaded " + (i/744) + "months worth of Page View files in " + elapsed + " minutes");
+            final PageViewHourParser parser = getParser();
+            final List<DateTime> hours = new ArrayList<DateTime>();
+            for (DateTime hour = startDate; hour.isBefore(endDate); hour = hour.plusHours(1)) {
+                hours.add(hour);
+            }
+            final AtomicInteger numLoaded = new AtomicInteger();
+            ParallelForEach.loop(hours, new Procedure<DateTime>() {
+                @Override
+                public void call(DateTime hour) throws Exception {
+                    File file = PageViewIterator.downloadHour(hour);
+                    if (file == null) {
+                        LOG.log(Level.WARNING, "no page view file found for hour " + hour);
+                        return;
+                    }
+                    for (PageViewDataStruct data : PageViewIterator.parseHour(parser, hour, file)) {
+                        save(data);
+                    }
+                    int n = numLoaded.incrementAndGet();
+                    if (n % 24 == 0) {
+                        logProgress(n, start);
+                    }
                 }
+            });
+            if (mappedDao != null) {
+                mappedDao.flush();
             }
-            double elapsed = (System.currentTimeMillis() - start) / 60000;
-            System.out.println("Loading took " + elapsed + " minutes");
-            LOG.log(Level.INFO, "All Page View files loaded: " + i);
+            logProgress(numLoaded.get(), start);
+            LOG.log(Level.INFO, "All Page View files loaded: " + numLoaded.get() + " of " + hours.size());
         } catch (DaoException e) {
-            double elapsed = (System.currentTimeMillis() - start) / 60000;
-            System.out.println(elapsed + " minutes passed before exception thrown");
+            double elapsed = (System.currentTimeMillis() - start) / 60000.0;
+            LOG.log(Level.SEVERE, elapsed + " minutes passed before exception thrown");
             throw new WikiBrainException(e);
         }
     }
 
+    private void save(PageViewDataStruct data) throws DaoException {
+        if (mappedDao != null) {
+            mappedDao.addData(data);
+        } else {
+            dao.addData(data);
+        }
+    }
+
+    private void logProgress(int numHours, long start) {
+        double minutes = (System.currentTimeMillis() - start) / 60000.0;
+        double seconds = Math.max(minutes * 60, 0.001);
+        LOG.log(Level.INFO, String.format(
+                "Loaded %d hours of Page View files in %.1f minutes (%.1f hours/min, %.0f lines/sec): %s",
+                numHours, minutes, numHours / Math.max(minutes, 0.001 / 60),
+                parser.getNumLines() / seconds, parser));
+    }
+
+    private synchronized PageViewHourParser getParser() throws ConfigurationException, DaoException {
+        if (parser == null) {
+            if (pageDao == null) {
+                Env env = new EnvBuilder().build();
+                pageDao = env.getConfigurator().get(LocalPageDao.class, "sql");
+            }
+            parser = new PageViewHourParser(languageSet, pageDao);
+        }
+        return parser;
+    }
+
     /**
      * first arg: comma-separated lang codes
      * start date and end date (second and third args) must be in UTC time
@@ -130,7 +195,8 @@ public class PageViewLoader {
             //Env env = new EnvBuilder(cmd).build();
             Configurator conf = env.getConfigurator();
             PageViewSqlDao dao = conf.get(PageViewSqlDao.class);
-            final PageViewLoader loader = new PageViewLoader(env.getLanguages(), dao);
+            LocalPageDao pageDao = conf.get(LocalPageDao.class, "sql");
+            final PageViewLoader loader = new PageViewLoader(env.getLanguages(), dao, pageDao);
 
             /*if (cmd.hasOption("d")) {
                 LOG.log(Level.INFO, "Clearing data");
@@ -0,0 +1,399 @@
+package org.wikibrain.pageview;
+
+import com.typesafe.config.Config;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Stores page views in memory mapped columns of (page id, views) pairs.
+ *
+ * Each language has a column for every loaded hour, and the hours are summed into
+ * day and month columns when they are flushed. A query over a range of hours uses
+ * the month columns that fit in the range, then day columns, then hour columns, so
+ * a year of hourly data is answered from about a dozen columns.
+ *
+ * Hours, days and months are UTC. A range includes the hours that begin at or after
+ * its start and before its end. Unlike PageViewSqlDao, queries never download missing
+ * hours; views of hours that have not been loaded count as zero.
+ *
+ * addData() may be called from many threads.
+ */
+public class PageViewMappedDao {
+    private static final Logger LOG = Logger.getLogger(PageViewMappedDao.class.getName());
+
+    private static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+    private static final int MAX_CACHED_COLUMNS = 1000;
+
+    private static final DateTimeFormatter HOUR_FORMAT = DateTimeFormat.forPattern("yyyyMMddHH").withZoneUTC();
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormat.forPattern("yyyyMMdd").withZoneUTC();
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormat.forPattern("yyyyMM").withZoneUTC();
+
+    private final File dir;
+    private final Map<Language, LangColumns> langs = new HashMap<Language, LangColumns>();
+
+    private final Map<File, PageViewColumn> columnCache = new LinkedHashMap<File, PageViewColumn>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, PageViewColumn> eldest) {
+            return size() > MAX_CACHED_COLUMNS;
+        }
+    };
+
+    /**
+     * @param dir Directory containing a subdirectory of columns for each language.
+     */
+    public PageViewMappedDao(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    /**
+     * Saves the views of one hour. Rollups are not updated until flush().
+     * @param data
+     * @throws DaoException
+     */
+    public void addData(PageViewDataStruct data) throws DaoException {
+        int hour = toHour(data.getStartDate());
+        if (hour * MILLIS_PER_HOUR != data.getStartDate().getMillis()) {
+            throw new DaoException("page views must start on an hour: " + data.getStartDate());
+        }
+        LangColumns lc = getLang(data.getLang());
+        try {
+            PageViewColumn.write(lc.getHourFile(hour), data.getPageViewStats());
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        synchronized (lc) {
+            lc.hours.add(hour);
+            lc.dirtyDays.add(hour / 24);
+            synchronized (columnCache) {
+                columnCache.remove(lc.getHourFile(hour));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the day and month rollups of hours added since the last flush.
+     * @throws DaoException
+     */
+    public void flush() throws DaoException {
+        List<LangColumns> all;
+        synchronized (langs) {
+            all = new ArrayList<LangColumns>(langs.values());
+        }
+        for (LangColumns lc : all) {
+            flush(lc);
+        }
+    }
+
+    /**
+     * @return Number of views for each page in the range, as in PageViewSqlDao.getAllViews().
+     */
+    public TIntIntMap getAllViews(Language language, DateTime startDate, DateTime endDate) throws DaoException {
+        TIntIntMap views = new TIntIntHashMap(
+                gnu.trove.impl.Constants.DEFAULT_CAPACITY,
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        for (PageViewColumn column : getColumns(language, startDate, endDate)) {
+            column.addTo(views);
+        }
+        return views;
+    }
+
+    public int getNumViews(Language language, int id, DateTime startDate) throws DaoException {
+        return getNumViews(language, id, startDate, startDate.plusHours(1));
+    }
+
+    public int getNumViews(Language language, int id, DateTime startDate, DateTime endDate) throws DaoException {
+        int views = 0;
+        for (PageViewColumn column : getColumns(language, startDate, endDate)) {
+            views = PageViewColumn.add(views, column.getPageViews(id));
+        }
+        return views;
+    }
+
+    /**
+     * @return Number of views of each page in the range. Pages without views are omitted.
+     */
+    public TIntIntMap getNumViews(Language language, int ids[], DateTime startDate, DateTime endDate) throws DaoException {
+        TIntIntMap views = new TIntIntHashMap(ids.length * 2);
+        for (PageViewColumn column : getColumns(language, startDate, endDate)) {
+            for (int id : ids) {
+                int n = column.getPageViews(id);
+                if (n > 0) {
+                    views.put(id, PageViewColumn.add(views.get(id), n));
+                }
+            }
+        }
+        return views;
+    }
+
+    /**
+     * @return True if the views of the hour that begins at the date have been loaded.
+     */
+    public boolean isLoaded(Language language, DateTime hour) {
+        LangColumns lc = getLang(language);
+        synchronized (lc) {
+            return lc.hours.contains(toHour(hour));
+        }
+    }
+
+    /**
+     * Deletes all page views.
+     */
+    public void clear() throws DaoException {
+        synchronized (langs) {
+            synchronized (columnCache) {
+                columnCache.clear();
+            }
+            langs.clear();
+            try {
+                FileUtils.deleteDirectory(dir);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * Returns the columns that together cover the range, flushing any hours that were added.
+     */
+    private List<PageViewColumn> getColumns(Language lang, DateTime startDate, DateTime endDate) throws DaoException {
+        LangColumns lc = getLang(lang);
+        flush(lc);
+        List<File> files = new ArrayList<File>();
+        synchronized (lc) {
+            int end = firstHour(endDate);
+            int h = firstHour(startDate);
+            while (h < end) {
+                DateTime t = new DateTime(h * MILLIS_PER_HOUR, DateTimeZone.UTC);
+                if (h % 24 == 0 && t.getDayOfMonth() == 1) {
+                    int monthEnd = toHour(t.plusMonths(1));
+                    if (monthEnd <= end && lc.months.contains(toMonth(h))) {
+                        files.add(lc.getMonthFile(h));
+                        h = monthEnd;
+                        continue;
+                    }
+                }
+                if (h % 24 == 0 && h + 24 <= end && lc.days.contains(h / 24)) {
+                    files.add(lc.getDayFile(h / 24));
+                    h += 24;
+                } else {
+                    if (lc.hours.contains(h)) {
+                        files.add(lc.getHourFile(h));
+                    }
+                    h++;
+                }
+            }
+        }
+        List<PageViewColumn> columns = new ArrayList<PageViewColumn>();
+        for (File file : files) {
+            columns.add(getColumn(file));
+        }
+        return columns;
+    }
+
+    private void flush(LangColumns lc) throws DaoException {
+        synchronized (lc) {
+            if (lc.dirtyDays.isEmpty()) {
+                return;
+            }
+            int days[] = lc.dirtyDays.toArray();
+            Arrays.sort(days);
+            TIntSet months = new TIntHashSet();
+            try {
+                for (int day : days) {
+                    List<PageViewColumn> hours = new ArrayList<PageViewColumn>();
+                    for (int h = day * 24; h < day * 24 + 24; h++) {
+                        if (lc.hours.contains(h)) {
+                            hours.add(getColumn(lc.getHourFile(h)));
+                        }
+                    }
+                    File file = lc.getDayFile(day);
+                    PageViewColumn.merge(file, hours);
+                    uncache(file);
+                    lc.days.add(day);
+                    months.add(toMonth(day * 24));
+                }
+                for (int month : months.toArray()) {
+                    DateTime start = new DateTime(month / 12, month % 12 + 1, 1, 0, 0, DateTimeZone.UTC);
+                    int firstDay = toHour(start) / 24;
+                    int lastDay = toHour(start.plusMonths(1)) / 24;
+                    List<PageViewColumn> dayColumns = new ArrayList<PageViewColumn>();
+                    for (int day = firstDay; day < lastDay; day++) {
+                        if (lc.days.contains(day)) {
+                            dayColumns.add(getColumn(lc.getDayFile(day)));
+                        }
+                    }
+                    File file = lc.getMonthFile(firstDay * 24);
+                    PageViewColumn.merge(file, dayColumns);
+                    uncache(file);
+                    lc.months.add(month);
+                }
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+            lc.dirtyDays.clear();
+            LOG.info("rebuilt page view rollups for " + days.length + " days and " + months.size() + " months in " + lc.lang);
+        }
+    }
+
+    private PageViewColumn getColumn(File file) throws DaoException {
+        synchronized (columnCache) {
+            PageViewColumn column = columnCache.get(file);
+            if (column == null) {
+                try {
+                    column = new PageViewColumn(file);
+                } catch (IOException e) {
+                    throw new DaoException(e);
+                }
+                columnCache.put(file, column);
+            }
+            return column;
+        }
+    }
+
+    private void uncache(File file) {
+        synchronized (columnCache) {
+            columnCache.remove(file);
+        }
+    }
+
+    private LangColumns getLang(Language lang) {
+        synchronized (langs) {
+            LangColumns lc = langs.get(lang);
+            if (lc == null) {
+                lc = new LangColumns(lang, new File(dir, lang.getLangCode()));
+                langs.put(lang, lc);
+            }
+            return lc;
+        }
+    }
+
+    private static int toHour(DateTime date) {
+        return (int) (date.getMillis() / MILLIS_PER_HOUR);
+    }
+
+    /**
+     * @return The first hour that begins at or after the date.
+     */
+    private static int firstHour(DateTime date) {
+        return (int) ((date.getMillis() + MILLIS_PER_HOUR - 1) / MILLIS_PER_HOUR);
+    }
+
+    private static int toMonth(int hour) {
+        DateTime t = new DateTime(hour * MILLIS_PER_HOUR, DateTimeZone.UTC);
+        return t.getYear() * 12 + t.getMonthOfYear() - 1;
+    }
+
+    /**
+     * The columns of one language. Guarded by its own lock.
+     */
+    private static class LangColumns {
+        final Language lang;
+        final File hourDir;
+        final File dayDir;
+        final File monthDir;
+        final TIntSet hours = new TIntHashSet();
+        final TIntSet days = new TIntHashSet();
+        final TIntSet months = new TIntHashSet();
+        final TIntSet dirtyDays = new TIntHashSet();
+
+        LangColumns(Language lang, File dir) {
+            this.lang = lang;
+            this.hourDir = new File(dir, "hours");
+            this.dayDir = new File(dir, "days");
+            this.monthDir = new File(dir, "months");
+            for (File d : Arrays.asList(hourDir, dayDir, monthDir)) {
+                d.mkdirs();
+            }
+            for (long millis : list(hourDir, HOUR_FORMAT)) {
+                hours.add((int) (millis / MILLIS_PER_HOUR));
+            }
+            for (long millis : list(dayDir, DAY_FORMAT)) {
+                days.add((int) (millis / MILLIS_PER_HOUR / 24));
+            }
+            for (long millis : list(monthDir, MONTH_FORMAT)) {
+                months.add(toMonth((int) (millis / MILLIS_PER_HOUR)));
+            }
+            // Rebuild any rollups interrupted by a crash.
+            for (int h : hours.toArray()) {
+                if (!days.contains(h / 24) || !months.contains(toMonth(h))) {
+                    dirtyDays.add(h / 24);
+                }
+            }
+        }
+
+        File getHourFile(int hour) {
+            return new File(hourDir, HOUR_FORMAT.print(hour * MILLIS_PER_HOUR));
+        }
+
+        File getDayFile(int day) {
+            return new File(dayDir, DAY_FORMAT.print(day * 24 * MILLIS_PER_HOUR));
+        }
+
+        File getMonthFile(int hour) {
+            return new File(monthDir, MONTH_FORMAT.print(hour * MILLIS_PER_HOUR));
+        }
+
+        private static List<Long> list(File dir, DateTimeFormatter format) {
+            List<Long> times = new ArrayList<Long>();
+            String names[] = dir.list();
+            if (names == null) {
+                return times;
+            }
+            for (String name : names) {
+                if (name.endsWith(".tmp")) {
+                    continue;
+                }
+                try {
+                    times.add(format.parseMillis(name));
+                } catch (IllegalArgumentException e) {
+                    LOG.warning("ignoring unexpected file " + new File(dir, name));
+                }
+            }
+            return times;
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<PageViewMappedDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return PageViewMappedDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.pageView";
+        }
+
+        @Override
+        public PageViewMappedDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("mapped")) {
+                return null;
+            }
+            return new PageViewMappedDao(new File(config.getString("path")));
+        }
+    }
+}
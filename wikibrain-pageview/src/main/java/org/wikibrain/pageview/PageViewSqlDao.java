@@ -89,7 +89,7 @@ public class PageViewSqlDao extends AbstractSqlDao<PageView> {
         }
     }
 
-    protected void recordLoadedHours(PageView view) {
+    protected synchronized void recordLoadedHours(PageView view) {
         int langId = view.getPageId().getLanguage().getId();
         Set<Long> hours = (loadedHours.get(langId) != null) ? loadedHours.get(langId) : new HashSet<Long>();
         hours.add(view.getHour().getTime());
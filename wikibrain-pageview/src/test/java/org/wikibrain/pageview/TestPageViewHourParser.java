@@ -0,0 +1,111 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestPageViewHourParser {
+    private static final Language EN = Language.getByLangCode("en");
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+
+    @Test
+    public void testParse() throws IOException, DaoException {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        ids.put("en:Main Page", 1);
+        ids.put("en:Café", 2);
+        ids.put("en:Category:Food", 3);
+        ids.put("simple:Main Page", 10);
+
+        File file = File.createTempFile("pagecounts", ".txt");
+        try {
+            FileUtils.write(file,
+                    "en Main_Page 42 1000\n" +
+                    "en main_Page 8 1000\n" +           // same page as above
+                    "en Caf%C3%A9 3 200\n" +
+                    "en Category:Food 5 200\n" +
+                    "en Talk:Food 7 200\n" +            // not an article
+                    "en Missing_page 9 200\n" +
+                    "en.d Main_Page 100 1000\n" +       // different project
+                    "de Hauptseite 100 1000\n" +
+                    "simple Main_Page 6 300\n" +
+                    "en bad_line\n" +
+                    "simple Main_Page 4 300",           // no trailing newline
+                    "UTF-8");
+            PageViewHourParser parser = new PageViewHourParser(new LanguageSet("en,simple"), createPageDao(ids));
+            Map<Language, TIntIntMap> views = parser.parse(file);
+
+            TIntIntMap en = views.get(EN);
+            assertEquals(3, en.size());
+            assertEquals(50, en.get(1));
+            assertEquals(3, en.get(2));
+            assertEquals(5, en.get(3));
+
+            TIntIntMap simple = views.get(SIMPLE);
+            assertEquals(1, simple.size());
+            assertEquals(10, simple.get(10));
+
+            assertEquals(1, parser.getNumFiles());
+            assertEquals(11, parser.getNumLines());
+            assertEquals(8, parser.getNumMatched());
+            assertEquals(7, parser.getNumTitles());
+            assertEquals(5, parser.getNumResolved());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test
+    public void testDecode() {
+        assertEquals("Café", decode("Caf%C3%A9"));
+        assertEquals("100%", decode("100%"));
+        assertEquals("a%zzb", decode("a%zzb"));
+        assertEquals("a+b", decode("a+b"));
+    }
+
+    private static String decode(String s) {
+        byte bytes[] = s.getBytes();
+        return PageViewHourParser.decodeTitle(bytes, 0, bytes.length);
+    }
+
+    /**
+     * A page dao that only resolves titles in the map, keyed by "langCode:canonical title".
+     */
+    private static LocalPageDao createPageDao(final Map<String, Integer> ids) {
+        return (LocalPageDao) Proxy.newProxyInstance(
+                LocalPageDao.class.getClassLoader(),
+                new Class[] { LocalPageDao.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!method.getName().equals("getIdByTitle")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        String key;
+                        if (args.length == 1) {
+                            Title title = (Title) args[0];
+                            key = title.getLanguage().getLangCode() + ":" + title.getCanonicalTitle();
+                        } else {
+                            String prefix = (args[2] == NameSpace.ARTICLE) ? "" : ((NameSpace) args[2]).toString() + ":";
+                            key = ((Language) args[1]).getLangCode() + ":" + prefix + args[0];
+                        }
+                        return ids.containsKey(key) ? ids.get(key) : -1;
+                    }
+                });
+    }
+}
@@ -0,0 +1,122 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestPageViewMappedDao {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+    private static final DateTime FIRST_HOUR = new DateTime(2014, 1, 30, 0, 0, DateTimeZone.UTC);
+    private static final int NUM_HOURS = 24 * 33;
+    private static final int NUM_PAGES = 200;
+
+    @Test
+    public void testRanges() throws IOException, DaoException {
+        File dir = WpIOUtils.createTempDirectory("pageviews");
+        try {
+            List<TIntIntMap> hours = createHours();
+            PageViewMappedDao dao = new PageViewMappedDao(dir);
+            for (int i = 0; i < hours.size(); i++) {
+                DateTime start = FIRST_HOUR.plusHours(i);
+                dao.addData(new PageViewDataStruct(SIMPLE, start, start.plusHours(1), hours.get(i)));
+            }
+            dao.flush();
+            checkRanges(dao, hours);
+
+            // rollups are reused when the store is reopened
+            checkRanges(new PageViewMappedDao(dir), hours);
+            assertTrue(new File(dir, "simple/months/201402").isFile());
+            assertTrue(new File(dir, "simple/days/20140215").isFile());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testReplaceHour() throws IOException, DaoException {
+        File dir = WpIOUtils.createTempDirectory("pageviews");
+        try {
+            PageViewMappedDao dao = new PageViewMappedDao(dir);
+            TIntIntMap views = new TIntIntHashMap();
+            views.put(3, 10);
+            dao.addData(new PageViewDataStruct(SIMPLE, FIRST_HOUR, FIRST_HOUR.plusHours(1), views));
+            assertEquals(10, dao.getNumViews(SIMPLE, 3, FIRST_HOUR));
+
+            views.put(3, 7);
+            views.put(4, Integer.MAX_VALUE);
+            dao.addData(new PageViewDataStruct(SIMPLE, FIRST_HOUR, FIRST_HOUR.plusHours(1), views));
+            DateTime next = FIRST_HOUR.plusHours(1);
+            dao.addData(new PageViewDataStruct(SIMPLE, next, next.plusHours(1), views));
+            assertEquals(14, dao.getNumViews(SIMPLE, 3, FIRST_HOUR, FIRST_HOUR.plusHours(2)));
+            assertEquals(Integer.MAX_VALUE, dao.getNumViews(SIMPLE, 4, FIRST_HOUR, FIRST_HOUR.plusHours(2)));
+            assertEquals(0, dao.getNumViews(SIMPLE, 5, FIRST_HOUR, FIRST_HOUR.plusHours(2)));
+            assertTrue(dao.isLoaded(SIMPLE, FIRST_HOUR));
+            assertFalse(dao.isLoaded(SIMPLE, FIRST_HOUR.plusHours(2)));
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private void checkRanges(PageViewMappedDao dao, List<TIntIntMap> hours) throws DaoException {
+        int ranges[][] = {
+                {0, NUM_HOURS},         // includes all of February
+                {48, 48 + 24 * 28},     // exactly February
+                {5, 6},
+                {13, 24 * 20 + 7},
+                {24 * 3, 24 * 4},
+                {NUM_HOURS - 30, NUM_HOURS},
+        };
+        for (int range[] : ranges) {
+            DateTime start = FIRST_HOUR.plusHours(range[0]);
+            DateTime end = FIRST_HOUR.plusHours(range[1]);
+            TIntIntMap expected = sum(hours, range[0], range[1]);
+            TIntIntMap actual = dao.getAllViews(SIMPLE, start, end);
+            assertEquals(expected.size(), actual.size());
+            for (int id : expected.keys()) {
+                assertEquals(expected.get(id), actual.get(id));
+                assertEquals(expected.get(id), dao.getNumViews(SIMPLE, id, start, end));
+            }
+            TIntIntMap some = dao.getNumViews(SIMPLE, new int[] {0, 1, 2, NUM_PAGES + 1}, start, end);
+            for (int id : some.keys()) {
+                assertEquals(expected.get(id), some.get(id));
+            }
+        }
+    }
+
+    private TIntIntMap sum(List<TIntIntMap> hours, int from, int to) {
+        TIntIntMap sum = new TIntIntHashMap();
+        for (int i = from; i < to; i++) {
+            for (int id : hours.get(i).keys()) {
+                sum.adjustOrPutValue(id, hours.get(i).get(id), hours.get(i).get(id));
+            }
+        }
+        return sum;
+    }
+
+    private List<TIntIntMap> createHours() {
+        Random random = new Random(42);
+        List<TIntIntMap> hours = new ArrayList<TIntIntMap>();
+        for (int i = 0; i < NUM_HOURS; i++) {
+            TIntIntMap views = new TIntIntHashMap();
+            for (int j = 0; j < 20; j++) {
+                views.put(random.nextInt(NUM_PAGES), 1 + random.nextInt(1000));
+            }
+            hours.add(views);
+        }
+        return hours;
+    }
+}
@@ -0,0 +1,330 @@
+package org.wikibrain.parser;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A byte range of a dump file that can be split into pages independently of
+ * the rest of the file. Segments of uncompressed dumps may start at any byte.
+ * Segments of bzip2 dumps start at stream boundaries of a multistream file.
+ *
+ * Each line of the file belongs to the segment holding the byte just before
+ * it (in decompressed bytes, for bzip2 segments), so a segment that starts in
+ * the middle of a line leaves that line to its predecessor. A segment owns every
+ * page whose opening &lt;page&gt; line belongs to it. The last page it owns may
+ * extend past the end of the range, so reading continues into the rest of the
+ * file until that page closes. Together, the segments of a file yield the same
+ * pages as DumpSplitter.
+ *
+ * Pages are found by scanning bytes for lines rather than decoding each line,
+ * and each page is decoded from UTF-8 once.
+ */
+public class DumpSegment {
+    private static final Logger LOG = Logger.getLogger(DumpSegment.class.getName());
+
+    private static final byte[] ARTICLE_BEGIN = bytes(DumpSplitter.ARTICLE_BEGIN);
+    private static final byte[] ARTICLE_END = bytes(DumpSplitter.ARTICLE_END);
+
+    private final File path;
+    private final long start;
+    private final long end;
+    private final boolean bzip2;
+
+    /**
+     * @param path The dump file.
+     * @param start The first byte of the segment.
+     * @param end One past the last byte of the segment, or -1 for the end of the file.
+     * @param bzip2 If true, start and end must be stream boundaries in a bzip2 file.
+     */
+    public DumpSegment(File path, long start, long end, boolean bzip2) {
+        this.path = path;
+        this.start = start;
+        this.end = end;
+        this.bzip2 = bzip2;
+    }
+
+    /**
+     * A segment covering a whole file, which may be compressed in any format.
+     */
+    public static DumpSegment wholeFile(File path) {
+        return new DumpSegment(path, 0, -1, false);
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the text of each page owned by the segment, in file order.
+     */
+    public List<String> readPages() throws IOException {
+        List<String> pages = new ArrayList<String>();
+        PageReader reader = openReader();
+        try {
+            while (true) {
+                String page = reader.next();
+                if (page == null) {
+                    break;
+                }
+                pages.add(page);
+            }
+        } finally {
+            reader.close();
+        }
+        return pages;
+    }
+
+    /**
+     * Opens a reader over the text of each page owned by the segment, in file order.
+     */
+    public PageReader openReader() throws IOException {
+        if (start == 0 && end < 0) {
+            return new PageReader(WpIOUtils.openInputStream(path));
+        } else {
+            return new PageReader(openRange(start, end));
+        }
+    }
+
+    private InputStream openRange(long from, long to) throws IOException {
+        FileInputStream fis = new FileInputStream(path);
+        InputStream input = fis;
+        try {
+            fis.getChannel().position(from);
+            if (to >= 0) {
+                input = new BoundedInputStream(fis, to - from);
+            }
+            input = new BufferedInputStream(input, 1 << 16);
+            if (bzip2) {
+                input = new BZip2CompressorInputStream(input, true);
+            }
+            return input;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fis);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads lines of bytes from the segment's range, followed by the rest of the file if needed.
+     * Line terminators follow BufferedReader.readLine: \n, \r, or \r\n.
+     */
+    public class PageReader implements Closeable {
+        private InputStream input;
+        private boolean finished = false;
+        private boolean inOverflow = false;
+
+        private byte buffer[] = new byte[1 << 16];
+        private int bufferPos = 0;
+        private int bufferLength = 0;
+        private boolean eof = false;
+
+        // number of bytes consumed from the segment's own range; exact once inOverflow is true.
+        private long ownBytes = 0;
+        // number of bytes of the rest of the file in buffers that have been fully consumed.
+        private long overflowConsumed = 0;
+        private long lineStart = 0;
+
+        private byte line[] = new byte[1024];
+        private int lineLength = 0;
+
+        private final ByteArrayOutputStream page = new ByteArrayOutputStream(1 << 16);
+
+        PageReader(InputStream own) throws IOException {
+            this.input = own;
+            if (start > 0) {
+                readLine();     // belongs to the previous segment
+            }
+        }
+
+        /**
+         * Returns the text of the next page, or null after the last page of the segment.
+         */
+        public String next() throws IOException {
+            while (!finished && readLine()) {
+                if (!ownsLine()) {
+                    break;          // past the end of the segment, and not inside a page
+                }
+                if (isTag(ARTICLE_BEGIN)) {
+                    return readPage();
+                }
+            }
+            finished = true;
+            close();
+            return null;
+        }
+
+        /**
+         * Returns true if the byte before the current line falls inside the segment's own range.
+         * This is exact once the line has been read, because reading past the own range
+         * switches to the overflow.
+         */
+        private boolean ownsLine() {
+            return !inOverflow || lineStart <= ownBytes;
+        }
+
+        private String readPage() throws IOException {
+            page.reset();
+            appendLine();
+            while (true) {
+                if (!readLine()) {
+                    logParseError("reached eof in middle of article");
+                    appendEndTag();
+                    break;
+                }
+                if (page.size() + lineLength > DumpSplitter.MAX_ARTICLE_LENGTH) {
+                    logParseError("truncating overly long article");
+                    appendEndTag();
+                    break;
+                }
+                appendLine();
+                if (isTag(ARTICLE_END)) {
+                    break;
+                }
+            }
+            return page.toString("UTF-8");
+        }
+
+        private void appendLine() {
+            page.write(line, 0, lineLength);
+            page.write('\n');
+        }
+
+        private void appendEndTag() {
+            page.write(ARTICLE_END, 0, ARTICLE_END.length);
+            page.write('\n');
+        }
+
+        /**
+         * Returns true if the current line, trimmed, equals the tag.
+         */
+        private boolean isTag(byte[] tag) {
+            int i = 0;
+            while (i < lineLength && (line[i] & 0xff) <= ' ') {
+                i++;
+            }
+            int j = lineLength;
+            while (j > i && (line[j - 1] & 0xff) <= ' ') {
+                j--;
+            }
+            if (j - i != tag.length) {
+                return false;
+            }
+            for (int k = 0; k < tag.length; k++) {
+                if (line[i + k] != tag[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the next line into line[0..lineLength).
+         * @return false at the end of the file.
+         */
+        private boolean readLine() throws IOException {
+            lineStart = position();
+            lineLength = 0;
+            boolean sawAny = false;
+            while (true) {
+                if (bufferPos >= bufferLength && !fill()) {
+                    return sawAny;
+                }
+                sawAny = true;
+                byte b = buffer[bufferPos++];
+                if (b == '\n') {
+                    return true;
+                } else if (b == '\r') {
+                    if ((bufferPos < bufferLength || fill()) && buffer[bufferPos] == '\n') {
+                        bufferPos++;
+                    }
+                    return true;
+                }
+                if (lineLength == line.length) {
+                    byte tmp[] = new byte[line.length * 2];
+                    System.arraycopy(line, 0, tmp, 0, lineLength);
+                    line = tmp;
+                }
+                line[lineLength++] = b;
+            }
+        }
+
+        /**
+         * Returns the offset of the next unread byte from the start of the segment.
+         */
+        private long position() {
+            return inOverflow ? ownBytes + overflowConsumed + bufferPos : ownBytes - bufferLength + bufferPos;
+        }
+
+        /**
+         * Refills the buffer, switching to the rest of the file when the own range is exhausted.
+         */
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (inOverflow) {
+                overflowConsumed += bufferLength;
+            }
+            bufferPos = 0;
+            bufferLength = 0;
+            while (true) {
+                int n = input.read(buffer);
+                if (n > 0) {
+                    bufferLength = n;
+                    if (!inOverflow) {
+                        ownBytes += n;
+                    }
+                    return true;
+                }
+                if (n == 0) {
+                    continue;
+                }
+                input.close();
+                if (inOverflow || end < 0) {
+                    eof = true;
+                    return false;
+                }
+                inOverflow = true;
+                input = openRange(end, -1);
+            }
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(input);
+        }
+
+        private void logParseError(String message) {
+            LOG.log(Level.SEVERE, "parsing " + path + "  failed in line " + message);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DumpSegment{" + path + ", " + start + " to " + end + "}";
+    }
+}
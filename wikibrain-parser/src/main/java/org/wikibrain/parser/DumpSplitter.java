@@ -1,11 +1,15 @@
 package org.wikibrain.parser;
 
 import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.wikibrain.utils.WpIOUtils;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,7 +21,26 @@ import java.util.logging.Logger;
 public class DumpSplitter implements Iterable<String> {
     public static final String ARTICLE_BEGIN = "<page>";
     public static final String ARTICLE_END = "</page>";
-    private static final int MAX_ARTICLE_LENGTH = 10000000;     // Maximum length of article
+    static final int MAX_ARTICLE_LENGTH = 10000000;     // Maximum length of article
+
+    /**
+     * Default segment sizes, in bytes of the file on disk.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_BZIP2_SEGMENT_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * A bzip2 file with no second stream in this many bytes is treated as a single stream.
+     */
+    static final long MULTISTREAM_PROBE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The header of a bzip2 stream ("BZh" and a block size digit) followed by the
+     * magic number that starts its first block.
+     */
+    private static final byte[] BZIP2_STREAM_START = {
+            'B', 'Z', 'h', '0', 0x31, 0x41, 0x59, 0x26, 0x53, 0x59
+    };
 
 
     private static final Logger LOG = Logger.getLogger(DumpSplitter.class.getName());
@@ -36,6 +59,116 @@ public class DumpSplitter implements Iterable<String> {
         return path;
     }
 
+    /**
+     * Splits the file into segments that can be read in parallel.
+     * @see #getSegments(long)
+     */
+    public List<DumpSegment> getSegments() throws IOException {
+        return getSegments(isBzip2() ? DEFAULT_BZIP2_SEGMENT_SIZE : DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Splits the file into segments of roughly the given size that can be read in parallel.
+     * Together, the segments yield the same pages as iterating over the file.
+     *
+     * Uncompressed files are split at arbitrary bytes. Bzip2 files are split at
+     * stream boundaries, so only multistream dumps yield more than one segment.
+     * Gzipped files always yield a single segment.
+     *
+     * @param targetSize The approximate size of each segment, in bytes of the file on disk.
+     */
+    public List<DumpSegment> getSegments(long targetSize) throws IOException {
+        List<DumpSegment> segments = new ArrayList<DumpSegment>();
+        long length = path.length();
+        String ext = FilenameUtils.getExtension(path.toString()).toLowerCase();
+        if (length <= targetSize || ext.equals("gz")) {
+            segments.add(DumpSegment.wholeFile(path));
+        } else if (isBzip2()) {
+            List<Long> starts = findBzip2Segments(targetSize);
+            for (int i = 0; i < starts.size(); i++) {
+                long end = (i + 1 < starts.size()) ? starts.get(i + 1) : -1;
+                segments.add(new DumpSegment(path, starts.get(i), end, true));
+            }
+        } else {
+            for (long start = 0; start < length; start += targetSize) {
+                long end = (start + targetSize < length) ? start + targetSize : -1;
+                segments.add(new DumpSegment(path, start, end, false));
+            }
+        }
+        return segments;
+    }
+
+    private boolean isBzip2() {
+        return FilenameUtils.getExtension(path.toString()).toLowerCase().startsWith("bz2");
+    }
+
+    /**
+     * Returns the offsets of the streams that begin segments of a bzip2 file.
+     * The first offset is always 0.
+     */
+    private List<Long> findBzip2Segments(long targetSize) throws IOException {
+        List<Long> starts = new ArrayList<Long>();
+        starts.add(0L);
+        long length = path.length();
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (findBzip2Stream(file, 1, Math.min(length, MULTISTREAM_PROBE_SIZE)) < 0) {
+                LOG.info("no second bzip2 stream found in " + path + "; reading it as a single segment");
+                return starts;
+            }
+            long pos = targetSize;
+            while (pos < length) {
+                long start = findBzip2Stream(file, pos, length);
+                if (start < 0) {
+                    break;
+                }
+                starts.add(start);
+                pos = start + targetSize;
+            }
+        } finally {
+            IOUtils.closeQuietly(file);
+        }
+        return starts;
+    }
+
+    /**
+     * Returns the offset of the first bzip2 stream that starts in [from, to), or -1.
+     */
+    static long findBzip2Stream(RandomAccessFile file, long from, long to) throws IOException {
+        int n = BZIP2_STREAM_START.length;
+        byte buffer[] = new byte[1024 * 1024];
+        for (long pos = from; pos < to; pos += buffer.length - n) {
+            file.seek(pos);
+            int len = 0;
+            while (len < buffer.length) {
+                int r = file.read(buffer, len, buffer.length - len);
+                if (r < 0) break;
+                len += r;
+            }
+            for (int i = 0; i + n <= len && pos + i < to; i++) {
+                if (isBzip2StreamStart(buffer, i)) {
+                    return pos + i;
+                }
+            }
+            if (len < buffer.length) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBzip2StreamStart(byte buffer[], int offset) {
+        for (int i = 0; i < BZIP2_STREAM_START.length; i++) {
+            byte b = buffer[offset + i];
+            if (i == 3) {
+                if (b < '1' || b > '9') return false;
+            } else if (b != BZIP2_STREAM_START[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public Iterator<String> iterator() {
         try {
@@ -2,18 +2,28 @@ package org.wikibrain.parser.xml;
 
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.DumpSegment;
 import org.wikibrain.parser.DumpSplitter;
 import org.wikibrain.parser.WpParseException;
 
 import java.io.File;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class DumpPageXmlParser implements Iterable<RawPage> {
     public static final Logger LOG = Logger.getLogger(DumpSplitter.class.getName());
 
+    /**
+     * Number of pages parsed by each task when a file cannot be split into segments.
+     */
+    private static final int PAGES_PER_TASK = 100;
+
     private final PageXmlParser parser;
+    private final int numThreads;
+    private final long segmentSize;
     DumpSplitter impl;
     LanguageInfo language;
 
@@ -22,14 +32,44 @@ public class DumpPageXmlParser implements Iterable<RawPage> {
      * @param language  TODO: read language from dump file!
      */
     public DumpPageXmlParser(File file, LanguageInfo language) {
+        this(file, language, 1);
+    }
+
+    /**
+     * Parses pages with the given number of threads.
+     * Iterators return pages in the same order regardless of the number of threads.
+     *
+     * @param file
+     * @param language
+     * @param numThreads If greater than one, the file is split into segments that
+     *                   are read and parsed in parallel.
+     */
+    public DumpPageXmlParser(File file, LanguageInfo language, int numThreads) {
+        this(file, language, numThreads, -1);
+    }
+
+    /**
+     * @param file
+     * @param language
+     * @param numThreads
+     * @param segmentSize The approximate size of each segment, in bytes of the file on disk,
+     *                    or -1 for the default size of DumpSplitter.
+     */
+    public DumpPageXmlParser(File file, LanguageInfo language, int numThreads, long segmentSize) {
         this.language = language;
         this.impl = new DumpSplitter(file);
         this.parser = new PageXmlParser(language);
+        this.numThreads = numThreads;
+        this.segmentSize = segmentSize;
     }
 
     @Override
     public Iterator<RawPage> iterator() {
-        return new IteratorImpl();
+        if (numThreads <= 1) {
+            return new IteratorImpl();
+        } else {
+            return new ParallelIteratorImpl();
+        }
     }
 
     public class IteratorImpl implements Iterator<RawPage> {
@@ -75,4 +115,186 @@ public class DumpPageXmlParser implements Iterable<RawPage> {
             throw new UnsupportedOperationException();
         }
     }
+
+    /**
+     * Reads and parses pages in a pool of threads while preserving their order.
+     *
+     * Each segment of the file becomes one task. If the file has a single segment
+     * (e.g. a gzipped or single stream bzip2 dump), the iterating thread splits it
+     * and hands batches of pages to the pool. At most numThreads + 1 tasks are
+     * outstanding, which bounds the memory used by parsed pages.
+     */
+    public class ParallelIteratorImpl implements Iterator<RawPage> {
+        private final ThreadPoolExecutor executor;
+        private final LinkedList<Future<List<RawPage>>> pending = new LinkedList<Future<List<RawPage>>>();
+        private final Iterator<DumpSegment> segments;
+        private DumpSegment.PageReader reader;
+        private Iterator<RawPage> batch = null;
+        private RawPage buff;
+
+        // PageXmlParser is not threadsafe
+        private final ThreadLocal<PageXmlParser> parsers = new ThreadLocal<PageXmlParser>() {
+            @Override
+            protected PageXmlParser initialValue() {
+                return new PageXmlParser(language);
+            }
+        };
+
+        public ParallelIteratorImpl() {
+            try {
+                List<DumpSegment> segmentList = (segmentSize > 0)
+                        ? impl.getSegments(segmentSize)
+                        : impl.getSegments();
+                if (segmentList.size() == 1) {
+                    segments = Collections.<DumpSegment>emptyList().iterator();
+                    reader = segmentList.get(0).openReader();
+                } else {
+                    segments = segmentList.iterator();
+                }
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "article iterator construction failed", e);
+                throw new RuntimeException(e);
+            }
+            executor = new ThreadPoolExecutor(numThreads, numThreads, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "dump-parser-" + impl.getPath().getName());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            // don't hold threads for an abandoned iterator
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public boolean hasNext() {
+            fillBuff();
+            return (buff != null);
+        }
+
+        private void fillBuff() {
+            while (buff == null) {
+                if (batch != null && batch.hasNext()) {
+                    buff = batch.next();
+                    return;
+                }
+                while (pending.size() <= numThreads) {
+                    Callable<List<RawPage>> task = nextTask();
+                    if (task == null) {
+                        break;
+                    }
+                    pending.add(executor.submit(task));
+                }
+                if (pending.isEmpty()) {
+                    executor.shutdown();
+                    return;
+                }
+                batch = waitFor(pending.removeFirst()).iterator();
+            }
+        }
+
+        /**
+         * Returns a task that parses the next segment or batch of pages, or null if none remain.
+         * @throws RuntimeException If reading the dump fails, so the dump is not silently truncated.
+         */
+        private Callable<List<RawPage>> nextTask() {
+            if (segments.hasNext()) {
+                final DumpSegment segment = segments.next();
+                return new Callable<List<RawPage>>() {
+                    @Override
+                    public List<RawPage> call() throws Exception {
+                        List<RawPage> pages = new ArrayList<RawPage>();
+                        DumpSegment.PageReader reader = segment.openReader();
+                        try {
+                            while (true) {
+                                String page = reader.next();
+                                if (page == null) {
+                                    break;
+                                }
+                                parse(page, pages);
+                            }
+                        } finally {
+                            reader.close();
+                        }
+                        return pages;
+                    }
+                };
+            }
+            if (reader == null) {
+                return null;
+            }
+            final List<String> texts = new ArrayList<String>();
+            try {
+                while (texts.size() < PAGES_PER_TASK) {
+                    String page = reader.next();
+                    if (page == null) {
+                        reader = null;
+                        break;
+                    }
+                    texts.add(page);
+                }
+            } catch (IOException e) {
+                reader.close();
+                reader = null;
+                executor.shutdownNow();
+                pending.clear();
+                throw new RuntimeException("reading " + impl.getPath() + " failed", e);
+            }
+            if (texts.isEmpty()) {
+                return null;
+            }
+            return new Callable<List<RawPage>>() {
+                @Override
+                public List<RawPage> call() throws Exception {
+                    List<RawPage> pages = new ArrayList<RawPage>();
+                    for (String text : texts) {
+                        parse(text, pages);
+                    }
+                    return pages;
+                }
+            };
+        }
+
+        private void parse(String text, List<RawPage> pages) {
+            try {
+                pages.add(parsers.get().parse(text));
+            } catch (WpParseException e) {
+                LOG.log(Level.WARNING, "parsing of " + impl.getPath() + " failed:", e);
+            }
+        }
+
+        /**
+         * Returns the pages parsed by a task.
+         * @throws RuntimeException If the task failed, so its pages are not silently lost.
+         */
+        private List<RawPage> waitFor(Future<List<RawPage>> future) {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                executor.shutdownNow();
+                pending.clear();
+                throw new RuntimeException("parsing of " + impl.getPath() + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public RawPage next() {
+            fillBuff();
+            RawPage next = buff;
+            buff = null;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
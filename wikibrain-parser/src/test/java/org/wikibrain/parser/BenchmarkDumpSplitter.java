@@ -0,0 +1,117 @@
+package org.wikibrain.parser;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.xml.DumpPageXmlParser;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput, in pages per second, of splitting and parsing a dump
+ * sequentially and with parallel segments.
+ *
+ * Without arguments, it builds an uncompressed and a multistream bzip2 dump by
+ * repeating the pages of the english test dump.
+ *
+ * Usage: BenchmarkDumpSplitter [dump_file lang_code]
+ */
+public class BenchmarkDumpSplitter {
+    public static int NUM_COPIES = 50;
+    public static int PAGES_PER_STREAM = 100;
+
+    public static void main(String args[]) throws IOException {
+        if (args.length >= 2) {
+            benchmark(new File(args[0]), LanguageInfo.getByLangCode(args[1]));
+            return;
+        }
+        File xml = File.createTempFile("dump", ".xml");
+        File bz2 = File.createTempFile("dump", ".xml.bz2");
+        xml.deleteOnExit();
+        bz2.deleteOnExit();
+        writeDumps(xml, bz2);
+        LanguageInfo en = LanguageInfo.getByLangCode("en");
+        benchmark(xml, en);
+        benchmark(bz2, en);
+    }
+
+    private static void benchmark(File dump, LanguageInfo lang) throws IOException {
+        System.err.println("dump " + dump + " has " + dump.length() + " bytes and " +
+                new DumpSplitter(dump).getSegments().size() + " segments");
+
+        long t1 = System.currentTimeMillis();
+        int n = 0;
+        for (String text : new DumpSplitter(dump)) {
+            n++;
+        }
+        report("DumpSplitter", n, t1);
+
+        t1 = System.currentTimeMillis();
+        n = 0;
+        for (DumpSegment segment : new DumpSplitter(dump).getSegments()) {
+            n += segment.readPages().size();
+        }
+        report("DumpSegments", n, t1);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int numThreads = 1; numThreads <= Math.max(2, maxThreads); numThreads *= 2) {
+            t1 = System.currentTimeMillis();
+            n = 0;
+            for (RawPage page : new DumpPageXmlParser(dump, lang, numThreads)) {
+                n++;
+            }
+            report("DumpPageXmlParser threads=" + numThreads, n, t1);
+        }
+    }
+
+    private static void report(String name, int numPages, long start) {
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        System.err.println(String.format("%s: %d pages in %.2f seconds (%.0f pages/s)",
+                name, numPages, seconds, numPages / seconds));
+    }
+
+    /**
+     * Writes the header, copies of the test pages, and the footer of the test dump.
+     * The bzip2 dump has a stream for every PAGES_PER_STREAM pages, like the
+     * multistream dumps from wikimedia.
+     */
+    private static void writeDumps(File xml, File bz2) throws IOException {
+        String text = FileUtils.readFileToString(TestDumpSplitter.EN_DUMP, "UTF-8");
+        String header = text.substring(0, text.indexOf(DumpSplitter.ARTICLE_BEGIN));
+        String footer = text.substring(text.lastIndexOf(DumpSplitter.ARTICLE_END) + DumpSplitter.ARTICLE_END.length());
+        List<String> pages = new ArrayList<String>();
+        for (String page : new DumpSplitter(TestDumpSplitter.EN_DUMP)) {
+            pages.add(page);
+        }
+
+        OutputStream xmlOut = new BufferedOutputStream(new FileOutputStream(xml));
+        OutputStream bz2Out = new BufferedOutputStream(new FileOutputStream(bz2));
+        StringBuilder stream = new StringBuilder(header);
+        int numPages = 0;
+        for (int i = 0; i < NUM_COPIES; i++) {
+            for (String page : pages) {
+                stream.append(page);
+                if (++numPages % PAGES_PER_STREAM == 0) {
+                    writeStream(stream, xmlOut, bz2Out);
+                }
+            }
+        }
+        stream.append(footer);
+        writeStream(stream, xmlOut, bz2Out);
+        xmlOut.close();
+        bz2Out.close();
+        System.err.println("wrote " + numPages + " pages");
+    }
+
+    private static void writeStream(StringBuilder stream, OutputStream xmlOut, OutputStream bz2Out) throws IOException {
+        byte bytes[] = stream.toString().getBytes("UTF-8");
+        xmlOut.write(bytes);
+        BZip2CompressorOutputStream out = new BZip2CompressorOutputStream(bz2Out);
+        out.write(bytes);
+        out.finish();
+        stream.setLength(0);
+    }
+}
@@ -6,7 +6,9 @@ import org.wikibrain.parser.xml.DumpPageXmlParser;
 import org.wikibrain.core.model.RawPage;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -49,4 +51,29 @@ public class TestDumpPageParser {
             i++;
         }
     }
+
+    @Test
+    public void testParallel() {
+        List<RawPage> expected = readAll(new DumpPageXmlParser(EN_DUMP, EN));
+        assertEquals(44, expected.size());
+        for (long segmentSize : new long[] { -1, 10000 }) {
+            List<RawPage> actual = readAll(new DumpPageXmlParser(EN_DUMP, EN, 3, segmentSize));
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getTitle(), actual.get(i).getTitle());
+                assertEquals(expected.get(i).getLocalId(), actual.get(i).getLocalId());
+                assertEquals(expected.get(i).getRevisionId(), actual.get(i).getRevisionId());
+                assertEquals(expected.get(i).getLastEdit(), actual.get(i).getLastEdit());
+                assertEquals(expected.get(i).getBody(), actual.get(i).getBody());
+            }
+        }
+    }
+
+    private static List<RawPage> readAll(DumpPageXmlParser parser) {
+        List<RawPage> pages = new ArrayList<RawPage>();
+        for (RawPage page : parser) {
+            pages.add(page);
+        }
+        return pages;
+    }
 }
@@ -1,9 +1,17 @@
 package org.wikibrain.parser;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class TestDumpSplitter {
     public static final File EN_DUMP = new File("src/test/resources/org/wikibrain/parser/en_test.xml");
@@ -70,4 +78,87 @@ public class TestDumpSplitter {
             i++;
         }
     }
+
+    @Test
+    public void testSegments() throws IOException {
+        List<String> expected = readAll(EN_DUMP);
+        for (long size : new long[] { 1009, 65537, EN_DUMP.length() / 2, EN_DUMP.length() }) {
+            assertEquals(expected, readSegments(new DumpSplitter(EN_DUMP).getSegments(size)));
+        }
+    }
+
+    @Test
+    public void testEverySegmentBoundary() throws IOException {
+        File dump = File.createTempFile("segments", ".xml");
+        dump.deleteOnExit();
+        FileUtils.writeStringToFile(dump,
+                "<mediawiki>\n" +
+                "  <siteinfo>\n  </siteinfo>\n" +
+                "  <page>\n    <title>A</title>\n  </page>\n" +
+                "  <page>  \r\n    <title>B \u00e9\u4e2d</title>\r\n    x<page>\r\n  </page>\r\n" +
+                "<page>\r    <title>C</title>\r</page>\r" +
+                "\n\n  <page>\n    <title>D</title>\n",
+                "UTF-8");
+        List<String> expected = readAll(dump);
+        assertEquals(4, expected.size());
+
+        for (int size = 1; size <= dump.length(); size++) {
+            assertEquals(expected, readSegments(new DumpSplitter(dump).getSegments(size)));
+        }
+        for (long offset = 1; offset < dump.length(); offset++) {
+            List<DumpSegment> segments = Arrays.asList(
+                    new DumpSegment(dump, 0, offset, false),
+                    new DumpSegment(dump, offset, -1, false));
+            assertEquals("split at " + offset, expected, readSegments(segments));
+        }
+    }
+
+    @Test
+    public void testMultistreamBzip2() throws IOException {
+        byte[] xml = FileUtils.readFileToByteArray(EN_DUMP);
+        File bz2 = File.createTempFile("multistream", ".xml.bz2");
+        bz2.deleteOnExit();
+        OutputStream out = new FileOutputStream(bz2);
+        for (int i = 0; i < xml.length; i += 20000) {
+            BZip2CompressorOutputStream stream = new BZip2CompressorOutputStream(out);
+            stream.write(xml, i, Math.min(20000, xml.length - i));
+            stream.finish();
+        }
+        out.close();
+
+        List<String> expected = readAll(EN_DUMP);
+        assertEquals(expected, readAll(bz2));
+        List<DumpSegment> segments = new DumpSplitter(bz2).getSegments(10000);
+        assertTrue(segments.size() > 10);
+        assertEquals(expected, readSegments(segments));
+    }
+
+    @Test
+    public void testSingleStreamBzip2() throws IOException {
+        File bz2 = File.createTempFile("singlestream", ".xml.bz2");
+        bz2.deleteOnExit();
+        BZip2CompressorOutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(bz2));
+        out.write(FileUtils.readFileToByteArray(EN_DUMP));
+        out.close();
+
+        List<DumpSegment> segments = new DumpSplitter(bz2).getSegments(10000);
+        assertEquals(1, segments.size());
+        assertEquals(readAll(EN_DUMP), readSegments(segments));
+    }
+
+    private static List<String> readAll(File path) {
+        List<String> pages = new ArrayList<String>();
+        for (String text : new DumpSplitter(path)) {
+            pages.add(text);
+        }
+        return pages;
+    }
+
+    private static List<String> readSegments(List<DumpSegment> segments) throws IOException {
+        List<String> pages = new ArrayList<String>();
+        for (DumpSegment segment : segments) {
+            pages.addAll(segment.readPages());
+        }
+        return pages;
+    }
 }
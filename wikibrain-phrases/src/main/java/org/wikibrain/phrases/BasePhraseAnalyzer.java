@@ -1,6 +1,5 @@
 package org.wikibrain.phrases;
 
-import com.google.code.externalsorting.ExternalSort;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
@@ -8,13 +7,19 @@ import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.lang.StringNormalizer;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.Title;
-import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * Base implementation of a phrase analyzer.
@@ -22,6 +27,7 @@ import java.util.logging.Logger;
  */
 public abstract class BasePhraseAnalyzer implements PhraseAnalyzer {
     private static final Logger LOG = Logger.getLogger(PhraseAnalyzer.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     /**
      * An entry in the phrase corpus.
@@ -77,65 +83,113 @@ public abstract class BasePhraseAnalyzer implements PhraseAnalyzer {
     /**
      * Loads a specific corpus into the dao.
      *
+     * Entries are resolved and normalized in parallel and added as binary records to two
+     * external sorts, one grouping entries by page and one by phrase. Each sorted group
+     * is then pruned and saved to the dao in parallel.
+     *
      * @throws DaoException
      * @throws IOException
      */
     @Override
-    public void loadCorpus(LanguageSet langs) throws DaoException, IOException {
-        // create temp files for storing corpus entries by phrase and local id.
-        // these will ultimately be sorted to group together records with the same phrase / id.
-        File byWpIdFile = File.createTempFile("wp_phrases_by_id", "txt");
-        byWpIdFile.deleteOnExit();
-        BufferedWriter byWpId = WpIOUtils.openWriter(byWpIdFile);
-        File byPhraseFile = File.createTempFile("wp_phrases_by_phrase", "txt");
-        byPhraseFile.deleteOnExit();
-        BufferedWriter byPhrase = WpIOUtils.openWriter(byPhraseFile);
-
-        // Iterate over each entry in the corpus.
-        // Throws away entries in languages we don't care about.
-        // Resolve titles to ids if necessary.
-        // Write entries to the by phrase / id files.
-        long numEntries = 0;
-        long numEntriesRetained = 0;
-        for (Entry e : getCorpus(langs)) {
-            if (++numEntries % 1000000 == 0) {
-                double p = 100.0 * numEntriesRetained / numEntries;
-                LOG.info("processing entry: " + numEntries +
-                        ", retained " + numEntriesRetained +
-                        "(" + new DecimalFormat("#.#").format(p) + "%)");
-            }
-            if (!langs.containsLanguage(e.language)) {
-                continue;
-            }
-            if (e.phrase == null || e.phrase.trim().isEmpty()) {
-                continue;
-            }
-            if (e.title != null && e.localId < 0) {
-                int localId = pageDao.getIdByTitle(new Title(e.title, e.language));
-                e.localId = (localId <= 0) ? -1 : localId;
-            }
-            if (e.localId < 0) {
-                continue;
-            }
-            numEntriesRetained++;
-            e.phrase = e.phrase.replace("\n", " ").replace("\t", " ");
-            // phrase is last because it may contain tabs.
-            String line = e.language.getLangCode() + "\t" + e.localId + "\t" + e.count + "\t" + e.phrase + "\n";
-            byPhrase.write(e.language.getLangCode() + ":" + normalize(e.language, e.phrase) + "\t" + line);
-            byWpId.write(e.language.getLangCode() + ":" + e.localId + "\t" + line);
-        }
-        byWpId.close();
-        byPhrase.close();
+    public void loadCorpus(final LanguageSet langs) throws DaoException, IOException {
+        int numThreads = WpThreadUtils.getMaxThreads();
+        long maxMemory = Runtime.getRuntime().maxMemory() / 4;
+        final RecordSorter byPage = new RecordSorter(maxMemory / 2, numThreads);
+        final RecordSorter byPhrase = new RecordSorter(maxMemory / 2, numThreads);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        try {
+            // Iterate over each entry in the corpus.
+            // Throws away entries in languages we don't care about.
+            // Resolve titles to ids if necessary.
+            // Write entries to the by phrase / id sorters.
+            long start = System.currentTimeMillis();
+            final AtomicLong numEntries = new AtomicLong();
+            final AtomicLong numEntriesRetained = new AtomicLong();
+            ParallelForEach.iterate(
+                    new Batches<Entry>(getCorpus(langs).iterator(), BATCH_SIZE),
+                    numThreads,
+                    numThreads * 2,
+                    new Procedure<List<Entry>>() {
+                        @Override
+                        public void call(List<Entry> batch) throws Exception {
+                            try {
+                                for (Entry e : batch) {
+                                    long n = numEntries.incrementAndGet();
+                                    if (n % 1000000 == 0) {
+                                        double p = 100.0 * numEntriesRetained.get() / n;
+                                        LOG.info("processing entry: " + n +
+                                                ", retained " + numEntriesRetained.get() +
+                                                "(" + new DecimalFormat("#.#").format(p) + "%)");
+                                    }
+                                    if (addEntry(langs, e, byPage, byPhrase)) {
+                                        numEntriesRetained.incrementAndGet();
+                                    }
+                                }
+                            } catch (Exception e) {
+                                error.compareAndSet(null, e);
+                                throw e;
+                            }
+                        }
+                    },
+                    Integer.MAX_VALUE);
+            checkError(error);
+            LOG.info("read " + numEntries.get() + " entries and retained " + numEntriesRetained.get() +
+                    " in " + elapsed(start) + " seconds");
 
-        // sort phrases by phrase / id and load them
-        sortInPlace(byWpIdFile);
-        loadFromFile(RecordType.PAGES, byWpIdFile, phrasePruner);
-        sortInPlace(byPhraseFile);
-        loadFromFile(RecordType.PHRASES, byPhraseFile, pagePruner);
+            // sort records by phrase / id and load them
+            start = System.currentTimeMillis();
+            loadGroups(RecordType.PAGES, byPage.sort(), phrasePruner, numThreads, error);
+            LOG.info("sorted and loaded pages in " + elapsed(start) + " seconds");
+            start = System.currentTimeMillis();
+            loadGroups(RecordType.PHRASES, byPhrase.sort(), pagePruner, numThreads, error);
+            LOG.info("sorted and loaded phrases in " + elapsed(start) + " seconds");
+        } finally {
+            byPage.close();
+            byPhrase.close();
+        }
 
         phraseDao.close();
     }
 
+    private static final int BATCH_SIZE = 1000;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Adds a corpus entry to the sorters if it should be retained.
+     *
+     * Records keyed by page contain the count and the original phrase.
+     * Records keyed by normalized phrase contain the page id and count.
+     */
+    private boolean addEntry(LanguageSet langs, Entry e, RecordSorter byPage, RecordSorter byPhrase) throws DaoException, IOException {
+        if (e == null || !langs.containsLanguage(e.language)) {
+            return false;
+        }
+        if (e.phrase == null || e.phrase.trim().isEmpty()) {
+            return false;
+        }
+        if (e.title != null && e.localId < 0) {
+            int localId = pageDao.getIdByTitle(new Title(e.title, e.language));
+            e.localId = (localId <= 0) ? -1 : localId;
+        }
+        if (e.localId < 0) {
+            return false;
+        }
+        e.phrase = e.phrase.replace("\n", " ").replace("\t", " ");
+        String langCode = e.language.getLangCode();
+        byte phrase[] = e.phrase.getBytes(UTF8);
+        ByteBuffer pageKey = ByteBuffer.allocate(langCode.length() + 5);
+        pageKey.put(langCode.getBytes(UTF8)).put((byte) ':').putInt(e.localId);
+        ByteBuffer pageValue = ByteBuffer.allocate(4 + phrase.length);
+        pageValue.putInt(e.count).put(phrase);
+        byPage.add(pageKey.array(), pageValue.array());
+
+        byte phraseKey[] = (langCode + ":" + normalize(e.language, e.phrase)).getBytes(UTF8);
+        ByteBuffer phraseValue = ByteBuffer.allocate(8);
+        phraseValue.putInt(e.localId).putInt(e.count);
+        byPhrase.add(phraseKey, phraseValue.array());
+        return true;
+    }
+
     /**
      * Uses the string's normalizer, but replaces adjacent whitespace white a single space
      * @param lang
@@ -143,74 +197,58 @@ public abstract class BasePhraseAnalyzer implements PhraseAnalyzer {
      * @return
      */
     private String normalize(Language lang, String text) {
-        return normalizer.normalize(lang, text).replaceAll("\\s+", " ");
+        return WHITESPACE.matcher(normalizer.normalize(lang, text)).replaceAll(" ");
     }
 
     private static enum RecordType {
         PAGES, PHRASES
     }
 
-    protected void loadFromFile(RecordType ltype, File input, PrunedCounts.Pruner pruner) throws IOException, DaoException {
-        BufferedReader reader = WpIOUtils.openBufferedReader(input);
-        String lastKey = null;
-
-        int maxBufferSize = 1000;
-        List<Entry> buffer = new ArrayList<Entry>();
-
-        while (true) {
-            String line = reader.readLine();
-            if (line == null) {
-                break;
-            }
-            String tokens[] = line.split("\t", 5);
-            if (tokens.length != 5) {
-                LOG.warning("invalid line in file " + input + ": " + line);
-                continue;
-            }
-
-            // if new id, write out buffer and clear it
-            if (lastKey != null && !tokens[0].equals(lastKey)) {
-                if (ltype == RecordType.PAGES) {
-                    writePage(buffer, pruner);
-                } else {
-                    writePhrase(buffer, pruner);
-                }
-                buffer.clear();
-            }
-            Entry e = new Entry(
-                    Language.getByLangCode(tokens[1]),
-                    new Integer(tokens[2]),
-                    tokens[4],
-                    new Integer(tokens[3])
-            );
-            buffer.add(e);
-            if (buffer.size() > maxBufferSize * 3 / 2) {
-                LOG.warning("large buffer observed: " + buffer.size() + " for string " + lastKey);
-                maxBufferSize = buffer.size();
-            }
-            lastKey = tokens[0];
-        }
-        if (ltype == RecordType.PAGES) {
-            writePage(buffer, pruner);
-        } else {
-            writePhrase(buffer, pruner);
-        }
+    /**
+     * Prunes and saves each group of sorted records with the same key, in parallel.
+     */
+    protected void loadGroups(final RecordType ltype, Iterator<RecordSorter.Record> records,
+                              final PrunedCounts.Pruner pruner, int numThreads,
+                              final AtomicReference<Exception> error) throws DaoException, IOException {
+        ParallelForEach.iterate(
+                new Batches<List<RecordSorter.Record>>(new Groups(records), BATCH_SIZE),
+                numThreads,
+                numThreads * 2,
+                new Procedure<List<List<RecordSorter.Record>>>() {
+                    @Override
+                    public void call(List<List<RecordSorter.Record>> groups) throws Exception {
+                        try {
+                            for (List<RecordSorter.Record> group : groups) {
+                                if (ltype == RecordType.PAGES) {
+                                    writePage(group, pruner);
+                                } else {
+                                    writePhrase(group, pruner);
+                                }
+                            }
+                        } catch (Exception e) {
+                            error.compareAndSet(null, e);
+                            throw e;
+                        }
+                    }
+                },
+                Integer.MAX_VALUE);
+        checkError(error);
     }
 
-    protected void writePage(List<Entry> pageCounts, PrunedCounts.Pruner pruner) throws DaoException {
-        if (pageCounts.isEmpty()) {
-            return;
-        }
-        Language lang = pageCounts.get(0).language;
-        int wpId = pageCounts.get(0).localId;
+    protected void writePage(List<RecordSorter.Record> group, PrunedCounts.Pruner pruner) throws DaoException {
+        byte key[] = group.get(0).key;
+        int colon = key.length - 5;
+        Language lang = Language.getByLangCode(new String(key, 0, colon, UTF8));
+        int wpId = ByteBuffer.wrap(key, colon + 1, 4).getInt();
         Map<String, Integer> counts = new HashMap<String, Integer>();
-        for (Entry e : pageCounts) {
-            if (e.localId != wpId) throw new IllegalStateException();
-            if (e.language != lang) throw new IllegalStateException();
-            if (counts.containsKey(e.phrase)) {
-                counts.put(e.phrase, counts.get(e.phrase) + e.count);
+        for (RecordSorter.Record r : group) {
+            ByteBuffer value = ByteBuffer.wrap(r.value);
+            int count = value.getInt();
+            String phrase = new String(r.value, 4, r.value.length - 4, UTF8);
+            if (counts.containsKey(phrase)) {
+                counts.put(phrase, counts.get(phrase) + count);
             } else {
-                counts.put(e.phrase, e.count);
+                counts.put(phrase, count);
             }
         }
         PrunedCounts<String> pruned = pruner.prune(counts);
@@ -219,24 +257,20 @@ public abstract class BasePhraseAnalyzer implements PhraseAnalyzer {
         }
     }
 
-    protected void writePhrase(List<Entry> pageCounts, PrunedCounts.Pruner pruner) throws DaoException {
-        if (pageCounts.isEmpty()) {
-            return;
-        }
-        Language lang = pageCounts.get(0).language;
-        String phrase = normalize(lang, pageCounts.get(0).phrase);
+    protected void writePhrase(List<RecordSorter.Record> group, PrunedCounts.Pruner pruner) throws DaoException {
+        String key = new String(group.get(0).key, UTF8);
+        int colon = key.indexOf(':');
+        Language lang = Language.getByLangCode(key.substring(0, colon));
+        String phrase = key.substring(colon + 1);
         Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
-        for (Entry e : pageCounts) {
-            if (!normalize(lang, e.phrase).equals(phrase)) {
-                LOG.warning("disagreement between phrases " + phrase + " and " + e.phrase);
-            }
-            if (e.language != lang) {
-                LOG.warning("disagreement between languages " + lang+ " and " + e.language);
-            }
-            if (counts.containsKey(e.localId)) {
-                counts.put(e.localId, counts.get(e.localId) + e.count);
+        for (RecordSorter.Record r : group) {
+            ByteBuffer value = ByteBuffer.wrap(r.value);
+            int localId = value.getInt();
+            int count = value.getInt();
+            if (counts.containsKey(localId)) {
+                counts.put(localId, counts.get(localId) + count);
             } else {
-                counts.put(e.localId, e.count);
+                counts.put(localId, count);
             }
         }
         PrunedCounts<Integer> pruned = pruner.prune(counts);
@@ -245,16 +279,93 @@ public abstract class BasePhraseAnalyzer implements PhraseAnalyzer {
         }
     }
 
-    private void sortInPlace(File file) throws IOException {
-        int maxFiles = Math.max(100, (int) (file.length() / (Runtime.getRuntime().maxMemory() / 20)));
-        LOG.info("sorting " + file + " using max of " + maxFiles);
-        Comparator<String> comparator = new Comparator<String>() {
-            public int compare(String r1, String r2){
-                return r1.compareTo(r2);}};
-        List<File> l = ExternalSort.sortInBatch(file, comparator, maxFiles, Charset.forName("utf-8"), null, false);
-        LOG.info("merging " + file);
-        ExternalSort.mergeSortedFiles(l, file, comparator, Charset.forName("utf-8"));
-        LOG.info("finished sorting" + file);
+    private static void checkError(AtomicReference<Exception> error) throws DaoException, IOException {
+        Exception e = error.get();
+        if (e instanceof DaoException) {
+            throw (DaoException) e;
+        } else if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new DaoException(e);
+        }
+    }
+
+    private static String elapsed(long start) {
+        return new DecimalFormat("#.#").format((System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    /**
+     * Groups consecutive records with the same key.
+     */
+    private static class Groups implements Iterator<List<RecordSorter.Record>> {
+        private final Iterator<RecordSorter.Record> records;
+        private RecordSorter.Record next;
+
+        Groups(Iterator<RecordSorter.Record> records) {
+            this.records = records;
+            this.next = records.hasNext() ? records.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public List<RecordSorter.Record> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            List<RecordSorter.Record> group = new ArrayList<RecordSorter.Record>();
+            group.add(next);
+            next = null;
+            while (records.hasNext()) {
+                RecordSorter.Record r = records.next();
+                if (RecordSorter.compareKeys(r.key, group.get(0).key) != 0) {
+                    next = r;
+                    break;
+                }
+                group.add(r);
+            }
+            return group;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Splits an iterator into lists of up to batchSize elements.
+     */
+    private static class Batches<T> implements Iterator<List<T>> {
+        private final Iterator<T> iterator;
+        private final int batchSize;
+
+        Batches(Iterator<T> iterator, int batchSize) {
+            this.iterator = iterator;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public List<T> next() {
+            List<T> batch = new ArrayList<T>(batchSize);
+            while (batch.size() < batchSize && iterator.hasNext()) {
+                batch.add(iterator.next());
+            }
+            return batch;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
 
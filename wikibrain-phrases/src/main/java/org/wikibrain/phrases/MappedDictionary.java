@@ -0,0 +1,287 @@
+package org.wikibrain.phrases;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable, memory mapped map from byte string keys to byte string values.
+ *
+ * The file contains a header, the values, the value and key offsets, the keys,
+ * and the entry numbers sorted by key. Lookups are a binary search that compares
+ * the mapped key bytes directly, so opening a dictionary reads nothing and a
+ * lookup allocates nothing beyond the key being searched for.
+ *
+ * Each section must be smaller than 2GB.
+ */
+class MappedDictionary implements Closeable {
+    static final int FILE_HEADER = 0xd1c70001;
+
+    /**
+     * Magic, num entries, num sorted keys, padding, offset of the key section,
+     * and offset of the sorted index.
+     */
+    static final int HEADER_SIZE = 32;
+
+    private final File path;
+    private final FileChannel channel;
+    private final int numEntries;
+    private final int numKeys;
+    private final ByteBuffer values;
+    private final IntBuffer valueOffsets;
+    private final IntBuffer keyOffsets;
+    private final ByteBuffer keyBytes;
+    private final IntBuffer sortedEntries;
+
+    MappedDictionary(File path) throws IOException {
+        this.path = path;
+        this.channel = new FileInputStream(path).getChannel();
+        try {
+            ByteBuffer header = map(0, HEADER_SIZE);
+            if (header.getInt(0) != FILE_HEADER) {
+                throw new IOException("invalid file header in " + path + ": " + header.getInt(0));
+            }
+            numEntries = header.getInt(4);
+            numKeys = header.getInt(8);
+            long offsetsStart = header.getLong(16);
+            long indexStart = header.getLong(24);
+
+            values = map(HEADER_SIZE, offsetsStart - HEADER_SIZE);
+            valueOffsets = map(offsetsStart, 4L * (numEntries + 1)).asIntBuffer();
+            keyOffsets = map(offsetsStart + 4L * (numEntries + 1), 4L * (numEntries + 1)).asIntBuffer();
+            long keysStart = offsetsStart + 8L * (numEntries + 1);
+            keyBytes = map(keysStart, indexStart - keysStart);
+            sortedEntries = map(indexStart, 4L * numKeys).asIntBuffer();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private ByteBuffer map(long start, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("section of " + size + " bytes is too large to map in " + path);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    int size() {
+        return numKeys;
+    }
+
+    /**
+     * @return The entry with the key, or -1 if there is none.
+     */
+    int find(byte[] key) {
+        int lo = 0;
+        int hi = numKeys - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareKey(sortedEntries.get(mid), key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return sortedEntries.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The little endian bytes of the entry's value. The buffer shares the mapped memory.
+     */
+    ByteBuffer getValue(int entry) {
+        int start = valueOffsets.get(entry);
+        int end = valueOffsets.get(entry + 1);
+        ByteBuffer value = values.duplicate();
+        value.limit(end).position(start);
+        return value.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int compareKey(int entry, byte[] target) {
+        int start = keyOffsets.get(entry);
+        int length = keyOffsets.get(entry + 1) - start;
+        int n = Math.min(length, target.length);
+        for (int i = 0; i < n; i++) {
+            int c = (keyBytes.get(start + i) & 0xff) - (target[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - target.length;
+    }
+
+    File getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes a dictionary one entry at a time. Keys are kept in memory until finish(),
+     * values are streamed to disk. If a key is added more than once, its last value wins.
+     */
+    static class Writer {
+        private final File path;
+        private final OutputStream output;
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+        private final TIntArrayList valueOffsets = new TIntArrayList();
+        private long valueBytes = 0;
+
+        Writer(File path) throws IOException {
+            this.path = path;
+            this.output = new BufferedOutputStream(new FileOutputStream(path), 1024 * 1024);
+            output.write(new byte[HEADER_SIZE]);     // rewritten by finish()
+        }
+
+        synchronized void add(byte[] key, byte[] value) throws IOException {
+            if (valueBytes + value.length > Integer.MAX_VALUE) {
+                throw new IOException("values are too large for dictionary " + path);
+            }
+            valueOffsets.add((int) valueBytes);
+            keys.add(key);
+            output.write(value);
+            valueBytes += value.length;
+        }
+
+        synchronized void finish() throws IOException {
+            int numEntries = keys.size();
+            valueOffsets.add((int) valueBytes);
+            long offsetsStart = HEADER_SIZE + valueBytes;
+
+            ByteBuffer buffer = ByteBuffer.allocate(4 * (numEntries + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asIntBuffer().put(valueOffsets.toArray());
+            output.write(buffer.array());
+
+            buffer.clear();
+            int offset = 0;
+            for (byte[] key : keys) {
+                buffer.putInt(offset);
+                offset += key.length;
+            }
+            buffer.putInt(offset);
+            output.write(buffer.array());
+            for (byte[] key : keys) {
+                output.write(key);
+            }
+            long indexStart = offsetsStart + 8L * (numEntries + 1) + offset;
+
+            int sorted[] = getSortedEntries();
+            buffer = ByteBuffer.allocate(4 * sorted.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asIntBuffer().put(sorted);
+            output.write(buffer.array());
+            output.close();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(FILE_HEADER);
+            header.putInt(numEntries);
+            header.putInt(sorted.length);
+            header.putInt(0);
+            header.putLong(offsetsStart);
+            header.putLong(indexStart);
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                file.write(header.array());
+            } finally {
+                file.close();
+            }
+            keys.clear();
+        }
+
+        /**
+         * Returns entries sorted by key, keeping only the last entry of each key.
+         */
+        private int[] getSortedEntries() {
+            int entries[] = new int[keys.size()];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = i;
+            }
+            sortEntries(entries, 0, entries.length);
+            TIntArrayList unique = new TIntArrayList(entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                if (i == 0 || compareBytes(keys.get(entries[i - 1]), keys.get(entries[i])) != 0) {
+                    unique.add(entries[i]);
+                }
+            }
+            return unique.toArray();
+        }
+
+        /**
+         * Orders entries by key, and entries with equal keys from last added to first.
+         */
+        private int compareEntries(int e1, int e2) {
+            int c = compareBytes(keys.get(e1), keys.get(e2));
+            return (c != 0) ? c : e2 - e1;
+        }
+
+        /**
+         * Quicksorts entries[from, to) in place, so entries need not be boxed.
+         * Recurses on the smaller partition to bound the depth of the stack.
+         */
+        private void sortEntries(int[] entries, int from, int to) {
+            while (to - from > 16) {
+                int mid = (from + to) >>> 1;
+                if (compareEntries(entries[mid], entries[from]) < 0) swap(entries, mid, from);
+                if (compareEntries(entries[to - 1], entries[from]) < 0) swap(entries, to - 1, from);
+                if (compareEntries(entries[to - 1], entries[mid]) < 0) swap(entries, to - 1, mid);
+                int pivot = entries[mid];
+                int i = from, j = to - 1;
+                while (i <= j) {
+                    while (compareEntries(entries[i], pivot) < 0) i++;
+                    while (compareEntries(entries[j], pivot) > 0) j--;
+                    if (i <= j) {
+                        swap(entries, i++, j--);
+                    }
+                }
+                if (j + 1 - from < to - i) {
+                    sortEntries(entries, from, j + 1);
+                    from = i;
+                } else {
+                    sortEntries(entries, i, to);
+                    to = j + 1;
+                }
+            }
+            for (int i = from + 1; i < to; i++) {
+                int e = entries[i];
+                int j = i - 1;
+                while (j >= from && compareEntries(entries[j], e) > 0) {
+                    entries[j + 1] = entries[j];
+                    j--;
+                }
+                entries[j + 1] = e;
+            }
+        }
+
+        private static void swap(int[] entries, int i, int j) {
+            int tmp = entries[i];
+            entries[i] = entries[j];
+            entries[j] = tmp;
+        }
+
+        private static int compareBytes(byte[] b1, byte[] b2) {
+            int n = Math.min(b1.length, b2.length);
+            for (int i = 0; i < n; i++) {
+                int c = (b1[i] & 0xff) - (b2[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return b1.length - b2.length;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.wikibrain.phrases;
+
+import com.typesafe.config.Config;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.StringNormalizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+/**
+ * Persists information about phrases to page relationships in immutable memory mapped
+ * dictionaries, one for resolving phrases and one for describing pages.
+ *
+ * While loading, counts are streamed to disk and the dictionaries are sorted when the
+ * dao is closed. Afterwards the dao is read only. A phrase's pages are stored as packed
+ * (id, count) ints, so a lookup is a binary search over mapped keys followed by reading
+ * at most maxPages pairs, with no deserialization.
+ */
+public class PhraseAnalyzerMappedDao implements PhraseAnalyzerDao {
+    private final StringNormalizer normalizer;
+    private final File describePath;
+    private final File resolvePath;
+
+    private MappedDictionary.Writer describeWriter;
+    private MappedDictionary.Writer resolveWriter;
+    // published once loading finishes and read without locking
+    private volatile MappedDictionary describeDict;
+    private volatile MappedDictionary resolveDict;
+
+    /**
+     * Creates a new dao using the given directory.
+     * @param path
+     * @param isNew If true, delete any information contained in the directory and prepare to load.
+     * @throws DaoException
+     */
+    public PhraseAnalyzerMappedDao(StringNormalizer normalizer, File path, boolean isNew) throws DaoException {
+        this.normalizer = normalizer;
+        this.describePath = new File(path, "describe.dict");
+        this.resolvePath = new File(path, "resolve.dict");
+        try {
+            if (isNew) {
+                if (path.exists()) FileUtils.deleteQuietly(path);
+                path.mkdirs();
+                describeWriter = new MappedDictionary.Writer(describePath);
+                resolveWriter = new MappedDictionary.Writer(resolvePath);
+            } else {
+                describeDict = new MappedDictionary(describePath);
+                resolveDict = new MappedDictionary(resolvePath);
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void savePageCounts(Language lang, int wpId, PrunedCounts<String> counts) throws DaoException {
+        if (describeWriter == null) {
+            throw new DaoException("dao for " + describePath.getParent() + " is read only");
+        }
+        try {
+            byte phrases[][] = new byte[counts.size()][];
+            int size = 8;
+            int i = 0;
+            for (String phrase : counts.keySet()) {
+                phrases[i] = toBytes(phrase);
+                size += 8 + phrases[i].length;
+                i++;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(counts.getTotal());
+            buffer.putInt(counts.size());
+            i = 0;
+            for (int count : counts.values()) {
+                buffer.putInt(count);
+                buffer.putInt(phrases[i].length);
+                buffer.put(phrases[i]);
+                i++;
+            }
+            describeWriter.add(toBytes(lang.getLangCode() + ":" + wpId), buffer.array());
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void savePhraseCounts(Language lang, String phrase, PrunedCounts<Integer> counts) throws DaoException {
+        if (resolveWriter == null) {
+            throw new DaoException("dao for " + resolvePath.getParent() + " is read only");
+        }
+        phrase = normalizer.normalize(lang, phrase);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 8 * counts.size()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(counts.getTotal());
+        buffer.putInt(counts.size());
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            buffer.putInt(entry.getKey());
+            buffer.putInt(entry.getValue());
+        }
+        try {
+            resolveWriter.add(toBytes(lang.getLangCode() + ":" + phrase), buffer.array());
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public StringNormalizer getStringNormalizer() {
+        return normalizer;
+    }
+
+    /**
+     * Gets pages related to a phrase.
+     *
+     * @param lang
+     * @param phrase
+     * @param maxPages
+     * @return Map from page ids (in the local language) to the number of occurrences
+     * ordered by decreasing count.
+     * @throws DaoException
+     */
+    @Override
+    public PrunedCounts<Integer> getPhraseCounts(Language lang, String phrase, int maxPages) throws DaoException {
+        phrase = normalizer.normalize(lang, phrase);
+        MappedDictionary dict = getResolveDict();
+        int entry = dict.find(toBytes(lang.getLangCode() + ":" + phrase));
+        if (entry < 0) {
+            return null;
+        }
+        ByteBuffer value = dict.getValue(entry);
+        PrunedCounts<Integer> result = new PrunedCounts<Integer>(value.getInt(0));
+        int n = Math.min(maxPages, value.getInt(4));
+        for (int i = 0; i < n; i++) {
+            result.put(value.getInt(8 + 8 * i), value.getInt(12 + 8 * i));
+        }
+        return result;
+    }
+
+    /**
+     * Gets phrases related to a page.
+     * @param lang
+     * @param wpId Local page id
+     * @param maxPhrases
+     * @return Map from phrasese (in the local language) to the number of occurrences
+     * ordered by decreasing count.
+     * @throws DaoException
+     */
+    @Override
+    public PrunedCounts<String> getPageCounts(Language lang, int wpId, int maxPhrases) throws DaoException {
+        MappedDictionary dict = getDescribeDict();
+        int entry = dict.find(toBytes(lang.getLangCode() + ":" + wpId));
+        if (entry < 0) {
+            return null;
+        }
+        ByteBuffer value = dict.getValue(entry);
+        PrunedCounts<String> result = new PrunedCounts<String>(value.getInt());
+        int n = Math.min(maxPhrases, value.getInt());
+        for (int i = 0; i < n; i++) {
+            int count = value.getInt();
+            byte phrase[] = new byte[value.getInt()];
+            value.get(phrase);
+            result.put(toString(phrase), count);
+        }
+        return result;
+    }
+
+    private MappedDictionary getResolveDict() throws DaoException {
+        MappedDictionary dict = resolveDict;
+        if (dict == null) {
+            throw new DaoException("dao for " + resolvePath.getParent() + " has not finished loading");
+        }
+        return dict;
+    }
+
+    private MappedDictionary getDescribeDict() throws DaoException {
+        MappedDictionary dict = describeDict;
+        if (dict == null) {
+            throw new DaoException("dao for " + describePath.getParent() + " has not finished loading");
+        }
+        return dict;
+    }
+
+    /**
+     * Finishes writing the dictionaries if the dao is loading, after which they can be read.
+     * Otherwise unmaps them.
+     */
+    public synchronized void close() throws DaoException {
+        try {
+            if (resolveWriter != null) {
+                describeWriter.finish();
+                resolveWriter.finish();
+                describeWriter = null;
+                resolveWriter = null;
+                describeDict = new MappedDictionary(describePath);
+                resolveDict = new MappedDictionary(resolvePath);
+            } else {
+                IOUtils.closeQuietly(describeDict);
+                IOUtils.closeQuietly(resolveDict);
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toString(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<PhraseAnalyzerDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class<PhraseAnalyzerDao> getType() {
+            return PhraseAnalyzerDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "phrases.dao";
+        }
+
+        @Override
+        public PhraseAnalyzerDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("mapped")) {
+                return null;
+            }
+            boolean isNew = config.getBoolean("isNew");
+
+            File path = new File(getConfig().get().getString("phrases.path"), name);
+            StringNormalizer normalizer = getConfigurator().get(StringNormalizer.class, config.getString("normalizer"));
+
+            try {
+                return new PhraseAnalyzerMappedDao(normalizer, path, isNew);
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.wikibrain.phrases;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * An external sort of binary (key, value) records by the unsigned bytes of their keys.
+ *
+ * Records are buffered in memory until a buffer fills. The full buffer is then sorted
+ * and written to a run file on a background thread while later records fill a new
+ * buffer. At most numThreads buffers are sorted at once, which bounds memory. sort()
+ * merges the runs. If there are more than DEFAULT_MAX_FAN_IN runs, they are first
+ * merged in passes into fewer, longer runs, so the number of open files and read
+ * buffers stays bounded.
+ *
+ * add() may be called from many threads.
+ */
+class RecordSorter implements Closeable {
+    private static final Logger LOG = Logger.getLogger(RecordSorter.class.getName());
+
+    public static class Record {
+        public final byte[] key;
+        public final byte[] value;
+
+        public Record(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final Comparator<Record> KEY_ORDER = new Comparator<Record>() {
+        @Override
+        public int compare(Record r1, Record r2) {
+            return compareKeys(r1.key, r2.key);
+        }
+    };
+
+    /**
+     * The maximum number of runs merged at once.
+     */
+    public static final int DEFAULT_MAX_FAN_IN = 64;
+
+    private final File dir;
+    private final long bytesPerRun;
+    private final ExecutorService exec;
+    private final Semaphore runsInProgress;
+    private final List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+
+    private List<Record> buffer = new ArrayList<Record>();
+    private long bufferBytes = 0;
+    private long numRecords = 0;
+    private volatile IOException error;
+    private int maxFanIn = DEFAULT_MAX_FAN_IN;
+
+    /**
+     * @param maxMemory Approximate bytes of records held in memory.
+     * @param numThreads Number of runs sorted at once.
+     */
+    RecordSorter(long maxMemory, int numThreads) throws IOException {
+        this.dir = WpIOUtils.createTempDirectory("records");
+        this.bytesPerRun = Math.max(1024 * 1024, maxMemory / (numThreads + 1));
+        this.exec = Executors.newFixedThreadPool(numThreads);
+        this.runsInProgress = new Semaphore(numThreads);
+    }
+
+    synchronized void add(byte[] key, byte[] value) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        buffer.add(new Record(key, value));
+        bufferBytes += key.length + value.length + 48;     // rough object overhead
+        numRecords++;
+        if (bufferBytes >= bytesPerRun) {
+            flush();
+        }
+    }
+
+    long getNumRecords() {
+        return numRecords;
+    }
+
+    void setMaxFanIn(int maxFanIn) {
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("fan in must be at least 2: " + maxFanIn);
+        }
+        this.maxFanIn = maxFanIn;
+    }
+
+    private void flush() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        final List<Record> records = buffer;
+        final File run = new File(dir, "run" + runs.size());
+        runs.add(run);
+        buffer = new ArrayList<Record>();
+        bufferBytes = 0;
+        try {
+            runsInProgress.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        exec.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeRun(run, records);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    runsInProgress.release();
+                }
+            }
+        });
+    }
+
+    private static void writeRun(File run, List<Record> records) throws IOException {
+        Collections.sort(records, KEY_ORDER);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1024 * 1024));
+        try {
+            for (Record r : records) {
+                writeRecord(out, r);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, Record r) throws IOException {
+        out.writeInt(r.key.length);
+        out.write(r.key);
+        out.writeInt(r.value.length);
+        out.write(r.value);
+    }
+
+    /**
+     * Finishes sorting and returns all records in key order.
+     * Records with equal keys are returned in arbitrary order.
+     */
+    synchronized Iterator<Record> sort() throws IOException {
+        flush();
+        exec.shutdown();
+        try {
+            exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        if (error != null) {
+            throw error;
+        }
+        List<File> remaining = new ArrayList<File>(runs);
+        for (int pass = 0; remaining.size() > maxFanIn; pass++) {
+            LOG.info("merging " + remaining.size() + " runs into " +
+                    (remaining.size() + maxFanIn - 1) / maxFanIn + " longer runs");
+            List<File> merged = new ArrayList<File>();
+            for (int i = 0; i < remaining.size(); i += maxFanIn) {
+                List<File> group = remaining.subList(i, Math.min(remaining.size(), i + maxFanIn));
+                File run = new File(dir, "merge" + pass + "-" + merged.size());
+                mergeRuns(group, run);
+                merged.add(run);
+            }
+            remaining = merged;
+        }
+        LOG.info("merging " + remaining.size() + " runs of " + numRecords + " records");
+        return new MergeIterator(remaining);
+    }
+
+    /**
+     * Merges sorted runs into a single run and deletes them.
+     */
+    private static void mergeRuns(List<File> inputs, File output) throws IOException {
+        MergeIterator iter = new MergeIterator(inputs);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1024 * 1024));
+        try {
+            while (iter.hasNext()) {
+                writeRecord(out, iter.next());
+            }
+        } finally {
+            iter.close();
+            out.close();
+        }
+        for (File input : inputs) {
+            FileUtils.deleteQuietly(input);
+        }
+    }
+
+    @Override
+    public void close() {
+        exec.shutdownNow();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    static int compareKeys(byte[] k1, byte[] k2) {
+        int n = Math.min(k1.length, k2.length);
+        for (int i = 0; i < n; i++) {
+            int c = (k1[i] & 0xff) - (k2[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return k1.length - k2.length;
+    }
+
+    private static class RunReader {
+        final DataInputStream in;
+        Record current;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 256 * 1024));
+            advance();
+        }
+
+        void advance() throws IOException {
+            int keyLength;
+            try {
+                keyLength = in.readInt();
+            } catch (EOFException e) {
+                current = null;
+                in.close();
+                return;
+            }
+            byte key[] = new byte[keyLength];
+            in.readFully(key);
+            byte value[] = new byte[in.readInt()];
+            in.readFully(value);
+            current = new Record(key, value);
+        }
+    }
+
+    private static class MergeIterator implements Iterator<Record> {
+        private final PriorityQueue<RunReader> queue;
+
+        MergeIterator(List<File> runs) throws IOException {
+            queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader r1, RunReader r2) {
+                    return compareKeys(r1.current.key, r2.current.key);
+                }
+            });
+            try {
+                for (File run : runs) {
+                    RunReader reader = new RunReader(run);
+                    if (reader.current != null) {
+                        queue.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                for (RunReader reader : queue) {
+                    IOUtils.closeQuietly(reader.in);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Record next() {
+            if (queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            RunReader reader = queue.poll();
+            Record record = reader.current;
+            try {
+                reader.advance();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (reader.current != null) {
+                queue.add(reader);
+            }
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Closes the runs that have not been read to the end.
+         */
+        void close() {
+            for (RunReader reader : queue) {
+                IOUtils.closeQuietly(reader.in);
+            }
+            queue.clear();
+        }
+    }
+}
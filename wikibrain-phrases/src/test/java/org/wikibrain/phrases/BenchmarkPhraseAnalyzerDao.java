@@ -0,0 +1,100 @@
+package org.wikibrain.phrases;
+
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.IdentityStringNormalizer;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.StringNormalizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the on-disk size and the lookup throughput of PhraseAnalyzerObjectDbDao
+ * and PhraseAnalyzerMappedDao on a synthetic corpus of phrases and pages.
+ */
+public class BenchmarkPhraseAnalyzerDao {
+    public static int NUM_PHRASES = 500000;
+    public static int NUM_PAGES = 200000;
+    public static int MAX_PAGES_PER_PHRASE = 15;
+    public static int MAX_PHRASES_PER_PAGE = 10;
+    public static int NUM_QUERIES = 500000;
+
+    private static final Language EN = Language.getByLangCode("en");
+
+    public static void main(String args[]) throws IOException, DaoException {
+        StringNormalizer normalizer = new IdentityStringNormalizer();
+        File objectDbPath = File.createTempFile("phrases", "objectdb");
+        File mappedPath = File.createTempFile("phrases", "mapped");
+        try {
+            benchmark("objectdb", new PhraseAnalyzerObjectDbDao(normalizer, objectDbPath, true), objectDbPath, false);
+            benchmark("mapped", new PhraseAnalyzerMappedDao(normalizer, mappedPath, true), mappedPath, true);
+        } finally {
+            FileUtils.deleteQuietly(objectDbPath);
+            FileUtils.deleteQuietly(mappedPath);
+        }
+    }
+
+    private static void benchmark(String name, PhraseAnalyzerDao dao, File path, boolean mapped) throws DaoException {
+        long start = System.currentTimeMillis();
+        load(dao);
+        if (mapped) {
+            dao.close();
+            dao = new PhraseAnalyzerMappedDao(dao.getStringNormalizer(), path, false);
+        }
+        System.err.println(String.format("%s: loaded in %.1f seconds, %.1f MB on disk", name,
+                (System.currentTimeMillis() - start) / 1000.0,
+                FileUtils.sizeOfDirectory(path) / (1024.0 * 1024.0)));
+
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            Random random = new Random(round);
+            start = System.currentTimeMillis();
+            long found = 0;
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                PrunedCounts<Integer> counts = dao.getPhraseCounts(EN, getPhrase(random.nextInt(NUM_PHRASES)), 10);
+                found += counts.size();
+            }
+            report(name + " resolve", start, found);
+
+            start = System.currentTimeMillis();
+            found = 0;
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                PrunedCounts<String> counts = dao.getPageCounts(EN, random.nextInt(NUM_PAGES), 10);
+                found += (counts == null) ? 0 : counts.size();
+            }
+            report(name + " describe", start, found);
+        }
+        dao.close();
+    }
+
+    private static void report(String name, long start, long found) {
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        System.err.println(String.format("%s: %.0f queries/s (%d results)", name, NUM_QUERIES / seconds, found));
+    }
+
+    private static void load(PhraseAnalyzerDao dao) throws DaoException {
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_PHRASES; i++) {
+            int n = 1 + random.nextInt(MAX_PAGES_PER_PHRASE);
+            PrunedCounts<Integer> counts = new PrunedCounts<Integer>(n * 20);
+            for (int j = 0; j < n; j++) {
+                counts.put(random.nextInt(NUM_PAGES), n * 10 - j);
+            }
+            dao.savePhraseCounts(EN, getPhrase(i), counts);
+        }
+        for (int i = 0; i < NUM_PAGES; i++) {
+            int n = 1 + random.nextInt(MAX_PHRASES_PER_PAGE);
+            PrunedCounts<String> counts = new PrunedCounts<String>(n * 20);
+            for (int j = 0; j < n; j++) {
+                counts.put(getPhrase(random.nextInt(NUM_PHRASES)), n * 10 - j);
+            }
+            dao.savePageCounts(EN, i, counts);
+        }
+    }
+
+    private static String getPhrase(int i) {
+        return "phrase number " + Integer.toString(i * 7919, 36);
+    }
+}
@@ -0,0 +1,77 @@
+package org.wikibrain.phrases;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.IdentityStringNormalizer;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestBasePhraseAnalyzer {
+    private static final Language EN = Language.getByLangCode("en");
+    private static final Language DE = Language.getByLangCode("de");
+
+    @Test
+    public void testLoadCorpus() throws IOException, DaoException {
+        File dir = WpIOUtils.createTempDirectory("phrases");
+        try {
+            final List<BasePhraseAnalyzer.Entry> corpus = new ArrayList<BasePhraseAnalyzer.Entry>();
+            corpus.add(new BasePhraseAnalyzer.Entry(EN, 3, "Foo  bar", 2));
+            corpus.add(new BasePhraseAnalyzer.Entry(EN, 3, "Foo\tbar", 5));
+            corpus.add(new BasePhraseAnalyzer.Entry(EN, 4, "Foo bar", 1));
+            corpus.add(new BasePhraseAnalyzer.Entry(EN, 4, "Baz", 7));
+            corpus.add(new BasePhraseAnalyzer.Entry(EN, 3, "Foo  bar", 1));
+            corpus.add(new BasePhraseAnalyzer.Entry(EN, -1, "no page", 1));
+            corpus.add(new BasePhraseAnalyzer.Entry(EN, 5, " ", 1));
+            corpus.add(new BasePhraseAnalyzer.Entry(DE, 3, "Foo bar", 100));
+            for (int i = 0; i < 5000; i++) {
+                corpus.add(new BasePhraseAnalyzer.Entry(EN, 1000 + i % 50, "phrase " + (i % 70), 1));
+            }
+
+            PhraseAnalyzerDao dao = new PhraseAnalyzerMappedDao(new IdentityStringNormalizer(), dir, true);
+            BasePhraseAnalyzer analyzer = new BasePhraseAnalyzer(dao, null,
+                    new SimplePruner<String>(0, 100, 0.0), new SimplePruner<Integer>(0, 100, 0.0)) {
+                @Override
+                protected Iterable<Entry> getCorpus(LanguageSet langs) {
+                    return corpus;
+                }
+            };
+            analyzer.loadCorpus(new LanguageSet(Arrays.asList(EN)));
+            dao = new PhraseAnalyzerMappedDao(new IdentityStringNormalizer(), dir, false);
+
+            // whitespace is collapsed before phrases are grouped, so "Foo\tbar" joins "Foo  bar"
+            PrunedCounts<Integer> pages = dao.getPhraseCounts(EN, "Foo bar", 10);
+            assertEquals(9, pages.getTotal());
+            assertEquals(Arrays.asList(3, 4), new ArrayList<Integer>(pages.keySet()));
+            assertEquals(Arrays.asList(8, 1), new ArrayList<Integer>(pages.values()));
+            assertNull(dao.getPhraseCounts(DE, "Foo bar", 10));
+            assertNull(dao.getPhraseCounts(EN, "no page", 10));
+
+            PrunedCounts<String> phrases = dao.getPageCounts(EN, 3, 10);
+            assertEquals(8, phrases.getTotal());
+            assertEquals(3, (int) phrases.get("Foo  bar"));
+            assertEquals(5, (int) phrases.get("Foo bar"));      // tab replaced by a space
+            assertEquals(Arrays.asList("Baz", "Foo bar"), new ArrayList<String>(dao.getPageCounts(EN, 4, 10).keySet()));
+            assertNull(dao.getPageCounts(EN, 5, 10));
+
+            for (int i = 0; i < 70; i++) {
+                assertEquals(5000 / 70 + (i < 5000 % 70 ? 1 : 0), dao.getPhraseCounts(EN, "phrase " + i, 100).getTotal());
+            }
+            for (int i = 0; i < 50; i++) {
+                assertEquals(100, dao.getPageCounts(EN, 1000 + i, 100).getTotal());
+            }
+            dao.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
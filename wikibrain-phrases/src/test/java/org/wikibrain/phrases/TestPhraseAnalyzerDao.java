@@ -76,12 +76,56 @@ public class TestPhraseAnalyzerDao {
 
     @Test
     public void testDao() throws IOException, DaoException {
+        testDao(false);
+    }
+
+    @Test
+    public void testMappedDao() throws IOException, DaoException {
+        testDao(true);
+    }
+
+    @Test
+    public void testMappedDaoManyPages() throws IOException, DaoException {
+        File tmp = File.createTempFile("testdb", ".db", null);
+        tmp.delete();
+        FileUtils.forceDeleteOnExit(tmp);
+
+        Language en = Language.getByLangCode("en");
+        PhraseAnalyzerDao dao = new PhraseAnalyzerMappedDao(new IdentityStringNormalizer(), tmp, true);
+        // pages in shuffled order, and every tenth page saved again with a new total
+        for (int i = 0; i < 1000; i++) {
+            int wpId = (i * 7919) % 1000;
+            PrunedCounts<String> counts = new PrunedCounts<String>(wpId);
+            counts.put("phrase" + wpId, 1);
+            dao.savePageCounts(en, wpId, counts);
+        }
+        for (int wpId = 0; wpId < 1000; wpId += 10) {
+            PrunedCounts<String> counts = new PrunedCounts<String>(wpId + 5000);
+            counts.put("phrase" + wpId, 1);
+            dao.savePageCounts(en, wpId, counts);
+        }
+        dao.close();
+
+        dao = new PhraseAnalyzerMappedDao(new IdentityStringNormalizer(), tmp, false);
+        for (int wpId = 0; wpId < 1000; wpId++) {
+            PrunedCounts<String> counts = dao.getPageCounts(en, wpId, 10);
+            assertNotNull(counts);
+            assertEquals((wpId % 10 == 0) ? wpId + 5000 : wpId, counts.getTotal());
+            assertEquals(Arrays.asList("phrase" + wpId), new ArrayList<String>(counts.keySet()));
+        }
+        assertNull(dao.getPageCounts(en, 1000, 10));
+        dao.close();
+    }
+
+    private void testDao(boolean mapped) throws IOException, DaoException {
         File tmp = File.createTempFile("testdb", ".db", null);
         tmp.delete();
         FileUtils.forceDeleteOnExit(tmp);
 
         StringNormalizer normalizer = new LuceneStringNormalizer(new TokenizerOptions(true, false, false), Version.LUCENE_43);
-        PhraseAnalyzerDao dao = new PhraseAnalyzerObjectDbDao(normalizer, tmp, true);
+        PhraseAnalyzerDao dao = mapped
+                ? new PhraseAnalyzerMappedDao(normalizer, tmp, true)
+                : new PhraseAnalyzerObjectDbDao(normalizer, tmp, true);
         Language en = Language.getByLangCode("en");
 
         PrunedCounts<Integer> c1 = new PrunedCounts<Integer>(12);
@@ -96,6 +140,12 @@ public class TestPhraseAnalyzerDao {
 
         dao.savePageCounts(en, 3214, c2);
 
+        if (mapped) {
+            // mapped daos are read only after loading finishes
+            dao.close();
+            dao = new PhraseAnalyzerMappedDao(normalizer, tmp, false);
+        }
+
         assertNull(dao.getPageCounts(en, 34321, 19));
         assertNull(dao.getPhraseCounts(en, "sadfas", 19));
 
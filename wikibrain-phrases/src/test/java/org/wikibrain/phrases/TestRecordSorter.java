@@ -0,0 +1,85 @@
+package org.wikibrain.phrases;
+
+import org.junit.Test;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestRecordSorter {
+
+    @Test
+    public void testManyRuns() throws IOException {
+        RecordSorter sorter = new RecordSorter(2 * 1024 * 1024, 3);
+        try {
+            checkSort(sorter, 200000);
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testMultiPassMerge() throws IOException {
+        // about 20 runs merged four at a time need two passes before the final merge
+        RecordSorter sorter = new RecordSorter(2 * 1024 * 1024, 3);
+        sorter.setMaxFanIn(4);
+        try {
+            checkSort(sorter, 200000);
+        } finally {
+            sorter.close();
+        }
+    }
+
+    /**
+     * Adds records with keys in shuffled order from several threads and checks they come out sorted.
+     */
+    private void checkSort(final RecordSorter sorter, final int numRecords) throws IOException {
+        // four threads add interleaved ranges of records with keys in shuffled order
+        ParallelForEach.range(0, 4, 4, new Procedure<Integer>() {
+            @Override
+            public void call(Integer thread) throws Exception {
+                for (int i = thread; i < numRecords; i += 4) {
+                    int k = (int) ((i * 7919L) % numRecords);
+                    sorter.add(key(k), ByteBuffer.allocate(4).putInt(i).array());
+                }
+            }
+        });
+        assertEquals(numRecords, sorter.getNumRecords());
+        Iterator<RecordSorter.Record> iter = sorter.sort();
+        for (int i = 0; i < numRecords; i++) {
+            assertTrue(iter.hasNext());
+            RecordSorter.Record r = iter.next();
+            assertArrayEquals(key(i), r.key);
+            int original = ByteBuffer.wrap(r.value).getInt();
+            assertEquals(i, (int) ((original * 7919L) % numRecords));
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testUnsignedOrder() throws IOException {
+        RecordSorter sorter = new RecordSorter(1024, 1);
+        Random random = new Random(1);
+        byte keys[][] = { { (byte) 0xff }, { 0x01, 0x02 }, { 0x01 }, { }, { (byte) 0x80, 0 } };
+        for (byte[] key : keys) {
+            sorter.add(key, new byte[random.nextInt(10)]);
+        }
+        Iterator<RecordSorter.Record> iter = sorter.sort();
+        assertArrayEquals(new byte[] { }, iter.next().key);
+        assertArrayEquals(new byte[] { 0x01 }, iter.next().key);
+        assertArrayEquals(new byte[] { 0x01, 0x02 }, iter.next().key);
+        assertArrayEquals(new byte[] { (byte) 0x80, 0 }, iter.next().key);
+        assertArrayEquals(new byte[] { (byte) 0xff }, iter.next().key);
+        assertFalse(iter.hasNext());
+        sorter.close();
+    }
+
+    private static byte[] key(int i) {
+        return ("key" + String.format("%08d", i) + "-padding-to-make-records-larger").getBytes();
+    }
+}
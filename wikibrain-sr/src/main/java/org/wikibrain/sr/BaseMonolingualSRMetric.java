@@ -8,7 +8,6 @@ import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.ArrayUtils;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.WikiBrainException;
@@ -28,14 +27,14 @@ import org.wikibrain.sr.normalize.IdentityNormalizer;
 import org.wikibrain.sr.normalize.Normalizer;
 import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SrNormalizers;
-import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.sr.utils.WorkSharingExecutor;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpIOUtils;
 import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,6 +45,16 @@ import java.util.logging.Logger;
 public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
     private static Logger LOG = Logger.getLogger(BaseMonolingualSRMetric.class.getName());
 
+    /**
+     * Number of pages whose most similar lists are computed together when writing caches.
+     */
+    public static final int MOST_SIMILAR_BATCH_SIZE = 1000;
+
+    /**
+     * Number of rows and columns in each tile of a cosimilarity matrix scored in parallel.
+     */
+    public static final int COSIMILARITY_TILE_SIZE = 32;
+
     private final String name;
     private final Language language;
 
@@ -64,6 +73,9 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
     // the number of senses to consider for each phrase
     private int numSenses = 5;
 
+    // runs batch queries, created when first needed
+    private WorkSharingExecutor executor = null;
+
     /**
      * Returns properties about the metric.
      */
@@ -289,50 +301,202 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
         return mostSimilar(similar.getId(), maxResults,validIds);
     }
 
-    @Override
-    public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) throws DaoException {
-        double[][] cos = new double[wpRowIds.length][wpColIds.length];
-        for (int i=0; i<wpRowIds.length; i++){
-            for (int j=0; j<wpColIds.length; j++){
-                if (wpRowIds[i]==wpColIds[j]){
-                    cos[i][j]=normalize(1.0);
-                } else{
-                    cos[i][j]=similarity(wpRowIds[i], wpColIds[j], false).getScore();
-                }
+    /**
+     * Returns the most similar pages for each of a batch of pages, using the configured number of threads.
+     * @see #mostSimilar(int[], int, gnu.trove.set.TIntSet, int)
+     */
+    public SRResultList[] mostSimilar(int pageIds[], int maxResults, TIntSet validIds) throws DaoException {
+        return mostSimilar(pageIds, maxResults, validIds, WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Returns the most similar pages for each of a batch of pages.
+     * This implementation calls mostSimilar for each page on the metric's shared
+     * pool of threads. If any page fails, the batch fails. Subclasses
+     * that can share work across queries should override it.
+     *
+     * @param pageIds
+     * @param maxResults
+     * @param validIds
+     * @param numThreads
+     * @return One result list per page, in the same order as pageIds.
+     * @throws DaoException
+     */
+    public SRResultList[] mostSimilar(final int pageIds[], final int maxResults, final TIntSet validIds, int numThreads) throws DaoException {
+        final SRResultList results[] = new SRResultList[pageIds.length];
+        parallelRange(pageIds.length, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws DaoException {
+                results[i] = mostSimilar(pageIds[i], maxResults, validIds);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Returns the most similar pages for each of a batch of phrases, using the configured number of threads.
+     * @see #mostSimilar(String[], int, gnu.trove.set.TIntSet, int)
+     */
+    public SRResultList[] mostSimilar(String phrases[], int maxResults, TIntSet validIds) throws DaoException {
+        return mostSimilar(phrases, maxResults, validIds, WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Returns the most similar pages for each of a batch of phrases.
+     * This implementation calls mostSimilar for each phrase on the metric's shared
+     * pool of threads. If any phrase fails, the batch fails. Subclasses
+     * that can share work across queries should override it.
+     *
+     * @param phrases
+     * @param maxResults
+     * @param validIds
+     * @param numThreads
+     * @return One result list per phrase, in the same order as phrases.
+     * @throws DaoException
+     */
+    public SRResultList[] mostSimilar(final String phrases[], final int maxResults, final TIntSet validIds, int numThreads) throws DaoException {
+        final SRResultList results[] = new SRResultList[phrases.length];
+        parallelRange(phrases.length, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws DaoException {
+                results[i] = mostSimilar(phrases[i], maxResults, validIds);
             }
+        });
+        return results;
+    }
+
+    /**
+     * Calls fn for each integer in [0, n) on this metric's shared pool of threads,
+     * with the calling thread taking part.
+     *
+     * @throws DaoException If any call failed, with the first failure as its cause.
+     * Runtime exceptions are rethrown as they are.
+     */
+    protected void parallelRange(int n, int numThreads, Procedure<Integer> fn) throws DaoException {
+        try {
+            getExecutor().range(0, n, numThreads, fn);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new DaoException(e);
         }
-        return cos;
+    }
+
+    protected synchronized WorkSharingExecutor getExecutor() {
+        if (executor == null) {
+            executor = new WorkSharingExecutor("sr-" + name, WpThreadUtils.getMaxThreads());
+        }
+        return executor;
     }
 
     @Override
-    public double[][] cosimilarity(String[] rowPhrases, String[] colPhrases) throws DaoException {
-        double[][] cos = new double[rowPhrases.length][colPhrases.length];
-        for (int i=0; i<rowPhrases.length; i++){
-            for (int j=0; j<colPhrases.length; j++){
-                if (rowPhrases[i].equals(colPhrases[j])){
-                    cos[i][j]=normalize(1.0);
-                }
-                else{
-                    cos[i][j]=similarity(rowPhrases[i],colPhrases[j],false).getScore();
+    public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) throws DaoException {
+        return computeCosimilarity(wpRowIds, wpColIds, false, WpThreadUtils.getMaxThreads());
+    }
+
+    @Override
+    public double[][] cosimilarity(final String[] rowPhrases, final String[] colPhrases) throws DaoException {
+        return scoreTiles(rowPhrases.length, colPhrases.length, false, WpThreadUtils.getMaxThreads(), new PairScorer() {
+            @Override
+            public double score(int i, int j) throws DaoException {
+                if (rowPhrases[i].equals(colPhrases[j])) {
+                    return normalize(1.0);
                 }
+                SRResult result = similarity(rowPhrases[i], colPhrases[j], false);
+                return (result == null) ? Double.NaN : result.getScore();
             }
-        }
-        return cos;
+        });
     }
 
     @Override
     public double[][] cosimilarity(int[] ids) throws DaoException {
-        double[][] cos = new double[ids.length][ids.length];
-        for (int i=0; i<ids.length; i++){
-            cos[i][i]=normalize(1.0);
+        return computeCosimilarity(ids, ids, true, WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Computes the similarity of each row page to each column page. The public
+     * cosimilarity methods for page ids all go through this batch hook.
+     *
+     * This implementation calls similarity() for each pair, in parallel tiles.
+     * Subclasses that can share work among pairs, for example by fetching each
+     * page's vector once, should override it.
+     *
+     * @param rowIds
+     * @param colIds
+     * @param symmetric If true, rowIds and colIds are the same array, so only
+     *                  pairs on or above the diagonal need to be scored.
+     * @param numThreads
+     * @return A matrix with one row per row id and one column per column id.
+     * @throws DaoException
+     */
+    protected double[][] computeCosimilarity(final int rowIds[], final int colIds[], boolean symmetric, int numThreads) throws DaoException {
+        return scoreTiles(rowIds.length, colIds.length, symmetric, numThreads, new PairScorer() {
+            @Override
+            public double score(int i, int j) throws DaoException {
+                if (rowIds[i] == colIds[j]) {
+                    return normalize(1.0);
+                }
+                SRResult result = similarity(rowIds[i], colIds[j], false);
+                return (result == null) ? Double.NaN : result.getScore();
+            }
+        });
+    }
+
+    /**
+     * Scores one entry of a cosimilarity matrix.
+     */
+    protected interface PairScorer {
+        public double score(int row, int col) throws DaoException;
+    }
+
+    /**
+     * Fills a numRows x numCols matrix by scoring square tiles of COSIMILARITY_TILE_SIZE
+     * entries in parallel on the metric's shared pool of threads. A matrix with a single
+     * tile is scored on the calling thread.
+     *
+     * @param symmetric If true, only entries on or above the diagonal are scored,
+     *                  and they are copied below it.
+     */
+    protected double[][] scoreTiles(final int numRows, final int numCols, final boolean symmetric,
+                                    int numThreads, final PairScorer scorer) throws DaoException {
+        if (symmetric && numRows != numCols) {
+            throw new IllegalArgumentException("symmetric matrix with " + numRows + " rows and " + numCols + " cols");
         }
-        for (int i=0; i<ids.length; i++){
-            for (int j=i+1; j<ids.length; j++){
-                cos[i][j]=similarity(ids[i], ids[j], false).getScore();
-                cos[j][i]=cos[i][j];
+        final double results[][] = new double[numRows][numCols];
+        final int tileRows = (numRows + COSIMILARITY_TILE_SIZE - 1) / COSIMILARITY_TILE_SIZE;
+        final int tileCols = (numCols + COSIMILARITY_TILE_SIZE - 1) / COSIMILARITY_TILE_SIZE;
+        final List<int[]> tiles = new ArrayList<int[]>();
+        for (int ti = 0; ti < tileRows; ti++) {
+            for (int tj = symmetric ? ti : 0; tj < tileCols; tj++) {
+                tiles.add(new int[] { ti, tj });
             }
         }
-        return cos;
+        final Procedure<int[]> scoreTile = new Procedure<int[]>() {
+            @Override
+            public void call(int[] tile) throws DaoException {
+                int rowEnd = Math.min(numRows, (tile[0] + 1) * COSIMILARITY_TILE_SIZE);
+                int colEnd = Math.min(numCols, (tile[1] + 1) * COSIMILARITY_TILE_SIZE);
+                for (int i = tile[0] * COSIMILARITY_TILE_SIZE; i < rowEnd; i++) {
+                    int colStart = tile[1] * COSIMILARITY_TILE_SIZE;
+                    for (int j = symmetric ? Math.max(i, colStart) : colStart; j < colEnd; j++) {
+                        results[i][j] = scorer.score(i, j);
+                        if (symmetric) {
+                            results[j][i] = results[i][j];
+                        }
+                    }
+                }
+            }
+        };
+        parallelRange(tiles.size(), Math.min(numThreads, tiles.size()), new Procedure<Integer>() {
+            @Override
+            public void call(Integer t) throws Exception {
+                scoreTile.call(tiles.get(t));
+            }
+        });
+        return results;
     }
 
     @Override
@@ -426,7 +590,6 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
 
 
         SRConfig config = getConfig();
-        final AtomicInteger idCounter = new AtomicInteger();
         final AtomicLong cellCounter = new AtomicLong();
         ValueConf vconf = new ValueConf(config.minScore, config.maxScore);
 
@@ -439,14 +602,19 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
         setMostSimilarNormalizer(new IdentityNormalizer());
         setSimilarityNormalizer(new IdentityNormalizer());
         try {
-            ParallelForEach.loop(
-                    Arrays.asList(ArrayUtils.toObject(rowIds.toArray())),
-                    WpThreadUtils.getMaxThreads(),
-                    new Procedure<Integer>() {
-                        public void call(Integer wpId) throws IOException, DaoException {
-                            writeSim(writer, wpId, colIdSet, maxHits, idCounter, cellCounter);
-                        }
-                    }, Integer.MAX_VALUE);
+            int ids[] = rowIds.toArray();
+            for (int i = 0; i < ids.length; i += MOST_SIMILAR_BATCH_SIZE) {
+                int batch[] = Arrays.copyOfRange(ids, i, Math.min(ids.length, i + MOST_SIMILAR_BATCH_SIZE));
+                SRResultList results[] = mostSimilarForCache(batch, maxHits, colIdSet);
+                for (int j = 0; j < batch.length; j++) {
+                    if (results[j] != null) {
+                        cellCounter.getAndIncrement();
+                        writer.writeRow(new SparseMatrixRow(writer.getValueConf(), batch[j],
+                                results[j].getIds(), results[j].getScoresAsFloat()));
+                    }
+                }
+                LOG.info("found matches for " + (i + batch.length) + " of " + ids.length + " pages");
+            }
         } finally {
             setSimilarityNormalizer(simNormalizer);
             setMostSimilarNormalizer(mostSimNormalizer);
@@ -457,23 +625,34 @@ public abstract class BaseMonolingualSRMetric implements MonolingualSRMetric {
         mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
     }
 
+    /**
+     * Finds the most similar pages for a batch of pages while building the cache.
+     * If the batch fails, its pages are retried one at a time, and pages that still
+     * fail are logged and skipped so that one bad page does not abort the build.
+     * @return The results for each page, or null for pages that failed.
+     */
+    private SRResultList[] mostSimilarForCache(int pageIds[], int maxHits, TIntSet validIds) {
+        try {
+            return mostSimilar(pageIds, maxHits, validIds);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "batch of " + pageIds.length + " pages failed, retrying them one at a time", e);
+        }
+        SRResultList results[] = new SRResultList[pageIds.length];
+        for (int i = 0; i < pageIds.length; i++) {
+            try {
+                results[i] = mostSimilar(pageIds[i], maxHits, validIds);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "finding most similar pages for " + pageIds[i] + " failed, skipping it", e);
+            }
+        }
+        return results;
+    }
+
     protected File getMostSimilarMatrixPath() {
         return new File(getDataDir(), "mostSimilar.matrix");
     }
 
 
-    private void writeSim(SparseMatrixWriter writer, Integer wpId, TIntSet colIds, int maxSimsPerDoc, AtomicInteger idCounter, AtomicLong cellCounter) throws IOException, DaoException {
-        if (idCounter.incrementAndGet() % 10000 == 0) {
-            LOG.info("finding matches for page " + idCounter.get());
-        }
-        SRResultList scores = mostSimilar(wpId, maxSimsPerDoc, colIds);
-        if (scores != null) {
-            int ids[] = scores.getIds();
-            cellCounter.getAndIncrement();
-            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), wpId, ids, scores.getScoresAsFloat()));
-        }
-    }
-
     public Language getLanguage() {
         return language;
     }
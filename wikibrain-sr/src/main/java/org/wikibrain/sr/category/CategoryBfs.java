@@ -8,43 +8,65 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.CategoryGraph;
 import org.wikibrain.core.model.LocalCategory;
 
+import java.util.Arrays;
 import java.util.Map;
-import java.util.PriorityQueue;
 
 /**
- * Conducts Dijkstra on the category hierarchy from a starting document.
- * Pages attached to visited categories are recorded, and iterations stop
- * when a certain number of unique pages have been discovered.
-
+ * Conducts Dijkstra on the category hierarchy from one or more starting documents.
+ * Each starting document is a source with its own distances, and categories are
+ * visited in order of their distance from any source. Pages attached to visited
+ * categories are recorded, and iterations stop when a certain number of unique
+ * pages have been discovered.
+ *
+ * A traversal is reused with reset(). Distances live in arrays indexed by category
+ * that are invalidated by bumping a generation counter, and open categories are kept
+ * in a heap of primitives, so steps of a reused traversal rarely allocate. The arrays
+ * are split into pages that are allocated when the traversal first reaches one of
+ * their categories, so a traversal only holds memory for the parts of the graph it
+ * has visited. Traversals are not thread safe.
+ *
  * @author Shilad Sen
  * @author Matt Lesicko
  */
 public class CategoryBfs {
-    private CategoryGraph graph;
-    private int startPage;
-    private int maxResults;
-    private LocalCategoryMemberDao categoryMemberDao;
-    private Language language;
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final CategoryGraph graph;
+    private final int numCats;
+    private final int numSources;
+    private final LocalCategoryMemberDao categoryMemberDao;
+    private final Language language;
 
     /**
-     * Observed distances to visited categories.
+     * Observed distances to visited categories, at source * numCats + category index,
+     * split into pages of PAGE_SIZE entries. An entry is only valid if its page exists
+     * and its stamp equals the current generation.
      */
-    private TIntDoubleHashMap catDistances = new TIntDoubleHashMap();
+    private final double catDistances[][];
+    private final int stamps[][];
+    private int generation = 1;
 
     /**
-     * Observed distances to visited pages.
+     * Categories that have been seen, but not visited, as a binary min heap.
+     * Entries are ((catIndex * numSources + source) << 1) | (1 if heading upwards).
      */
-    private TIntDoubleHashMap pageDistances = new TIntDoubleHashMap();
+    private double heapDistances[] = new double[64];
+    private int heapEntries[] = new int[64];
+    private int heapSize = 0;
 
     /**
-     * Categories that have been seen, but not visited.
+     * Observed distances to visited pages, from any source.
      */
-    private PriorityQueue<CategoryDistance> openCats = new PriorityQueue<CategoryDistance>();
+    private final TIntDoubleHashMap pageDistances = new TIntDoubleHashMap();
 
     /**
-     * Results of the current iteration.
+     * Distance of the last category visited from each source.
      */
-    private BfsVisited visited = new BfsVisited();
+    private final double maxDistances[];
+    private int lastSource = -1;
+
+    private int maxResults = Integer.MAX_VALUE;
 
     /**
      * If true, tracks pages visited along the way.
@@ -62,20 +84,58 @@ public class CategoryBfs {
      */
     private TIntSet validWpIds;
 
-    public CategoryBfs(CategoryGraph graph, int startCatId, Language language, int maxResults, TIntSet validWpIds, LocalCategoryMemberDao categoryMemberDao) throws DaoException {
-        this.startPage = startCatId;
-        this.maxResults = maxResults;
+    public CategoryBfs(CategoryGraph graph, int numSources, Language language, LocalCategoryMemberDao categoryMemberDao) {
+        if ((2L * graph.getNumCategories() * numSources) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many sources for " + graph.getNumCategories() + " categories");
+        }
         this.graph = graph;
-        this.validWpIds = validWpIds;
-        this.categoryMemberDao = categoryMemberDao;
+        this.numCats = graph.getNumCategories();
+        this.numSources = numSources;
         this.language = language;
-        pageDistances.put(startPage, 0.000000);
-        Map<Integer,LocalCategory> cats = categoryMemberDao.getCategories(language,startCatId);
-        if (cats!=null){
-            for (int catId : categoryMemberDao.getCategories(language,startCatId).keySet()) {
+        this.categoryMemberDao = categoryMemberDao;
+        int numPages = (numCats * numSources + PAGE_SIZE - 1) >>> PAGE_BITS;
+        this.catDistances = new double[numPages][];
+        this.stamps = new int[numPages][];
+        this.maxDistances = new double[numSources];
+    }
+
+    /**
+     * Forgets all sources and distances so the traversal can be reused.
+     * Settings such as maxResults and addPages are kept.
+     */
+    public void reset() {
+        if (++generation == Integer.MAX_VALUE) {
+            for (int page[] : stamps) {
+                if (page != null) {
+                    Arrays.fill(page, 0);
+                }
+            }
+            generation = 1;
+        }
+        heapSize = 0;
+        pageDistances.clear();
+        Arrays.fill(maxDistances, 0.0);
+        lastSource = -1;
+    }
+
+    /**
+     * Starts the traversal for a source at the categories of a page.
+     * @param source The index of the source, less than numSources.
+     * @param pageId The starting page, which is recorded at distance 0 if pages are tracked.
+     */
+    public void addSource(int source, int pageId) throws DaoException {
+        if (source < 0 || source >= numSources) {
+            throw new IllegalArgumentException("invalid source " + source);
+        }
+        if (addPages) {
+            pageDistances.put(pageId, 0.000000);
+        }
+        Map<Integer,LocalCategory> cats = categoryMemberDao.getCategories(language, pageId);
+        if (cats != null) {
+            for (int catId : cats.keySet()) {
                 int ci = graph.getCategoryIndex(catId);
                 if (ci >= 0) {
-                    openCats.add(new CategoryDistance(ci, graph.cats[ci], graph.catCosts[ci], (byte)+1));
+                    push(graph.catCosts[ci], ci, source, true);
                 }
             }
         }
@@ -89,37 +149,51 @@ public class CategoryBfs {
         this.exploreChildren = exploreChildren;
     }
 
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    public void setValidWpIds(TIntSet validWpIds) {
+        this.validWpIds = validWpIds;
+    }
+
     public boolean hasMoreResults() {
-        return openCats.size() > 0 && pageDistances.size() < maxResults;
+        return heapSize > 0 && pageDistances.size() < maxResults;
     }
 
     /**
-     * Runs one step of Dijjkstra by visiting the closest unvisited category.
-     * @return A BfsVisited object that captures all pages and categories visited in the step.
+     * Runs one step of Dijkstra by visiting the closest category not yet visited from its source.
+     * @return The index of the visited category, or -1 if no categories remain.
      */
-    public BfsVisited step() {
-        visited.clear();
-        if (!hasMoreResults()) {
-            return visited;
-        }
-        CategoryDistance cs;
+    public int step() {
+        int entry;
+        double distance;
+        int catIndex;
+        int source;
         do {
-            cs = openCats.poll();
-        } while (hasMoreResults() && catDistances.contains(cs.getCatIndex()));
+            if (!hasMoreResults()) {
+                return -1;
+            }
+            distance = heapDistances[0];
+            entry = pop();
+            catIndex = (entry >>> 1) / numSources;
+            source = (entry >>> 1) % numSources;
+        } while (hasCategoryDistance(source, catIndex));
 
-        visited.cats.put(cs.getCatIndex(), cs.getDistance());
-        catDistances.put(cs.getCatIndex(), cs.getDistance());
-//        System.out.println("visited " + cs.toString());
+        setCategoryDistance(source, catIndex, distance);
+        maxDistances[source] = Math.max(maxDistances[source], distance);
+        lastSource = source;
 
         // add directly linked pages
+        CategoryGraph.Adjacency pages = graph.pages;
         if (addPages) {
-            for (int i : graph.catPages[cs.getCatIndex()]) {
+            for (int k = pages.start(catIndex); k < pages.end(catIndex); k++) {
+                int i = pages.get(k);
                 if (validWpIds != null && !validWpIds.contains(i)) {
                     continue;
                 }
-                if (!pageDistances.containsKey(i) || pageDistances.get(i) > cs.getDistance()) {
-                    pageDistances.put(i, cs.getDistance());
-                    visited.pages.put(i, cs.getDistance());
+                if (!pageDistances.containsKey(i) || pageDistances.get(i) > distance) {
+                    pageDistances.put(i, distance);
                 }
                 if (pageDistances.size() >= maxResults) {
                     break;  // may be an issue for huge categories
@@ -129,25 +203,41 @@ public class CategoryBfs {
 
         // next steps downwards
         if (exploreChildren) {
-            for (int i : graph.catChildren[cs.getCatIndex()]) {
-                if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)-1));
+            CategoryGraph.Adjacency children = graph.children;
+            for (int k = children.start(catIndex); k < children.end(catIndex); k++) {
+                int i = children.get(k);
+                if (!hasCategoryDistance(source, i)) {
+                    push(distance + graph.catCosts[i], i, source, false);
                 }
             }
         }
 
         // next steps upwards (if still possible)
-        if (cs.getDirection() == +1) {
-            for (int i : graph.catParents[cs.getCatIndex()]) {
-                if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)+1));
+        if ((entry & 1) == 1) {
+            CategoryGraph.Adjacency parents = graph.parents;
+            for (int k = parents.start(catIndex); k < parents.end(catIndex); k++) {
+                int i = parents.get(k);
+                if (!hasCategoryDistance(source, i)) {
+                    push(distance + graph.catCosts[i], i, source, true);
                 }
             }
         }
 
-        return visited;
+        return catIndex;
+    }
+
+    /**
+     * @return The source from which the last category was visited.
+     */
+    public int getLastSource() {
+        return lastSource;
+    }
+
+    /**
+     * @return The largest distance of a category visited from the source, or 0 if there is none.
+     */
+    public double getMaxDistance(int source) {
+        return maxDistances[source];
     }
 
     public TIntDoubleHashMap getPageDistances() {
@@ -159,26 +249,82 @@ public class CategoryBfs {
     public double getPageDistance(int pageId) {
         return pageDistances.get(pageId);
     }
-    public boolean hasCategoryDistance(int categoryId) {
-        return catDistances.containsKey(categoryId);
+    public boolean hasCategoryDistance(int source, int catIndex) {
+        int slot = source * numCats + catIndex;
+        int page[] = stamps[slot >>> PAGE_BITS];
+        return page != null && page[slot & (PAGE_SIZE - 1)] == generation;
+    }
+    public double getCategoryDistance(int source, int catIndex) {
+        int slot = source * numCats + catIndex;
+        double page[] = catDistances[slot >>> PAGE_BITS];
+        return (page == null) ? 0.0 : page[slot & (PAGE_SIZE - 1)];
     }
-    public double getCategoryDistance(int categoryId) {
-        return catDistances.get(categoryId);
+
+    private void setCategoryDistance(int source, int catIndex, double distance) {
+        int slot = source * numCats + catIndex;
+        int p = slot >>> PAGE_BITS;
+        if (stamps[p] == null) {
+            stamps[p] = new int[PAGE_SIZE];
+            catDistances[p] = new double[PAGE_SIZE];
+        }
+        catDistances[p][slot & (PAGE_SIZE - 1)] = distance;
+        stamps[p][slot & (PAGE_SIZE - 1)] = generation;
     }
 
-    public class BfsVisited {
-        TIntDoubleHashMap pages = new TIntDoubleHashMap();
-        TIntDoubleHashMap cats = new TIntDoubleHashMap();
-        public void clear() { pages.clear(); cats.clear(); }
-        public double maxPageDistance() { return max(pages.values()); }
-        public double maxCatDistance() { return max(cats.values()); }
+    private void push(double distance, int catIndex, int source, boolean upwards) {
+        if (heapSize == heapEntries.length) {
+            heapEntries = Arrays.copyOf(heapEntries, heapSize * 2);
+            heapDistances = Arrays.copyOf(heapDistances, heapSize * 2);
+        }
+        int entry = ((catIndex * numSources + source) << 1) | (upwards ? 1 : 0);
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(distance, entry, heapDistances[parent], heapEntries[parent])) {
+                break;
+            }
+            heapDistances[i] = heapDistances[parent];
+            heapEntries[i] = heapEntries[parent];
+            i = parent;
+        }
+        heapDistances[i] = distance;
+        heapEntries[i] = entry;
     }
 
-    private double max(double []A) {
-        double max = Double.NEGATIVE_INFINITY;
-        for (double x : A) {
-            if (x > max) max = x;
+    private int pop() {
+        int top = heapEntries[0];
+        int entry = heapEntries[--heapSize];
+        double distance = heapDistances[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && less(heapDistances[child + 1], heapEntries[child + 1], heapDistances[child], heapEntries[child])) {
+                child++;
+            }
+            if (!less(heapDistances[child], heapEntries[child], distance, entry)) {
+                break;
+            }
+            heapDistances[i] = heapDistances[child];
+            heapEntries[i] = heapEntries[child];
+            i = child;
+        }
+        heapDistances[i] = distance;
+        heapEntries[i] = entry;
+        return top;
+    }
+
+    /**
+     * Orders by distance, breaking ties by category index times direction.
+     */
+    private boolean less(double d1, int e1, double d2, int e2) {
+        if (d1 != d2) {
+            return d1 < d2;
         }
-        return max;
+        long k1 = ((e1 & 1) == 1) ? (e1 >>> 1) : -(e1 >>> 1);
+        long k2 = ((e2 & 1) == 1) ? (e2 >>> 1) : -(e2 >>> 1);
+        return k1 < k2;
     }
 }
@@ -18,9 +18,12 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.disambig.Disambiguator;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author Matt Lesicko
@@ -30,6 +33,10 @@ public class MonolingualCategoryGraphSimilarity extends BaseMonolingualSRMetric{
     private final CategoryGraph graph;
     LocalCategoryMemberDao catHelper;
 
+    // idle traversals from both pages of a pair, and from a single page, kept for reuse
+    private final Queue<CategoryBfs> pairTraversals = new ConcurrentLinkedQueue<CategoryBfs>();
+    private final Queue<CategoryBfs> singleTraversals = new ConcurrentLinkedQueue<CategoryBfs>();
+
     public MonolingualCategoryGraphSimilarity(String name, Language language, LocalPageDao pageDao, Disambiguator disambiguator, LocalCategoryMemberDao categoryMemberDao) throws DaoException {
         super(name, language,pageDao,disambiguator);
         this.catHelper=categoryMemberDao;
@@ -59,49 +66,38 @@ public class MonolingualCategoryGraphSimilarity extends BaseMonolingualSRMetric{
 
     @Override
     public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        CategoryBfs bfs1 = new CategoryBfs(graph,pageId1,getLanguage(), Integer.MAX_VALUE, null, catHelper);
-        CategoryBfs bfs2 = new CategoryBfs(graph,pageId2,getLanguage(), Integer.MAX_VALUE, null, catHelper);
-        bfs1.setAddPages(false);
-        bfs1.setExploreChildren(false);
-        bfs2.setAddPages(false);
-        bfs2.setExploreChildren(false);
+        // a single traversal from both pages that stops once no shorter meeting point is possible
+        CategoryBfs bfs = acquireBfs(pairTraversals, 2);
+        try {
+            return new SRResult(distanceToScore(shortestDistance(bfs, pageId1, pageId2)));
+        } finally {
+            releaseBfs(pairTraversals, bfs);
+        }
+    }
+
+    private double shortestDistance(CategoryBfs bfs, int pageId1, int pageId2) throws DaoException {
+        bfs.setAddPages(false);
+        bfs.setExploreChildren(false);
+        bfs.setMaxResults(Integer.MAX_VALUE);
+        bfs.setValidWpIds(null);
+        bfs.addSource(0, pageId1);
+        bfs.addSource(1, pageId2);
 
         double shortestDistance = Double.POSITIVE_INFINITY;
-        double maxDist1 = 0;
-        double maxDist2 = 0;
-
-        while ((bfs1.hasMoreResults() || bfs2.hasMoreResults())
-                &&     (maxDist1 + maxDist2 < shortestDistance)) {
-            // Search from d1
-            while (bfs1.hasMoreResults() && (maxDist1 <= maxDist2 || !bfs2.hasMoreResults())) {
-                CategoryBfs.BfsVisited visited = bfs1.step();
-                for (int catId : visited.cats.keys()) {
-                    if (bfs2.hasCategoryDistance(catId)) {
-                        double d = bfs1.getCategoryDistance(catId)
-                                + bfs2.getCategoryDistance(catId)
-                                - graph.catCosts[catId];    // counted twice
-                        shortestDistance = Math.min(d, shortestDistance);
-                    }
-                }
-                maxDist1 = Math.max(maxDist1, visited.maxCatDistance());
+        while (bfs.hasMoreResults()
+                &&     (bfs.getMaxDistance(0) + bfs.getMaxDistance(1) < shortestDistance)) {
+            int catIndex = bfs.step();
+            if (catIndex < 0) {
+                break;
             }
-
-            // Search from d2
-            while (bfs2.hasMoreResults() && (maxDist2 <= maxDist1 || !bfs1.hasMoreResults())) {
-                CategoryBfs.BfsVisited visited = bfs2.step();
-                for (int catId : visited.cats.keys()) {
-                    if (bfs1.hasCategoryDistance(catId)) {
-                        double d = bfs1.getCategoryDistance(catId) +
-                                bfs2.getCategoryDistance(catId) + 0
-                                - graph.catCosts[catId];    // counted twice;
-                        shortestDistance = Math.min(d, shortestDistance);
-                    }
-                }
-                maxDist2 = Math.max(maxDist2, visited.maxCatDistance());
+            if (bfs.hasCategoryDistance(1 - bfs.getLastSource(), catIndex)) {
+                double d = bfs.getCategoryDistance(0, catIndex)
+                        + bfs.getCategoryDistance(1, catIndex)
+                        - graph.catCosts[catIndex];    // counted twice
+                shortestDistance = Math.min(d, shortestDistance);
             }
         }
-
-        return new SRResult(distanceToScore(shortestDistance));
+        return shortestDistance;
     }
 
     @Override
@@ -111,18 +107,49 @@ public class MonolingualCategoryGraphSimilarity extends BaseMonolingualSRMetric{
         if (results != null) {
             return results;
         }
-        CategoryBfs bfs = new CategoryBfs(graph,pageId,getLanguage(), maxResults, validIds, catHelper);
-        while (bfs.hasMoreResults()) {
-            bfs.step();
-        }
-        results = new SRResultList(bfs.getPageDistances().size());
-        int i = 0;
-        for (int pageId2: bfs.getPageDistances().keys()) {
-            results.set(i++, pageId2, distanceToScore(bfs.getPageDistances().get(pageId2)));
+        CategoryBfs bfs = acquireBfs(singleTraversals, 1);
+        try {
+            bfs.setAddPages(true);
+            bfs.setExploreChildren(true);
+            bfs.setMaxResults(maxResults);
+            bfs.setValidWpIds(validIds);
+            bfs.addSource(0, pageId);
+            while (bfs.hasMoreResults()) {
+                bfs.step();
+            }
+            TIntDoubleMap distances = bfs.getPageDistances();
+            results = new SRResultList(distances.size());
+            int i = 0;
+            for (int pageId2: distances.keys()) {
+                results.set(i++, pageId2, distanceToScore(distances.get(pageId2)));
+            }
+        } finally {
+            releaseBfs(singleTraversals, bfs);
         }
         return normalize(results);
     }
 
+    /**
+     * @return An idle traversal from the pool, or a new one, reset for a new search.
+     */
+    private CategoryBfs acquireBfs(Queue<CategoryBfs> pool, int numSources) {
+        CategoryBfs bfs = pool.poll();
+        if (bfs == null) {
+            return new CategoryBfs(graph, numSources, getLanguage(), catHelper);
+        }
+        bfs.reset();
+        return bfs;
+    }
+
+    /**
+     * Returns a traversal to the pool, unless enough traversals are already idle.
+     */
+    private void releaseBfs(Queue<CategoryBfs> pool, CategoryBfs bfs) {
+        if (pool.size() < WpThreadUtils.getMaxThreads()) {
+            pool.offer(bfs);
+        }
+    }
+
     public static class Provider extends org.wikibrain.conf.Provider<MonolingualSRMetric> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
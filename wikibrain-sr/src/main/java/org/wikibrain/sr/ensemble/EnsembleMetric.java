@@ -19,10 +19,18 @@ import org.wikibrain.utils.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Combines the scores of several submetrics with an Ensemble.
+ *
+ * By default submetrics are queried one after another. After setConcurrency(),
+ * calls to them are fanned out on a bounded pool of threads, and with a deadline
+ * the ensemble is given whatever results arrived in time. Missing results are
+ * null, which ensembles treat like a submetric that has no score.
+ *
  * @author Matt Lesicko
  * @author Shilad Sen
  */
@@ -35,11 +43,18 @@ public class EnsembleMetric extends BaseMonolingualSRMetric {
     private boolean resolvePhrases = true;
     private boolean trainSubmetrics = true;
 
+    private volatile ExecutorService executor = null;
+    private volatile long deadlineMillis = 0;
+    private final List<LatencyHistogram> latencies = new ArrayList<LatencyHistogram>();
+
 
     public EnsembleMetric(String name, Language language, List<MonolingualSRMetric> metrics, Ensemble ensemble, Disambiguator disambiguator, LocalPageDao pageHelper){
         super(name, language, pageHelper, disambiguator);
         this.metrics=metrics;
         this.ensemble=ensemble;
+        for (int i = 0; i < metrics.size(); i++) {
+            latencies.add(new LatencyHistogram());
+        }
     }
 
     public List<MonolingualSRMetric> getMetrics() {
@@ -50,57 +65,226 @@ public class EnsembleMetric extends BaseMonolingualSRMetric {
         this.resolvePhrases = resolvePhrases;
     }
 
+    /**
+     * Queries submetrics concurrently on a pool of daemon threads. Once all threads are
+     * busy and a backlog of calls is queued, further submetric calls are not made and
+     * count as misses, so an overloaded pool sheds load instead of slowing callers down.
+     * @param numThreads The size of the pool, or 0 to query submetrics sequentially.
+     */
+    public synchronized void setConcurrency(int numThreads) {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (numThreads > 0) {
+            executor = new ThreadPoolExecutor(
+                    numThreads, numThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(numThreads * 4),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ensemble-" + getName());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * Sets the time budget for each request when submetrics are queried concurrently.
+     * Submetrics that have not finished by then are left running, but their results
+     * are ignored.
+     * @param deadlineMillis The budget, or 0 to wait for every submetric.
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @return The latencies of calls to each submetric, by submetric name.
+     */
+    public Map<String, LatencyHistogram> getLatencies() {
+        Map<String, LatencyHistogram> result = new LinkedHashMap<String, LatencyHistogram>();
+        for (int i = 0; i < metrics.size(); i++) {
+            result.put(metrics.get(i).getName(), latencies.get(i));
+        }
+        return result;
+    }
+
+    public void logLatencies() {
+        for (Map.Entry<String, LatencyHistogram> entry : getLatencies().entrySet()) {
+            LOG.info("latency of " + getName() + " submetric " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
     @Override
     public SRConfig getConfig() {
         return new SRConfig();
     }
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.similarity(pageId1,pageId2,explanations));
-        }
+    public SRResult similarity(final int pageId1, final int pageId2, final boolean explanations) throws DaoException {
+        List<SRResult> scores = query(new SubmetricCall<SRResult>() {
+            @Override
+            public SRResult call(MonolingualSRMetric metric) throws DaoException {
+                return metric.similarity(pageId1, pageId2, explanations);
+            }
+        });
         return ensemble.predictSimilarity(scores);
     }
 
+    /**
+     * Combines the cosimilarity matrices of the component metrics, each of which
+     * computes its whole matrix at once, pair by pair in parallel tiles.
+     */
+    @Override
+    protected double[][] computeCosimilarity(final int rowIds[], final int colIds[], boolean symmetric, int numThreads) throws DaoException {
+        final List<double[][]> matrices = new ArrayList<double[][]>();
+        for (MonolingualSRMetric metric : metrics) {
+            matrices.add(symmetric ? metric.cosimilarity(rowIds) : metric.cosimilarity(rowIds, colIds));
+        }
+        return scoreTiles(rowIds.length, colIds.length, symmetric, numThreads, new PairScorer() {
+            @Override
+            public double score(int i, int j) {
+                if (rowIds[i] == colIds[j]) {
+                    return normalize(1.0);
+                }
+                List<SRResult> scores = new ArrayList<SRResult>(matrices.size());
+                for (double[][] matrix : matrices) {
+                    scores.add(new SRResult(matrix[i][j]));
+                }
+                return ensemble.predictSimilarity(scores).getScore();
+            }
+        });
+    }
+
     @Override
-    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+    public SRResult similarity(final String phrase1, final String phrase2, final boolean explanations) throws DaoException {
         if (resolvePhrases) {
             return super.similarity(phrase1, phrase2, explanations);
         }
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.similarity(phrase1,phrase2,explanations));
-        }
+        List<SRResult> scores = query(new SubmetricCall<SRResult>() {
+            @Override
+            public SRResult call(MonolingualSRMetric metric) throws DaoException {
+                return metric.similarity(phrase1, phrase2, explanations);
+            }
+        });
         return ensemble.predictSimilarity(scores);
     }
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final int pageId, int maxResults, final TIntSet validIds) throws DaoException {
         SRResultList mostSimilar= getCachedMostSimilar(pageId, maxResults, validIds);
         if (mostSimilar != null) {
             return mostSimilar;
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.mostSimilar(pageId,maxResults*EXTRA_SEARCH_DEPTH,validIds));
-        }
+        final int depth = maxResults * EXTRA_SEARCH_DEPTH;
+        List<SRResultList> scores = query(new SubmetricCall<SRResultList>() {
+            @Override
+            public SRResultList call(MonolingualSRMetric metric) throws DaoException {
+                return metric.mostSimilar(pageId, depth, validIds);
+            }
+        });
         return ensemble.predictMostSimilar(scores, maxResults);
     }
 
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final String phrase, int maxResults, final TIntSet validIds) throws DaoException {
         if (resolvePhrases) {
             return super.mostSimilar(phrase, maxResults, validIds);
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (MonolingualSRMetric metric : metrics){
-            scores.add(metric.mostSimilar(phrase,maxResults*EXTRA_SEARCH_DEPTH,validIds));
-        }
+        final int depth = maxResults * EXTRA_SEARCH_DEPTH;
+        List<SRResultList> scores = query(new SubmetricCall<SRResultList>() {
+            @Override
+            public SRResultList call(MonolingualSRMetric metric) throws DaoException {
+                return metric.mostSimilar(phrase, depth, validIds);
+            }
+        });
         return ensemble.predictMostSimilar(scores,maxResults);
     }
 
+    /**
+     * A request made of each submetric.
+     */
+    private interface SubmetricCall<T> {
+        public T call(MonolingualSRMetric metric) throws DaoException;
+    }
+
+    /**
+     * Makes a call on every submetric, concurrently if an executor has been configured.
+     * @return The result of each submetric, or null for those that missed the deadline
+     * or were rejected by a saturated pool.
+     */
+    private <T> List<T> query(final SubmetricCall<T> call) throws DaoException {
+        List<T> results = new ArrayList<T>();
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            for (int i = 0; i < metrics.size(); i++) {
+                long start = System.nanoTime();
+                results.add(call.call(metrics.get(i)));
+                latencies.get(i).record(System.nanoTime() - start);
+            }
+            return results;
+        }
+
+        long deadlineMillis = this.deadlineMillis;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 0; i < metrics.size(); i++) {
+            final MonolingualSRMetric metric = metrics.get(i);
+            final LatencyHistogram latency = latencies.get(i);
+            try {
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws DaoException {
+                        long start = System.nanoTime();
+                        T result = call.call(metric);
+                        latency.record(System.nanoTime() - start);
+                        return result;
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                futures.add(null);     // the pool is saturated or was replaced
+            }
+        }
+        for (int i = 0; i < metrics.size(); i++) {
+            Future<T> future = futures.get(i);
+            if (future == null) {
+                latencies.get(i).recordMiss();
+                results.add(null);
+                continue;
+            }
+            try {
+                if (deadlineMillis <= 0) {
+                    results.add(future.get());
+                } else {
+                    results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                }
+            } catch (TimeoutException e) {
+                // don't interrupt the call; interrupts close the file channels of lucene and mapped indexes
+                future.cancel(false);
+                latencies.get(i).recordMiss();
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DaoException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DaoException) {
+                    throw (DaoException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new DaoException((Exception) cause);
+            }
+        }
+        return results;
+    }
+
     /**
      * Training cascades to base metrics.
      * @param dataset
@@ -252,6 +436,12 @@ public class EnsembleMetric extends BaseMonolingualSRMetric {
             if (config.hasPath("resolvephrases")) {
                 sr.setResolvePhrases(config.getBoolean("resolvephrases"));
             }
+            if (config.hasPath("concurrency")) {
+                sr.setConcurrency(config.getInt("concurrency"));
+            }
+            if (config.hasPath("deadlinemillis")) {
+                sr.setDeadlineMillis(config.getLong("deadlinemillis"));
+            }
 
             BaseMonolingualSRMetric.configureBase(getConfigurator(), sr, config);
             return sr;
@@ -30,14 +30,20 @@ public class EvenEnsemble implements Ensemble{
     @Override
     public SRResult predictSimilarity(List<SRResult> scores) {
         double result=0.0;
+        int numScores=0;
         List<Explanation> explanationList = new ArrayList<Explanation>();
         for (SRResult score : scores){
+            // metrics without a score, for example because they missed a deadline, are skipped
+            if (score==null||Double.isNaN(score.getScore())){
+                continue;
+            }
             result+=score.getScore();
+            numScores++;
             if (score.getExplanations()!=null&&!score.getExplanations().isEmpty()){
                 explanationList.addAll(score.getExplanations());
             }
         }
-        result/=scores.size();
+        result = (numScores==0) ? Double.NaN : result/numScores;
         return new SRResult(-2,result,explanationList);
     }
 
@@ -46,6 +52,9 @@ public class EvenEnsemble implements Ensemble{
         int numMetrics = scores.size();
         TIntDoubleHashMap scoreMap = new TIntDoubleHashMap();
         for (SRResultList resultList : scores){
+            if (resultList==null){
+                continue;
+            }
             for (SRResult result : resultList){
                 double value = result.getScore()/numMetrics;
                 scoreMap.adjustOrPutValue(result.getId(),value,value);
@@ -0,0 +1,89 @@
+package org.wikibrain.sr.ensemble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of call latencies with power of two buckets.
+ * Bucket b counts calls that took between 2^b and 2^(b+1) microseconds,
+ * so percentiles are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+    private static final int NUM_BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Records a call that completed.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(NUM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        while (true) {
+            long max = maxMicros.get();
+            if (micros <= max || maxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records a call whose result was not used because it missed its deadline.
+     * If the call eventually completes, its latency is recorded as well.
+     */
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * @param p A fraction between 0 and 1.
+     * @return The upper bound of the bucket containing the p'th latency, in milliseconds.
+     */
+    public double getPercentileMillis(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(p * n);
+        long seen = 0;
+        for (int b = 0; b < NUM_BUCKETS; b++) {
+            seen += buckets.get(b);
+            if (seen >= rank) {
+                return Math.min((1L << (b + 1)) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d, misses=%d, mean=%.2fms, p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms",
+                getCount(), getMisses(), getMeanMillis(),
+                getPercentileMillis(0.5), getPercentileMillis(0.9), getPercentileMillis(0.99),
+                getMaxMillis());
+    }
+}
@@ -10,12 +10,14 @@ import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.matrix.*;
+import org.wikibrain.sr.BaseMonolingualSRMetric;
 import org.wikibrain.sr.MonolingualSRMetric;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.UniversalSRMetric;
 import org.wikibrain.sr.normalize.IdentityNormalizer;
 import org.wikibrain.sr.normalize.Normalizer;
 import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.vector.VectorBasedMonoSRMetric;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 
@@ -23,6 +25,7 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -53,6 +56,18 @@ public class MostSimilarCache implements Closeable {
     private MonolingualSRMetric monoSr;
     private UniversalSRMetric universalSr;
 
+    /**
+     * How the cosimilarity matrix is computed. Modes that the metric does not support
+     * fall back to the next one in the list.
+     */
+    public static enum CosimilarityMode {
+        PRODUCT,    // multiply the metric's feature matrix by its transpose
+        BATCHED,    // call the metric's batch mostSimilar
+        PER_ROW     // call mostSimilar for each row
+    }
+
+    private CosimilarityMode mode = CosimilarityMode.PRODUCT;
+
     private SparseMatrix featureMatrix = null;
     private SparseMatrix featureTransposeMatrix = null;
     private SparseMatrix cosimilarityMatrix = null;
@@ -86,6 +101,14 @@ public class MostSimilarCache implements Closeable {
         throw new UnsupportedOperationException();
     }
 
+    public void setCosimilarityMode(CosimilarityMode mode) {
+        this.mode = mode;
+    }
+
+    public CosimilarityMode getCosimilarityMode() {
+        return mode;
+    }
+
     public boolean hasCachedMostSimilarVectors() {
         return (featureMatrix != null &&
                 featureMatrix.getNumRows() > 0 &&
@@ -306,12 +329,20 @@ public class MostSimilarCache implements Closeable {
         monoSr.setMostSimilarNormalizer(new IdentityNormalizer());
         monoSr.setSimilarityNormalizer(new IdentityNormalizer());
         try {
-            ParallelForEach.loop(intArrayToList(rowIds), maxThreads,
-                    new Procedure<Integer>() {
-                        public void call(Integer wpId) throws IOException, DaoException {
-                            writeSim(writer, wpId, colIdSet, maxSimsPerDoc, idCounter, cellCounter);
-                        }
-                    }, Integer.MAX_VALUE);
+            if (!usesPairwiseSimilarity() && mode == CosimilarityMode.PRODUCT
+                    && monoSr instanceof VectorBasedMonoSRMetric
+                    && ((VectorBasedMonoSRMetric) monoSr).writeMostSimilar(writer, rowIds, maxSimsPerDoc, colIdSet, maxThreads, cellCounter)) {
+                LOG.info("wrote cosimilarity as a product of the feature and transpose matrices");
+            } else if (!usesPairwiseSimilarity() && mode != CosimilarityMode.PER_ROW && monoSr instanceof BaseMonolingualSRMetric) {
+                writeSimsInBatches((BaseMonolingualSRMetric) monoSr, writer, rowIds, colIdSet, maxSimsPerDoc, maxThreads, cellCounter);
+            } else {
+                ParallelForEach.loop(intArrayToList(rowIds), maxThreads,
+                        new Procedure<Integer>() {
+                            public void call(Integer wpId) throws IOException, DaoException {
+                                writeSim(writer, wpId, colIdSet, maxSimsPerDoc, idCounter, cellCounter);
+                            }
+                        }, Integer.MAX_VALUE);
+            }
         } finally {
             monoSr.setSimilarityNormalizer(simNormalizer);
             monoSr.setMostSimilarNormalizer(mostSimNormalizer);
@@ -326,12 +357,40 @@ public class MostSimilarCache implements Closeable {
         return new SparseMatrix(getChildFile(name));
     }
 
+    private boolean usesPairwiseSimilarity() {
+        return similarity != null && featureMatrix != null && featureTransposeMatrix != null;
+    }
+
+    /**
+     * Writes the most similar lists using the metric's batch API, which shares
+     * work among the pages in each batch.
+     */
+    private void writeSimsInBatches(BaseMonolingualSRMetric metric, SparseMatrixWriter writer, int rowIds[], TIntSet colIds, int maxSimsPerDoc, int maxThreads, AtomicLong cellCounter) throws IOException {
+        int batchSize = BaseMonolingualSRMetric.MOST_SIMILAR_BATCH_SIZE;
+        for (int i = 0; i < rowIds.length; i += batchSize) {
+            int batch[] = Arrays.copyOfRange(rowIds, i, Math.min(rowIds.length, i + batchSize));
+            SRResultList results[];
+            try {
+                results = metric.mostSimilar(batch, maxSimsPerDoc, colIds, maxThreads);
+            } catch (DaoException e) {
+                throw new IOException(e);
+            }
+            for (int j = 0; j < batch.length; j++) {
+                if (results[j] != null) {
+                    cellCounter.getAndIncrement();
+                    writer.writeRow(new SparseMatrixRow(writer.getValueConf(), batch[j], results[j].getIds(), results[j].getScoresAsFloat()));
+                }
+            }
+            LOG.info("found matches for " + (i + batch.length) + " of " + rowIds.length + " pages");
+        }
+    }
+
     private void writeSim(SparseMatrixWriter writer, Integer wpId, TIntSet colIds, int maxSimsPerDoc, AtomicInteger idCounter, AtomicLong cellCounter) throws IOException, DaoException {
         if (idCounter.incrementAndGet() % 10000 == 0) {
             LOG.info("finding matches for page " + idCounter.get());
         }
         SRResultList scores;
-        if (similarity != null && featureMatrix != null && featureTransposeMatrix != null) {
+        if (usesPairwiseSimilarity()) {
             scores = similarity.mostSimilar(this, wpId, maxSimsPerDoc, colIds);
         } else {
             scores = monoSr.mostSimilar(wpId, maxSimsPerDoc, colIds);
@@ -82,6 +82,26 @@ public class Leaderboard {
         return values[1];
     }
 
+    /**
+     * @return True if the leaderboard holds its maximum number of entries.
+     */
+    public boolean isFull() {
+        return size == values.length - 1;
+    }
+
+    /**
+     * @return The score a new entry must exceed to enter a full leaderboard.
+     */
+    public double getThreshold() {
+        if (!isFull()) {
+            return Double.NEGATIVE_INFINITY;
+        } else if (size == 0) {
+            return Double.POSITIVE_INFINITY;
+        } else {
+            return values[1];
+        }
+    }
+
     public void removeMin() {
         swap(1,size);
         size--;
@@ -5,10 +5,16 @@ import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
 import org.apache.commons.lang3.ArrayUtils;
 import org.wikibrain.lucene.WikiBrainScoreDoc;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.vector.VectorSimilarity;
+import org.wikibrain.utils.Procedure;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 /**
  *
@@ -148,4 +154,27 @@ public class SimUtils {
         }
         return wikibrainScoreDocs;
     }
+
+    /**
+     * Calls similarity.mostSimilar for each query in parallel on the default shared
+     * pool of threads. Null queries produce null results.
+     * @throws IOException If any query failed, with the first failure as its cause.
+     */
+    public static SRResultList[] mostSimilarEach(final VectorSimilarity similarity, final List<TIntFloatMap> queries,
+                                                 final int maxResults, final TIntSet validIds, int numThreads) throws IOException {
+        final SRResultList results[] = new SRResultList[queries.size()];
+        try {
+            WorkSharingExecutor.getDefault().range(0, queries.size(), numThreads, new Procedure<Integer>() {
+                @Override
+                public void call(Integer i) throws IOException {
+                    if (queries.get(i) != null) {
+                        results[i] = similarity.mostSimilar(queries.get(i), maxResults, validIds);
+                    }
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException(e);
+        }
+        return results;
+    }
 }
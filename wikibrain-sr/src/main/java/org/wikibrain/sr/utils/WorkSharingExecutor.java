@@ -0,0 +1,119 @@
+package org.wikibrain.sr.utils;
+
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the items of a range in parallel on a fixed pool of daemon threads that is
+ * created once and shared by every call, unlike ParallelForEach, which creates a
+ * pool per call.
+ *
+ * The calling thread works through the range along with the helpers it enlists, and
+ * helpers only take items that no one has started. A call therefore finishes even if
+ * the pool is saturated or the call is nested inside another call on the same pool;
+ * it just gets less help. Failures are not swallowed: the first one is rethrown
+ * after the range completes.
+ */
+public class WorkSharingExecutor {
+    private static WorkSharingExecutor defaultExecutor = null;
+
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * @param name The prefix of the names of the pool's threads.
+     * @param numThreads The maximum number of helper threads.
+     */
+    public WorkSharingExecutor(final String name, int numThreads) {
+        pool = new ThreadPoolExecutor(
+                numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(numThreads * 2),
+                new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.DiscardPolicy());   // the caller does the work instead
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return An executor with WpThreadUtils.getMaxThreads() threads shared by callers
+     * that do not own one.
+     */
+    public static synchronized WorkSharingExecutor getDefault() {
+        if (defaultExecutor == null) {
+            defaultExecutor = new WorkSharingExecutor("sr-default", WpThreadUtils.getMaxThreads());
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Calls fn for every integer in [from, to), using the calling thread and up to
+     * numThreads - 1 helpers.
+     *
+     * @throws ExecutionException If any call failed. The cause is the first failure.
+     */
+    public void range(int from, int to, int numThreads, final Procedure<Integer> fn) throws ExecutionException {
+        final int n = to - from;
+        if (n <= 0) {
+            return;
+        }
+        final int start = from;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Object monitor = new Object();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < n) {
+                    try {
+                        fn.call(start + i);
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                        failure.compareAndSet(null, t);
+                    }
+                    if (completed.incrementAndGet() == n) {
+                        synchronized (monitor) {
+                            monitor.notifyAll();
+                        }
+                    }
+                }
+            }
+        };
+        int numHelpers = Math.min(numThreads, n) - 1;
+        for (int i = 0; i < numHelpers; i++) {
+            pool.execute(worker);
+        }
+        worker.run();
+
+        // wait for items that helpers have started
+        synchronized (monitor) {
+            while (completed.get() < n) {
+                try {
+                    monitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ExecutionException(e);
+                }
+            }
+        }
+        if (failure.get() != null) {
+            throw new ExecutionException(failures.get() + " of " + n + " items failed", failure.get());
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,726 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Scores cosine similarity queries against the rows of a feature matrix using its transpose
+ * as an inverted index.
+ *
+ * Dot products are accumulated into a dense array that covers one block of BLOCK_SIZE
+ * consecutive result ids at a time, so no hash maps are updated per posting. Posting lists
+ * are walked in id order, and a block is skipped entirely when the sum of the maximum
+ * contributions of the posting lists that reach it, divided by the shortest vector in the
+ * block, cannot beat the current top-k threshold. Surviving candidates are tallied into a
+ * single leaderboard.
+ *
+ * Batches of queries are scored in groups of BATCH_SIZE that share posting lists. Each
+ * posting list is read once per group and scattered into the accumulators of every query
+ * in the group that uses it. Groups use smaller blocks so that the accumulators of the
+ * whole group stay cache-resident.
+ *
+ * Posting lists written by SparseMatrixTransposer are sorted by id. Unsorted lists from
+ * older transposes are sorted per query.
+ */
+public class BlockedInvertedIndex {
+    private static final Logger LOG = Logger.getLogger(BlockedInvertedIndex.class.getName());
+
+    public static final int BLOCK_BITS = 16;
+    public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    public static final int BATCH_SIZE = 32;
+    public static final int BATCH_BLOCK_BITS = 14;
+    public static final int BATCH_BLOCK_SIZE = 1 << BATCH_BLOCK_BITS;
+
+    private final SparseMatrix transpose;
+
+    /**
+     * Lengths of each feature row.
+     */
+    private final TIntFloatMap lengths;
+
+    /**
+     * Maximum and minimum values in each transpose row.
+     */
+    private final TIntFloatHashMap maxValues = new TIntFloatHashMap();
+    private final TIntFloatHashMap minValues = new TIntFloatHashMap();
+
+    /**
+     * Transpose rows whose column ids are not sorted.
+     */
+    private final TIntSet unsortedRows = new TIntHashSet();
+
+    /**
+     * Shortest feature row in each block, offset by minBlock.
+     */
+    private final float blockMinLengths[];
+    private final int minBlock;
+    private final float globalMinLength;
+
+    /**
+     * Scratch space of single queries that have finished. At most one accumulator per
+     * available thread is kept, so idle threads hold no scratch space.
+     */
+    private final ConcurrentLinkedQueue<Accumulator> accumulators = new ConcurrentLinkedQueue<Accumulator>();
+
+    /**
+     * Builds the index.
+     * @param lengths Lengths of each feature row.
+     * @param transpose The transpose of the feature matrix.
+     */
+    public BlockedInvertedIndex(TIntFloatMap lengths, SparseMatrix transpose) {
+        this.transpose = transpose;
+        this.lengths = lengths;
+
+        int minB = Integer.MAX_VALUE;
+        int maxB = Integer.MIN_VALUE;
+        float minLength = Float.POSITIVE_INFINITY;
+        for (int id : lengths.keys()) {
+            minB = Math.min(minB, id >> BLOCK_BITS);
+            maxB = Math.max(maxB, id >> BLOCK_BITS);
+        }
+        if (minB > maxB) {
+            minB = maxB = 0;
+        }
+        this.minBlock = minB;
+        this.blockMinLengths = new float[maxB - minB + 1];
+        Arrays.fill(blockMinLengths, Float.POSITIVE_INFINITY);
+        for (int id : lengths.keys()) {
+            float l = lengths.get(id);
+            if (l > 0) {
+                int b = (id >> BLOCK_BITS) - minBlock;
+                blockMinLengths[b] = Math.min(blockMinLengths[b], l);
+                minLength = Math.min(minLength, l);
+            }
+        }
+        this.globalMinLength = minLength;
+
+        for (SparseMatrixRow row : transpose) {
+            float max = Float.NEGATIVE_INFINITY;
+            float min = Float.POSITIVE_INFINITY;
+            boolean sorted = true;
+            int lastId = Integer.MIN_VALUE;
+            for (int i = 0; i < row.getNumCols(); i++) {
+                float v = row.getColValue(i);
+                max = Math.max(max, v);
+                min = Math.min(min, v);
+                int id = row.getColIndex(i);
+                if (i > 0 && id < lastId) {
+                    sorted = false;
+                }
+                lastId = id;
+            }
+            maxValues.put(row.getRowIndex(), max);
+            minValues.put(row.getRowIndex(), min);
+            if (!sorted) {
+                unsortedRows.add(row.getRowIndex());
+            }
+        }
+        if (unsortedRows.size() > 0) {
+            LOG.warning("found " + unsortedRows.size() + " of " + transpose.getNumRows() +
+                    " transpose rows with unsorted ids; they will be sorted per query." +
+                    " Rebuild the transpose to avoid this cost.");
+        }
+    }
+
+    /**
+     * Returns the most similar feature rows to the query.
+     * @param query
+     * @param maxResults
+     * @param validIds If not null, only these ids are returned.
+     * @return
+     * @throws IOException
+     */
+    public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        Leaderboard leaderboard = new Leaderboard(maxResults);
+        double queryNorm = 0.0;
+        List<PostingList> lists = new ArrayList<PostingList>();
+        TFloatArrayList weights = new TFloatArrayList();
+        TDoubleArrayList maxContributions = new TDoubleArrayList();
+        for (int id : query.keys()) {
+            float weight = query.get(id);
+            queryNorm += weight * weight;
+            SparseMatrixRow row = transpose.getRow(id);
+            if (row != null && row.getNumCols() > 0) {
+                lists.add(new PostingList(row));
+                weights.add(weight);
+                maxContributions.add(getMaxContribution(id, weight));
+            }
+        }
+        queryNorm = Math.sqrt(queryNorm);
+        if (queryNorm > 0) {
+            score(lists.toArray(new PostingList[lists.size()]), weights.toArray(),
+                    maxContributions.toArray(), queryNorm, leaderboard, validIds);
+        }
+        SRResultList result = leaderboard.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    private void score(PostingList lists[], float weights[], double maxContributions[],
+                       double queryNorm, Leaderboard leaderboard, TIntSet validIds) {
+        Accumulator acc = accumulators.poll();
+        if (acc == null) {
+            acc = new Accumulator(BLOCK_SIZE);
+        }
+        while (true) {
+            // find the next block that contains any posting
+            long nextId = Long.MAX_VALUE;
+            for (PostingList list : lists) {
+                if (list.hasNext()) {
+                    nextId = Math.min(nextId, list.currentId());
+                }
+            }
+            if (nextId == Long.MAX_VALUE) {
+                break;
+            }
+            int block = (int) (nextId >> BLOCK_BITS);
+            long blockStart = ((long) block) << BLOCK_BITS;
+            long blockEnd = blockStart + BLOCK_SIZE;
+            double minLength = getBlockMinLength(block);
+
+            // skip the block if no row within it can make the leaderboard
+            if (leaderboard.isFull()) {
+                double bound = 0.0;
+                for (int i = 0; i < lists.length; i++) {
+                    if (lists[i].hasNext() && lists[i].currentId() < blockEnd) {
+                        bound += maxContributions[i];
+                    }
+                }
+                if (bound / (minLength * queryNorm) <= leaderboard.getThreshold()) {
+                    for (PostingList list : lists) {
+                        list.skipTo(blockEnd);
+                    }
+                    continue;
+                }
+            }
+
+            // accumulate dot products for the block
+            for (int i = 0; i < lists.length; i++) {
+                lists[i].accumulate(acc, weights[i], blockStart, blockEnd);
+            }
+
+            tally(acc, blockStart, minLength, queryNorm, leaderboard, validIds);
+        }
+        if (accumulators.size() < WpThreadUtils.getMaxThreads()) {
+            accumulators.offer(acc);
+        }
+    }
+
+    /**
+     * Returns the most similar feature rows to each query.
+     * Queries are grouped by their most heavily weighted feature so that queries in
+     * a group share posting lists, and groups are scored in parallel.
+     *
+     * @param queries The query vectors. Null queries produce null results.
+     * @param maxResults
+     * @param validIds If not null, only these ids are returned.
+     * @param numThreads
+     * @return One result list per query, in order.
+     * @throws IOException
+     */
+    public SRResultList[] mostSimilar(List<TIntFloatMap> queries, final int maxResults,
+                                      final TIntSet validIds, int numThreads) throws IOException {
+        final SRResultList results[] = new SRResultList[queries.size()];
+        TLongArrayList keys = new TLongArrayList();
+        for (int i = 0; i < queries.size(); i++) {
+            TIntFloatMap query = queries.get(i);
+            if (query != null) {
+                keys.add(((long) getGroupingFeature(query) << 32) | i);
+            }
+        }
+        keys.sort();
+        final int order[] = new int[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (int) keys.get(i);
+        }
+
+        final TIntFloatMap batch[] = queries.toArray(new TIntFloatMap[queries.size()]);
+        final ConcurrentLinkedQueue<Accumulator[]> scratch = new ConcurrentLinkedQueue<Accumulator[]>();
+        int numGroups = (order.length + BATCH_SIZE - 1) / BATCH_SIZE;
+        ParallelForEach.range(0, numGroups, numThreads, new Function<Integer, Object>() {
+            @Override
+            public Object call(Integer g) throws IOException {
+                int start = g * BATCH_SIZE;
+                int end = Math.min(order.length, start + BATCH_SIZE);
+                TIntFloatMap group[] = new TIntFloatMap[end - start];
+                for (int i = start; i < end; i++) {
+                    group[i - start] = batch[order[i]];
+                }
+                SRResultList groupResults[] = mostSimilarInGroup(group, maxResults, validIds, scratch);
+                for (int i = start; i < end; i++) {
+                    results[order[i]] = groupResults[i - start];
+                }
+                return null;
+            }
+        });
+        for (int i : order) {
+            if (results[i] == null) {
+                throw new IOException("scoring failed for query " + i + " in batch");
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Writes the most similar feature rows for each of the given feature rows. This is the
+     * top-k of each row of the product features x transpose^T, normalized to cosines.
+     *
+     * The rows are ordered globally by their most heavily weighted feature and cut into
+     * groups of BATCH_SIZE. Each group is scored by one thread with accumulators
+     * borrowed from the batch, reading each posting list once, and its rows are written as soon as
+     * the group finishes. Rows are read from the feature matrix as they are needed.
+     *
+     * @param features The feature matrix whose transpose backs this index.
+     * @param rowIds The rows to write. Ids without a feature row are skipped.
+     * @param maxResults
+     * @param validIds If not null, only these ids appear in results.
+     * @param writer
+     * @param numThreads
+     * @return The number of cells written, summed over all rows.
+     * @throws IOException
+     */
+    public long writeMostSimilar(final SparseMatrix features, int rowIds[], final int maxResults,
+                                final TIntSet validIds, final SparseMatrixWriter writer, int numThreads) throws IOException {
+        TLongArrayList keys = new TLongArrayList();
+        for (int i = 0; i < rowIds.length; i++) {
+            SparseMatrixRow row = features.getRow(rowIds[i]);
+            if (row != null) {
+                keys.add(((long) getGroupingFeature(row) << 32) | i);
+            }
+        }
+        keys.sort();
+        final int order[] = new int[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = rowIds[(int) keys.get(i)];
+        }
+
+        final int numGroups = (order.length + BATCH_SIZE - 1) / BATCH_SIZE;
+        final AtomicInteger numWritten = new AtomicInteger();
+        final AtomicLong numCells = new AtomicLong();
+        final AtomicInteger numFailed = new AtomicInteger();
+        final ConcurrentLinkedQueue<Accumulator[]> scratch = new ConcurrentLinkedQueue<Accumulator[]>();
+        final long start = System.currentTimeMillis();
+        ParallelForEach.range(0, numGroups, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer g) throws IOException {
+                int from = g * BATCH_SIZE;
+                int to = Math.min(order.length, from + BATCH_SIZE);
+                try {
+                    TIntFloatMap group[] = new TIntFloatMap[to - from];
+                    for (int i = from; i < to; i++) {
+                        group[i - from] = features.getRow(order[i]).asTroveMap();
+                    }
+                    SRResultList results[] = mostSimilarInGroup(group, maxResults, validIds, scratch);
+                    for (int i = from; i < to; i++) {
+                        SRResultList r = results[i - from];
+                        writer.writeRow(new SparseMatrixRow(writer.getValueConf(), order[i], r.getIds(), r.getScoresAsFloat()));
+                        numCells.addAndGet(r.numDocs());
+                    }
+                } catch (IOException e) {
+                    numFailed.addAndGet(to - from);
+                    throw e;
+                }
+                int n = numWritten.addAndGet(to - from);
+                if (n % 10000 < to - from || n == order.length) {
+                    double seconds = (System.currentTimeMillis() - start) / 1000.0;
+                    LOG.info(String.format("wrote most similar rows for %d of %d ids (%.1f rows per second)",
+                            n, order.length, n / Math.max(seconds, 0.001)));
+                }
+            }
+        });
+        if (numFailed.get() > 0) {
+            throw new IOException("scoring failed for " + numFailed.get() + " of " + order.length + " rows");
+        }
+        return numCells.get();
+    }
+
+    /**
+     * Returns the feature with the largest absolute weight in the row.
+     */
+    private static int getGroupingFeature(SparseMatrixRow row) {
+        int best = Integer.MAX_VALUE;
+        float bestWeight = -1.0f;
+        for (int i = 0; i < row.getNumCols(); i++) {
+            int id = row.getColIndex(i);
+            float w = Math.abs(row.getColValue(i));
+            if (w > bestWeight || (w == bestWeight && id < best)) {
+                best = id;
+                bestWeight = w;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the feature with the largest absolute weight in the query.
+     */
+    private static int getGroupingFeature(TIntFloatMap query) {
+        int best = Integer.MAX_VALUE;
+        float bestWeight = -1.0f;
+        for (int id : query.keys()) {
+            float w = Math.abs(query.get(id));
+            if (w > bestWeight || (w == bestWeight && id < best)) {
+                best = id;
+                bestWeight = w;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Scores a group of at most BATCH_SIZE queries, reading each posting list once.
+     * @param scratch Accumulators shared by the groups of one batch, which are
+     *                released with the batch.
+     */
+    SRResultList[] mostSimilarInGroup(TIntFloatMap group[], int maxResults, TIntSet validIds,
+                                      ConcurrentLinkedQueue<Accumulator[]> scratch) throws IOException {
+        if (group.length > BATCH_SIZE) {
+            throw new IllegalArgumentException("group of size " + group.length + " exceeds " + BATCH_SIZE);
+        }
+        int n = group.length;
+        Leaderboard leaderboards[] = new Leaderboard[n];
+        double queryNorms[] = new double[n];
+        TIntObjectHashMap<BatchTerm> termsById = new TIntObjectHashMap<BatchTerm>();
+        List<BatchTerm> terms = new ArrayList<BatchTerm>();
+        for (int q = 0; q < n; q++) {
+            leaderboards[q] = new Leaderboard(maxResults);
+            for (int id : group[q].keys()) {
+                float weight = group[q].get(id);
+                queryNorms[q] += weight * weight;
+                BatchTerm term = termsById.get(id);
+                if (term == null && !termsById.containsKey(id)) {
+                    SparseMatrixRow row = transpose.getRow(id);
+                    if (row != null && row.getNumCols() > 0) {
+                        term = new BatchTerm(new PostingList(row));
+                        terms.add(term);
+                    }
+                    termsById.put(id, term);
+                }
+                if (term != null) {
+                    term.add(q, weight, getMaxContribution(id, weight));
+                }
+            }
+            queryNorms[q] = Math.sqrt(queryNorms[q]);
+        }
+
+        Accumulator accs[] = scratch.poll();
+        if (accs == null) {
+            accs = new Accumulator[BATCH_SIZE];
+            for (int i = 0; i < accs.length; i++) {
+                accs[i] = new Accumulator(BATCH_BLOCK_SIZE);
+            }
+        }
+        double bounds[] = new double[n];
+        boolean active[] = new boolean[n];
+        while (true) {
+            // find the next block that contains any posting
+            long nextId = Long.MAX_VALUE;
+            for (BatchTerm term : terms) {
+                if (term.list.hasNext()) {
+                    nextId = Math.min(nextId, term.list.currentId());
+                }
+            }
+            if (nextId == Long.MAX_VALUE) {
+                break;
+            }
+            long blockStart = (nextId >> BATCH_BLOCK_BITS) << BATCH_BLOCK_BITS;
+            long blockEnd = blockStart + BATCH_BLOCK_SIZE;
+            double minLength = getBlockMinLength((int) (nextId >> BLOCK_BITS));
+
+            // decide which queries could still place a row from this block
+            Arrays.fill(bounds, 0.0);
+            for (BatchTerm term : terms) {
+                if (term.list.hasNext() && term.list.currentId() < blockEnd) {
+                    for (int j = 0; j < term.queries.size(); j++) {
+                        bounds[term.queries.get(j)] += term.maxContributions.get(j);
+                    }
+                }
+            }
+            boolean anyActive = false;
+            for (int q = 0; q < n; q++) {
+                active[q] = queryNorms[q] > 0 && (!leaderboards[q].isFull()
+                        || bounds[q] / (minLength * queryNorms[q]) > leaderboards[q].getThreshold());
+                anyActive |= active[q];
+            }
+
+            // accumulate dot products for the block
+            for (BatchTerm term : terms) {
+                if (anyActive && term.isActive(active)) {
+                    term.accumulate(accs, active, blockStart, blockEnd);
+                } else {
+                    term.list.skipTo(blockEnd);
+                }
+            }
+
+            // tally the candidates
+            for (int q = 0; q < n; q++) {
+                if (active[q]) {
+                    tally(accs[q], blockStart, minLength, queryNorms[q], leaderboards[q], validIds);
+                }
+            }
+        }
+
+        scratch.offer(accs);
+
+        SRResultList results[] = new SRResultList[n];
+        for (int q = 0; q < n; q++) {
+            results[q] = leaderboards[q].getTop();
+            results[q].sortDescending();
+        }
+        return results;
+    }
+
+    /**
+     * Tallies the rows touched in the accumulator and resets it.
+     */
+    private void tally(Accumulator acc, long blockStart, double minLength, double queryNorm,
+                       Leaderboard leaderboard, TIntSet validIds) {
+        for (int i = 0; i < acc.numTouched; i++) {
+            int offset = acc.touched[i];
+            double dot = acc.dots[offset];
+            acc.dots[offset] = 0.0;
+            acc.seen[offset] = false;
+            int id = (int) (blockStart + offset);
+            if (validIds != null && !validIds.contains(id)) {
+                continue;
+            }
+            if (leaderboard.isFull() && bound(dot, minLength, queryNorm) <= leaderboard.getThreshold()) {
+                continue;
+            }
+            float length = lengths.get(id);
+            if (length > 0) {
+                leaderboard.tallyScore(id, dot / (length * queryNorm));
+            }
+        }
+        acc.numTouched = 0;
+    }
+
+    /**
+     * Returns the largest contribution a posting in a transpose row can make to a dot product.
+     */
+    private double getMaxContribution(int rowId, float weight) {
+        return Math.max(0.0, Math.max(weight * maxValues.get(rowId), weight * minValues.get(rowId)));
+    }
+
+    /**
+     * Returns an upper bound on the similarity of a row in a block with the given dot product.
+     */
+    private static double bound(double dot, double minLength, double queryNorm) {
+        return (dot > 0) ? dot / (minLength * queryNorm) : 0.0;
+    }
+
+    private double getBlockMinLength(int block) {
+        int b = block - minBlock;
+        if (b < 0 || b >= blockMinLengths.length) {
+            return globalMinLength;
+        }
+        return blockMinLengths[b];
+    }
+
+    /**
+     * Scratch space for a single block.
+     */
+    private static class Accumulator {
+        final double dots[];
+        final boolean seen[];
+        final int touched[];
+        int numTouched = 0;
+
+        Accumulator(int blockSize) {
+            dots = new double[blockSize];
+            seen = new boolean[blockSize];
+            touched = new int[blockSize];
+        }
+
+        void add(int offset, double value) {
+            if (!seen[offset]) {
+                seen[offset] = true;
+                touched[numTouched++] = offset;
+            }
+            dots[offset] += value;
+        }
+    }
+
+    /**
+     * A posting list shared by the queries of a group, with each query's weight.
+     */
+    private static class BatchTerm {
+        final PostingList list;
+        final TIntArrayList queries = new TIntArrayList();
+        final TFloatArrayList weights = new TFloatArrayList();
+        final TDoubleArrayList maxContributions = new TDoubleArrayList();
+
+        /**
+         * Scratch space for the accumulators and weights of the active queries in a block.
+         */
+        Accumulator activeAccs[];
+        float activeWeights[];
+
+        BatchTerm(PostingList list) {
+            this.list = list;
+        }
+
+        void add(int query, float weight, double maxContribution) {
+            queries.add(query);
+            weights.add(weight);
+            maxContributions.add(maxContribution);
+        }
+
+        boolean isActive(boolean active[]) {
+            for (int j = 0; j < queries.size(); j++) {
+                if (active[queries.get(j)]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void accumulate(Accumulator accs[], boolean active[], long start, long end) {
+            if (activeAccs == null) {
+                activeAccs = new Accumulator[queries.size()];
+                activeWeights = new float[queries.size()];
+            }
+            int numActive = 0;
+            for (int j = 0; j < queries.size(); j++) {
+                int q = queries.get(j);
+                if (active[q]) {
+                    activeAccs[numActive] = accs[q];
+                    activeWeights[numActive] = weights.get(j);
+                    numActive++;
+                }
+            }
+            while (list.hasNext()) {
+                int id = list.currentId();
+                if (id >= end) {
+                    break;
+                }
+                int offset = (int) (id - start);
+                float val = list.currentValue();
+                for (int j = 0; j < numActive; j++) {
+                    activeAccs[j].add(offset, activeWeights[j] * val);
+                }
+                list.advance();
+            }
+        }
+    }
+
+    /**
+     * A cursor over the postings in a single transpose row, in id order.
+     */
+    private class PostingList {
+        private final SparseMatrixRow row;
+        private final int size;
+
+        /**
+         * Only used for rows whose ids are not sorted.
+         */
+        private int ids[];
+        private float vals[];
+
+        private int cursor = 0;
+
+        PostingList(SparseMatrixRow row) {
+            this.row = row;
+            this.size = row.getNumCols();
+            if (unsortedRows.contains(row.getRowIndex())) {
+                sortPostings();
+            }
+        }
+
+        private void sortPostings() {
+            long packed[] = new long[size];
+            for (int i = 0; i < size; i++) {
+                packed[i] = ((long) row.getColIndex(i) << 32)
+                        | (Float.floatToRawIntBits(row.getColValue(i)) & 0xFFFFFFFFL);
+            }
+            Arrays.sort(packed);
+            ids = new int[size];
+            vals = new float[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (int) (packed[i] >> 32);
+                vals[i] = Float.intBitsToFloat((int) packed[i]);
+            }
+        }
+
+        boolean hasNext() {
+            return cursor < size;
+        }
+
+        int currentId() {
+            return id(cursor);
+        }
+
+        float currentValue() {
+            return val(cursor);
+        }
+
+        void advance() {
+            cursor++;
+        }
+
+        private int id(int i) {
+            return (ids == null) ? row.getColIndex(i) : ids[i];
+        }
+
+        private float val(int i) {
+            return (vals == null) ? row.getColValue(i) : vals[i];
+        }
+
+        /**
+         * Advances the cursor to the first posting with id >= end.
+         */
+        void skipTo(long end) {
+            int lo = cursor;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (id(mid) < end) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            cursor = lo;
+        }
+
+        /**
+         * Adds the weighted postings with ids in [start, end) to the accumulator.
+         */
+        void accumulate(Accumulator acc, float weight, long start, long end) {
+            while (cursor < size) {
+                int id = id(cursor);
+                if (id >= end) {
+                    break;
+                }
+                acc.add((int) (id - start), weight * val(cursor));
+                cursor++;
+            }
+        }
+    }
+}
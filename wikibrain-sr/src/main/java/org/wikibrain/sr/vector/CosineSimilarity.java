@@ -12,12 +12,14 @@ import org.wikibrain.conf.Configurator;
 import org.wikibrain.matrix.MatrixRow;
 import org.wikibrain.matrix.SparseMatrix;
 import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SimUtils;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -33,6 +35,7 @@ public class CosineSimilarity implements VectorSimilarity {
 
     private SparseMatrix features;
     private SparseMatrix transpose;
+    private BlockedInvertedIndex invertedIndex;
 
     @Override
     public synchronized  void setMatrices(SparseMatrix features, SparseMatrix transpose) {
@@ -48,6 +51,7 @@ public class CosineSimilarity implements VectorSimilarity {
             maxResults = Math.max(maxResults, row.getNumCols());
         }
         idsInResults.addAll(transpose.getRowIds());
+        invertedIndex = new BlockedInvertedIndex(lengths, transpose);
     }
 
     @Override
@@ -64,7 +68,30 @@ public class CosineSimilarity implements VectorSimilarity {
         }
     }
 
-    private SRResultList mostSimilarWithRegularIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+    @Override
+    public SRResultList[] mostSimilar(final List<TIntFloatMap> queries, final int maxResults, final TIntSet validIds, int numThreads) throws IOException {
+        if (validIds != null && validIds.size() < 10000) {
+            return SimUtils.mostSimilarEach(this, queries, maxResults, validIds, numThreads);
+        } else {
+            return invertedIndex.mostSimilar(queries, maxResults, validIds, numThreads);
+        }
+    }
+
+    /**
+     * Writes the most similar rows of the feature matrix for each of the rows, computed
+     * as a blocked sparse matrix product of the feature matrix and its transpose.
+     *
+     * @see BlockedInvertedIndex#writeMostSimilar(SparseMatrix, int[], int, TIntSet, SparseMatrixWriter, int)
+     * @return The number of cells written, summed over all rows.
+     */
+    public long writeMostSimilar(int rowIds[], int maxResults, TIntSet validIds, SparseMatrixWriter writer, int numThreads) throws IOException {
+        if (invertedIndex == null) {
+            throw new IllegalStateException("matrices have not been set");
+        }
+        return invertedIndex.writeMostSimilar(features, rowIds, maxResults, validIds, writer, numThreads);
+    }
+
+    SRResultList mostSimilarWithRegularIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         final Leaderboard leaderboard = new Leaderboard(maxResults);
         double rowNorm = norm(query);
 
@@ -75,8 +102,8 @@ public class CosineSimilarity implements VectorSimilarity {
                 for (int i = 0; i < row2.getNumCols(); i++) {
                     int id2 = row2.getColIndex(i);
                     float val2 = query.get(id2);
-                    if (val2 > 0) {
-                        dot += val2 + row2.getColValue(i);
+                    if (val2 != 0) {
+                        dot += val2 * row2.getColValue(i);
                     }
                 }
                 double l1 = lengths.get(id);
@@ -91,7 +118,15 @@ public class CosineSimilarity implements VectorSimilarity {
         return result;
     }
 
-    private SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+    SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        return invertedIndex.mostSimilar(query, maxResults, validIds);
+    }
+
+    /**
+     * The original hash-based accumulation over the inverted index.
+     * Retained as a reference for tests and benchmarks of the blocked index.
+     */
+    SRResultList mostSimilarWithHashIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         TIntDoubleHashMap dots = new TIntDoubleHashMap(maxResults * 5);
         for (int id : query.keys()) {
             float val1 = query.get(id);
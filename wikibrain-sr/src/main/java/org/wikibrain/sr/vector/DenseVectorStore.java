@@ -0,0 +1,335 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A memory mapped store of dense float vectors, each identified by a string key.
+ *
+ * The file contains a header, the vectors as one contiguous row-major float matrix,
+ * the UTF-8 keys, and the row numbers sorted by key. Opening a store maps the file
+ * without reading it, and keys are found by binary search over the mapped bytes,
+ * so nothing proportional to the number of rows lives on the heap.
+ *
+ * Values are little endian, like the word2vec binary format.
+ */
+public class DenseVectorStore implements Closeable {
+    private static final Logger LOG = Logger.getLogger(DenseVectorStore.class.getName());
+
+    public static final int FILE_HEADER = 0xdefec701;
+
+    /**
+     * Magic, num rows, dimensions, num keys in the sorted index,
+     * offset of the keys, and offset of the sorted index.
+     */
+    public static final int HEADER_SIZE = 32;
+
+    private final File path;
+    private final FileChannel channel;
+    private final int numRows;
+    private final int dimensions;
+    private final int numKeys;
+
+    // vectors are mapped in chunks of whole rows because a buffer holds at most 2GB
+    private final int rowsPerChunk;
+    private final FloatBuffer[] vectors;
+
+    private final IntBuffer keyOffsets;
+    private final ByteBuffer keyBytes;
+    private final IntBuffer sortedRows;
+
+    public DenseVectorStore(File path) throws IOException {
+        this.path = path;
+        this.channel = new FileInputStream(path).getChannel();
+        try {
+            ByteBuffer header = map(0, HEADER_SIZE);
+            if (header.getInt(0) != FILE_HEADER) {
+                throw new IOException("invalid file header in " + path + ": " + header.getInt(0));
+            }
+            numRows = header.getInt(4);
+            dimensions = header.getInt(8);
+            numKeys = header.getInt(12);
+            long keysStart = header.getLong(16);
+            long indexStart = header.getLong(24);
+
+            rowsPerChunk = Math.max(1, Integer.MAX_VALUE / (4 * Math.max(1, dimensions)));
+            int numChunks = (numRows + rowsPerChunk - 1) / rowsPerChunk;
+            vectors = new FloatBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                int rows = Math.min(rowsPerChunk, numRows - i * rowsPerChunk);
+                long start = HEADER_SIZE + 4L * dimensions * rowsPerChunk * i;
+                vectors[i] = map(start, 4L * dimensions * rows).asFloatBuffer();
+            }
+
+            keyOffsets = map(keysStart, 4L * (numRows + 1)).asIntBuffer();
+            long bytesStart = keysStart + 4L * (numRows + 1);
+            keyBytes = map(bytesStart, indexStart - bytesStart);
+            sortedRows = map(indexStart, 4L * numKeys).asIntBuffer();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(channel);
+            throw e;
+        }
+        LOG.info("mapped " + numRows + " vectors with " + dimensions + " dimensions from " + path);
+    }
+
+    private ByteBuffer map(long start, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("section of " + size + " bytes is too large to map in " + path);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * @return The row of the vector with the key, or -1 if there is none.
+     */
+    public int getRow(String key) {
+        byte target[] = toBytes(key);
+        int lo = 0;
+        int hi = numKeys - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareKey(sortedRows.get(mid), target);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return sortedRows.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    public String getKey(int row) {
+        int start = keyOffsets.get(row);
+        byte bytes[] = new byte[keyOffsets.get(row + 1) - start];
+        ByteBuffer view = keyBytes.duplicate();
+        view.position(start);
+        view.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return A copy of the vector in the row.
+     */
+    public float[] getVector(int row) {
+        float vector[] = new float[dimensions];
+        FloatBuffer view = vectors[row / rowsPerChunk].duplicate();
+        view.position((row % rowsPerChunk) * dimensions);
+        view.get(vector);
+        return vector;
+    }
+
+    /**
+     * @return The vector with the key, or null if there is none.
+     */
+    public float[] getVector(String key) {
+        int row = getRow(key);
+        return (row < 0) ? null : getVector(row);
+    }
+
+    /**
+     * Returns the dot product of the vector in the row with another vector,
+     * reading the row directly from the mapped file.
+     */
+    public double dot(int row, float[] vector) {
+        FloatBuffer chunk = vectors[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * dimensions;
+        double sum = 0.0;
+        for (int i = 0; i < dimensions; i++) {
+            sum += chunk.get(offset + i) * vector[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the dot product of the vectors in two rows.
+     */
+    public double dot(int row1, int row2) {
+        FloatBuffer chunk1 = vectors[row1 / rowsPerChunk];
+        FloatBuffer chunk2 = vectors[row2 / rowsPerChunk];
+        int offset1 = (row1 % rowsPerChunk) * dimensions;
+        int offset2 = (row2 % rowsPerChunk) * dimensions;
+        double sum = 0.0;
+        for (int i = 0; i < dimensions; i++) {
+            sum += chunk1.get(offset1 + i) * chunk2.get(offset2 + i);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the rows with the highest dot product with the vector by scanning every row.
+     * The ids of the result are rows.
+     */
+    public SRResultList mostSimilar(float[] vector, int maxResults) {
+        Leaderboard top = new Leaderboard(maxResults);
+        for (int row = 0; row < numRows; row++) {
+            top.tallyScore(row, dot(row, vector));
+        }
+        SRResultList result = top.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    private int compareKey(int row, byte[] target) {
+        int start = keyOffsets.get(row);
+        int length = keyOffsets.get(row + 1) - start;
+        int n = Math.min(length, target.length);
+        for (int i = 0; i < n; i++) {
+            int c = (keyBytes.get(start + i) & 0xff) - (target[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - target.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static byte[] toBytes(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a store one vector at a time.
+     * If a key is added more than once, lookups return its last vector.
+     */
+    public static class Writer {
+        private final File path;
+        private final int dimensions;
+        private final OutputStream output;
+        private final ByteBuffer row;
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+
+        public Writer(File path, int dimensions) throws IOException {
+            this.path = path;
+            this.dimensions = dimensions;
+            this.row = ByteBuffer.allocate(4 * dimensions).order(ByteOrder.LITTLE_ENDIAN);
+            this.output = new BufferedOutputStream(new FileOutputStream(path), 1024 * 1024);
+            output.write(new byte[HEADER_SIZE]);     // rewritten by finish()
+        }
+
+        public void add(String key, float[] vector) throws IOException {
+            if (vector.length != dimensions) {
+                throw new IllegalArgumentException("expected " + dimensions + " dimensions, found " + vector.length);
+            }
+            row.clear();
+            row.asFloatBuffer().put(vector);
+            output.write(row.array());
+            keys.add(toBytes(key));
+        }
+
+        public void finish() throws IOException {
+            int numRows = keys.size();
+            long keysStart = HEADER_SIZE + 4L * dimensions * numRows;
+            ByteBuffer buffer = ByteBuffer.allocate(4 * (numRows + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            int offset = 0;
+            for (byte[] key : keys) {
+                buffer.putInt(offset);
+                offset += key.length;
+            }
+            buffer.putInt(offset);
+            output.write(buffer.array());
+            for (byte[] key : keys) {
+                output.write(key);
+            }
+            long indexStart = keysStart + 4L * (numRows + 1) + offset;
+
+            int sorted[] = getSortedRows();
+            buffer = ByteBuffer.allocate(4 * sorted.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asIntBuffer().put(sorted);
+            output.write(buffer.array());
+            output.close();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(FILE_HEADER);
+            header.putInt(numRows);
+            header.putInt(dimensions);
+            header.putInt(sorted.length);
+            header.putLong(keysStart);
+            header.putLong(indexStart);
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                file.write(header.array());
+            } finally {
+                file.close();
+            }
+            LOG.info("wrote " + numRows + " vectors with " + dimensions + " dimensions to " + path);
+        }
+
+        /**
+         * Returns rows sorted by key, keeping only the last row of each key.
+         */
+        private int[] getSortedRows() {
+            Integer rows[] = new Integer[keys.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+            }
+            Arrays.sort(rows, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer r1, Integer r2) {
+                    int c = compareBytes(keys.get(r1), keys.get(r2));
+                    return (c != 0) ? c : r2 - r1;
+                }
+            });
+            TIntArrayList unique = new TIntArrayList(rows.length);
+            for (int i = 0; i < rows.length; i++) {
+                if (i == 0 || compareBytes(keys.get(rows[i - 1]), keys.get(rows[i])) != 0) {
+                    unique.add(rows[i]);
+                }
+            }
+            return unique.toArray();
+        }
+
+        private static int compareBytes(byte[] b1, byte[] b2) {
+            int n = Math.min(b1.length, b2.length);
+            for (int i = 0; i < n; i++) {
+                int c = (b1[i] & 0xff) - (b2[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return b1.length - b2.length;
+        }
+    }
+}
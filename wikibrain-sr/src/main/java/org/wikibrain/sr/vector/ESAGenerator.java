@@ -20,6 +20,7 @@ import org.wikibrain.lucene.QueryBuilder;
 import org.wikibrain.lucene.WikiBrainScoreDoc;
 import org.wikibrain.lucene.WpIdFilter;
 import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixWriter;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
@@ -44,6 +45,7 @@ public class ESAGenerator implements VectorGenerator {
     private final LocalPageDao pageDao;
 
     private WpIdFilter conceptFilter = null;
+    private int conceptIds[] = null;
 
     public ESAGenerator(Language language, LocalPageDao pageDao, LuceneSearcher searcher) {
         this.language = language;
@@ -82,6 +84,7 @@ public class ESAGenerator implements VectorGenerator {
 
     public void setConcepts(File file) throws IOException {
         conceptFilter = null;
+        conceptIds = null;
         if (!file.isFile()) {
             LOG.warning("concept path " + file + " not a file; defaulting to all concepts");
             return;
@@ -90,10 +93,23 @@ public class ESAGenerator implements VectorGenerator {
         for (String wpId : FileUtils.readLines(file)) {
             ids.add(Integer.valueOf(wpId));
         }
-        conceptFilter = new WpIdFilter(ids.toArray());
+        conceptIds = ids.toArray();
+        conceptFilter = new WpIdFilter(conceptIds);
         LOG.warning("installed " + ids.size() + " concepts for " + language);
     }
 
+    /**
+     * Writes the vectors of many pages, one row per page with a non-empty vector.
+     * The vectors are the same as those of getVector(int), but they are computed
+     * directly from the index's postings instead of running one query per page.
+     *
+     * @see ESAVectorBuilder
+     */
+    public void writeVectors(SparseMatrixWriter writer, int pageIds[], int numThreads) throws IOException, DaoException {
+        new ESAVectorBuilder(language, searcher, conceptIds, getQueryBuilder())
+                .write(writer, pageIds, numThreads);
+    }
+
     @Override
     public List<Explanation> getExplanations(LocalPage page1, LocalPage page2, TIntFloatMap vector1, TIntFloatMap vector2, SRResult result) throws DaoException {
         Leaderboard lb = new Leaderboard(5);    // TODO: make 5 configurable
@@ -145,7 +161,7 @@ public class ESAGenerator implements VectorGenerator {
      * Prune a WikiBrainScoreDoc array.
      * @param wikibrainScoreDocs array of WikiBrainScoreDoc
      */
-    private WikiBrainScoreDoc[] pruneSimilar(WikiBrainScoreDoc[] wikibrainScoreDocs) {
+    static WikiBrainScoreDoc[] pruneSimilar(WikiBrainScoreDoc[] wikibrainScoreDocs) {
         if (wikibrainScoreDocs.length == 0) {
             return wikibrainScoreDocs;
         }
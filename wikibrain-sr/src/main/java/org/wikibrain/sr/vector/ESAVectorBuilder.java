@@ -0,0 +1,413 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.QueryBuilder;
+import org.wikibrain.lucene.WikiBrainScoreDoc;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Computes the ESA vectors of many pages at once, directly from the postings of a
+ * language's lucene index.
+ *
+ * ESAGenerator.getVector(int) looks up the page's lucene document, builds a
+ * MoreLikeThis query by re-analyzing its stored text, and runs the query. This class
+ * produces the same vectors without any of that machinery. Documents are processed
+ * in chunks that never span segments. For each chunk, one walk of the term
+ * dictionary selects every document's query terms, using the same frequency and
+ * tf-idf cutoffs as MoreLikeThis. Each document's terms are then scored against
+ * every segment's postings with lucene's default tf-idf similarity, accumulating
+ * scores in a dense per-thread array.
+ *
+ * The vectors match those of getVector up to float rounding, except that
+ * MoreLikeThis only counts terms in the first 5000 tokens of a document.
+ */
+class ESAVectorBuilder {
+    private static final Logger LOG = Logger.getLogger(ESAVectorBuilder.class.getName());
+
+    public static final int DEFAULT_CHUNK_SIZE = 25000;
+
+    private final Language language;
+    private final LuceneSearcher searcher;
+    private final DirectoryReader reader;
+    private final String field;
+    private final DefaultSimilarity similarity = new DefaultSimilarity();
+
+    private final int maxQueryTerms;
+    private final int minTermFreq;
+    private final int minDocFreq;
+    private final int maxDocFreq;
+    private final int numHits;
+
+    // Concepts allowed in vectors, indexed by lucene id, or null for all concepts
+    private final boolean[] concepts;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private final ThreadLocal<Accumulator> accumulators = new ThreadLocal<Accumulator>() {
+        @Override
+        protected Accumulator initialValue() {
+            return new Accumulator(reader.maxDoc());
+        }
+    };
+
+    /**
+     * @param conceptIds Local ids of the pages that may appear in vectors, or null for all pages.
+     * @param params The more like this parameters, as used by ESAGenerator.
+     */
+    ESAVectorBuilder(Language language, LuceneSearcher searcher, int conceptIds[], QueryBuilder params) {
+        this.language = language;
+        this.searcher = searcher;
+        this.reader = searcher.getReaderByLanguage(language);
+        this.field = searcher.getOptions().elements.getTextFieldName();
+        this.maxQueryTerms = params.getMaxQueryTerms();
+        this.minTermFreq = params.getMinTermFreq();
+        this.minDocFreq = params.getMinDocFreq();
+        this.maxDocFreq = params.getMaxPercentage() * reader.numDocs() / 100;
+        this.numHits = params.getNumHits();
+        if (conceptIds == null) {
+            concepts = null;
+        } else {
+            TIntSet conceptSet = new TIntHashSet(conceptIds);
+            concepts = new boolean[reader.maxDoc()];
+            for (int i = 0; i < concepts.length; i++) {
+                concepts[i] = conceptSet.contains(searcher.getLocalIdFromDocId(i, language));
+            }
+        }
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Writes the vectors of the pages to the writer, one row per page with a non-empty vector.
+     * Rows are keyed by local page id, and columns by the lucene ids of concepts.
+     */
+    public void write(final SparseMatrixWriter writer, int pageIds[], int numThreads) throws IOException, DaoException {
+        final boolean wanted[] = new boolean[reader.maxDoc()];
+        int numUnindexed = 0;
+        for (int pageId : pageIds) {
+            int luceneId = searcher.getDocIdFromLocalId(pageId, language);
+            if (luceneId < 0) {
+                numUnindexed++;
+            } else {
+                wanted[luceneId] = true;
+            }
+        }
+        if (numUnindexed > 0) {
+            LOG.warning(numUnindexed + " of " + pageIds.length + " pages are not indexed in " + language.getEnLangName());
+        }
+
+        List<int[]> chunks = new ArrayList<int[]>();
+        for (AtomicReaderContext context : reader.leaves()) {
+            int end = context.docBase + context.reader().maxDoc();
+            for (int start = context.docBase; start < end; start += chunkSize) {
+                chunks.add(new int[] { start, Math.min(end, start + chunkSize) });
+            }
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final AtomicInteger numDocs = new AtomicInteger();
+        final AtomicInteger numRows = new AtomicInteger();
+        ParallelForEach.loop(chunks, numThreads, new Procedure<int[]>() {
+            @Override
+            public void call(int[] chunk) throws Exception {
+                int n = writeChunk(writer, chunk[0], chunk[1], wanted);
+                numRows.addAndGet(n);
+                int total = numDocs.addAndGet(chunk[1] - chunk[0]);
+                double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+                LOG.info(String.format("built esa vectors for %d of %d documents in %s (%.1f docs per second)",
+                        total, reader.maxDoc(), language, total / Math.max(seconds, 0.001)));
+            }
+        }, 1);
+        LOG.info("wrote " + numRows.get() + " esa vectors for " + language);
+    }
+
+    /**
+     * Writes the vectors of the wanted documents in [start, end).
+     * @return The number of rows written.
+     */
+    private int writeChunk(SparseMatrixWriter writer, int start, int end, boolean wanted[]) throws IOException {
+        TIntObjectMap<BytesRef> termBytes = new TIntObjectHashMap<BytesRef>();
+        TIntIntMap docFreqs = new TIntIntHashMap();
+        TopHeap heaps[] = selectTerms(start, end, wanted, termBytes, docFreqs);
+        if (heaps == null) {
+            return 0;
+        }
+
+        // weight the selected terms by their idfs
+        TIntFloatMap termWeights = new TIntFloatHashMap();
+        for (TopHeap heap : heaps) {
+            if (heap != null) {
+                for (int i = 0; i < heap.size; i++) {
+                    int id = heap.ids[i];
+                    if (!termWeights.containsKey(id)) {
+                        float idf = similarity.idf(docFreqs.get(id), reader.maxDoc());
+                        termWeights.put(id, idf * idf);
+                    }
+                }
+            }
+        }
+
+        Accumulator accumulator = accumulators.get();
+        int numRows = 0;
+        for (int i = 0; i < heaps.length; i++) {
+            if (heaps[i] == null || heaps[i].size == 0) {
+                continue;
+            }
+            int luceneId = start + i;
+            TIntFloatMap vector = accumulator.score(heaps[i], termBytes, termWeights);
+            if (!vector.isEmpty()) {
+                int pageId = searcher.getLocalIdFromDocId(luceneId, language);
+                writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, vector));
+                numRows++;
+            }
+        }
+        return numRows;
+    }
+
+    /**
+     * Selects the query terms of each wanted document in [start, end) as MoreLikeThis would:
+     * the terms with the highest tf * idf, ignoring rare, common, and infrequent terms.
+     * Term are identified by their position in the field's term dictionary.
+     *
+     * @param termBytes Filled with the bytes of every term that entered a document's heap.
+     * @param docFreqs Filled with the document frequency of every term that entered a document's heap.
+     * @return The terms of each document, indexed by lucene id - start, or null if no documents are wanted.
+     */
+    private TopHeap[] selectTerms(int start, int end, boolean wanted[],
+                                  TIntObjectMap<BytesRef> termBytes, TIntIntMap docFreqs) throws IOException {
+        TopHeap heaps[] = new TopHeap[end - start];
+        boolean any = false;
+        for (int i = start; i < end; i++) {
+            if (wanted[i]) {
+                heaps[i - start] = new TopHeap(maxQueryTerms);
+                any = true;
+            }
+        }
+        Terms terms = MultiFields.getTerms(reader, field);
+        if (!any || terms == null) {
+            return null;
+        }
+        int numDocs = reader.numDocs();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docs = null;
+        BytesRef term;
+        for (int i = 0; (term = termsEnum.next()) != null; i++) {
+            int docFreq = termsEnum.docFreq();
+            if (docFreq == 0 || docFreq > maxDocFreq || (minDocFreq > 0 && docFreq < minDocFreq)) {
+                continue;
+            }
+            float idf = similarity.idf(docFreq, numDocs);
+            docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_FREQS);
+            for (int doc = docs.advance(start); doc < end; doc = docs.nextDoc()) {
+                int tf = docs.freq();
+                if (wanted[doc] && (minTermFreq <= 0 || tf >= minTermFreq)
+                        && heaps[doc - start].offer(i, tf * idf) && !termBytes.containsKey(i)) {
+                    termBytes.put(i, BytesRef.deepCopyOf(term));
+                    docFreqs.put(i, docFreq);
+                }
+            }
+        }
+        return heaps;
+    }
+
+    /**
+     * Scores every document against a set of query terms, reusing its arrays across queries.
+     */
+    private class Accumulator {
+        final float scores[];
+        final short overlaps[];
+        final int touched[];
+        int numTouched = 0;
+
+        Accumulator(int maxDoc) {
+            scores = new float[maxDoc];
+            overlaps = new short[maxDoc];
+            touched = new int[maxDoc];
+        }
+
+        /**
+         * Returns the normalized ESA vector for the query terms, scored like a boolean
+         * query of term queries: coord * sum(sqrt(tf) * idf^2 * norm). The query norm
+         * is omitted because the vector is normalized.
+         */
+        TIntFloatMap score(TopHeap query, TIntObjectMap<BytesRef> termBytes, TIntFloatMap termWeights) throws IOException {
+            try {
+                for (AtomicReaderContext context : reader.leaves()) {
+                    accumulate(context, query, termBytes, termWeights);
+                }
+                return SimUtils.normalizeVector(expand(topDocs(query.size)));
+            } finally {
+                for (int i = 0; i < numTouched; i++) {
+                    scores[touched[i]] = 0f;
+                    overlaps[touched[i]] = 0;
+                }
+                numTouched = 0;
+            }
+        }
+
+        private void accumulate(AtomicReaderContext context, TopHeap query, TIntObjectMap<BytesRef> termBytes, TIntFloatMap termWeights) throws IOException {
+            AtomicReader segment = context.reader();
+            Terms terms = segment.terms(field);
+            if (terms == null) {
+                return;
+            }
+            NumericDocValues norms = segment.getNormValues(field);
+            Bits liveDocs = segment.getLiveDocs();
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docs = null;
+            for (int i = 0; i < query.size; i++) {
+                if (!termsEnum.seekExact(termBytes.get(query.ids[i]), true)) {
+                    continue;
+                }
+                float weight = termWeights.get(query.ids[i]);
+                docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_FREQS);
+                int doc;
+                while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    int luceneId = context.docBase + doc;
+                    if (concepts != null && !concepts[luceneId]) {
+                        continue;
+                    }
+                    float score = similarity.tf(docs.freq()) * weight;
+                    if (norms != null) {
+                        score *= similarity.decodeNormValue((byte) norms.get(doc));
+                    }
+                    if (overlaps[luceneId]++ == 0) {
+                        touched[numTouched++] = luceneId;
+                    }
+                    scores[luceneId] += score;
+                }
+            }
+        }
+
+        /**
+         * Returns the top scoring documents, ordered by decreasing score and then increasing
+         * lucene id, as a search would.
+         */
+        private WikiBrainScoreDoc[] topDocs(int numQueryTerms) {
+            TopHeap heap = new TopHeap(numHits);
+            for (int i = 0; i < numTouched; i++) {
+                int luceneId = touched[i];
+                heap.offer(luceneId, scores[luceneId] * overlaps[luceneId] / numQueryTerms);
+            }
+            WikiBrainScoreDoc top[] = new WikiBrainScoreDoc[heap.size];
+            for (int i = top.length - 1; i >= 0; i--) {
+                top[i] = new WikiBrainScoreDoc(heap.ids[0], -1, heap.scores[0]);
+                heap.poll();
+            }
+            return ESAGenerator.pruneSimilar(top);
+        }
+
+        private TIntFloatMap expand(WikiBrainScoreDoc[] docs) {
+            TIntFloatMap expanded = new TIntFloatHashMap();
+            for (WikiBrainScoreDoc doc : docs) {
+                expanded.put(doc.luceneId, doc.score);
+            }
+            return expanded;
+        }
+    }
+
+    /**
+     * A bounded min-heap that keeps the highest scoring ids, preferring lower ids among ties.
+     */
+    static class TopHeap {
+        final int ids[];
+        final float scores[];
+        int size = 0;
+
+        TopHeap(int capacity) {
+            ids = new int[capacity];
+            scores = new float[capacity];
+        }
+
+        /**
+         * @return True if the id was added to the heap.
+         */
+        boolean offer(int id, float score) {
+            if (size < ids.length) {
+                ids[size] = id;
+                scores[size] = score;
+                siftUp(size++);
+                return true;
+            } else if (size > 0 && isWorse(0, id, score)) {
+                ids[0] = id;
+                scores[0] = score;
+                siftDown(0);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Removes the lowest scoring id, which is at the top of the heap.
+         */
+        void poll() {
+            size--;
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+
+        private boolean isWorse(int i, int id, float score) {
+            return scores[i] < score || (scores[i] == score && ids[i] > id);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isWorse(i, ids[parent], scores[parent])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int worst = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && isWorse(left, ids[worst], scores[worst])) worst = left;
+                if (right < size && isWorse(right, ids[worst], scores[worst])) worst = right;
+                if (worst == i) {
+                    break;
+                }
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int t = ids[i]; ids[i] = ids[j]; ids[j] = t;
+            float s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+        }
+    }
+}
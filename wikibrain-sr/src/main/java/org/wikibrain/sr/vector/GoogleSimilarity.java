@@ -25,6 +25,7 @@ import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SimUtils;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -112,6 +113,11 @@ public class GoogleSimilarity implements VectorSimilarity {
         return result;
     }
 
+    @Override
+    public SRResultList[] mostSimilar(List<TIntFloatMap> queries, int maxResults, TIntSet validIds, int numThreads) throws IOException {
+        return SimUtils.mostSimilarEach(this, queries, maxResults, validIds, numThreads);
+    }
+
     @Override
     public double getMinValue() {
         return -1.0;
@@ -0,0 +1,667 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * An approximate nearest neighbor index over the vectors of a DenseVectorStore,
+ * using a hierarchical navigable small world graph (Malkov and Yashunin, 2016).
+ * Similarity is the dot product, which is the cosine for unit length vectors.
+ *
+ * The graph is built in memory by build() and saved to a file. Opening the index
+ * maps the file, so searches read links directly from disk and visit a number of
+ * vectors that grows roughly logarithmically with the size of the store.
+ */
+public class HnswIndex implements Closeable {
+    private static final Logger LOG = Logger.getLogger(HnswIndex.class.getName());
+
+    public static final int FILE_HEADER = 0xdefec702;
+
+    /**
+     * Magic, num nodes, links per node above level 0, links per node at level 0,
+     * top level, entry point, and padding.
+     */
+    public static final int HEADER_SIZE = 32;
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 100;
+
+    private final DenseVectorStore store;
+    private final FileChannel channel;
+    private final MappedGraph graph;
+    private int efSearch = DEFAULT_EF_SEARCH;
+
+    /**
+     * Opens a saved index over the store it was built from.
+     */
+    public HnswIndex(DenseVectorStore store, File path) throws IOException {
+        this.store = store;
+        this.channel = new FileInputStream(path).getChannel();
+        try {
+            this.graph = new MappedGraph(store, channel);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(channel);
+            throw e;
+        }
+        if (graph.numNodes != store.getNumRows()) {
+            close();
+            throw new IOException("index " + path + " has " + graph.numNodes +
+                    " nodes but store has " + store.getNumRows() + " rows");
+        }
+    }
+
+    /**
+     * @return The number of candidates kept during a search. Larger values trade speed for recall.
+     */
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * Returns the approximate nearest rows to the vector, most similar first.
+     * The ids of the result are rows of the store.
+     */
+    public SRResultList mostSimilar(float[] vector, int maxResults) {
+        return mostSimilar(vector, maxResults, Math.max(maxResults, efSearch));
+    }
+
+    public SRResultList mostSimilar(float[] vector, int maxResults, int ef) {
+        return graph.search(vector, maxResults, Math.max(maxResults, ef));
+    }
+
+    public DenseVectorStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Builds an index with the default parameters and saves it to the path.
+     */
+    public static void build(DenseVectorStore store, File path) throws IOException {
+        build(store, path, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Builds an index and saves it to the path.
+     *
+     * @param m The number of links per node above level 0. Level 0 has twice as many.
+     * @param efConstruction The number of candidate neighbors considered when inserting a node.
+     * @param numThreads The number of threads inserting nodes.
+     */
+    public static void build(DenseVectorStore store, File path, int m, int efConstruction, int numThreads) throws IOException {
+        long start = System.currentTimeMillis();
+        GraphBuilder builder = new GraphBuilder(store, m, efConstruction);
+        builder.insertAll(numThreads);
+        builder.write(path);
+        LOG.info("built index of " + store.getNumRows() + " vectors in " +
+                (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+    }
+
+    /**
+     * Searches of the graph, independent of where its links are stored.
+     */
+    abstract static class Graph {
+        protected final DenseVectorStore store;
+        protected final int m;
+        protected final int maxM0;
+
+        Graph(DenseVectorStore store, int m, int maxM0) {
+            this.store = store;
+            this.m = m;
+            this.maxM0 = maxM0;
+        }
+
+        /**
+         * Copies the links of the node at the level into dest.
+         * @return The number of links.
+         */
+        abstract int getNeighbors(int node, int level, int[] dest);
+
+        int[] newNeighborBuffer() {
+            return new int[Math.max(m, maxM0)];
+        }
+
+        SRResultList search(float[] vector, int maxResults, int ef) {
+            int entry = getEntryPoint();
+            if (entry < 0) {
+                return new SRResultList(0);
+            }
+            int neighbors[] = newNeighborBuffer();
+            for (int level = getTopLevel(); level > 0; level--) {
+                entry = greedyClosest(vector, entry, level, neighbors);
+            }
+            ScoredHeap results = searchLayer(vector, entry, ef, 0, neighbors);
+            while (results.size() > maxResults) {
+                results.pop();
+            }
+            SRResultList list = new SRResultList(results.size());
+            for (int i = results.size() - 1; i >= 0; i--) {
+                list.set(i, results.peekId(), results.peekScore());
+                results.pop();
+            }
+            return list;
+        }
+
+        abstract int getEntryPoint();
+        abstract int getTopLevel();
+
+        /**
+         * Follows links at the level to the node most similar to the vector.
+         */
+        int greedyClosest(float[] vector, int entry, int level, int[] neighbors) {
+            int current = entry;
+            double currentScore = store.dot(current, vector);
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int n = getNeighbors(current, level, neighbors);
+                for (int i = 0; i < n; i++) {
+                    double score = store.dot(neighbors[i], vector);
+                    if (score > currentScore) {
+                        current = neighbors[i];
+                        currentScore = score;
+                        changed = true;
+                    }
+                }
+            }
+            return current;
+        }
+
+        /**
+         * Returns up to ef nodes at the level that are most similar to the vector,
+         * as a heap whose top is the least similar.
+         */
+        ScoredHeap searchLayer(float[] vector, int entry, int ef, int level, int[] neighbors) {
+            TIntSet visited = new TIntHashSet();
+            ScoredHeap candidates = new ScoredHeap(true);
+            ScoredHeap results = new ScoredHeap(false);
+            double score = store.dot(entry, vector);
+            visited.add(entry);
+            candidates.push(entry, score);
+            results.push(entry, score);
+            while (candidates.size() > 0) {
+                int node = candidates.peekId();
+                double nodeScore = candidates.peekScore();
+                candidates.pop();
+                if (results.size() >= ef && nodeScore < results.peekScore()) {
+                    break;
+                }
+                int n = getNeighbors(node, level, neighbors);
+                for (int i = 0; i < n; i++) {
+                    int neighbor = neighbors[i];
+                    if (!visited.add(neighbor)) {
+                        continue;
+                    }
+                    score = store.dot(neighbor, vector);
+                    if (results.size() < ef || score > results.peekScore()) {
+                        candidates.push(neighbor, score);
+                        results.push(neighbor, score);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * A graph whose links are read from a mapped file.
+     */
+    static class MappedGraph extends Graph {
+        final int numNodes;
+        private final int topLevel;
+        private final int entryPoint;
+        private final IntBuffer level0;
+        private final IntBuffer upperOffsets;
+        private final IntBuffer upper;
+
+        MappedGraph(DenseVectorStore store, FileChannel channel) throws IOException {
+            this(store, readHeader(channel), channel);
+        }
+
+        private MappedGraph(DenseVectorStore store, ByteBuffer header, FileChannel channel) throws IOException {
+            super(store, header.getInt(8), header.getInt(12));
+            numNodes = header.getInt(4);
+            topLevel = header.getInt(16);
+            entryPoint = header.getInt(20);
+            long pos = HEADER_SIZE;
+            level0 = map(channel, pos, 4L * numNodes * (maxM0 + 1));
+            pos += 4L * numNodes * (maxM0 + 1);
+            upperOffsets = map(channel, pos, 4L * numNodes);
+            pos += 4L * numNodes;
+            upper = map(channel, pos, channel.size() - pos);
+        }
+
+        private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != FILE_HEADER) {
+                throw new IOException("invalid file header: " + header.getInt(0));
+            }
+            return header;
+        }
+
+        private static IntBuffer map(FileChannel channel, long start, long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("section of " + size + " bytes is too large to map");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            return buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+
+        @Override
+        int getNeighbors(int node, int level, int[] dest) {
+            IntBuffer links;
+            int base;
+            if (level == 0) {
+                links = level0;
+                base = node * (maxM0 + 1);
+            } else {
+                links = upper;
+                base = upperOffsets.get(node) + (level - 1) * (m + 1);
+            }
+            int n = links.get(base);
+            for (int i = 0; i < n; i++) {
+                dest[i] = links.get(base + 1 + i);
+            }
+            return n;
+        }
+
+        @Override
+        int getEntryPoint() {
+            return entryPoint;
+        }
+
+        @Override
+        int getTopLevel() {
+            return topLevel;
+        }
+    }
+
+    /**
+     * Inserts every row of the store into an in-memory graph, possibly in parallel.
+     * Each node's links are guarded by one of a fixed set of locks, and every read or
+     * update of a link list holds the lock of the list's node.
+     */
+    static class GraphBuilder extends Graph {
+        private final int numNodes;
+        private final int efConstruction;
+        private final int levels[];
+        private final int level0[];
+        private final int upper[][];
+        private final Object locks[] = new Object[4096];
+
+        private final Object entryLock = new Object();
+        private volatile int entryPoint = -1;
+        private volatile int topLevel = -1;
+
+        GraphBuilder(DenseVectorStore store, int m, int efConstruction) {
+            super(store, m, 2 * m);
+            this.numNodes = store.getNumRows();
+            this.efConstruction = efConstruction;
+            this.levels = new int[numNodes];
+            this.level0 = new int[numNodes * (maxM0 + 1)];
+            this.upper = new int[numNodes][];
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new Object();
+            }
+            Random random = new Random(numNodes);
+            double ml = 1.0 / Math.log(m);
+            for (int i = 0; i < numNodes; i++) {
+                levels[i] = (int) (-Math.log(1.0 - random.nextDouble()) * ml);
+                if (levels[i] > 0) {
+                    upper[i] = new int[levels[i] * (m + 1)];
+                }
+            }
+        }
+
+        /**
+         * @throws IOException If any node could not be inserted.
+         */
+        void insertAll(int numThreads) throws IOException {
+            if (numNodes == 0) {
+                return;
+            }
+            entryPoint = 0;
+            topLevel = levels[0];
+            final AtomicInteger next = new AtomicInteger(1);
+            final AtomicInteger failures = new AtomicInteger();
+            final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+            ParallelForEach.range(0, numThreads, numThreads, new Procedure<Integer>() {
+                @Override
+                public void call(Integer thread) throws Exception {
+                    while (true) {
+                        int node = next.getAndIncrement();
+                        if (node >= numNodes) {
+                            break;
+                        }
+                        if (node % 100000 == 0) {
+                            LOG.info("inserting node " + node + " of " + numNodes);
+                        }
+                        try {
+                            insert(node);
+                        } catch (RuntimeException e) {
+                            failures.incrementAndGet();
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+            if (failures.get() > 0) {
+                throw new IOException("inserting " + failures.get() + " of " + numNodes + " nodes failed", failure.get());
+            }
+        }
+
+        void insert(int node) {
+            float vector[] = store.getVector(node);
+            int level = levels[node];
+            int entry;
+            int top;
+            synchronized (entryLock) {
+                entry = entryPoint;
+                top = topLevel;
+            }
+            int neighbors[] = newNeighborBuffer();
+            for (int lc = top; lc > level; lc--) {
+                entry = greedyClosest(vector, entry, lc, neighbors);
+            }
+            for (int lc = Math.min(top, level); lc >= 0; lc--) {
+                ScoredHeap found = searchLayer(vector, entry, efConstruction, lc, neighbors);
+                int n = found.size();
+                int ids[] = new int[n];
+                double scores[] = new double[n];
+                for (int i = n - 1; i >= 0; i--) {
+                    ids[i] = found.peekId();
+                    scores[i] = found.peekScore();
+                    found.pop();
+                }
+                int selected[] = selectNeighbors(ids, scores, n, m);
+                int maxLinks = (lc == 0) ? maxM0 : m;
+                setNeighbors(node, lc, selected, maxLinks);
+                for (int neighbor : selected) {
+                    addLink(neighbor, node, lc, maxLinks);
+                }
+                entry = ids[0];
+            }
+            if (level > top) {
+                synchronized (entryLock) {
+                    if (level > topLevel) {
+                        topLevel = level;
+                        entryPoint = node;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Picks up to m candidates, most similar first, skipping candidates that are
+         * more similar to an already picked candidate than to the target. This keeps
+         * links pointing in diverse directions.
+         *
+         * @param ids Candidates, sorted by decreasing similarity to the target.
+         * @param scores Similarity of each candidate to the target.
+         */
+        private int[] selectNeighbors(int[] ids, double[] scores, int n, int m) {
+            int selected[] = new int[Math.min(n, m)];
+            int numSelected = 0;
+            for (int i = 0; i < n && numSelected < m; i++) {
+                boolean keep = true;
+                for (int j = 0; j < numSelected; j++) {
+                    if (store.dot(ids[i], selected[j]) > scores[i]) {
+                        keep = false;
+                        break;
+                    }
+                }
+                if (keep) {
+                    selected[numSelected++] = ids[i];
+                }
+            }
+            int result[] = new int[numSelected];
+            System.arraycopy(selected, 0, result, 0, numSelected);
+            return result;
+        }
+
+        /**
+         * Adds a link from the node to the target, pruning the node's links if it has too many.
+         */
+        private void addLink(int node, int target, int level, int maxLinks) {
+            synchronized (lockFor(node)) {
+                int links[] = (level == 0) ? level0 : upper[node];
+                int base = getBase(node, level);
+                int n = links[base];
+                if (n < maxLinks) {
+                    links[base + 1 + n] = target;
+                    links[base] = n + 1;
+                    return;
+                }
+                int ids[] = new int[n + 1];
+                System.arraycopy(links, base + 1, ids, 0, n);
+                ids[n] = target;
+                pruneLinks(node, links, base, ids, maxLinks);
+            }
+        }
+
+        /**
+         * Sets the links of a node that is being inserted. Nodes inserted concurrently
+         * may already have linked themselves to it at this level, after finding it
+         * through a higher level, so those links are kept as well.
+         */
+        private void setNeighbors(int node, int level, int[] selected, int maxLinks) {
+            synchronized (lockFor(node)) {
+                int links[] = (level == 0) ? level0 : upper[node];
+                int base = getBase(node, level);
+                TIntSet existing = new TIntHashSet();
+                for (int i = 0; i < links[base]; i++) {
+                    existing.add(links[base + 1 + i]);
+                }
+                existing.addAll(selected);
+                int ids[] = existing.toArray();
+                if (ids.length <= maxLinks) {
+                    System.arraycopy(ids, 0, links, base + 1, ids.length);
+                    links[base] = ids.length;
+                } else {
+                    pruneLinks(node, links, base, ids, maxLinks);
+                }
+            }
+        }
+
+        /**
+         * Sorts candidate links by similarity to the node and keeps a diverse subset.
+         * The caller must hold the node's lock.
+         */
+        private void pruneLinks(int node, int[] links, int base, int[] ids, int maxLinks) {
+            double scores[] = new double[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                scores[i] = store.dot(node, ids[i]);
+            }
+            sortByScore(ids, scores);
+            int selected[] = selectNeighbors(ids, scores, ids.length, maxLinks);
+            System.arraycopy(selected, 0, links, base + 1, selected.length);
+            links[base] = selected.length;
+        }
+
+        @Override
+        int getNeighbors(int node, int level, int[] dest) {
+            synchronized (lockFor(node)) {
+                int links[] = (level == 0) ? level0 : upper[node];
+                int base = getBase(node, level);
+                int n = links[base];
+                System.arraycopy(links, base + 1, dest, 0, n);
+                return n;
+            }
+        }
+
+        private int getBase(int node, int level) {
+            return (level == 0) ? node * (maxM0 + 1) : (level - 1) * (m + 1);
+        }
+
+        private Object lockFor(int node) {
+            return locks[node & (locks.length - 1)];
+        }
+
+        @Override
+        int getEntryPoint() {
+            return entryPoint;
+        }
+
+        @Override
+        int getTopLevel() {
+            return topLevel;
+        }
+
+        void write(File path) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1024 * 1024));
+            try {
+                writeInts(out, FILE_HEADER, numNodes, m, maxM0, topLevel, entryPoint, 0, 0);
+                for (int value : level0) {
+                    writeInts(out, value);
+                }
+                int offset = 0;
+                for (int i = 0; i < numNodes; i++) {
+                    writeInts(out, (upper[i] == null) ? -1 : offset);
+                    if (upper[i] != null) {
+                        offset += upper[i].length;
+                    }
+                }
+                for (int i = 0; i < numNodes; i++) {
+                    if (upper[i] != null) {
+                        for (int value : upper[i]) {
+                            writeInts(out, value);
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private static void writeInts(DataOutputStream out, int... values) throws IOException {
+            for (int value : values) {
+                out.writeInt(Integer.reverseBytes(value));     // little endian
+            }
+        }
+
+        private static void sortByScore(int[] ids, double[] scores) {
+            // insertion sort by decreasing score; lists are short
+            for (int i = 1; i < ids.length; i++) {
+                int id = ids[i];
+                double score = scores[i];
+                int j = i - 1;
+                while (j >= 0 && scores[j] < score) {
+                    ids[j + 1] = ids[j];
+                    scores[j + 1] = scores[j];
+                    j--;
+                }
+                ids[j + 1] = id;
+                scores[j + 1] = score;
+            }
+        }
+    }
+
+    /**
+     * A binary heap of ids keyed by score. The top is the highest score in a max heap
+     * and the lowest score in a min heap.
+     */
+    static final class ScoredHeap {
+        private final boolean max;
+        private int ids[] = new int[16];
+        private double scores[] = new double[16];
+        private int size = 0;
+
+        ScoredHeap(boolean max) {
+            this.max = max;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int peekId() {
+            return ids[0];
+        }
+
+        double peekScore() {
+            return scores[0];
+        }
+
+        void push(int id, double score) {
+            if (size == ids.length) {
+                int newIds[] = new int[size * 2];
+                double newScores[] = new double[size * 2];
+                System.arraycopy(ids, 0, newIds, 0, size);
+                System.arraycopy(scores, 0, newScores, 0, size);
+                ids = newIds;
+                scores = newScores;
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!before(score, scores[parent])) {
+                    break;
+                }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+
+        void pop() {
+            size--;
+            if (size == 0) {
+                return;
+            }
+            int id = ids[size];
+            double score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!before(scores[child], score)) {
+                    break;
+                }
+                ids[i] = ids[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+
+        private boolean before(double s1, double s2) {
+            return max ? s1 > s2 : s1 < s2;
+        }
+    }
+}
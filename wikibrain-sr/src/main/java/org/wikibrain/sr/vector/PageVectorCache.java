@@ -0,0 +1,390 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe cache of page vectors bounded by the total number of vector entries.
+ *
+ * Vectors are stored as parallel sorted arrays of ids and values, so a cached vector
+ * costs eight bytes per entry, and the cosine similarity of two cached vectors is a
+ * merge join. Pages without vectors are cached as well, as a vector whose isMissing()
+ * is true.
+ *
+ * The cache is split into segments with their own locks. Each segment evicts its least
+ * recently used vectors, and a TinyLFU admission filter only lets a new vector evict
+ * others if it has been requested more often than the vector it would replace. This
+ * keeps hot pages cached when a scan of rarely requested pages passes through.
+ */
+public class PageVectorCache {
+    private static final int NUM_SEGMENTS = 16;
+
+    /**
+     * The cached value of pages that have no vector.
+     */
+    private static final SortedVector MISSING = new SortedVector(new int[0], new float[0]);
+
+    private final long maxEntries;
+    private final Segment segments[] = new Segment[NUM_SEGMENTS];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param maxEntries The maximum total number of entries in all cached vectors.
+     */
+    public PageVectorCache(long maxEntries) {
+        this.maxEntries = maxEntries;
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / NUM_SEGMENTS));
+        }
+    }
+
+    /**
+     * @return True if the page is cached, whether or not it has a vector.
+     */
+    public boolean contains(int pageId) {
+        return segmentFor(pageId).contains(pageId);
+    }
+
+    /**
+     * Returns the cached vector for a page and records a hit or miss.
+     * @return The vector, or null if it is not cached.
+     */
+    public SortedVector get(int pageId) {
+        SortedVector vector = segmentFor(pageId).get(pageId);
+        if (vector == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return vector;
+    }
+
+    /**
+     * Offers a page's vector to the cache.
+     * @param vector The vector, or null if the page has none.
+     * @return The vector in sorted form.
+     */
+    public SortedVector put(int pageId, TIntFloatMap vector) {
+        SortedVector sorted = toSortedVector(vector);
+        segmentFor(pageId).put(pageId, sorted);
+        return sorted;
+    }
+
+    /**
+     * @return The vector in sorted form, which isMissing() if the vector is null.
+     */
+    public static SortedVector toSortedVector(TIntFloatMap vector) {
+        return (vector == null) ? MISSING : new SortedVector(vector);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return The total number of vector entries that are cached.
+     */
+    public long getNumEntries() {
+        long n = 0;
+        for (Segment segment : segments) {
+            n += segment.getNumEntries();
+        }
+        return n;
+    }
+
+    /**
+     * @return The number of pages that are cached.
+     */
+    public int size() {
+        int n = 0;
+        for (Segment segment : segments) {
+            n += segment.size();
+        }
+        return n;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long n = hits.get() + misses.get();
+        return (n == 0) ? 0.0 : 1.0 * hits.get() / n;
+    }
+
+    /**
+     * @return The number of vectors removed to make room for others.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of vectors that were not cached because the admission
+     * filter judged them to be less popular than the vectors they would replace.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pages=%d, entries=%d/%d, hit rate=%.3f, hits=%d, misses=%d, evictions=%d, rejections=%d",
+                size(), getNumEntries(), maxEntries, getHitRate(),
+                getHits(), getMisses(), getEvictions(), getRejections());
+    }
+
+    private Segment segmentFor(int pageId) {
+        int h = pageId * 0x9E3779B9;
+        return segments[(h >>> 16) & (NUM_SEGMENTS - 1)];
+    }
+
+    /**
+     * The cost of a cached vector, counting pages without vectors as one entry.
+     */
+    private static int weight(SortedVector vector) {
+        return Math.max(1, vector.size());
+    }
+
+    /**
+     * An LRU map with a TinyLFU admission filter and its own lock.
+     */
+    private class Segment {
+        private final long maxEntries;
+        private final LinkedHashMap<Integer, SortedVector> vectors =
+                new LinkedHashMap<Integer, SortedVector>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private long numEntries = 0;
+
+        Segment(long maxEntries) {
+            this.maxEntries = maxEntries;
+            // guess that vectors average at least 64 entries
+            this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(16, maxEntries / 64)));
+        }
+
+        synchronized boolean contains(int pageId) {
+            return vectors.containsKey(pageId);
+        }
+
+        synchronized SortedVector get(int pageId) {
+            sketch.increment(pageId);
+            return vectors.get(pageId);
+        }
+
+        synchronized void put(int pageId, SortedVector vector) {
+            int weight = weight(vector);
+            if (weight > maxEntries) {
+                rejections.incrementAndGet();
+                return;
+            }
+            SortedVector old = vectors.remove(pageId);
+            if (old != null) {
+                numEntries -= weight(old);
+            }
+
+            // make sure a new vector is more popular than the ones it would evict
+            int frequency = sketch.frequency(pageId);
+            long needed = numEntries + weight - maxEntries;
+            if (old == null && needed > 0) {
+                long freed = 0;
+                Iterator<Map.Entry<Integer, SortedVector>> iter = vectors.entrySet().iterator();
+                while (freed < needed && iter.hasNext()) {
+                    Map.Entry<Integer, SortedVector> victim = iter.next();
+                    if (sketch.frequency(victim.getKey()) > frequency) {
+                        rejections.incrementAndGet();
+                        return;
+                    }
+                    freed += weight(victim.getValue());
+                }
+            }
+
+            while (numEntries + weight > maxEntries) {
+                Iterator<Map.Entry<Integer, SortedVector>> iter = vectors.entrySet().iterator();
+                Map.Entry<Integer, SortedVector> victim = iter.next();
+                numEntries -= weight(victim.getValue());
+                iter.remove();
+                evictions.incrementAndGet();
+            }
+            vectors.put(pageId, vector);
+            numEntries += weight;
+        }
+
+        synchronized void clear() {
+            vectors.clear();
+            numEntries = 0;
+        }
+
+        synchronized long getNumEntries() {
+            return numEntries;
+        }
+
+        synchronized int size() {
+            return vectors.size();
+        }
+    }
+
+    /**
+     * A count-min sketch of recent request frequencies with counters that saturate at 15.
+     * Each row has about 16 counters per cached vector, and all counters are halved
+     * after ten requests per cached vector so that old popularity fades.
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int SEEDS[] = { 0x97cb3127, 0x0ab4a5c3, 0x3c6ef372, 0x6a09e667 };
+
+        private final byte counters[][];
+        private final int mask;
+        private final int resetInterval;
+        private int additions = 0;
+
+        /**
+         * @param numItems The expected number of cached vectors.
+         */
+        FrequencySketch(int numItems) {
+            int width = Integer.highestOneBit(16 * numItems - 1) << 1;
+            this.mask = width - 1;
+            this.counters = new byte[DEPTH][width];
+            this.resetInterval = 10 * numItems;
+        }
+
+        void increment(int key) {
+            for (int d = 0; d < DEPTH; d++) {
+                int i = index(key, d);
+                if (counters[d][i] < 15) {
+                    counters[d][i]++;
+                }
+            }
+            if (++additions >= resetInterval) {
+                for (byte row[] : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int key) {
+            int min = Integer.MAX_VALUE;
+            for (int d = 0; d < DEPTH; d++) {
+                min = Math.min(min, counters[d][index(key, d)]);
+            }
+            return min;
+        }
+
+        private int index(int key, int d) {
+            int h = (key ^ SEEDS[d]) * 0x9E3779B9;
+            h ^= h >>> 15;
+            return h & mask;
+        }
+    }
+
+    /**
+     * An immutable sparse vector stored as sorted ids and their values.
+     */
+    public static final class SortedVector {
+        private final int ids[];
+        private final float values[];
+        private final double norm;
+
+        SortedVector(TIntFloatMap vector) {
+            this.ids = vector.keys();
+            Arrays.sort(ids);
+            this.values = new float[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                values[i] = vector.get(ids[i]);
+            }
+            this.norm = computeNorm(values);
+        }
+
+        SortedVector(int ids[], float values[]) {
+            this.ids = ids;
+            this.values = values;
+            this.norm = computeNorm(values);
+        }
+
+        private static double computeNorm(float values[]) {
+            double sum = 0.0;
+            for (float x : values) {
+                sum += x * x;
+            }
+            return Math.sqrt(sum);
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public boolean isEmpty() {
+            return ids.length == 0;
+        }
+
+        /**
+         * @return True if this stands for a page that has no vector.
+         */
+        public boolean isMissing() {
+            return this == MISSING;
+        }
+
+        /**
+         * @return The dot product, computed by merging the sorted ids.
+         */
+        public double dot(SortedVector that) {
+            int ids1[] = this.ids, ids2[] = that.ids;
+            float values1[] = this.values, values2[] = that.values;
+            int i = 0, j = 0;
+            double dot = 0.0;
+            while (i < ids1.length && j < ids2.length) {
+                int id1 = ids1[i], id2 = ids2[j];
+                if (id1 < id2) {
+                    i++;
+                } else if (id1 > id2) {
+                    j++;
+                } else {
+                    dot += (double) values1[i++] * values2[j++];
+                }
+            }
+            return dot;
+        }
+
+        /**
+         * @return The cosine similarity, or 0 if either vector is all zeros,
+         * as in SimUtils.cosineSimilarity().
+         */
+        public double cosine(SortedVector that) {
+            double denominator = this.norm * that.norm;
+            return denominator != 0 ? dot(that) / denominator : 0.0;
+        }
+
+        /**
+         * @return A new map with the vector's entries.
+         */
+        public TIntFloatMap toMap() {
+            TIntFloatMap map = new TIntFloatHashMap(ids.length * 2);
+            for (int i = 0; i < ids.length; i++) {
+                map.put(ids[i], values[i]);
+            }
+            return map;
+        }
+    }
+}
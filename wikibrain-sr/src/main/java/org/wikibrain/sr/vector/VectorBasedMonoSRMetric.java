@@ -5,7 +5,9 @@ import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.IOUtils;
@@ -28,11 +30,13 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.disambig.Disambiguator;
+import org.wikibrain.sr.vector.PageVectorCache.SortedVector;
 import org.wikibrain.utils.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,7 +65,7 @@ import java.util.logging.Logger;
  * @see org.wikibrain.sr.vector.VectorSimilarity
  */
 public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
-    private static enum PhraseMode {
+    protected static enum PhraseMode {
         GENERATOR,  // try to get phrase vectors from the generator directly
         CREATOR,    // try to get phrase vectors form the phrase vector creator
         BOTH,       // first try the generator, then the creator
@@ -79,6 +83,8 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
 
     private PhraseMode phraseMode = PhraseMode.BOTH;
 
+    private volatile PageVectorCache vectorCache = null;
+
     public VectorBasedMonoSRMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity, PhraseVectorCreator creator) {
         super(name, language, dao, disambig);
         this.generator = generator;
@@ -132,6 +138,19 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
 
     @Override
     public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+        if (similarity instanceof CosineSimilarity) {
+            // merge join the sorted vectors instead of probing hash maps
+            try {
+                SortedVector sorted1 = getSortedPageVector(pageId1);
+                SortedVector sorted2 = getSortedPageVector(pageId2);
+                if (sorted1.isMissing() || sorted2.isMissing()) {
+                    return null;
+                }
+                return normalize(new SRResult(sorted1.cosine(sorted2)));
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
         TIntFloatMap vector1 = null;
         TIntFloatMap vector2 = null;
         try {
@@ -151,21 +170,7 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         if (phraseMode == PhraseMode.NONE) {
             return super.mostSimilar(phrase, maxResults, validIds);
         }
-        TIntFloatMap vector = null;
-        // try using phrases directly
-        if (phraseMode == PhraseMode.BOTH || phraseMode == PhraseMode.GENERATOR) {
-            try {
-                vector = generator.getVector(phrase);
-            } catch (UnsupportedOperationException e) {
-                // try using other methods
-            }
-        }
-        if (vector == null &&  (phraseMode == PhraseMode.BOTH || phraseMode == PhraseMode.CREATOR)) {
-            if (phraseVectorCreator == null) {
-                throw new IllegalStateException("phraseMode is " + phraseMode + " but phraseVectorCreator is null");
-            }
-            vector = phraseVectorCreator.getPhraseVector(phrase);
-        }
+        TIntFloatMap vector = resolvePhraseVector(phrase);
         if (vector == null) {
             // fall back on parent's phrase resolution algorithm
             return super.mostSimilar(phrase, maxResults, validIds);
@@ -188,6 +193,73 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
             throw new DaoException(e);
         }
     }
+
+    /**
+     * Returns the most similar pages for each of a batch of pages.
+     * The posting lists of the transpose matrix are shared among queries in the batch.
+     */
+    @Override
+    public SRResultList[] mostSimilar(int pageIds[], int maxResults, TIntSet validIds, int numThreads) throws DaoException {
+        try {
+            List<TIntFloatMap> vectors = new ArrayList<TIntFloatMap>(pageIds.length);
+            for (int pageId : pageIds) {
+                vectors.add(getPageVector(pageId));
+            }
+            return similarity.mostSimilar(vectors, maxResults, validIds, numThreads);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * Returns the most similar pages for each of a batch of phrases.
+     * Phrases without vectors fall back on the parent's phrase resolution algorithm.
+     */
+    @Override
+    public SRResultList[] mostSimilar(String phrases[], int maxResults, TIntSet validIds, int numThreads) throws DaoException {
+        if (phraseMode == PhraseMode.NONE) {
+            return super.mostSimilar(phrases, maxResults, validIds, numThreads);
+        }
+        List<TIntFloatMap> vectors = new ArrayList<TIntFloatMap>(phrases.length);
+        for (String phrase : phrases) {
+            vectors.add(resolvePhraseVector(phrase));
+        }
+        SRResultList results[];
+        try {
+            results = similarity.mostSimilar(vectors, maxResults, validIds, numThreads);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        for (int i = 0; i < phrases.length; i++) {
+            if (vectors.get(i) == null) {
+                results[i] = super.mostSimilar(phrases[i], maxResults, validIds);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the vector for a phrase according to the phrase mode, or null.
+     */
+    private TIntFloatMap resolvePhraseVector(String phrase) throws DaoException {
+        TIntFloatMap vector = null;
+        // try using phrases directly
+        if (phraseMode == PhraseMode.BOTH || phraseMode == PhraseMode.GENERATOR) {
+            try {
+                vector = generator.getVector(phrase);
+            } catch (UnsupportedOperationException e) {
+                // try using other methods
+            }
+        }
+        if (vector == null &&  (phraseMode == PhraseMode.BOTH || phraseMode == PhraseMode.CREATOR)) {
+            if (phraseVectorCreator == null) {
+                throw new IllegalStateException("phraseMode is " + phraseMode + " but phraseVectorCreator is null");
+            }
+            vector = phraseVectorCreator.getPhraseVector(phrase);
+        }
+        return vector;
+    }
+
     /**
      * Train the similarity() function.
      * The KnownSims may already be associated with Wikipedia ids (check wpId1 and wpId2).
@@ -213,11 +285,6 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         }
     }
 
-    @Override
-    public double[][] cosimilarity(int pageIds[]) throws DaoException {
-        return cosimilarity(pageIds, pageIds);
-    }
-
     @Override
     public double[][] cosimilarity(String phrases[]) throws DaoException {
         return cosimilarity(phrases, phrases);
@@ -281,52 +348,128 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
     }
 
     /**
-     * Computes the cosimilarity matrix between pages.
-     * @param rowIds
-     * @param colIds
-     * @return
-     * @throws DaoException
+     * Computes the cosimilarity matrix between pages. Each distinct page's vector is
+     * fetched once, and the pairs are then scored in parallel tiles.
+     *
+     * Scores are normalized like similarity() once the normalizer is trained, so that
+     * ensembles can combine them. Before then they are the raw vector similarities,
+     * which lets disambiguators use an untrained metric.
      */
     @Override
-    public double[][] cosimilarity(int rowIds[], int colIds[]) throws DaoException {
-        // Build up vectors for unique pages
-        Map<Integer, TIntFloatMap> vectors = new HashMap<Integer, TIntFloatMap>();
-        for (int pageId : ArrayUtils.addAll(colIds, rowIds)) {
-            if (!vectors.containsKey(pageId)) {
-                try {
-                    vectors.put(pageId, getPageVector(pageId));
-                } catch (IOException e) {
-                    throw new DaoException(e);
-                }
+    protected double[][] computeCosimilarity(int rowIds[], int colIds[], boolean symmetric, int numThreads) throws DaoException {
+        final boolean normalize = similarityIsTrained();
+        if (similarity instanceof CosineSimilarity) {
+            TIntObjectMap<SortedVector> vectors = fetchPages(ArrayUtils.addAll(rowIds, colIds), numThreads,
+                    new PageFetcher<SortedVector>() {
+                        @Override
+                        public SortedVector fetch(int pageId) throws IOException {
+                            return getSortedPageVector(pageId);
+                        }
+                    });
+            final SortedVector rowSorted[] = new SortedVector[rowIds.length];
+            for (int i = 0; i < rowIds.length; i++) {
+                rowSorted[i] = vectors.get(rowIds[i]);
             }
+            final SortedVector colSorted[] = new SortedVector[colIds.length];
+            for (int j = 0; j < colIds.length; j++) {
+                colSorted[j] = vectors.get(colIds[j]);
+            }
+            return scoreTiles(rowIds.length, colIds.length, symmetric, numThreads, new PairScorer() {
+                @Override
+                public double score(int i, int j) {
+                    if (rowSorted[i].isMissing() || colSorted[j].isMissing()) {
+                        return Double.NaN;
+                    }
+                    double score = rowSorted[i].cosine(colSorted[j]);
+                    return normalize ? normalize(score) : score;
+                }
+            });
         }
-        List<TIntFloatMap> rowVectors = new ArrayList<TIntFloatMap>();
-        for (int rowId : rowIds) {
-            rowVectors.add(vectors.get(rowId));
+
+        TIntObjectMap<TIntFloatMap> vectors = fetchPages(ArrayUtils.addAll(rowIds, colIds), numThreads,
+                new PageFetcher<TIntFloatMap>() {
+                    @Override
+                    public TIntFloatMap fetch(int pageId) throws IOException {
+                        return getPageVector(pageId);
+                    }
+                });
+        final TIntFloatMap rowVectors[] = new TIntFloatMap[rowIds.length];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowVectors[i] = vectors.get(rowIds[i]);
         }
-        List<TIntFloatMap> colVectors = new ArrayList<TIntFloatMap>();
-        for (int colId : colIds) {
-            colVectors.add(vectors.get(colId));
+        final TIntFloatMap colVectors[] = new TIntFloatMap[colIds.length];
+        for (int j = 0; j < colIds.length; j++) {
+            colVectors[j] = vectors.get(colIds[j]);
         }
-        return cosimilarity(rowVectors, colVectors);
+        return scoreTiles(rowIds.length, colIds.length, symmetric, numThreads, new PairScorer() {
+            @Override
+            public double score(int i, int j) {
+                if (rowVectors[i] == null || colVectors[j] == null) {
+                    return Double.NaN;
+                }
+                double score = similarity.similarity(rowVectors[i], colVectors[j]);
+                return normalize ? normalize(score) : score;
+            }
+        });
+    }
+
+    protected interface PageFetcher<T> {
+        public T fetch(int pageId) throws IOException;
+    }
+
+    /**
+     * Fetches something for each distinct page, in parallel on the metric's shared pool.
+     * Pages for which the fetcher returns null are absent.
+     */
+    protected <T> TIntObjectMap<T> fetchPages(int pageIds[], int numThreads, final PageFetcher<T> fetcher) throws DaoException {
+        final int unique[] = new TIntHashSet(pageIds).toArray();
+        final Object fetched[] = new Object[unique.length];
+        // small batches are not worth handing off to other threads
+        parallelRange(unique.length, (unique.length <= COSIMILARITY_TILE_SIZE) ? 1 : numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws IOException {
+                fetched[i] = fetcher.fetch(unique[i]);
+            }
+        });
+        TIntObjectMap<T> results = new TIntObjectHashMap<T>(unique.length);
+        for (int i = 0; i < unique.length; i++) {
+            if (fetched[i] != null) {
+                results.put(unique[i], (T) fetched[i]);
+            }
+        }
+        return results;
     }
 
     /**
-     * Computes the cosimilarity between a set of vectors.
+     * Computes the cosimilarity between a set of vectors, in parallel tiles.
      * @param rowVectors
      * @param colVectors
      * @return
      */
-    protected double[][] cosimilarity(List<TIntFloatMap> rowVectors, List<TIntFloatMap> colVectors) {
-        double results[][] = new double[rowVectors.size()][colVectors.size()];
-        for (int i = 0; i < rowVectors.size(); i++) {
-            for (int j = 0; j < colVectors.size(); j++) {
-                TIntFloatMap vi = rowVectors.get(i);
-                TIntFloatMap vj = colVectors.get(j);
-                results[i][j] = similarity.similarity(vi, vj);
+    protected double[][] cosimilarity(final List<TIntFloatMap> rowVectors, final List<TIntFloatMap> colVectors) throws DaoException {
+        return scoreTiles(rowVectors.size(), colVectors.size(), false, WpThreadUtils.getMaxThreads(), new PairScorer() {
+            @Override
+            public double score(int i, int j) {
+                return similarity.similarity(rowVectors.get(i), colVectors.get(j));
             }
+        });
+    }
+
+    /**
+     * Writes the most similar pages for each page by multiplying the feature matrix with
+     * its transpose, without going through the normalizers or the per-page query path.
+     *
+     * @param cellCounter Incremented by the number of cells written.
+     * @return False, and writes nothing, if the metric has no feature matrix or does not
+     * use cosine similarity.
+     * @see CosineSimilarity#writeMostSimilar(int[], int, TIntSet, SparseMatrixWriter, int)
+     */
+    public boolean writeMostSimilar(SparseMatrixWriter writer, int pageIds[], int maxResults, TIntSet validIds, int numThreads, AtomicLong cellCounter) throws IOException {
+        if (!hasFeatureMatrix() || !hasTransposeMatrix() || !(similarity instanceof CosineSimilarity)) {
+            return false;
         }
-        return results;
+        cellCounter.addAndGet(((CosineSimilarity) similarity).writeMostSimilar(pageIds, maxResults, validIds, writer, numThreads));
+        return true;
     }
 
     /**
@@ -346,22 +489,31 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
 
         featureMatrix = null;
         transposeMatrix = null;
+        clearVectorCache();
 
         getDataDir().mkdirs();
         ValueConf vconf = new ValueConf((float)similarity.getMinValue(),
                                         (float)similarity.getMaxValue());
         final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf);
-        ParallelForEach.loop(
-                WpArrayUtils.toList(validIds.toArray()),
-                WpThreadUtils.getMaxThreads(),
-                new Procedure<Integer>() {
-                    public void call(Integer pageId) throws IOException {
-                        TIntFloatMap scores = getPageVector(pageId);
-                        if (scores != null && !scores.isEmpty()) {
-                            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+        if (generator instanceof ESAGenerator) {
+            try {
+                ((ESAGenerator) generator).writeVectors(writer, validIds.toArray(), WpThreadUtils.getMaxThreads());
+            } catch (DaoException e) {
+                throw new IOException(e);
+            }
+        } else {
+            ParallelForEach.loop(
+                    WpArrayUtils.toList(validIds.toArray()),
+                    WpThreadUtils.getMaxThreads(),
+                    new Procedure<Integer>() {
+                        public void call(Integer pageId) throws IOException {
+                            TIntFloatMap scores = fetchPageVector(pageId);
+                            if (scores != null && !scores.isEmpty()) {
+                                writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+                            }
                         }
-                    }
-                }, 10000);
+                    }, 10000);
+        }
         writer.finish();
 
         // Reload the feature matrix
@@ -373,6 +525,7 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         transposeMatrix = new SparseMatrix(getTransposeMatrixPath());
 
         similarity.setMatrices(featureMatrix, transposeMatrix);
+        clearVectorCache();
     }
 
     private TIntSet getAllPageIds() throws IOException {
@@ -409,6 +562,7 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
             featureMatrix = new SparseMatrix(getFeatureMatrixPath());
             transposeMatrix = new SparseMatrix(getTransposeMatrixPath());
             similarity.setMatrices(featureMatrix, transposeMatrix);
+            clearVectorCache();
         }
     }
 
@@ -418,6 +572,31 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
      * @return
      */
     public TIntFloatMap getPageVector(int pageId) throws IOException {
+        if (vectorCache == null) {
+            return fetchPageVector(pageId);
+        }
+        SortedVector sorted = getSortedPageVector(pageId);
+        return sorted.isMissing() ? null : sorted.toMap();
+    }
+
+    /**
+     * Returns the vector associated with a page as sorted arrays, consulting the
+     * vector cache if there is one. If the page has no vector, the result's
+     * isMissing() is true.
+     */
+    public SortedVector getSortedPageVector(int pageId) throws IOException {
+        PageVectorCache cache = vectorCache;
+        if (cache == null) {
+            return PageVectorCache.toSortedVector(fetchPageVector(pageId));
+        }
+        SortedVector sorted = cache.get(pageId);
+        if (sorted == null) {
+            sorted = cache.put(pageId, fetchPageVector(pageId));
+        }
+        return sorted;
+    }
+
+    private TIntFloatMap fetchPageVector(int pageId) throws IOException {
         if (hasFeatureMatrix()) {
             SparseMatrixRow row = featureMatrix.getRow(pageId);
             return row == null ? null : row.asTroveMap();
@@ -469,6 +648,29 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
         this.phraseMode = mode;
     }
 
+    /**
+     * Caches page vectors, which are otherwise regenerated or decoded from the
+     * feature matrix on every request.
+     * @param maxEntries The total number of vector entries to cache, or 0 for no cache.
+     */
+    public void setVectorCacheSize(long maxEntries) {
+        vectorCache = (maxEntries > 0) ? new PageVectorCache(maxEntries) : null;
+    }
+
+    /**
+     * @return The vector cache, whose statistics include its hit rate, or null if there is none.
+     */
+    public PageVectorCache getVectorCache() {
+        return vectorCache;
+    }
+
+    private void clearVectorCache() {
+        PageVectorCache cache = vectorCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     public static class Provider extends org.wikibrain.conf.Provider<MonolingualSRMetric> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
@@ -517,6 +719,9 @@ public class VectorBasedMonoSRMetric extends BaseMonolingualSRMetric {
             if (config.hasPath("phraseMode")) {
                 sr.setPhraseMode(PhraseMode.valueOf(config.getString("phraseMode").toUpperCase()));
             }
+            if (config.hasPath("vectorcachesize")) {
+                sr.setVectorCacheSize(config.getLong("vectorcachesize"));
+            }
             configureBase(getConfigurator(), sr, config);
             if (phraseVectorCreator != null) phraseVectorCreator.setMetric(sr);
             return sr;
@@ -11,6 +11,7 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Computes the similarity between two vectors, and calculates the most similar items for a vector.
@@ -41,6 +42,16 @@ public interface VectorSimilarity {
      */
     public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException;
 
+    /**
+     * Returns the most similar items for each of a batch of vectors.
+     * @param queries The query vectors. Null queries produce null results.
+     * @param maxResults
+     * @param validIds
+     * @param numThreads
+     * @return One result list per query, in the same order as the queries.
+     */
+    public SRResultList[] mostSimilar(List<TIntFloatMap> queries, int maxResults, TIntSet validIds, int numThreads) throws IOException;
+
     /**
      * @return The minimum possible score for the metric.
      */
@@ -1,10 +1,9 @@
 package org.wikibrain.sr.word2vec;
 
 import com.typesafe.config.Config;
-import gnu.trove.list.TCharList;
-import gnu.trove.list.array.TCharArrayList;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -15,11 +14,15 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.vector.DenseVectorStore;
+import org.wikibrain.sr.vector.HnswIndex;
 import org.wikibrain.sr.vector.VectorGenerator;
 import org.wikibrain.utils.WpIOUtils;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -28,54 +31,73 @@ import java.util.logging.Logger;
  * Reads in a word2vec model in the "standard" file format.
  * This code is adapted from https://github.com/ansjsun/Word2VEC_java
  *
+ * Vectors are served from a memory mapped DenseVectorStore, and most similar
+ * words come from an HnswIndex, so startup does not read the whole model.
+ *
  * @author Shilad Sen
  */
-public class Word2VecGenerator implements VectorGenerator {
+public class Word2VecGenerator implements VectorGenerator, Closeable {
     private static final Logger LOG = Logger.getLogger(Word2VecGenerator.class.getName());
     private static final int MAX_SIZE = 50;
 
     private final Language language;
     private final LocalPageDao localPageDao;
 
-    private Map<String, float[]> wordVectors = new HashMap<String, float[]>();
+    private DenseVectorStore store;
+    private File indexPath;
+    private HnswIndex index;
 
+    /**
+     * Opens the model, converting it to a memory mapped vector store next to the
+     * model file the first time it is used. Later runs map the store directly.
+     */
     public Word2VecGenerator(Language language, LocalPageDao localPageDao, File path) throws IOException {
         this.language = language;
         this.localPageDao = localPageDao;
-        if (wordVectors.isEmpty()) {
-            this.read(path);
+        this.read(path);
+    }
+
+    public synchronized void read(File path) throws IOException {
+        File storePath = new File(path.getPath() + ".store");
+        if (!storePath.isFile() || storePath.lastModified() < path.lastModified()) {
+            convert(path, storePath);
         }
+        close();
+        store = new DenseVectorStore(storePath);
+        indexPath = new File(path.getPath() + ".hnsw");
     }
 
-    public void read(File path) throws IOException {
+    /**
+     * Converts a model in the word2vec binary format to a vector store,
+     * normalizing words and scaling vectors to unit length.
+     */
+    public static void convert(File modelPath, File storePath) throws IOException {
+        File tmp = new File(storePath.getPath() + ".tmp");
         DataInputStream dis = null;
-        InputStream bis = null;
         try {
-            bis = WpIOUtils.openInputStream(path);
-            dis = new DataInputStream(bis);
-
-            String header = "";
-            while (true) {
-                char c = (char) dis.read();
-                if (c == '\n') break;
-                header += c;
-            }
+            dis = new DataInputStream(new BufferedInputStream(WpIOUtils.openInputStream(modelPath), 1024 * 1024));
 
-            String tokens[] = header.split(" ");
+            String header = readString(dis, '\n');
+            String tokens[] = header.trim().split(" ");
 
             int numWords = Integer.parseInt(tokens[0]);
             int vlength = Integer.parseInt(tokens[1]);
             LOG.info("preparing to read " + numWords + " with length " + vlength + " vectors");
 
+            DenseVectorStore.Writer writer = new DenseVectorStore.Writer(tmp, vlength);
+            byte bytes[] = new byte[4 * vlength];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            float[] vector = new float[vlength];
             for (int i = 0; i < numWords; i++) {
-                String word = readString(dis);
+                String word = readString(dis, ' ');
                 if (i % 50000 == 0) {
                     LOG.info("Read word vector " + word + " (" + i + " of " + numWords + ")");
                 }
-                float[] vector = new float[vlength];
+                dis.readFully(bytes);
+                buffer.clear();
                 double norm2 = 0.0;
                 for (int j = 0; j < vlength; j++) {
-                    float val = readFloat(dis);
+                    float val = buffer.getFloat();
                     norm2 += val * val;
                     vector[j] = val;
                 }
@@ -85,48 +107,101 @@ public class Word2VecGenerator implements VectorGenerator {
                     vector[j] /= norm2;
                 }
 
-                wordVectors.put(normalize(word), vector);
+                writer.add(normalize(word), vector);
             }
+            writer.finish();
         } finally {
-            IOUtils.closeQuietly(bis);
             IOUtils.closeQuietly(dis);
         }
+        FileUtils.deleteQuietly(storePath);
+        FileUtils.moveFile(tmp, storePath);
     }
 
-
-    private static String readString(DataInputStream dis) throws IOException {
-        TCharList bytes = new TCharArrayList();
+    /**
+     * Reads UTF-8 bytes up to the delimiter, skipping newlines.
+     */
+    private static String readString(DataInputStream dis, char delimiter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         while (true) {
             int i = dis.read();
-            if (i < 0) {
+            if (i < 0 || i == delimiter) {
                 break;
             }
-            char c = (char)i;
-            if (c == ' ') {
-                break;
+            if (i != '\n') {
+                bytes.write(i);
             }
-            if (c != '\n') {
-                bytes.add(c);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    public DenseVectorStore getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the nearest neighbor index over the word vectors, building it
+     * next to the model file the first time it is needed.
+     */
+    public synchronized HnswIndex getIndex() throws IOException {
+        if (index == null) {
+            if (!indexPath.isFile() || indexPath.lastModified() < store.getPath().lastModified()) {
+                LOG.info("building nearest neighbor index " + indexPath);
+                File tmp = new File(indexPath.getPath() + ".tmp");
+                HnswIndex.build(store, tmp);
+                FileUtils.deleteQuietly(indexPath);
+                FileUtils.moveFile(tmp, indexPath);
             }
+            index = new HnswIndex(store, indexPath);
         }
-        return new String(bytes.toArray());
+        return index;
     }
 
-    private static float readFloat(InputStream is) throws IOException {
-        byte[] bytes = new byte[4];
-        is.read(bytes);
-        return getFloat(bytes);
+    /**
+     * @return The unit length vector for the phrase, or null if it is not in the model.
+     */
+    public float[] getDenseVector(String phrase) {
+        return store.getVector(normalize(phrase));
     }
 
-    private static float getFloat(byte[] b) {
-        int accum = 0;
-        accum = accum | (b[0] & 0xff) << 0;
-        accum = accum | (b[1] & 0xff) << 8;
-        accum = accum | (b[2] & 0xff) << 16;
-        accum = accum | (b[3] & 0xff) << 24;
-        return Float.intBitsToFloat(accum);
+    /**
+     * Returns the words whose vectors are most similar to the phrase's vector, according
+     * to the approximate nearest neighbor index. The phrase itself is excluded.
+     *
+     * @return Words and similarities, most similar first, or null if the phrase is not in the model.
+     */
+    public LinkedHashMap<String, Float> mostSimilarWords(String phrase, int maxResults) throws IOException {
+        int row = store.getRow(normalize(phrase));
+        if (row < 0) {
+            return null;
+        }
+        LinkedHashMap<String, Float> result = new LinkedHashMap<String, Float>();
+        for (SRResult r : getIndex().mostSimilar(store.getVector(row), maxResults + 1)) {
+            if (r.getId() != row && result.size() < maxResults) {
+                result.put(store.getKey(r.getId()), (float) r.getScore());
+            }
+        }
+        return result;
     }
 
+    /**
+     * Returns the words whose vectors are most similar to a unit length vector,
+     * according to the approximate nearest neighbor index.
+     */
+    public LinkedHashMap<String, Float> mostSimilarWords(float[] vector, int maxResults) throws IOException {
+        LinkedHashMap<String, Float> result = new LinkedHashMap<String, Float>();
+        for (SRResult r : getIndex().mostSimilar(vector, maxResults)) {
+            result.put(store.getKey(r.getId()), (float) r.getScore());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOUtils.closeQuietly(index);
+        IOUtils.closeQuietly(store);
+        index = null;
+        store = null;
+    }
 
     @Override
     public TIntFloatMap getVector(int pageId) throws DaoException {
@@ -135,7 +210,7 @@ public class Word2VecGenerator implements VectorGenerator {
 
     @Override
     public TIntFloatMap getVector(String phrase) {
-        float[] vector = wordVectors.get(normalize(phrase));
+        float[] vector = getDenseVector(phrase);
         if (vector == null) {
             return null;
         }
@@ -1,18 +1,296 @@
 package org.wikibrain.sr.word2vec;
 
+import com.typesafe.config.Config;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.sr.MonolingualSRMetric;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.disambig.Disambiguator;
+import org.wikibrain.sr.vector.DenseVectorStore;
 import org.wikibrain.sr.vector.PhraseVectorCreator;
 import org.wikibrain.sr.vector.VectorBasedMonoSRMetric;
 import org.wikibrain.sr.vector.VectorGenerator;
 import org.wikibrain.sr.vector.VectorSimilarity;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
+ * A vector metric over word2vec word vectors. A page's vector is the vector of its title.
+ *
+ * Similarities are dot products of the generator's unit length dense vectors, and most
+ * similar pages come from the generator's nearest neighbor index: the nearest words are
+ * mapped back to the pages with those titles.
+ *
  * @author Shilad Sen
  */
 public class Word2VecMetric extends VectorBasedMonoSRMetric {
-    public Word2VecMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity, PhraseVectorCreator creator) {
+    /**
+     * Words requested from the index for each requested page. Most words are not page titles.
+     */
+    private static final int CANDIDATES_PER_RESULT = 10;
+
+    private final Word2VecGenerator generator;
+
+    public Word2VecMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, Word2VecGenerator generator, VectorSimilarity similarity, PhraseVectorCreator creator) {
         super(name, language, dao, disambig, generator, similarity, creator);
+        this.generator = generator;
+    }
+
+    @Override
+    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+        float vector1[] = generator.getDenseVector(phrase1);
+        float vector2[] = generator.getDenseVector(phrase2);
+        if (vector1 == null || vector2 == null) {
+            return super.similarity(phrase1, phrase2, explanations);
+        }
+        return normalize(new SRResult(dot(vector1, vector2)));
+    }
+
+    @Override
+    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+        float vector1[] = getDensePageVector(pageId1);
+        float vector2[] = getDensePageVector(pageId2);
+        if (vector1 == null || vector2 == null) {
+            return null;
+        }
+        return normalize(new SRResult(dot(vector1, vector2)));
+    }
+
+    @Override
+    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+        float vector[] = generator.getDenseVector(phrase);
+        if (vector == null) {
+            return super.mostSimilar(phrase, maxResults, validIds);
+        }
+        return mostSimilar(vector, maxResults, validIds);
+    }
+
+    @Override
+    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+        float vector[] = getDensePageVector(pageId);
+        if (vector == null) {
+            return null;
+        }
+        return mostSimilar(vector, maxResults, validIds);
+    }
+
+    /**
+     * Queries the index once per page, on the metric's shared pool of threads.
+     */
+    @Override
+    public SRResultList[] mostSimilar(final int pageIds[], final int maxResults, final TIntSet validIds, int numThreads) throws DaoException {
+        final SRResultList results[] = new SRResultList[pageIds.length];
+        parallelRange(pageIds.length, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws DaoException {
+                results[i] = mostSimilar(pageIds[i], maxResults, validIds);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Queries the index once per phrase, on the metric's shared pool of threads.
+     */
+    @Override
+    public SRResultList[] mostSimilar(final String phrases[], final int maxResults, final TIntSet validIds, int numThreads) throws DaoException {
+        final SRResultList results[] = new SRResultList[phrases.length];
+        parallelRange(phrases.length, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws DaoException {
+                results[i] = mostSimilar(phrases[i], maxResults, validIds);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Returns the pages whose titles' vectors are nearest to the vector, according to
+     * the index. Words that are not page titles, or whose pages are not valid, are skipped.
+     */
+    private SRResultList mostSimilar(float vector[], int maxResults, TIntSet validIds) throws DaoException {
+        SRResultList candidates;
+        try {
+            candidates = generator.getIndex().mostSimilar(vector, maxResults * CANDIDATES_PER_RESULT);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        DenseVectorStore store = generator.getStore();
+        SRResultList results = new SRResultList(maxResults);
+        TIntSet used = new TIntHashSet();
+        int n = 0;
+        for (int i = 0; i < candidates.numDocs() && n < maxResults; i++) {
+            String word = store.getKey(candidates.getId(i));
+            int pageId = getLocalPageDao().getIdByTitle(new Title(word, getLanguage()));
+            if (pageId >= 0 && (validIds == null || validIds.contains(pageId)) && used.add(pageId)) {
+                results.set(n++, pageId, candidates.getScore(i));
+            }
+        }
+        results.truncate(n);
+        return results;
+    }
+
+    @Override
+    public double[][] cosimilarity(final String rowPhrases[], final String colPhrases[]) throws DaoException {
+        final Map<String, float[]> vectors = new HashMap<String, float[]>();
+        for (String phrase : ArrayUtils.addAll(rowPhrases, colPhrases)) {
+            if (!vectors.containsKey(phrase)) {
+                vectors.put(phrase, generator.getDenseVector(phrase));
+            }
+        }
+        return scoreTiles(rowPhrases.length, colPhrases.length, false, WpThreadUtils.getMaxThreads(), new PairScorer() {
+            @Override
+            public double score(int i, int j) {
+                float vector1[] = vectors.get(rowPhrases[i]);
+                float vector2[] = vectors.get(colPhrases[j]);
+                return (vector1 == null || vector2 == null) ? Double.NaN : dot(vector1, vector2);
+            }
+        });
+    }
+
+    /**
+     * Computes the cosimilarity matrix between pages from the dense vectors of their
+     * titles. Scores are normalized like similarity() once the normalizer is trained.
+     */
+    @Override
+    protected double[][] computeCosimilarity(int rowIds[], int colIds[], boolean symmetric, int numThreads) throws DaoException {
+        final boolean normalize = similarityIsTrained();
+        TIntObjectMap<float[]> vectors = fetchPages(ArrayUtils.addAll(rowIds, colIds), numThreads,
+                new PageFetcher<float[]>() {
+                    @Override
+                    public float[] fetch(int pageId) throws IOException {
+                        try {
+                            return getDensePageVector(pageId);
+                        } catch (DaoException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                });
+        final float rowVectors[][] = new float[rowIds.length][];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowVectors[i] = vectors.get(rowIds[i]);
+        }
+        final float colVectors[][] = new float[colIds.length][];
+        for (int j = 0; j < colIds.length; j++) {
+            colVectors[j] = vectors.get(colIds[j]);
+        }
+        return scoreTiles(rowIds.length, colIds.length, symmetric, numThreads, new PairScorer() {
+            @Override
+            public double score(int i, int j) {
+                if (rowVectors[i] == null || colVectors[j] == null) {
+                    return Double.NaN;
+                }
+                double score = dot(rowVectors[i], colVectors[j]);
+                return normalize ? normalize(score) : score;
+            }
+        });
+    }
+
+    /**
+     * Does nothing. The metric scores the generator's dense vectors directly and
+     * finds most similar pages with its nearest neighbor index.
+     */
+    @Override
+    public synchronized void buildFeatureAndTransposeMatrices(TIntSet validIds) throws IOException {
+    }
+
+    /**
+     * Titles always start with a capital letter, so a title that is not in the
+     * model is also looked up with its first letter in lower case.
+     *
+     * @return The unit length vector of the page's title, or null if the page or title is unknown.
+     */
+    public float[] getDensePageVector(int pageId) throws DaoException {
+        LocalPage page = getLocalPageDao().getById(getLanguage(), pageId);
+        if (page == null) {
+            return null;
+        }
+        String title = page.getTitle().getCanonicalTitle();
+        float vector[] = generator.getDenseVector(title);
+        if (vector == null) {
+            vector = generator.getDenseVector(StringUtils.uncapitalize(title));
+        }
+        return vector;
+    }
+
+    private static double dot(float vector1[], float vector2[]) {
+        double sum = 0.0;
+        for (int i = 0; i < vector1.length; i++) {
+            sum += vector1[i] * vector2[i];
+        }
+        return sum;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<MonolingualSRMetric> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return MonolingualSRMetric.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "sr.metric.local";
+        }
+
+        @Override
+        public MonolingualSRMetric get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("word2vec")) {
+                return null;
+            }
+
+            if (!runtimeParams.containsKey("language")){
+                throw new IllegalArgumentException("Monolingual requires 'language' runtime parameter.");
+            }
+            Language language = Language.getByLangCode(runtimeParams.get("language"));
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("language", language.getLangCode());
+            VectorGenerator generator = getConfigurator().construct(
+                    VectorGenerator.class, null, config.getConfig("generator"), params);
+            if (!(generator instanceof Word2VecGenerator)) {
+                throw new ConfigurationException("word2vec metric " + name + " requires a word2vec generator");
+            }
+            VectorSimilarity similarity = getConfigurator().construct(
+                    VectorSimilarity.class,  null, config.getConfig("similarity"), params);
+            PhraseVectorCreator phraseVectorCreator = null;
+            if (config.hasPath("phrases")) {
+                phraseVectorCreator = getConfigurator().construct(
+                        PhraseVectorCreator.class, null, config.getConfig("phrases"), null);
+            }
+            Word2VecMetric sr = new Word2VecMetric(
+                    name,
+                    language,
+                    getConfigurator().get(LocalPageDao.class,config.getString("pageDao")),
+                    getConfigurator().get(Disambiguator.class,config.getString("disambiguator")),
+                    (Word2VecGenerator) generator,
+                    similarity,
+                    phraseVectorCreator
+            );
+            if (config.hasPath("phraseMode")) {
+                sr.setPhraseMode(PhraseMode.valueOf(config.getString("phraseMode").toUpperCase()));
+            }
+            configureBase(getConfigurator(), sr, config);
+            if (phraseVectorCreator != null) phraseVectorCreator.setMetric(sr);
+            return sr;
+        }
     }
 }
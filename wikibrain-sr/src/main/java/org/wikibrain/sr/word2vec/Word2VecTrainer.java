@@ -6,8 +6,6 @@ import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import org.apache.commons.cli.*;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.ArrayUtils;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -22,6 +20,7 @@ import org.wikibrain.utils.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 /**
@@ -33,12 +32,18 @@ public class Word2VecTrainer {
     private static final Logger LOG = Logger.getLogger(Word2VecTrainer.class.getName());
     private static final int MAX_EXP = 6;
     private static final int EXP_TABLE_SIZE = 1000;
+    private static final int UNIGRAM_TABLE_SIZE = 10000000;
+    private static final int MAX_SENTENCE_LENGTH = 1000;
+
+    // words trained by a worker between updates of the shared learning rate
+    private static final int ALPHA_UPDATE_INTERVAL = 10000;
+    private static final int REPORT_INTERVAL = 1000000;
 
     private final Language language;
     private final RawPageDao dao;
 
     // These are actually indexes and counts of hashes of words.
-    private final TLongIntMap wordIndexes = new TLongIntHashMap();
+    private final TLongIntMap wordIndexes = new TLongIntHashMap(1000, 0.5f, 0, -1);
     final TLongIntMap wordCounts = TCollections.synchronizedMap(new TLongIntHashMap());
     private TLongObjectMap<String> hashToWords = TCollections.synchronizedMap(new TLongObjectHashMap<String>());
 
@@ -58,12 +63,29 @@ public class Word2VecTrainer {
 
 
     private double startingAlpha = 0.025;
-    private double alpha = startingAlpha;
+    private volatile double alpha = startingAlpha;
     private int window = 5;
 
+    /**
+     * Number of negative samples per word, or 0 to use hierarchical softmax.
+     */
+    private int negative = 0;
+
+    /**
+     * If true, train continuous bag of words (predict a word from its context)
+     * instead of skip-gram (predict the context from a word).
+     */
+    private boolean cbow = false;
+
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
     private int layer1Size = 200;
     private float syn0[][];
     private float syn1[][];
+    private float syn1neg[][];
+
+    // word indexes drawn in proportion to count^0.75, for negative sampling
+    private int unigramTable[];
 
     private static final double[] EXP_TABLE = new double[EXP_TABLE_SIZE];
     static {
@@ -75,6 +97,7 @@ public class Word2VecTrainer {
 
     private AtomicLong wordsTrainedSoFar = new AtomicLong();
     private Random random = new Random();
+    private long trainingStart;
 
     private byte[][] wordCodes;
     private int[][] wordParents;
@@ -89,7 +112,6 @@ public class Word2VecTrainer {
     public void train(File directory) throws IOException {
         LOG.info("counting word frequencies.");
         readWords(directory);
-        buildTree();
 
         syn0 = new float[wordIndexes.size()][layer1Size];
         for (float[] row :syn0) {
@@ -97,28 +119,60 @@ public class Word2VecTrainer {
                 row[i] = (random.nextFloat() - 0.5f) / layer1Size;
             }
         }
-        syn1 = new float[wordIndexes.size()][layer1Size];
-
-        LineIterator iterator = FileUtils.lineIterator(new File(directory, "hashCorpus.txt"));
-        ParallelForEach.iterate(iterator,
-                WpThreadUtils.getMaxThreads(),
-                1000,
-                new Procedure<String>() {
-                    @Override
-                    public void call(String sentence) throws Exception {
-                        int n = trainSentence(sentence);
-                        wordsTrainedSoFar.addAndGet(n);
-
-                        // update the learning rate
-                        alpha = Math.max(
-                                startingAlpha * (1 - wordsTrainedSoFar.get() / (totalWords + 1.0)),
-                                startingAlpha * 0.0001);
-                    }
-                },
-                10000);
-        iterator.close();
+        if (negative > 0) {
+            buildUnigramTable();
+            syn1neg = new float[wordIndexes.size()][layer1Size];
+        } else {
+            buildTree();
+            syn1 = new float[wordIndexes.size()][layer1Size];
+        }
 
+        // Each thread trains a contiguous range of bytes of the corpus, updating
+        // the shared weights without locks (Hogwild).
+        final File corpus = new File(directory, "hashCorpus.txt");
+        final long shardSize = corpus.length() / numThreads + 1;
+        wordsTrainedSoFar.set(0);
+        alpha = startingAlpha;
+        trainingStart = System.currentTimeMillis();
+        LOG.info("training " + (cbow ? "cbow" : "skip-gram") + " with " +
+                (negative > 0 ? negative + " negative samples" : "hierarchical softmax") +
+                " using " + numThreads + " threads");
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        ParallelForEach.range(0, numThreads, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer shard) throws Exception {
+                try {
+                    Worker worker = new Worker(shard);
+                    worker.train(corpus, shard * shardSize, (shard + 1) * shardSize);
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                    throw e;
+                }
+            }
+        });
+        Exception e = error.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("training a shard failed", e);
+        }
+        LOG.info(String.format("finished training %d words at %.0f words/sec/thread",
+                wordsTrainedSoFar.get(), getWordsPerSecondPerThread()));
+    }
 
+    /**
+     * @return The number of words in the corpus read so far, including words not in the model.
+     */
+    public long getWordsTrained() {
+        return wordsTrainedSoFar.get();
+    }
+
+    /**
+     * @return The average training throughput of each thread since training started.
+     */
+    public double getWordsPerSecondPerThread() {
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - trainingStart) / 1000.0);
+        return wordsTrainedSoFar.get() / seconds / numThreads;
     }
 
     public void readWords(File directory) throws IOException {
@@ -143,7 +197,7 @@ public class Word2VecTrainer {
             totalWords += count;
         }
         reader.close();
-        LOG.info("retained " + wordIndexes.size() + " words");
+        LOG.info("retained " + wordCounts.size() + " words");
 
 
         Long[] hashes = new Long[wordCounts.size()];
@@ -180,66 +234,249 @@ public class Word2VecTrainer {
         }
     }
 
-    private int trainSentence(String sentence) {
-        String hashStrs[] = sentence.trim().split(" ");
-        int indexes[] = new int[hashStrs.length];
-        for (int i = 0; i < hashStrs.length; i++) {
-            indexes[i] = -1;
-            if (hashStrs[i].length() > 0) {
-                long h = Long.valueOf(hashStrs[i]);
-                if (wordIndexes.containsKey(h)) {
-                    indexes[i] = wordIndexes.get(h);
-                }
-            }
+    private void updateAlpha(long wordsTrained) {
+        long total = wordsTrainedSoFar.addAndGet(wordsTrained);
+        alpha = Math.max(
+                startingAlpha * (1 - total / (totalWords + 1.0)),
+                startingAlpha * 0.0001);
+        if (total / REPORT_INTERVAL != (total - wordsTrained) / REPORT_INTERVAL) {
+            LOG.info(String.format("trained %d of %d words, alpha %.5f, %.0f words/sec/thread",
+                    total, totalWords, alpha, getWordsPerSecondPerThread()));
         }
+    }
 
-        float[] neu1e = new float[layer1Size];
-        for (int i = 0; i < indexes.length; i++) {
-            if (indexes[i] < 0) {
-                continue; // skip out of vocabulary words
-            }
+    /**
+     * Trains the sentences of one shard of the corpus. Each worker has its own random
+     * number generator and scratch buffers so threads share nothing but the weights.
+     */
+    private class Worker {
+        private final float neu1[] = new float[layer1Size];
+        private final float neu1e[] = new float[layer1Size];
+        private final int sentence[] = new int[MAX_SENTENCE_LENGTH];
+        private long nextRandom;
+
+        Worker(int id) {
+            nextRandom = id;
+        }
 
-            byte [] code = wordCodes[indexes[i]];
-            int [] parents = wordParents[indexes[i]];
-            if (code.length != parents.length) {
-                throw new IllegalStateException();
+        /**
+         * Trains the lines of the corpus that begin in [start, end).
+         */
+        void train(File corpus, long start, long end) throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(corpus), 1024 * 1024);
+            try {
+                long pos = 0;
+                if (start > 0) {
+                    // the line containing byte start - 1 belongs to the previous shard
+                    pos = start - 1;
+                    skipFully(in, pos);
+                    int b;
+                    do {
+                        b = in.read();
+                        pos++;
+                    } while (b >= 0 && b != '\n');
+                    if (b < 0) {
+                        return;
+                    }
+                }
+                long wordsRead = 0;
+                int lastByte = '\n';
+                int length = 0;
+                long hash = 0;
+                boolean inWord = false;
+                boolean negate = false;
+                while (true) {
+                    if (lastByte == '\n' && pos >= end) {
+                        break;
+                    }
+                    int b = in.read();
+                    lastByte = b;
+                    pos++;
+                    if (b >= '0' && b <= '9') {
+                        hash = hash * 10 + (b - '0');
+                        inWord = true;
+                    } else if (b == '-') {
+                        negate = true;
+                    } else {
+                        if (inWord) {
+                            wordsRead++;
+                            int index = wordIndexes.get(negate ? -hash : hash);
+                            if (index >= 0 && length < MAX_SENTENCE_LENGTH) {
+                                sentence[length++] = index;
+                            }
+                        }
+                        hash = 0;
+                        inWord = false;
+                        negate = false;
+                        if (b == '\n' || b < 0 || length == MAX_SENTENCE_LENGTH) {
+                            trainSentence(sentence, length);
+                            length = 0;
+                            if (wordsRead >= ALPHA_UPDATE_INTERVAL) {
+                                updateAlpha(wordsRead);
+                                wordsRead = 0;
+                            }
+                        }
+                        if (b < 0) {
+                            break;
+                        }
+                    }
+                }
+                updateAlpha(wordsRead);
+            } finally {
+                in.close();
             }
+        }
 
-            // now go over all words from the (reduced) window, predicting each one in turn
-            int reducedWindow = random.nextInt(window);
-            int start = Math.max(0, i - window + reducedWindow);
-            int end = Math.min(indexes.length, i + window + 1 - reducedWindow);
+        private int nextInt(int n) {
+            nextRandom = nextRandom * 25214903917L + 11;
+            return (int) ((nextRandom >>> 16) % n);
+        }
 
-            for (int j = start; j < end; j++) {
-                if (i == j || indexes[j] < 0) {
-                    continue; // skip the word itself and out of vocabulary words
+        private void trainSentence(int[] sentence, int length) {
+            double alpha = Word2VecTrainer.this.alpha;
+            for (int i = 0; i < length; i++) {
+                // now go over all words from the (reduced) window, predicting each one in turn
+                int reducedWindow = nextInt(window);
+                int start = Math.max(0, i - window + reducedWindow);
+                int end = Math.min(length, i + window + 1 - reducedWindow);
+
+                if (cbow) {
+                    Arrays.fill(neu1, 0f);
+                    Arrays.fill(neu1e, 0f);
+                    int contextSize = 0;
+                    for (int j = start; j < end; j++) {
+                        if (i != j) {
+                            float l1[] = syn0[sentence[j]];
+                            for (int c = 0; c < layer1Size; c++) {
+                                neu1[c] += l1[c];
+                            }
+                            contextSize++;
+                        }
+                    }
+                    if (contextSize == 0) {
+                        continue;
+                    }
+                    for (int c = 0; c < layer1Size; c++) {
+                        neu1[c] /= contextSize;
+                    }
+                    trainWord(sentence[i], neu1, alpha);
+                    for (int j = start; j < end; j++) {
+                        if (i != j) {
+                            float l1[] = syn0[sentence[j]];
+                            for (int c = 0; c < layer1Size; c++) {
+                                l1[c] += neu1e[c];
+                            }
+                        }
+                    }
+                } else {
+                    for (int j = start; j < end; j++) {
+                        if (i == j) {
+                            continue; // skip the word itself
+                        }
+                        Arrays.fill(neu1e, 0f);
+                        float l1[] = syn0[sentence[j]];
+                        trainWord(sentence[i], l1, alpha);
+                        for (int c = 0; c < layer1Size; c++) {
+                            l1[c] += neu1e[c];
+                        }
+                    }
                 }
-                Arrays.fill(neu1e, 0f);
-                float l1[] = syn0[indexes[j]];
+            }
+        }
 
+        /**
+         * Updates the output weights to predict the word from the hidden layer l1,
+         * and accumulates the error of the hidden layer in neu1e.
+         */
+        private void trainWord(int word, float[] l1, double alpha) {
+            if (negative > 0) {
+                for (int d = 0; d <= negative; d++) {
+                    int target;
+                    int label;
+                    if (d == 0) {
+                        target = word;
+                        label = 1;
+                    } else {
+                        target = unigramTable[nextInt(unigramTable.length)];
+                        if (target == word) {
+                            continue;
+                        }
+                        label = 0;
+                    }
+                    float l2[] = syn1neg[target];
+                    double f = MathUtils.dot(l1, l2);
+                    double g;
+                    if (f > MAX_EXP) {
+                        g = (label - 1) * alpha;
+                    } else if (f < -MAX_EXP) {
+                        g = label * alpha;
+                    } else {
+                        g = (label - sigmoid(f)) * alpha;
+                    }
+                    for (int c = 0; c < layer1Size; c++) {
+                        neu1e[c] += g * l2[c];
+                        l2[c] += g * l1[c];
+                    }
+                }
+            } else {
+                byte [] code = wordCodes[word];
+                int [] parents = wordParents[word];
                 for (int k = 0; k < parents.length; k++) {
                     float l2[] = syn1[parents[k]];
                     double f = MathUtils.dot(l1, l2);
                     if (f <= -MAX_EXP || f >= MAX_EXP) {
                         continue;
                     }
-                    double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
-                    double g = (1 - code[k] - s) * alpha;
-
+                    double g = (1 - code[k] - sigmoid(f)) * alpha;
                     for (int c = 0; c < layer1Size; c++) {
                         neu1e[c] += g * l2[c];
                         l2[c] += g * l1[c];
                     }
                 }
-                for (int c = 0; c < layer1Size; c++) {
-                    l1[c] += neu1e[c];
-                }
             }
+        }
+    }
 
+    private static double sigmoid(double f) {
+        return EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
         }
-        return indexes.length;
     }
 
+    /**
+     * Fills the unigram table so that each word appears in proportion to its count
+     * raised to the 3/4 power, as in the original word2vec.
+     */
+    private void buildUnigramTable() {
+        int counts[] = new int[wordIndexes.size()];
+        for (long hash : wordIndexes.keys()) {
+            counts[wordIndexes.get(hash)] = wordCounts.get(hash);
+        }
+        double total = 0.0;
+        for (int c : counts) {
+            total += Math.pow(c, 0.75);
+        }
+        int size = (int) Math.min(UNIGRAM_TABLE_SIZE, Math.max(1000, 100L * counts.length));
+        unigramTable = new int[size];
+        int word = 0;
+        double cumulative = Math.pow(counts[0], 0.75) / total;
+        for (int i = 0; i < size; i++) {
+            unigramTable[i] = word;
+            if ((i + 1.0) / size > cumulative && word < counts.length - 1) {
+                word++;
+                cumulative += Math.pow(counts[word], 0.75) / total;
+            }
+        }
+        LOG.info("built unigram table with " + size + " entries");
+    }
 
     private class Node implements Comparable<Node> {
         long hash;
@@ -313,6 +550,30 @@ public class Word2VecTrainer {
     }
 
 
+    public void setMinWordFrequency(int minWordFrequency) {
+        this.minWordFrequency = minWordFrequency;
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    public void setLayer1Size(int layer1Size) {
+        this.layer1Size = layer1Size;
+    }
+
+    public void setNegative(int negative) {
+        this.negative = negative;
+    }
+
+    public void setCbow(boolean cbow) {
+        this.cbow = cbow;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     public void save(File path) throws IOException {
         List<String> words = new ArrayList(Arrays.asList(this.hashToWords.values()));
         Collections.sort(words, new Comparator<String>() {
@@ -335,6 +596,7 @@ public class Word2VecTrainer {
                 stream.write(floatToBytes(f));
             }
         }
+        stream.close();
     }
 
     private void test() {
@@ -411,6 +673,17 @@ public class Word2VecTrainer {
                         .withLongOpt("minfreq")
                         .withDescription("minimum word frequency")
                         .create("f"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("negative")
+                        .withDescription("number of negative samples (0 for hierarchical softmax)")
+                        .create("g"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("cbow")
+                        .withDescription("train continuous bag of words instead of skip-gram")
+                        .create("b"));
 
         EnvBuilder.addStandardOptions(options);
 
@@ -438,6 +711,12 @@ public class Word2VecTrainer {
         if (cmd.hasOption("z")) {
             trainer.layer1Size = Integer.valueOf(cmd.getOptionValue("z"));
         }
+        if (cmd.hasOption("g")) {
+            trainer.negative = Integer.valueOf(cmd.getOptionValue("g"));
+        }
+        if (cmd.hasOption("b")) {
+            trainer.cbow = true;
+        }
 
         trainer.train(new File(cmd.getOptionValue("i")));
         trainer.save(new File(cmd.getOptionValue("o")));
@@ -0,0 +1,131 @@
+package org.wikibrain.sr;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.Random;
+
+/**
+ * Compares three ways of building a cosimilarity matrix for a metric whose pages
+ * have synthetic sparse vectors: the old sequential loop over similarity(), the
+ * default parallel tiles, and a computeCosimilarity override that fetches each
+ * vector once before scoring the tiles.
+ */
+public class BenchmarkPairwiseCosimilarity {
+    public static int SIZES[] = { 50, 1000 };
+    public static int NUM_FEATURES = 100000;
+    public static int VECTOR_LENGTH = 200;
+
+    public static void main(String args[]) throws DaoException {
+        int numThreads = WpThreadUtils.getMaxThreads();
+        SyntheticMetric perPair = new SyntheticMetric(false);
+        SyntheticMetric shared = new SyntheticMetric(true);
+
+        for (int size : SIZES) {
+            int ids[] = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = i * 7 + 1;
+            }
+
+            // warm up all paths before timing them
+            for (int pass = 0; pass < 2; pass++) {
+                long t1 = System.currentTimeMillis();
+                double cos1[][] = new double[size][size];
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        cos1[i][j] = (ids[i] == ids[j]) ? 1.0 : perPair.similarity(ids[i], ids[j], false).getScore();
+                    }
+                }
+                long t2 = System.currentTimeMillis();
+                double cos2[][] = perPair.cosimilarity(ids, ids);
+                long t3 = System.currentTimeMillis();
+                double cos3[][] = perPair.cosimilarity(ids);
+                long t4 = System.currentTimeMillis();
+                double cos4[][] = shared.cosimilarity(ids);
+                long t5 = System.currentTimeMillis();
+
+                if (pass == 1) {
+                    System.err.println("size=" + size + ", threads=" + numThreads +
+                            ", sequential millis=" + (t2 - t1) +
+                            ", tiled millis=" + (t3 - t2) +
+                            ", tiled symmetric millis=" + (t4 - t3) +
+                            ", shared fetch millis=" + (t5 - t4) +
+                            ", checksums=" + sum(cos1) + " / " + sum(cos2) + " / " + sum(cos3) + " / " + sum(cos4));
+                }
+            }
+        }
+    }
+
+    private static double sum(double matrix[][]) {
+        double sum = 0.0;
+        for (double row[] : matrix) {
+            for (double x : row) {
+                sum += x;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * A metric that rebuilds a page's vector whenever it is needed, standing in for
+     * a fetch from a feature matrix.
+     */
+    static class SyntheticMetric extends BaseMonolingualSRMetric {
+        private final boolean shareFetches;
+
+        SyntheticMetric(boolean shareFetches) {
+            super("synthetic", Language.getByLangCode("simple"), null, null);
+            this.shareFetches = shareFetches;
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            return new SRResult(SimUtils.cosineSimilarity(getVector(pageId1), getVector(pageId2)));
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected double[][] computeCosimilarity(int[] rowIds, int[] colIds, boolean symmetric, int numThreads) throws DaoException {
+            if (!shareFetches) {
+                return super.computeCosimilarity(rowIds, colIds, symmetric, numThreads);
+            }
+            final TIntFloatMap rowVectors[] = new TIntFloatMap[rowIds.length];
+            for (int i = 0; i < rowIds.length; i++) {
+                rowVectors[i] = getVector(rowIds[i]);
+            }
+            final TIntFloatMap colVectors[] = symmetric ? rowVectors : new TIntFloatMap[colIds.length];
+            for (int j = 0; !symmetric && j < colIds.length; j++) {
+                colVectors[j] = getVector(colIds[j]);
+            }
+            return scoreTiles(rowIds.length, colIds.length, symmetric, numThreads, new PairScorer() {
+                @Override
+                public double score(int i, int j) {
+                    return SimUtils.cosineSimilarity(rowVectors[i], colVectors[j]);
+                }
+            });
+        }
+
+        private TIntFloatMap getVector(int pageId) {
+            Random random = new Random(pageId);
+            TIntFloatMap vector = new TIntFloatHashMap(VECTOR_LENGTH * 2);
+            for (int i = 0; i < VECTOR_LENGTH; i++) {
+                vector.put(random.nextInt(NUM_FEATURES), random.nextFloat());
+            }
+            return vector;
+        }
+    }
+}
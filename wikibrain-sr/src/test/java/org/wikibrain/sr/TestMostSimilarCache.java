@@ -0,0 +1,74 @@
+package org.wikibrain.sr;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.SparseMatrix;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestMostSimilarCache {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+
+    @Test
+    public void testFailingPageIsSkipped() throws IOException, DaoException, WikiBrainException {
+        File dir = File.createTempFile("most-similar", "cache");
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        try {
+            FailingMetric metric = new FailingMetric(3);
+            metric.setDataDir(dir);
+            TIntSet ids = new TIntHashSet(new int[] { 1, 2, 3, 4, 5 });
+            metric.writeMostSimilarCache(10, ids, ids);
+
+            SparseMatrix cache = metric.getMostSimilarCache();
+            for (int id : new int[] { 1, 2, 4, 5 }) {
+                assertNotNull(cache.getRow(id));
+                assertEquals(id + 100, cache.getRow(id).getColIndex(0));
+            }
+            assertNull(cache.getRow(3));
+            metric.clearMostSimilarCache();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    /**
+     * Returns one result for each page, id + 100, and fails for one page.
+     */
+    static class FailingMetric extends BaseMonolingualSRMetric {
+        private final int failingId;
+
+        FailingMetric(int failingId) {
+            super("failing", SIMPLE, null, null);
+            this.failingId = failingId;
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            return new SRResult(0.5);
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            if (pageId == failingId) {
+                throw new DaoException("no vector for page " + pageId);
+            }
+            SRResultList list = new SRResultList(1);
+            list.set(0, pageId + 100, 0.5);
+            return list;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.wikibrain.sr.ensemble;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TestEnsembleMetric {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+
+    @Test
+    public void testSequential() throws DaoException {
+        EnsembleMetric metric = createMetric(null);
+        assertEquals(0.5, metric.similarity(1, 2, false).getScore(), 0.000001);
+        SRResultList list = metric.mostSimilar(1, 3);
+        assertEquals(3, list.numDocs());
+        assertEquals(11, list.getId(0));
+        assertEquals(2, metric.getLatencies().get("fast").getCount());
+        assertEquals(2, metric.getLatencies().get("slow").getCount());
+    }
+
+    @Test
+    public void testConcurrent() throws DaoException {
+        EnsembleMetric metric = createMetric(null);
+        metric.setConcurrency(2);
+        assertEquals(0.5, metric.similarity(1, 2, false).getScore(), 0.000001);
+        assertEquals(11, metric.mostSimilar(1, 3).getId(0));
+        assertEquals(0, metric.getLatencies().get("slow").getMisses());
+    }
+
+    @Test
+    public void testDeadline() throws DaoException, InterruptedException {
+        CountDownLatch gate = new CountDownLatch(1);
+        EnsembleMetric metric = createMetric(gate);
+        metric.setConcurrency(2);
+        metric.setDeadlineMillis(100);
+
+        // the slow metric is held until the gate opens, so only the fast metric's results arrive
+        assertEquals(0.8, metric.similarity(1, 2, false).getScore(), 0.000001);
+        SRResultList list = metric.mostSimilar(1, 3);
+        assertEquals(3, list.numDocs());
+        assertEquals(10, list.getId(0));
+
+        LatencyHistogram slow = metric.getLatencies().get("slow");
+        assertEquals(2, slow.getMisses());
+        assertEquals(0, slow.getCount());
+        assertEquals(0, metric.getLatencies().get("fast").getMisses());
+
+        // the late calls still finish once they are released
+        gate.countDown();
+        for (int i = 0; i < 500 && slow.getCount() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, slow.getCount());
+        assertEquals(2, slow.getMisses());
+    }
+
+    @Test
+    public void testSaturated() throws DaoException {
+        CountDownLatch gate = new CountDownLatch(1);
+        EnsembleMetric metric = new EnsembleMetric("ensemble", SIMPLE,
+                Arrays.<MonolingualSRMetric>asList(
+                        new FixedMetric("a", gate, 0.8, 10),
+                        new FixedMetric("b", gate, 0.2, 11)),
+                new EvenEnsemble(), null, null);
+        try {
+            // one thread, held by the first call, and room for four queued calls
+            metric.setConcurrency(1);
+            metric.setDeadlineMillis(20);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(Double.isNaN(metric.similarity(1, 2, false).getScore()));
+            }
+
+            // both calls are rejected, so the query does not wait for the deadline
+            metric.setDeadlineMillis(10 * 1000);
+            long start = System.currentTimeMillis();
+            assertTrue(Double.isNaN(metric.similarity(1, 2, false).getScore()));
+            assertTrue(System.currentTimeMillis() - start < 5 * 1000);
+            assertEquals(4, metric.getLatencies().get("a").getMisses());
+            assertEquals(4, metric.getLatencies().get("b").getMisses());
+        } finally {
+            gate.countDown();
+        }
+    }
+
+    /**
+     * @param gate If not null, the slow metric waits for it to open before answering.
+     */
+    private EnsembleMetric createMetric(CountDownLatch gate) {
+        List<MonolingualSRMetric> metrics = Arrays.<MonolingualSRMetric>asList(
+                new FixedMetric("fast", null, 0.8, 10),
+                new FixedMetric("slow", gate, 0.2, 11)
+        );
+        return new EnsembleMetric("ensemble", SIMPLE, metrics, new EvenEnsemble(), null, null);
+    }
+
+    /**
+     * Returns the same score for every pair, and a list of three pages starting
+     * at firstId, once its gate (if any) is open.
+     */
+    static class FixedMetric extends BaseMonolingualSRMetric {
+        private final CountDownLatch gate;
+        private final double score;
+        private final int firstId;
+
+        FixedMetric(String name, CountDownLatch gate, double score, int firstId) {
+            super(name, SIMPLE, null, null);
+            this.gate = gate;
+            this.score = score;
+            this.firstId = firstId;
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            await();
+            return new SRResult(score);
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            await();
+            SRResultList list = new SRResultList(3);
+            for (int i = 0; i < 3; i++) {
+                list.set(i, firstId + i, score - 0.01 * i);
+            }
+            return list;
+        }
+
+        private void await() throws DaoException {
+            if (gate == null) {
+                return;
+            }
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new DaoException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares three ways of building a cosimilarity matrix for the rows of a feature matrix:
+ * one mostSimilar query per row, batches of 1000 rows, and CosineSimilarity.writeMostSimilar,
+ * which computes the blocked product of the feature matrix and its transpose.
+ *
+ * Usage: BenchmarkCosimilarity [feature_matrix_path transpose_matrix_path]
+ * If no matrices are specified, synthetic ones are generated as in BenchmarkCosineSimilarity.
+ */
+public class BenchmarkCosimilarity {
+    public static int NUM_ROWS = 20000;
+    public static int NUM_RESULTS = 100;
+    public static int BATCH_SIZE = 1000;
+
+    public static void main(String args[]) throws IOException {
+        final SparseMatrix features;
+        SparseMatrix transpose;
+        if (args.length >= 2) {
+            features = new SparseMatrix(new File(args[0]));
+            transpose = new SparseMatrix(new File(args[1]));
+        } else {
+            System.err.println("generating synthetic matrix with " + BenchmarkCosineSimilarity.NUM_ROWS + " rows");
+            features = BenchmarkCosineSimilarity.createFeatureMatrix();
+            File transposeFile = File.createTempFile("transpose", null);
+            transposeFile.deleteOnExit();
+            new SparseMatrixTransposer(features, transposeFile).transpose();
+            transpose = new SparseMatrix(transposeFile);
+        }
+
+        final CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, transpose);
+        int allIds[] = features.getRowIds();
+        final int rowIds[] = Arrays.copyOf(allIds, Math.min(NUM_ROWS, allIds.length));
+        int numThreads = WpThreadUtils.getMaxThreads();
+
+        // warm up all paths before timing them
+        for (int pass = 0; pass < 2; pass++) {
+            long t1 = System.currentTimeMillis();
+            File file1 = createFile();
+            final SparseMatrixWriter writer1 = new SparseMatrixWriter(file1, new ValueConf());
+            ParallelForEach.loop(asList(rowIds), numThreads, new Procedure<Integer>() {
+                @Override
+                public void call(Integer rowId) throws Exception {
+                    TIntFloatMap query = features.getRow(rowId).asTroveMap();
+                    writeRow(writer1, rowId, sim.mostSimilar(query, NUM_RESULTS, null));
+                }
+            });
+            double checksum1 = finish(writer1, file1);
+
+            long t2 = System.currentTimeMillis();
+            File file2 = createFile();
+            SparseMatrixWriter writer2 = new SparseMatrixWriter(file2, new ValueConf());
+            for (int i = 0; i < rowIds.length; i += BATCH_SIZE) {
+                int batchIds[] = Arrays.copyOfRange(rowIds, i, Math.min(rowIds.length, i + BATCH_SIZE));
+                List<TIntFloatMap> queries = new ArrayList<TIntFloatMap>();
+                for (int rowId : batchIds) {
+                    queries.add(features.getRow(rowId).asTroveMap());
+                }
+                SRResultList results[] = sim.mostSimilar(queries, NUM_RESULTS, null, numThreads);
+                for (int j = 0; j < batchIds.length; j++) {
+                    writeRow(writer2, batchIds[j], results[j]);
+                }
+            }
+            double checksum2 = finish(writer2, file2);
+
+            long t3 = System.currentTimeMillis();
+            File file3 = createFile();
+            SparseMatrixWriter writer3 = new SparseMatrixWriter(file3, new ValueConf());
+            sim.writeMostSimilar(rowIds, NUM_RESULTS, null, writer3, numThreads);
+            double checksum3 = finish(writer3, file3);
+            long t4 = System.currentTimeMillis();
+
+            if (pass == 1) {
+                System.err.println("threads=" + numThreads + ", k=" + NUM_RESULTS +
+                        ", per row rows per second=" + (1000.0 * rowIds.length / Math.max(1, t2 - t1)) +
+                        ", batched rows per second=" + (1000.0 * rowIds.length / Math.max(1, t3 - t2)) +
+                        ", product rows per second=" + (1000.0 * rowIds.length / Math.max(1, t4 - t3)) +
+                        ", checksums=" + checksum1 + " / " + checksum2 + " / " + checksum3);
+            }
+        }
+    }
+
+    private static void writeRow(SparseMatrixWriter writer, int rowId, SRResultList list) throws IOException {
+        writer.writeRow(new SparseMatrixRow(writer.getValueConf(), rowId, list.getIds(), list.getScoresAsFloat()));
+    }
+
+    private static File createFile() throws IOException {
+        File file = File.createTempFile("cosimilarity", null);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Finishes the matrix and returns the sum of its values.
+     */
+    private static double finish(SparseMatrixWriter writer, File file) throws IOException {
+        writer.finish();
+        SparseMatrix matrix = new SparseMatrix(file);
+        double sum = 0.0;
+        for (SparseMatrixRow row : matrix) {
+            for (int i = 0; i < row.getNumCols(); i++) {
+                sum += row.getColValue(i);
+            }
+        }
+        matrix.close();
+        return sum;
+    }
+
+    private static List<Integer> asList(int ids[]) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
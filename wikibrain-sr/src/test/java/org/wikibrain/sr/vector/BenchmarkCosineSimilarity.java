@@ -0,0 +1,111 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the throughput of the hash-based and blocked inverted index scoring
+ * in CosineSimilarity.mostSimilar, and of single-threaded batched queries.
+ *
+ * Usage: BenchmarkCosineSimilarity [feature_matrix_path transpose_matrix_path]
+ * If no matrices are specified, synthetic ones with power-law feature frequencies are generated.
+ * Queries are rows sampled from the feature matrix.
+ */
+public class BenchmarkCosineSimilarity {
+    public static int NUM_ROWS = 500000;
+    public static int NUM_FEATURES = 50000;
+    public static int MAX_COLS = 100;
+    public static int NUM_QUERIES = 1000;
+    public static int[] NUM_RESULTS = { 10, 100, 1000 };
+
+    public static void main(String args[]) throws IOException {
+        SparseMatrix features;
+        SparseMatrix transpose;
+        if (args.length >= 2) {
+            features = new SparseMatrix(new File(args[0]));
+            transpose = new SparseMatrix(new File(args[1]));
+        } else {
+            System.err.println("generating synthetic matrix with " + NUM_ROWS + " rows");
+            features = createFeatureMatrix();
+            File transposeFile = File.createTempFile("transpose", null);
+            transposeFile.deleteOnExit();
+            new SparseMatrixTransposer(features, transposeFile).transpose();
+            transpose = new SparseMatrix(transposeFile);
+        }
+
+        CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, transpose);
+
+        Random random = new Random(0);
+        int rowIds[] = features.getRowIds();
+        List<TIntFloatMap> queries = new ArrayList<TIntFloatMap>();
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            SparseMatrixRow row = features.getRow(rowIds[random.nextInt(rowIds.length)]);
+            queries.add(row.asTroveMap());
+        }
+
+        for (int k : NUM_RESULTS) {
+            // warm up both paths before timing them
+            for (int pass = 0; pass < 2; pass++) {
+                long t1 = System.currentTimeMillis();
+                double checksum1 = 0.0;
+                for (TIntFloatMap q : queries) {
+                    checksum1 += sum(sim.mostSimilarWithHashIndex(q, k, null));
+                }
+                long t2 = System.currentTimeMillis();
+                double checksum2 = 0.0;
+                for (TIntFloatMap q : queries) {
+                    checksum2 += sum(sim.mostSimilarWithInvertedIndex(q, k, null));
+                }
+                long t3 = System.currentTimeMillis();
+                double checksum3 = 0.0;
+                for (SRResultList list : sim.mostSimilar(queries, k, null, 1)) {
+                    checksum3 += sum(list);
+                }
+                long t4 = System.currentTimeMillis();
+                if (pass == 1) {
+                    System.err.println("k=" + k +
+                            ", hash queries per second=" + (1000.0 * NUM_QUERIES / Math.max(1, t2 - t1)) +
+                            ", blocked queries per second=" + (1000.0 * NUM_QUERIES / Math.max(1, t3 - t2)) +
+                            ", batched queries per second=" + (1000.0 * NUM_QUERIES / Math.max(1, t4 - t3)) +
+                            ", checksums=" + checksum1 + " / " + checksum2 + " / " + checksum3);
+                }
+            }
+        }
+    }
+
+    private static double sum(SRResultList list) {
+        double sum = 0.0;
+        for (int i = 0; i < list.numDocs(); i++) {
+            sum += list.getScore(i);
+        }
+        return sum;
+    }
+
+    static SparseMatrix createFeatureMatrix() throws IOException {
+        File file = File.createTempFile("features", null);
+        file.deleteOnExit();
+        ValueConf vconf = new ValueConf(0.0f, 1.0f);
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+        Random random = new Random(0);
+        for (int id = 0; id < NUM_ROWS; id++) {
+            TIntFloatMap row = new TIntFloatHashMap();
+            int n = 1 + random.nextInt(MAX_COLS);
+            for (int i = 0; i < n; i++) {
+                int feature = (int) (NUM_FEATURES * Math.pow(random.nextDouble(), 3));
+                row.put(feature, random.nextFloat());
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, id * 3, row));
+        }
+        writer.finish();
+        return new SparseMatrix(file);
+    }
+}
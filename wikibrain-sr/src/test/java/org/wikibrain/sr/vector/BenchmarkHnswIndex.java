@@ -0,0 +1,84 @@
+package org.wikibrain.sr.vector;
+
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.word2vec.Word2VecGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the recall and latency of HnswIndex searches at several values of
+ * efSearch against exact brute force search over a DenseVectorStore.
+ *
+ * Usage: BenchmarkHnswIndex [word2vec_model_path]
+ * If no model is specified, synthetic clustered vectors are generated.
+ * Queries are random unit vectors near stored vectors.
+ */
+public class BenchmarkHnswIndex {
+    public static int NUM_ROWS = 100000;
+    public static int DIMENSIONS = 100;
+    public static int NUM_QUERIES = 500;
+    public static int K = 10;
+    public static int[] EF_SEARCH = { 10, 20, 50, 100, 200, 400 };
+
+    public static void main(String args[]) throws IOException {
+        Random random = new Random(42);
+        DenseVectorStore store;
+        if (args.length >= 1) {
+            store = new Word2VecGenerator(Language.SIMPLE, null, new File(args[0])).getStore();
+        } else {
+            System.err.println("generating " + NUM_ROWS + " synthetic vectors");
+            store = TestHnswIndex.createStore(NUM_ROWS, DIMENSIONS, random);
+        }
+
+        File path = File.createTempFile("vectors", ".hnsw");
+        path.deleteOnExit();
+        long start = System.currentTimeMillis();
+        HnswIndex.build(store, path);
+        System.err.println(String.format("built index in %.1f seconds", (System.currentTimeMillis() - start) / 1000.0));
+
+        start = System.currentTimeMillis();
+        HnswIndex index = new HnswIndex(store, path);
+        System.err.println("opened index in " + (System.currentTimeMillis() - start) + " ms");
+
+        float queries[][] = new float[NUM_QUERIES][];
+        int exact[][] = new int[NUM_QUERIES][];
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            float noise[] = TestHnswIndex.randomUnitVector(store.getDimensions(), random);
+            queries[i] = store.getVector(random.nextInt(store.getNumRows()));
+            for (int j = 0; j < noise.length; j++) {
+                queries[i][j] += 0.3f * noise[j];
+            }
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            exact[i] = store.mostSimilar(queries[i], K).getIds();
+        }
+        report("brute force", 1.0, start);
+
+        for (int ef : EF_SEARCH) {
+            int found = 0;
+            start = System.nanoTime();
+            int results[][] = new int[NUM_QUERIES][];
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                results[i] = index.mostSimilar(queries[i], K, ef).getIds();
+            }
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                for (int id : results[i]) {
+                    for (int e : exact[i]) {
+                        if (e == id) {
+                            found++;
+                        }
+                    }
+                }
+            }
+            report("hnsw ef=" + ef, 1.0 * found / (K * NUM_QUERIES), start);
+        }
+    }
+
+    private static void report(String name, double recall, long startNanos) {
+        double millis = (System.nanoTime() - startNanos) / 1000000.0 / NUM_QUERIES;
+        System.err.println(String.format("%s: recall@%d=%.3f, %.3f ms per query", name, K, recall, millis));
+    }
+}
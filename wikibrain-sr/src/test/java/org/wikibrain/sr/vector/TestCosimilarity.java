@@ -0,0 +1,171 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.sr.Explanation;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.normalize.BaseNormalizer;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the tiled cosimilarity matrices against pairwise calls to similarity().
+ */
+public class TestCosimilarity {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+    private static final int NUM_PAGES = 70;
+
+    @Test
+    public void testCosineSimilarity() throws DaoException {
+        testSimilarity(new CosineSimilarity());
+    }
+
+    @Test
+    public void testGoogleSimilarity() throws DaoException {
+        testSimilarity(new GoogleSimilarity(1000));
+    }
+
+    private void testSimilarity(VectorSimilarity similarity) throws DaoException {
+        // every seventh page has no vector
+        final TIntObjectMap<TIntFloatMap> vectors = new TIntObjectHashMap<TIntFloatMap>();
+        Random random = new Random(17);
+        for (int pageId = 0; pageId < NUM_PAGES; pageId++) {
+            if (pageId % 7 != 3) {
+                vectors.put(pageId, randomVector(random));
+            }
+        }
+        VectorBasedMonoSRMetric metric = new VectorBasedMonoSRMetric(
+                "test", SIMPLE, null, null, new MapGenerator(vectors), similarity, null);
+
+        // neither dimension is a multiple of the tile size
+        int rowIds[] = new int[37];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = (i * 5) % NUM_PAGES;
+        }
+        int colIds[] = new int[45];
+        for (int i = 0; i < colIds.length; i++) {
+            colIds[i] = (i * 3 + 1) % NUM_PAGES;
+        }
+        int allIds[] = new int[NUM_PAGES];
+        for (int i = 0; i < allIds.length; i++) {
+            allIds[i] = i;
+        }
+
+        for (boolean trained : new boolean[] { false, true }) {
+            metric.setSimilarityNormalizer(new ScaleNormalizer(trained));
+
+            double cosims[][] = metric.cosimilarity(rowIds, colIds);
+            assertEquals(rowIds.length, cosims.length);
+            for (int i = 0; i < rowIds.length; i++) {
+                assertEquals(colIds.length, cosims[i].length);
+                for (int j = 0; j < colIds.length; j++) {
+                    double expected = expected(metric, vectors, trained, rowIds[i], colIds[j]);
+                    assertEquals(expected, cosims[i][j], 0.00001);
+                }
+            }
+
+            double symmetric[][] = metric.cosimilarity(allIds);
+            assertEquals(NUM_PAGES, symmetric.length);
+            for (int i = 0; i < NUM_PAGES; i++) {
+                assertEquals(NUM_PAGES, symmetric[i].length);
+                for (int j = 0; j < NUM_PAGES; j++) {
+                    double expected = expected(metric, vectors, trained, i, j);
+                    assertEquals(expected, symmetric[i][j], 0.00001);
+                    assertEquals(symmetric[j][i], symmetric[i][j], 0.0);
+                }
+            }
+            assertTrue(Double.isNaN(symmetric[3][50]));
+            assertTrue(Double.isNaN(symmetric[50][3]));
+
+            double raw = similarity.similarity(vectors.get(1), vectors.get(2));
+            assertEquals(trained ? 2 * raw + 1 : raw, symmetric[1][2], 0.00001);
+        }
+    }
+
+    /**
+     * Returns the entry expected in a cosimilarity matrix. Scores are normalized like
+     * similarity() once the normalizer is trained, and are raw similarities before then.
+     */
+    private double expected(VectorBasedMonoSRMetric metric, TIntObjectMap<TIntFloatMap> vectors,
+                            boolean trained, int pageId1, int pageId2) throws DaoException {
+        if (!vectors.containsKey(pageId1) || !vectors.containsKey(pageId2)) {
+            return Double.NaN;
+        } else if (trained) {
+            SRResult result = metric.similarity(pageId1, pageId2, false);
+            assertNotNull(result);
+            return result.getScore();
+        } else {
+            return metric.getSimilarity().similarity(vectors.get(pageId1), vectors.get(pageId2));
+        }
+    }
+
+    private static TIntFloatMap randomVector(Random random) {
+        TIntFloatMap vector = new TIntFloatHashMap();
+        int size = 1 + random.nextInt(20);
+        for (int i = 0; i < size; i++) {
+            vector.put(random.nextInt(40), random.nextFloat());
+        }
+        return vector;
+    }
+
+    /**
+     * Returns the vectors of a fixed set of pages. Other pages have no vector.
+     */
+    static class MapGenerator implements VectorGenerator {
+        private final TIntObjectMap<TIntFloatMap> vectors;
+
+        MapGenerator(TIntObjectMap<TIntFloatMap> vectors) {
+            this.vectors = vectors;
+        }
+
+        @Override
+        public TIntFloatMap getVector(int pageId) throws DaoException {
+            return vectors.get(pageId);
+        }
+
+        @Override
+        public TIntFloatMap getVector(String phrase) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Explanation> getExplanations(LocalPage page1, LocalPage page2, TIntFloatMap vector1, TIntFloatMap vector2, SRResult result) throws DaoException {
+            return null;
+        }
+    }
+
+    /**
+     * Maps x to 2x + 1, so normalized scores differ from raw scores.
+     */
+    static class ScaleNormalizer extends BaseNormalizer {
+        private final boolean trained;
+
+        ScaleNormalizer(boolean trained) {
+            this.trained = trained;
+        }
+
+        @Override
+        public double normalize(double x) {
+            return 2 * x + 1;
+        }
+
+        @Override
+        public String dump() {
+            return "scale normalizer";
+        }
+
+        @Override
+        public boolean isTrained() {
+            return trained;
+        }
+    }
+}
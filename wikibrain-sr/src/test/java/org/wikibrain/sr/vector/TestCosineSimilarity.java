@@ -0,0 +1,236 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestCosineSimilarity {
+    private static final int NUM_ROWS = 3000;
+    private static final int NUM_FEATURES = 500;
+    private static final int MAX_ID = 400000;
+
+    private Random random = new Random(42);
+    private SparseMatrix features;
+    private SparseMatrix sortedTranspose;
+    private SparseMatrix unsortedTranspose;
+
+    @Before
+    public void createMatrices() throws IOException {
+        ValueConf vconf = new ValueConf(-1.0f, 1.0f);
+        TIntObjectHashMap<TIntFloatHashMap> columns = new TIntObjectHashMap<TIntFloatHashMap>();
+
+        File featureFile = File.createTempFile("features", null);
+        featureFile.deleteOnExit();
+        SparseMatrixWriter writer = new SparseMatrixWriter(featureFile, vconf);
+        TIntSet rowIds = new TIntHashSet();
+        while (rowIds.size() < NUM_ROWS) {
+            rowIds.add(random.nextInt(MAX_ID));
+        }
+        for (int rowId : rowIds.toArray()) {
+            TIntFloatHashMap row = new TIntFloatHashMap();
+            int n = 1 + random.nextInt(40);
+            for (int i = 0; i < n; i++) {
+                // skew features so that a few are very common
+                int feature = (int) (NUM_FEATURES * Math.pow(random.nextDouble(), 3));
+                float value = random.nextFloat() * 1.2f - 0.2f;
+                row.put(feature, value);
+                if (!columns.containsKey(feature)) {
+                    columns.put(feature, new TIntFloatHashMap());
+                }
+                columns.get(feature).put(rowId, value);
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, rowId, row));
+        }
+        writer.finish();
+        features = new SparseMatrix(featureFile);
+
+        File sortedFile = File.createTempFile("transpose", null);
+        sortedFile.deleteOnExit();
+        new SparseMatrixTransposer(features, sortedFile, 1).transpose();
+        sortedTranspose = new SparseMatrix(sortedFile);
+
+        File unsortedFile = File.createTempFile("transpose", null);
+        unsortedFile.deleteOnExit();
+        writer = new SparseMatrixWriter(unsortedFile, vconf);
+        for (int feature : columns.keys()) {
+            int ids[] = columns.get(feature).keys();
+            shuffle(ids);
+            float vals[] = new float[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                vals[i] = columns.get(feature).get(ids[i]);
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, feature, ids, vals));
+        }
+        writer.finish();
+        unsortedTranspose = new SparseMatrix(unsortedFile);
+    }
+
+    @Test
+    public void testBlockedIndex() throws IOException {
+        CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, sortedTranspose);
+        for (int i = 0; i < 50; i++) {
+            TIntFloatMap query = randomQuery();
+            for (int k : new int[] { 1, 10, 500, NUM_ROWS * 2}) {
+                assertSameResults(
+                        sim.mostSimilarWithHashIndex(query, k, null),
+                        sim.mostSimilarWithInvertedIndex(query, k, null));
+            }
+        }
+    }
+
+    @Test
+    public void testUnsortedTranspose() throws IOException {
+        CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, unsortedTranspose);
+        for (int i = 0; i < 20; i++) {
+            TIntFloatMap query = randomQuery();
+            assertSameResults(
+                    sim.mostSimilarWithHashIndex(query, 20, null),
+                    sim.mostSimilarWithInvertedIndex(query, 20, null));
+        }
+    }
+
+    @Test
+    public void testValidIds() throws IOException {
+        CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, sortedTranspose);
+        int ids[] = features.getRowIds();
+        TIntSet validIds = new TIntHashSet();
+        for (int i = 0; i < ids.length; i += 3) {
+            validIds.add(ids[i]);
+        }
+        for (int i = 0; i < 20; i++) {
+            TIntFloatMap query = randomQuery();
+            SRResultList expected = sim.mostSimilarWithHashIndex(query, 20, validIds);
+            assertSameResults(expected, sim.mostSimilarWithInvertedIndex(query, 20, validIds));
+
+            // the regular index also scores valid rows that share no features with the query
+            SRResultList regular = sim.mostSimilarWithRegularIndex(query, 20, validIds);
+            for (int j = 0; j < expected.numDocs() && expected.getScore(j) > 0; j++) {
+                assertEquals(expected.getScore(j), regular.getScore(j), 0.00001);
+            }
+        }
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, sortedTranspose);
+        List<TIntFloatMap> queries = new ArrayList<TIntFloatMap>();
+        for (int i = 0; i < 150; i++) {
+            queries.add(i % 17 == 0 ? null : randomQuery());
+        }
+        int ids[] = features.getRowIds();
+        TIntSet largeValidIds = new TIntHashSet(ids);
+        TIntSet smallValidIds = new TIntHashSet();
+        for (int i = 0; i < ids.length; i += 5) {
+            smallValidIds.add(ids[i]);
+        }
+        for (TIntSet validIds : Arrays.asList(null, largeValidIds, smallValidIds)) {
+            for (int numThreads : new int[] { 1, 4 }) {
+                SRResultList batch[] = sim.mostSimilar(queries, 20, validIds, numThreads);
+                assertEquals(queries.size(), batch.length);
+                for (int i = 0; i < queries.size(); i++) {
+                    if (queries.get(i) == null) {
+                        assertNull(batch[i]);
+                    } else {
+                        assertSameResults(sim.mostSimilar(queries.get(i), 20, validIds), batch[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWriteMostSimilar() throws IOException {
+        CosineSimilarity sim = new CosineSimilarity();
+        sim.setMatrices(features, sortedTranspose);
+        int ids[] = features.getRowIds();
+        shuffle(ids);
+        int rowIds[] = Arrays.copyOf(ids, 500);
+        rowIds[17] = MAX_ID + 1;   // no feature row
+        TIntSet validIds = new TIntHashSet(Arrays.copyOfRange(ids, 0, ids.length / 2));
+
+        for (TIntSet valid : Arrays.asList(null, validIds)) {
+            File file = File.createTempFile("cosimilarity", null);
+            file.deleteOnExit();
+            SparseMatrixWriter writer = new SparseMatrixWriter(file, new ValueConf(-1.0f, 1.0f));
+            long numCells = sim.writeMostSimilar(rowIds, 20, valid, writer, 3);
+            writer.finish();
+
+            SparseMatrix cosims = new SparseMatrix(file);
+            assertEquals(rowIds.length - 1, cosims.getNumRows());
+            assertNull(cosims.getRow(MAX_ID + 1));
+            long expectedCells = 0;
+            for (SparseMatrixRow row : cosims) {
+                expectedCells += row.getNumCols();
+            }
+            assertEquals(expectedCells, numCells);
+            for (int rowId : rowIds) {
+                if (rowId == MAX_ID + 1) {
+                    continue;
+                }
+                SRResultList expected = sim.mostSimilar(features.getRow(rowId).asTroveMap(), 20, valid);
+                SparseMatrixRow actual = cosims.getRow(rowId);
+                for (int i = 0; i < actual.getNumCols(); i++) {
+                    if (valid != null) {
+                        assertTrue(valid.contains(actual.getColIndex(i)));
+                    }
+                }
+                // values are packed into shorts, so only compare scores, and only scores
+                // of rows that share features (the regular index also returns zeros)
+                for (int i = 0; i < expected.numDocs() && expected.getScore(i) > 0; i++) {
+                    assertEquals(expected.getScore(i), actual.getColValue(i), 0.001);
+                }
+            }
+            cosims.close();
+        }
+    }
+
+    private TIntFloatMap randomQuery() {
+        TIntFloatMap query = new TIntFloatHashMap();
+        int n = 1 + random.nextInt(30);
+        for (int i = 0; i < n; i++) {
+            query.put(random.nextInt(NUM_FEATURES), random.nextFloat() * 1.2f - 0.2f);
+        }
+        return query;
+    }
+
+    /**
+     * Compares scores rank by rank; ids may differ only among tied scores.
+     */
+    private void assertSameResults(SRResultList expected, SRResultList actual) {
+        assertEquals(expected.numDocs(), actual.numDocs());
+        for (int i = 0; i < expected.numDocs(); i++) {
+            assertEquals(expected.getScore(i), actual.getScore(i), 0.00001);
+            if (i + 1 < expected.numDocs() && expected.getScore(i) != expected.getScore(i + 1)
+            &&  (i == 0 || expected.getScore(i) != expected.getScore(i - 1))) {
+                assertEquals(expected.getId(i), actual.getId(i));
+            }
+        }
+    }
+
+    private void shuffle(int ids[]) {
+        for (int i = ids.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = ids[i];
+            ids[i] = ids[j];
+            ids[j] = tmp;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.wikibrain.sr.vector;
+
+import org.junit.Test;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestDenseVectorStore {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File path = File.createTempFile("vectors", ".store");
+        path.deleteOnExit();
+        String keys[] = { "zebra", "apple", "Ärger", "", "apple pie", "apple" };
+        Random random = new Random(1);
+        float vectors[][] = new float[keys.length][7];
+        DenseVectorStore.Writer writer = new DenseVectorStore.Writer(path, 7);
+        for (int i = 0; i < keys.length; i++) {
+            for (int j = 0; j < 7; j++) {
+                vectors[i][j] = random.nextFloat();
+            }
+            writer.add(keys[i], vectors[i]);
+        }
+        writer.finish();
+
+        DenseVectorStore store = new DenseVectorStore(path);
+        assertEquals(keys.length, store.getNumRows());
+        assertEquals(7, store.getDimensions());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], store.getKey(i));
+            assertArrayEquals(vectors[i], store.getVector(i), 0.0f);
+        }
+        assertEquals(0, store.getRow("zebra"));
+        assertEquals(2, store.getRow("Ärger"));
+        assertEquals(3, store.getRow(""));
+        assertEquals(4, store.getRow("apple pie"));
+        assertEquals(5, store.getRow("apple"));     // last vector for a duplicate key wins
+        assertEquals(-1, store.getRow("appl"));
+        assertEquals(-1, store.getRow("zz"));
+        assertNull(store.getVector("banana"));
+
+        double expected = 0.0;
+        for (int j = 0; j < 7; j++) {
+            expected += vectors[1][j] * vectors[4][j];
+        }
+        assertEquals(expected, store.dot(1, vectors[4]), 0.00001);
+        assertEquals(expected, store.dot(1, 4), 0.00001);
+
+        SRResultList top = store.mostSimilar(vectors[0], 3);
+        assertEquals(3, top.numDocs());
+        int best = 0;
+        for (int i = 1; i < keys.length; i++) {
+            if (store.dot(i, vectors[0]) > store.dot(best, vectors[0])) {
+                best = i;
+            }
+        }
+        assertEquals(best, top.getId(0));
+        for (int i = 1; i < top.numDocs(); i++) {
+            assertTrue(top.getScore(i - 1) >= top.getScore(i));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        File path = File.createTempFile("vectors", ".store");
+        path.deleteOnExit();
+        new DenseVectorStore.Writer(path, 10).finish();
+        DenseVectorStore store = new DenseVectorStore(path);
+        assertEquals(0, store.getNumRows());
+        assertEquals(-1, store.getRow("foo"));
+        assertEquals(0, store.mostSimilar(new float[10], 5).numDocs());
+        store.close();
+    }
+}
@@ -0,0 +1,109 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.WikiBrainAnalyzer;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestESAVectorBuilder {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+    private static final int NUM_DOCS = 300;
+    private static final int NUM_WORDS = 600;
+
+    @Test
+    public void testMatchesQueries() throws IOException, DaoException {
+        File root = WpIOUtils.createTempDirectory("esa");
+        try {
+            LuceneOptions options = LuceneOptions.getDefaultOptions();
+            buildIndex(new File(root, SIMPLE.getLangCode()), options);
+            LuceneSearcher searcher = new LuceneSearcher(new LanguageSet(SIMPLE), root);
+            ESAGenerator generator = new ESAGenerator(SIMPLE, null, searcher);
+
+            int pageIds[] = new int[NUM_DOCS];
+            for (int i = 0; i < NUM_DOCS; i++) {
+                pageIds[i] = 1000 + i;
+            }
+            File path = new File(root, "feature.matrix");
+            SparseMatrixWriter writer = new SparseMatrixWriter(path, new ValueConf());
+            generator.writeVectors(writer, pageIds, 2);
+            writer.finish();
+
+            SparseMatrix matrix = new SparseMatrix(path);
+            int numNonEmpty = 0;
+            for (int pageId : pageIds) {
+                TIntFloatMap expected = generator.getVector(pageId);
+                SparseMatrixRow row = matrix.getRow(pageId);
+                if (expected.isEmpty()) {
+                    assertNull(row);
+                    continue;
+                }
+                numNonEmpty++;
+                TIntFloatMap actual = row.asTroveMap();
+                assertEquals(expected.size(), actual.size());
+                for (int id : expected.keys()) {
+                    assertTrue(actual.containsKey(id));
+                    assertEquals(expected.get(id), actual.get(id), 0.001);
+                }
+            }
+            assertTrue(numNonEmpty > NUM_DOCS / 2);
+            matrix.close();
+            searcher.getReaderByLanguage(SIMPLE).close();
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    /**
+     * Indexes documents as LuceneIndexer does, in two segments. Each document repeats
+     * words from its own small vocabulary so most words pass the more like this cutoffs.
+     */
+    private void buildIndex(File dir, LuceneOptions options) throws IOException {
+        Random random = new Random(1);
+        IndexWriterConfig iwc = new IndexWriterConfig(options.matchVersion, new WikiBrainAnalyzer(SIMPLE, options));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(dir), iwc);
+        for (int i = 0; i < NUM_DOCS; i++) {
+            int vocabulary[] = new int[5 + random.nextInt(40)];
+            for (int j = 0; j < vocabulary.length; j++) {
+                vocabulary[j] = random.nextInt(NUM_WORDS);
+            }
+            StringBuilder text = new StringBuilder();
+            int length = 20 + random.nextInt(200);
+            for (int j = 0; j < length; j++) {
+                text.append(" zq").append(vocabulary[random.nextInt(vocabulary.length)]);
+            }
+            Document document = new Document();
+            document.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, 1000 + i, Field.Store.YES));
+            document.add(new NumericDocValuesField(LuceneOptions.LOCAL_ID_FIELD_NAME, 1000 + i));
+            document.add(new TextField(options.elements.getTextFieldName(), text.toString(), Field.Store.YES));
+            writer.addDocument(document);
+            if (i == NUM_DOCS / 2) {
+                writer.commit();
+            }
+        }
+        writer.close();
+    }
+}
@@ -0,0 +1,129 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestHnswIndex {
+    private static final int NUM_ROWS = 5000;
+    private static final int DIMENSIONS = 32;
+    private static final int NUM_QUERIES = 200;
+
+    @Test
+    public void testRecall() throws IOException {
+        Random random = new Random(42);
+        DenseVectorStore store = createStore(NUM_ROWS, DIMENSIONS, random);
+        File path = File.createTempFile("vectors", ".hnsw");
+        path.deleteOnExit();
+        // concurrent inserts make the graph nondeterministic, so recall is checked against thresholds
+        HnswIndex.build(store, path, 16, 100, 4);
+        HnswIndex index = new HnswIndex(store, path);
+
+        // nearly every vector should find itself
+        int found = 0, total = 0;
+        for (int i = 0; i < NUM_ROWS; i += 10) {
+            if (index.mostSimilar(store.getVector(i), 1).getId(0) == i) {
+                found++;
+            }
+            total++;
+        }
+        assertTrue("found " + found + " of " + total + " vectors", found >= 0.98 * total);
+
+        double recall = measureRecall(store, index, 10, random);
+        assertTrue("recall was " + recall, recall >= 0.95);
+
+        SRResultList top = index.mostSimilar(store.getVector(7), 20);
+        assertEquals(20, top.numDocs());
+        for (int i = 1; i < top.numDocs(); i++) {
+            assertTrue(top.getScore(i - 1) >= top.getScore(i));
+        }
+        index.close();
+        store.close();
+    }
+
+    @Test
+    public void testTiny() throws IOException {
+        Random random = new Random(7);
+        DenseVectorStore store = createStore(3, 4, random);
+        File path = File.createTempFile("vectors", ".hnsw");
+        path.deleteOnExit();
+        HnswIndex.build(store, path);
+        HnswIndex index = new HnswIndex(store, path);
+        assertEquals(3, index.mostSimilar(store.getVector(1), 10).numDocs());
+        assertEquals(1, index.mostSimilar(store.getVector(1), 10).getId(0));
+        index.close();
+        store.close();
+    }
+
+    /**
+     * Returns the average fraction of the exact top k results found by the index
+     * for random queries.
+     */
+    static double measureRecall(DenseVectorStore store, HnswIndex index, int k, Random random) {
+        double total = 0.0;
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            float query[] = randomUnitVector(store.getDimensions(), random);
+            TIntSet exact = new TIntHashSet(store.mostSimilar(query, k).getIds());
+            int found = 0;
+            for (int id : index.mostSimilar(query, k).getIds()) {
+                if (exact.contains(id)) {
+                    found++;
+                }
+            }
+            total += 1.0 * found / k;
+        }
+        return total / NUM_QUERIES;
+    }
+
+    /**
+     * Creates a store of unit length vectors clustered around random centers,
+     * which resembles word embeddings more than uniform noise does.
+     */
+    static DenseVectorStore createStore(int numRows, int dimensions, Random random) throws IOException {
+        File path = File.createTempFile("vectors", ".store");
+        path.deleteOnExit();
+        float centers[][] = new float[Math.max(1, numRows / 100)][];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = randomUnitVector(dimensions, random);
+        }
+        DenseVectorStore.Writer writer = new DenseVectorStore.Writer(path, dimensions);
+        for (int i = 0; i < numRows; i++) {
+            float center[] = centers[random.nextInt(centers.length)];
+            float vector[] = randomUnitVector(dimensions, random);
+            for (int j = 0; j < dimensions; j++) {
+                vector[j] = center[j] + 0.5f * vector[j];
+            }
+            normalize(vector);
+            writer.add("row" + i, vector);
+        }
+        writer.finish();
+        return new DenseVectorStore(path);
+    }
+
+    static float[] randomUnitVector(int dimensions, Random random) {
+        float vector[] = new float[dimensions];
+        for (int j = 0; j < dimensions; j++) {
+            vector[j] = (float) random.nextGaussian();
+        }
+        normalize(vector);
+        return vector;
+    }
+
+    private static void normalize(float[] vector) {
+        double norm = 0.0;
+        for (float x : vector) {
+            norm += x * x;
+        }
+        norm = Math.sqrt(norm);
+        for (int j = 0; j < vector.length; j++) {
+            vector[j] /= norm;
+        }
+    }
+}
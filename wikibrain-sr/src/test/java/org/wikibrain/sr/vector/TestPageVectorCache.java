@@ -0,0 +1,100 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.junit.Test;
+import org.wikibrain.sr.utils.SimUtils;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestPageVectorCache {
+
+    @Test
+    public void testSortedVector() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            TIntFloatMap v1 = randomVector(random, random.nextInt(50));
+            TIntFloatMap v2 = randomVector(random, random.nextInt(50));
+            PageVectorCache.SortedVector s1 = PageVectorCache.toSortedVector(v1);
+            PageVectorCache.SortedVector s2 = PageVectorCache.toSortedVector(v2);
+            assertEquals(SimUtils.cosineSimilarity(v1, v2), s1.cosine(s2), 0.00001);
+            assertEquals(v1, s1.toMap());
+            assertFalse(s1.isMissing());
+        }
+        assertTrue(PageVectorCache.toSortedVector(null).isMissing());
+        assertFalse(PageVectorCache.toSortedVector(new TIntFloatHashMap()).isMissing());
+    }
+
+    @Test
+    public void testGetAndPut() {
+        PageVectorCache cache = new PageVectorCache(10000);
+        assertNull(cache.get(3));
+        cache.put(3, randomVector(new Random(3), 20));
+        cache.put(4, null);
+        assertEquals(20, cache.get(3).size());
+        assertTrue(cache.get(4).isMissing());
+        assertTrue(cache.contains(4));
+        assertEquals(2, cache.size());
+        assertEquals(21, cache.getNumEntries());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.clear();
+        assertFalse(cache.contains(3));
+        assertEquals(0, cache.getNumEntries());
+    }
+
+    @Test
+    public void testBounded() {
+        Random random = new Random(1);
+        PageVectorCache cache = new PageVectorCache(16 * 500);
+        for (int pageId = 0; pageId < 5000; pageId++) {
+            if (cache.get(pageId) == null) {
+                cache.put(pageId, randomVector(random, 50));
+            }
+            assertTrue(cache.getNumEntries() <= cache.getMaxEntries());
+        }
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void testHotPagesSurviveScans() {
+        Random random = new Random(2);
+        PageVectorCache cache = new PageVectorCache(16 * 1000);
+        int hot[] = { 11, 22, 33, 44, 55 };
+        for (int round = 0; round < 20; round++) {
+            for (int pageId : hot) {
+                if (cache.get(pageId) == null) {
+                    cache.put(pageId, randomVector(random, 100));
+                }
+            }
+        }
+        // a scan of pages that are each requested once, long enough between
+        // requests for hot pages that an LRU cache would forget them
+        for (int pageId = 1000; pageId < 20000; pageId++) {
+            if (cache.get(pageId) == null) {
+                cache.put(pageId, randomVector(random, 100));
+            }
+            if (pageId % 400 == 0) {
+                for (int hotId : hot) {
+                    assertNotNull(cache.get(hotId));
+                }
+            }
+        }
+        for (int pageId : hot) {
+            assertTrue(cache.contains(pageId));
+        }
+        assertTrue(cache.getRejections() > 0);
+        assertTrue(cache.getHitRate() > 0.0);
+    }
+
+    private TIntFloatMap randomVector(Random random, int size) {
+        TIntFloatMap vector = new TIntFloatHashMap();
+        while (vector.size() < size) {
+            vector.put(random.nextInt(1000), random.nextFloat());
+        }
+        return vector;
+    }
+}
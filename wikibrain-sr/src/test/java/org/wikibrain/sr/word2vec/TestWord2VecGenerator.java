@@ -0,0 +1,72 @@
+package org.wikibrain.sr.word2vec;
+
+import gnu.trove.map.TIntFloatMap;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestWord2VecGenerator {
+
+    @Test
+    public void testBinaryModel() throws IOException {
+        File model = File.createTempFile("word2vec", ".bin");
+        model.deleteOnExit();
+        new File(model.getPath() + ".store").deleteOnExit();
+        new File(model.getPath() + ".hnsw").deleteOnExit();
+
+        String words[] = { "dog", "cat", "New_York", "café", "car" };
+        float vectors[][] = {
+                { 3, 0, 0 }, { 2, 1, 0 }, { 0, 0, 5 }, { 0, 1, 0 }, { 0, 0.2f, 1 }
+        };
+        writeModel(model, words, vectors);
+
+        Word2VecGenerator generator = new Word2VecGenerator(Language.SIMPLE, null, model);
+        assertEquals(5, generator.getStore().getNumRows());
+        assertArrayEquals(new float[]{1, 0, 0}, generator.getDenseVector("dog"), 0.00001f);
+        assertArrayEquals(new float[]{0, 0, 1}, generator.getDenseVector("New York"), 0.00001f);
+        assertArrayEquals(new float[]{0, 0, 1}, generator.getDenseVector(" New_York"), 0.00001f);
+        assertArrayEquals(new float[]{0, 1, 0}, generator.getDenseVector("café"), 0.00001f);
+        assertNull(generator.getDenseVector("horse"));
+
+        TIntFloatMap vector = generator.getVector("cat");
+        assertEquals(3, vector.size());
+        assertEquals(2.0 / Math.sqrt(5), vector.get(0), 0.00001);
+
+        LinkedHashMap<String, Float> similar = generator.mostSimilarWords("dog", 2);
+        List<String> keys = new ArrayList<String>(similar.keySet());
+        assertEquals(2, keys.size());
+        assertEquals("cat", keys.get(0));
+        assertEquals(2.0 / Math.sqrt(5), similar.get("cat"), 0.00001);
+        assertNull(generator.mostSimilarWords("horse", 2));
+        generator.close();
+
+        // reopening maps the existing store and index
+        generator = new Word2VecGenerator(Language.SIMPLE, null, model);
+        assertEquals("car", generator.mostSimilarWords("New York", 1).keySet().iterator().next());
+        generator.close();
+    }
+
+    static void writeModel(File path, String[] words, float[][] vectors) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+        out.write((words.length + " " + vectors[0].length + "\n").getBytes("UTF-8"));
+        for (int i = 0; i < words.length; i++) {
+            out.write(words[i].getBytes("UTF-8"));
+            out.write(' ');
+            ByteBuffer buffer = ByteBuffer.allocate(4 * vectors[i].length).order(ByteOrder.LITTLE_ENDIAN);
+            for (float f : vectors[i]) {
+                buffer.putFloat(f);
+            }
+            out.write(buffer.array());
+            out.write('\n');
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,84 @@
+package org.wikibrain.sr.word2vec;
+
+import com.jolbox.bonecp.BoneCPDataSource;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.vector.CosineSimilarity;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestWord2VecMetric {
+
+    @Test
+    public void testIndexedPages() throws ClassNotFoundException, IOException, DaoException {
+        File model = File.createTempFile("word2vec", ".bin");
+        model.deleteOnExit();
+        new File(model.getPath() + ".store").deleteOnExit();
+        new File(model.getPath() + ".hnsw").deleteOnExit();
+        String words[] = { "dog", "cat", "New_York", "café", "car" };
+        float vectors[][] = {
+                { 3, 0, 0 }, { 2, 1, 0 }, { 0, 0, 5 }, { 0, 1, 0 }, { 0, 0.2f, 1 }
+        };
+        TestWord2VecGenerator.writeModel(model, words, vectors);
+
+        Class.forName("org.h2.Driver");
+        File tmpDir = WpIOUtils.createTempDirectory("wikibrain-h2");
+        BoneCPDataSource ds = new BoneCPDataSource();
+        ds.setJdbcUrl("jdbc:h2:"+new File(tmpDir,"db").getAbsolutePath());
+        ds.setUsername("sa");
+        ds.setPassword("");
+        LocalPageSqlDao<LocalPage> dao = new LocalPageSqlDao<LocalPage>(new WpDataSource(ds), false);
+        dao.beginLoad();
+        String titles[] = { "Dog", "Cat", "New York", "Car", "Horse" };
+        for (int i = 0; i < titles.length; i++) {
+            dao.save(new LocalPage(Language.SIMPLE, i + 1, new Title(titles[i], Language.SIMPLE), NameSpace.ARTICLE));
+        }
+        dao.endLoad();
+
+        Word2VecGenerator generator = new Word2VecGenerator(Language.SIMPLE, dao, model);
+        Word2VecMetric metric = new Word2VecMetric("word2vec", Language.SIMPLE, dao, null,
+                generator, new CosineSimilarity(), null);
+
+        // café is not a page, and pages are found by their titles' vectors
+        SRResultList dog = metric.mostSimilar(1, 3, null);
+        assertEquals(3, dog.numDocs());
+        assertEquals(1, dog.getId(0));
+        assertEquals(1.0, dog.getScore(0), 0.00001);
+        assertEquals(2, dog.getId(1));
+        assertEquals(2.0 / Math.sqrt(5), dog.getScore(1), 0.00001);
+
+        SRResultList valid = metric.mostSimilar("dog", 1, new TIntHashSet(new int[] { 3, 4 }));
+        assertEquals(1, valid.numDocs());
+        assertNull(metric.mostSimilar(5, 3, null));
+
+        SRResultList batch[] = metric.mostSimilar(new int[] { 3, 5 }, 2, null, 2);
+        assertEquals(3, batch[0].getId(0));
+        assertEquals(4, batch[0].getId(1));
+        assertNull(batch[1]);
+
+        assertEquals(2.0 / Math.sqrt(5), metric.similarity(1, 2, false).getScore(), 0.00001);
+        assertNull(metric.similarity(1, 5, false));
+        assertEquals(2.0 / Math.sqrt(5), metric.similarity("dog", "cat", false).getScore(), 0.00001);
+
+        double cosims[][] = metric.cosimilarity(new int[] { 1, 2, 5 });
+        assertEquals(1.0, cosims[0][0], 0.00001);
+        assertEquals(2.0 / Math.sqrt(5), cosims[1][0], 0.00001);
+        assertTrue(Double.isNaN(cosims[0][2]));
+        double phrases[][] = metric.cosimilarity(new String[] { "dog", "horse" }, new String[] { "cat" });
+        assertEquals(2.0 / Math.sqrt(5), phrases[0][0], 0.00001);
+        assertTrue(Double.isNaN(phrases[1][0]));
+        generator.close();
+    }
+}
@@ -0,0 +1,113 @@
+package org.wikibrain.sr.word2vec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.MathUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestWord2VecTrainer {
+    private static final int NUM_SENTENCES = 3000;
+    private static final int WORDS_PER_TOPIC = 10;
+
+    @Test
+    public void testSkipGramHierarchicalSoftmax() throws IOException {
+        testTopics(0, false);
+    }
+
+    @Test
+    public void testSkipGramNegativeSampling() throws IOException {
+        testTopics(5, false);
+    }
+
+    @Test
+    public void testCbowNegativeSampling() throws IOException {
+        testTopics(5, true);
+    }
+
+    /**
+     * Every sentence draws its words from one of two topics, so words of the same
+     * topic should end up more similar than words of different topics.
+     */
+    private void testTopics(int negative, boolean cbow) throws IOException {
+        File dir = WpIOUtils.createTempDirectory("word2vec");
+        try {
+            int numWords = writeCorpus(dir);
+            Word2VecTrainer trainer = new Word2VecTrainer(null, Language.SIMPLE);
+            trainer.setMinWordFrequency(1);
+            trainer.setLayer1Size(20);
+            trainer.setNegative(negative);
+            trainer.setCbow(cbow);
+            trainer.setNumThreads(3);
+            trainer.train(dir);
+            assertEquals(numWords, trainer.getWordsTrained());     // shards cover every line once
+
+            File model = new File(dir, "model.bin");
+            trainer.save(model);
+            Word2VecGenerator generator = new Word2VecGenerator(Language.SIMPLE, null, model);
+            double same = 0.0, different = 0.0;
+            for (int i = 0; i < WORDS_PER_TOPIC; i++) {
+                for (int j = 0; j < WORDS_PER_TOPIC; j++) {
+                    if (i != j) {
+                        same += sim(generator, "a" + i, "a" + j) + sim(generator, "b" + i, "b" + j);
+                    }
+                    different += 2 * sim(generator, "a" + i, "b" + j);
+                }
+            }
+            same /= 2 * WORDS_PER_TOPIC * (WORDS_PER_TOPIC - 1);
+            different /= 2 * WORDS_PER_TOPIC * WORDS_PER_TOPIC;
+            assertTrue("same topic " + same + ", different topic " + different, same > different + 0.2);
+            generator.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static double sim(Word2VecGenerator generator, String w1, String w2) {
+        return MathUtils.dot(generator.getDenseVector(w1), generator.getDenseVector(w2));
+    }
+
+    /**
+     * Writes the files of a corpus directory, like BaseCorpusCreator.
+     * @return The number of words in the corpus.
+     */
+    private static int writeCorpus(File dir) throws IOException {
+        Random random = new Random(1);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        BufferedWriter corpus = WpIOUtils.openWriter(new File(dir, "hashCorpus.txt"));
+        int numWords = 0;
+        for (int i = 0; i < NUM_SENTENCES; i++) {
+            String topic = random.nextBoolean() ? "a" : "b";
+            int length = 1 + random.nextInt(15);
+            for (int j = 0; j < length; j++) {
+                String word = topic + random.nextInt(WORDS_PER_TOPIC);
+                Integer c = counts.get(word);
+                counts.put(word, c == null ? 1 : c + 1);
+                corpus.write((j == 0 ? "" : " ") + Word2VecUtils.hashWord(word));
+                numWords++;
+            }
+            corpus.write("\n");
+        }
+        corpus.close();
+
+        BufferedWriter words = WpIOUtils.openWriter(new File(dir, "words.txt"));
+        BufferedWriter countFile = WpIOUtils.openWriter(new File(dir, "counts.txt"));
+        for (String word : counts.keySet()) {
+            long hash = Word2VecUtils.hashWord(word);
+            words.write(hash + " " + word + "\n");
+            countFile.write(hash + " " + counts.get(word) + " " + word.length() + "\n");
+        }
+        words.close();
+        countFile.close();
+        return numWords;
+    }
+}
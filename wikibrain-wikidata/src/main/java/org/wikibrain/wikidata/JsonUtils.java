@@ -11,6 +11,67 @@ import java.util.*;
  * @author Shilad Sen
  */
 public class JsonUtils {
+    /**
+     * Decodes a value stored as json text. The common item, int, string, and
+     * missing values are decoded without building a json tree; other values
+     * are parsed by gson.
+     */
+    public static final WikidataValue stringToValue(String type, String json) throws WpParseException {
+        type = type.toLowerCase();
+        if (type.equals("somevalue")) {
+            return new WikidataValue(WikidataValue.Type.SOMEVALUE, null, JsonNull.INSTANCE);
+        } else if (type.equals("novalue")) {
+            return new WikidataValue(WikidataValue.Type.NOVALUE, null, JsonNull.INSTANCE);
+        } else if (type.equals("int")) {
+            try {
+                return new WikidataValue(WikidataValue.Type.INT, Integer.valueOf(json.trim()), json);
+            } catch (NumberFormatException e) {
+                // fall through to gson
+            }
+        } else if (type.equals("string")) {
+            if (json.length() >= 2 && json.charAt(0) == '"' && json.charAt(json.length() - 1) == '"'
+            &&  json.indexOf('\\') < 0) {
+                return new WikidataValue(WikidataValue.Type.STRING, json.substring(1, json.length() - 1), json);
+            }
+        } else if (type.equals("wikibase-entityid") || type.equals("item")) {
+            int id = parseItemId(json);
+            if (id >= 0) {
+                return new WikidataValue(WikidataValue.Type.ITEM, id, json);
+            }
+        }
+        return jsonToValue(type, new JsonParser().parse(json));
+    }
+
+    /**
+     * Returns the numeric id of compact item json like {"entity-type":"item","numeric-id":42},
+     * or -1 if the json has some other form.
+     */
+    private static int parseItemId(String json) {
+        if (!json.contains("\"entity-type\":\"item\"")) {
+            return -1;
+        }
+        String key = "\"numeric-id\":";
+        int i = json.indexOf(key);
+        if (i < 0) {
+            return -1;
+        }
+        i += key.length();
+        int id = 0;
+        int digits = 0;
+        for (; i < json.length() && digits < 10; i++, digits++) {
+            char c = json.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            id = id * 10 + (c - '0');
+        }
+        if (digits == 0 || digits >= 10 || i >= json.length()) {
+            return -1;
+        }
+        char next = json.charAt(i);
+        return (next == ',' || next == '}') ? id : -1;
+    }
+
     public static final WikidataValue jsonToValue(String type, JsonElement element) throws WpParseException {
         type = type.toLowerCase();
         if (type.equals("string")) {
@@ -50,7 +111,7 @@ public class JsonUtils {
                     element.getAsJsonObject().get("numeric-id").getAsInt(),
                     element
             );
-        } else if (Arrays.asList("globecoordinate", "other", "quantity").contains(type)) {
+        } else if (Arrays.asList("globecoordinate", "other", "quantity", "monolingualtext").contains(type)) {
             return new WikidataValue(type, gsonToPrimitive(element), element);
         } else {
             throw new WpParseException("unknown wikidata type: " + type);
@@ -6,6 +6,7 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalPage;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -32,6 +33,15 @@ public interface WikidataDao extends Dao<WikidataStatement> {
      */
     WikidataEntity getItem(int id) throws DaoException;
 
+    /**
+     * Returns the items associated with many ids, which is much faster than calling
+     * getItem for each id. Returned items may be shared and should not be modified.
+     * @param ids The numeric numbers appearing after the "Q" in the Wikimedia Foundation ids.
+     * @return Map from ids to items. Unknown ids map to items without any information.
+     * @throws DaoException
+     */
+    Map<Integer, WikidataEntity> getItems(Collection<Integer> ids) throws DaoException;
+
     /**
      * Returns all known properties. The implementation should cache them.
      * @return
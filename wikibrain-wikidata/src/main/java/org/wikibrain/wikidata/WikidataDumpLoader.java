@@ -3,6 +3,8 @@ package org.wikibrain.wikidata;
 import org.apache.commons.cli.*;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.conf.DefaultOptionBuilder;
@@ -17,14 +19,19 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.download.DumpFileDownloader;
 import org.wikibrain.download.RequestedLinkGetter;
+import org.wikibrain.parser.WpParseException;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,21 +41,48 @@ import java.util.logging.Logger;
 public class WikidataDumpLoader {
     private static final Logger LOG = Logger.getLogger(WikidataDumpLoader.class.getName());
 
+    /**
+     * Number of json dump lines handed to a parser thread at once.
+     */
+    private static final int LINES_PER_BATCH = 100;
+
+    /**
+     * Number of entities between progress reports for json dumps.
+     */
+    private static final int LOG_INTERVAL = 100000;
+
     private final AtomicInteger counter = new AtomicInteger();
 
     private final MetaInfoDao metaDao;
     private final WikidataDao wikidataDao;
+    private int numThreads = WpThreadUtils.getMaxThreads();
 
     public WikidataDumpLoader(WikidataDao wikidataDao, MetaInfoDao metaDao) {
         this.wikidataDao = wikidataDao;
         this.metaDao = metaDao;
     }
 
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Json dumps have names like wikidata-20140707-all.json.gz.
+     */
+    public static boolean isJsonDump(File file) {
+        return file.getName().toLowerCase().matches(".*\\.json(\\.(gz|bz2))?$");
+    }
+
     /**
-     * Expects file name format starting with lang + "wiki" for example, "enwiki"
+     * Loads an xml dump, or a json dump if the file name ends in .json, .json.gz, or .json.bz2.
+     * Xml dumps are expected to have a file name format starting with lang + "wiki" for example, "enwiki"
      * @param file
      */
-    public void load(File file) {
+    public void load(File file) throws IOException {
+        if (isJsonDump(file)) {
+            loadJson(file);
+            return;
+        }
         WikidataDumpParser parser = new WikidataDumpParser(file);
         for (WikidataEntity rp : parser) {
             if (counter.incrementAndGet() % 10000 == 0) {
@@ -58,6 +92,90 @@ public class WikidataDumpLoader {
         }
     }
 
+    /**
+     * Loads a json dump with one entity per line. The calling thread reads and
+     * decompresses lines, and batches of lines are parsed and saved by a pool of
+     * threads. The queue of unparsed batches is bounded, and the dao's loaders
+     * insert rows in batches from their own bounded queues.
+     * @param file
+     */
+    public void loadJson(final File file) throws IOException {
+        final WikidataJsonParser parser = new WikidataJsonParser();
+        final AtomicLong numEntities = new AtomicLong();
+        final long start = System.currentTimeMillis();
+        BufferedReader reader = WpIOUtils.openBufferedReader(file);
+        try {
+            ParallelForEach.iterate(
+                    new LineBatches(IOUtils.lineIterator(reader)),
+                    numThreads,
+                    numThreads * 4,
+                    new Procedure<List<String>>() {
+                        @Override
+                        public void call(List<String> lines) throws Exception {
+                            for (String line : lines) {
+                                WikidataEntity entity;
+                                try {
+                                    entity = parser.parse(line);
+                                } catch (WpParseException e) {
+                                    LOG.log(Level.WARNING, "parsing of line in " + file + " failed:", e);
+                                    metaDao.incrementErrorsQuietly(WikidataEntity.class);
+                                    continue;
+                                }
+                                if (entity == null) {
+                                    continue;
+                                }
+                                save(file, entity);
+                                long n = numEntities.incrementAndGet();
+                                if (n % LOG_INTERVAL == 0) {
+                                    logRate(file, n, start);
+                                }
+                            }
+                        }
+                    },
+                    Integer.MAX_VALUE);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        counter.addAndGet((int) numEntities.get());
+        logRate(file, numEntities.get(), start);
+    }
+
+    private static void logRate(File file, long numEntities, long start) {
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - start) / 1000.0);
+        LOG.info(String.format("loaded %d wikidata entities from %s (%.1f entities/s)",
+                numEntities, file.getName(), numEntities / seconds));
+    }
+
+    /**
+     * Groups the lines of a dump into batches of LINES_PER_BATCH.
+     */
+    private static class LineBatches implements Iterator<List<String>> {
+        private final LineIterator lines;
+
+        LineBatches(LineIterator lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return lines.hasNext();
+        }
+
+        @Override
+        public List<String> next() {
+            List<String> batch = new ArrayList<String>(LINES_PER_BATCH);
+            while (batch.size() < LINES_PER_BATCH && lines.hasNext()) {
+                batch.add(lines.nextLine());
+            }
+            return batch;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     private void save(File file, WikidataEntity rp) {
         try {
             wikidataDao.save(rp);
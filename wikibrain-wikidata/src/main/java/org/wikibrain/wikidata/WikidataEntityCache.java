@@ -0,0 +1,140 @@
+package org.wikibrain.wikidata;
+
+import org.wikibrain.core.lang.Language;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least recently used cache of wikidata items, bounded by the estimated
+ * number of bytes the cached entities occupy.
+ *
+ * Cached entities are shared between callers and should not be modified.
+ */
+public class WikidataEntityCache {
+    // rough per-object overheads on a 64 bit jvm
+    private static final int ENTITY_OVERHEAD = 200;
+    private static final int MAP_ENTRY_OVERHEAD = 64;
+    private static final int STRING_OVERHEAD = 48;
+    private static final int STATEMENT_OVERHEAD = 160;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, WikidataEntity> entities =
+            new LinkedHashMap<Integer, WikidataEntity>(16, 0.75f, true);
+    private final Map<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public WikidataEntityCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The cached item, or null if it is not cached.
+     */
+    public synchronized WikidataEntity get(int id) {
+        WikidataEntity entity = entities.get(id);
+        if (entity == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entity;
+    }
+
+    public synchronized void put(WikidataEntity entity) {
+        int size = estimateSize(entity);
+        if (size > maxBytes) {
+            return;
+        }
+        Integer oldSize = sizes.put(entity.getId(), size);
+        if (oldSize != null) {
+            bytes -= oldSize;
+        }
+        entities.put(entity.getId(), entity);
+        bytes += size;
+        Iterator<Map.Entry<Integer, WikidataEntity>> iter = entities.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            int id = iter.next().getKey();
+            iter.remove();
+            bytes -= sizes.remove(id);
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entities.clear();
+        sizes.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entities.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        return (hits + misses == 0) ? 0.0 : 1.0 * hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("WikidataEntityCache{entities=%d, bytes=%d, maxBytes=%d, hits=%d, misses=%d, hitRate=%.3f, evictions=%d}",
+                entities.size(), bytes, maxBytes, hits, misses, getHitRate(), evictions);
+    }
+
+    /**
+     * Estimates the bytes used by an entity's labels, descriptions, aliases and statements.
+     * Properties referenced by statements are shared, so they are not counted.
+     */
+    static int estimateSize(WikidataEntity entity) {
+        long size = ENTITY_OVERHEAD;
+        for (String label : entity.getLabels().values()) {
+            size += MAP_ENTRY_OVERHEAD + sizeOf(label);
+        }
+        for (String desc : entity.getDescriptions().values()) {
+            size += MAP_ENTRY_OVERHEAD + sizeOf(desc);
+        }
+        for (Map.Entry<Language, List<String>> entry : entity.getAliases().entrySet()) {
+            size += MAP_ENTRY_OVERHEAD;
+            for (String alias : entry.getValue()) {
+                size += 8 + sizeOf(alias);
+            }
+        }
+        for (WikidataStatement st : entity.getStatements()) {
+            size += STATEMENT_OVERHEAD;
+            Object value = (st.getValue() == null) ? null : st.getValue().getValue();
+            if (value instanceof String) {
+                size += sizeOf((String) value);
+            } else if (value instanceof Map || value instanceof List) {
+                size += 4 * STATEMENT_OVERHEAD;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    private static int sizeOf(String s) {
+        return (s == null) ? 0 : STRING_OVERHEAD + 2 * s.length();
+    }
+}
@@ -0,0 +1,322 @@
+package org.wikibrain.wikidata;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.parser.WpParseException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses entities in the format of the JSON Wikidata dumps, in which each line
+ * of a large json array holds one entity.
+ *
+ * The entity is read token by token. Sitelinks, qualifiers, references, and labels
+ * in unwanted languages are skipped without being materialized; only the value of
+ * each statement is parsed into a small json tree. The parser is thread safe.
+ */
+public class WikidataJsonParser {
+    private static final Logger LOG = Logger.getLogger(WikidataJsonParser.class.getName());
+    private final LanguageSet langs;
+
+    public WikidataJsonParser() {
+        this(LanguageSet.ALL);
+    }
+
+    public WikidataJsonParser(LanguageSet langs) {
+        this.langs = langs;
+    }
+
+    /**
+     * Parses one line of a json dump.
+     * @param line
+     * @return The entity, or null if the line is not an item or property
+     * (for example the opening and closing brackets of the dump).
+     * @throws WpParseException
+     */
+    public WikidataEntity parse(String line) throws WpParseException {
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == ',' || Character.isWhitespace(line.charAt(end - 1)))) {
+            end--;
+        }
+        int begin = 0;
+        while (begin < end && Character.isWhitespace(line.charAt(begin))) {
+            begin++;
+        }
+        if (begin == end || line.charAt(begin) != '{') {
+            return null;
+        }
+        JsonReader reader = new JsonReader(new StringReader(line.substring(begin, end)));
+        try {
+            return parseEntity(reader);
+        } catch (IOException e) {
+            throw new WpParseException(e);
+        } catch (RuntimeException e) {
+            throw new WpParseException(e);
+        }
+    }
+
+    private WikidataEntity parseEntity(JsonReader reader) throws IOException, WpParseException {
+        WikidataEntity entity = null;
+        WikidataEntity.Type type = null;
+        Map<Language, String> labels = null;
+        Map<Language, String> descriptions = null;
+        Map<Language, List<String>> aliases = null;
+        List<Claim> claims = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("type")) {
+                String s = reader.nextString();
+                if (s.equals("item")) {
+                    type = WikidataEntity.Type.ITEM;
+                } else if (s.equals("property")) {
+                    type = WikidataEntity.Type.PROPERTY;
+                } else {
+                    return null;    // lexemes, forms, etc.
+                }
+            } else if (name.equals("id")) {
+                String id = reader.nextString();
+                WikidataEntity.Type idType;
+                try {
+                    idType = WikidataEntity.Type.getByCode(id.charAt(0));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                entity = new WikidataEntity(idType, Integer.valueOf(id.substring(1)));
+            } else if (name.equals("labels")) {
+                labels = parseMonolingualMap(reader);
+            } else if (name.equals("descriptions")) {
+                descriptions = parseMonolingualMap(reader);
+            } else if (name.equals("aliases")) {
+                aliases = parseAliases(reader);
+            } else if (name.equals("claims")) {
+                claims = parseClaims(reader);
+            } else {
+                reader.skipValue();     // sitelinks, datatype, modified, etc.
+            }
+        }
+        reader.endObject();
+
+        if (entity == null) {
+            throw new WpParseException("entity is missing an id");
+        }
+        if (type != null && type != entity.getType()) {
+            throw new WpParseException("entity " + entity.getId() + " has type " + type + " but id of type " + entity.getType());
+        }
+        if (labels != null) entity.getLabels().putAll(labels);
+        if (descriptions != null) entity.getDescriptions().putAll(descriptions);
+        if (aliases != null) entity.getAliases().putAll(aliases);
+        if (claims != null) {
+            for (Claim c : claims) {
+                WikidataEntity prop = new WikidataEntity(WikidataEntity.Type.PROPERTY, c.propId);
+                entity.getStatements().add(new WikidataStatement(c.id, entity, prop, c.value, c.rank));
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Parses {"en":{"language":"en","value":"..."}, ...}
+     */
+    private Map<Language, String> parseMonolingualMap(JsonReader reader) throws IOException {
+        Map<Language, String> values = new LinkedHashMap<Language, String>();
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {    // empty maps are sometimes written as []
+            reader.skipValue();
+            return values;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String langCode = reader.nextName();
+            if (!validLanguage(langCode)) {
+                reader.skipValue();
+                continue;
+            }
+            String value = parseMonolingualValue(reader);
+            if (value != null) {
+                values.put(Language.getByLangCode(langCode), value);
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+
+    /**
+     * Parses {"en":[{"language":"en","value":"..."}, ...], ...}
+     */
+    private Map<Language, List<String>> parseAliases(JsonReader reader) throws IOException {
+        Map<Language, List<String>> aliases = new LinkedHashMap<Language, List<String>>();
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return aliases;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String langCode = reader.nextName();
+            if (!validLanguage(langCode)) {
+                reader.skipValue();
+                continue;
+            }
+            List<String> values = new ArrayList<String>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String value = parseMonolingualValue(reader);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+            reader.endArray();
+            aliases.put(Language.getByLangCode(langCode), values);
+        }
+        reader.endObject();
+        return aliases;
+    }
+
+    private String parseMonolingualValue(JsonReader reader) throws IOException {
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("value")) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    /**
+     * Parses {"P31":[{statement}, ...], ...}. Invalid statements are logged and skipped.
+     */
+    private List<Claim> parseClaims(JsonReader reader) throws IOException {
+        List<Claim> claims = new ArrayList<Claim>();
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return claims;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            reader.nextName();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                try {
+                    claims.add(parseOneClaim(reader));
+                } catch (WpParseException e) {
+                    LOG.log(Level.WARNING, "parse error for claim: " + e.getMessage());
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return claims;
+    }
+
+    private Claim parseOneClaim(JsonReader reader) throws IOException, WpParseException {
+        Claim claim = new Claim();
+        WpParseException error = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("mainsnak")) {
+                try {
+                    parseMainSnak(reader, claim);
+                } catch (WpParseException e) {
+                    error = e;  // finish reading the claim so the reader stays in sync
+                }
+            } else if (name.equals("id")) {
+                claim.id = reader.nextString();
+            } else if (name.equals("rank")) {
+                String rank = reader.nextString();
+                if (rank.equals("deprecated")) {
+                    claim.rank = WikidataStatement.Rank.DEPRECATED;
+                } else if (rank.equals("normal")) {
+                    claim.rank = WikidataStatement.Rank.NORMAL;
+                } else if (rank.equals("preferred")) {
+                    claim.rank = WikidataStatement.Rank.PREFERRED;
+                } else {
+                    error = new WpParseException("unknown rank: " + rank);
+                }
+            } else {
+                reader.skipValue();     // qualifiers, references, etc.
+            }
+        }
+        reader.endObject();
+        if (error != null) {
+            throw error;
+        }
+        if (claim.propId < 0 || claim.value == null) {
+            throw new WpParseException("claim " + claim.id + " has no property or value");
+        }
+        return claim;
+    }
+
+    private void parseMainSnak(JsonReader reader, Claim claim) throws IOException, WpParseException {
+        String snakType = null;
+        String valueType = null;
+        JsonElement value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("snaktype")) {
+                snakType = reader.nextString();
+            } else if (name.equals("property")) {
+                claim.propId = Integer.valueOf(reader.nextString().substring(1));
+            } else if (name.equals("datavalue")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name2 = reader.nextName();
+                    if (name2.equals("value")) {
+                        value = new JsonParser().parse(reader);
+                    } else if (name2.equals("type")) {
+                        valueType = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if ("value".equals(snakType)) {
+            if (valueType == null || value == null) {
+                throw new WpParseException("snak for claim " + claim.id + " has no value");
+            }
+            claim.value = JsonUtils.jsonToValue(valueType, value);
+            if (claim.value.getType() == WikidataValue.Type.ITEM) {
+                // Store items in the same form as the xml dumps so they can be searched for.
+                claim.value = WikidataValue.forItem(claim.value.getItemValue());
+            }
+        } else if (snakType != null) {
+            claim.value = JsonUtils.jsonToValue(snakType, JsonNull.INSTANCE);
+        } else {
+            throw new WpParseException("snak for claim " + claim.id + " has no type");
+        }
+    }
+
+    private boolean validLanguage(String langCode) {
+        return Language.hasLangCode(langCode) && langs.containsLanguage(langCode);
+    }
+
+    private static class Claim {
+        String id;
+        int propId = -1;
+        WikidataValue value;
+        WikidataStatement.Rank rank;
+    }
+}
@@ -1,13 +1,12 @@
 package org.wikibrain.wikidata;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 import com.typesafe.config.Config;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.collections.IteratorUtils;
 import org.jooq.*;
+import org.jooq.impl.DSL;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -42,6 +41,7 @@ import static org.wikibrain.core.jooq.tables.WikidataStatement.*;
 public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements WikidataDao {
     private static Language FALLBACK_LANGUAGE = Language.getByLangCode("en");
     private static int WIKIDATA_ALGORITHM_ID = 1;
+    private static long DEFAULT_ENTITY_CACHE_BYTES = 100L * 1024 * 1024;
 
     private static TableField[] FIELDS = new TableField[] {
             WIKIDATA_STATEMENT.ID,
@@ -60,6 +60,7 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
     private FastLoader descLoader = null;
     private FastLoader aliasLoader = null;
     private Map<Integer, WikidataEntity> properties;
+    private WikidataEntityCache entityCache = new WikidataEntityCache(DEFAULT_ENTITY_CACHE_BYTES);
 
     /**
      * @param dataSource      Data source for jdbc connections
@@ -83,7 +84,48 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
 
     @Override
     public WikidataEntity getItem(int id) throws DaoException {
-        return getEntityWithoutCache(WikidataEntity.Type.ITEM, id);
+        WikidataEntity entity = entityCache.get(id);
+        if (entity == null) {
+            entity = getEntityWithoutCache(WikidataEntity.Type.ITEM, id);
+            entityCache.put(entity);
+        }
+        return entity;
+    }
+
+    @Override
+    public Map<Integer, WikidataEntity> getItems(Collection<Integer> ids) throws DaoException {
+        Map<Integer, WikidataEntity> items = new HashMap<Integer, WikidataEntity>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            WikidataEntity entity = entityCache.get(id);
+            if (entity == null) {
+                missing.add(id);
+            } else {
+                items.put(id, entity);
+            }
+        }
+        for (List<Integer> chunk : toInClauseChunks(missing)) {
+            for (WikidataEntity entity : getEntitiesWithoutCache(WikidataEntity.Type.ITEM, chunk).values()) {
+                entityCache.put(entity);
+                items.put(entity.getId(), entity);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return The cache of items, whose statistics describe how well it is working.
+     */
+    public WikidataEntityCache getEntityCache() {
+        return entityCache;
+    }
+
+    /**
+     * Replaces the item cache with an empty one of the specified size.
+     * @param maxBytes Approximate bytes of items to cache, or 0 to disable caching.
+     */
+    public void setEntityCacheSize(long maxBytes) {
+        entityCache = new WikidataEntityCache(maxBytes);
     }
 
     @Override
@@ -108,8 +150,12 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
                 for (Record1<Integer> record : result) {
                     propIds.add(record.value1());
                 }
+                List<Integer> ids = new ArrayList<Integer>();
                 for (int id : propIds.toArray()) {
-                    properties.put(id, getEntityWithoutCache(WikidataEntity.Type.PROPERTY, id));
+                    ids.add(id);
+                }
+                for (List<Integer> chunk : toInClauseChunks(ids)) {
+                    properties.putAll(getEntitiesWithoutCache(WikidataEntity.Type.PROPERTY, chunk));
                 }
             } finally {
                 freeJooq(context);
@@ -191,47 +237,72 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
     }
 
     private WikidataEntity getEntityWithoutCache(WikidataEntity.Type type, int id) throws DaoException {
-        WikidataEntity entity = new WikidataEntity(type, id);
+        return getEntitiesWithoutCache(type, Arrays.asList(id)).get(id);
+    }
+
+    /**
+     * Loads entities with a single query per table. Ids without any information
+     * are returned as empty entities.
+     *
+     * @param ids Distinct ids that fit in an IN clause (see toInClauseChunks).
+     */
+    private Map<Integer, WikidataEntity> getEntitiesWithoutCache(WikidataEntity.Type type, List<Integer> ids) throws DaoException {
+        Map<Integer, WikidataEntity> entities = new LinkedHashMap<Integer, WikidataEntity>();
+        for (int id : ids) {
+            entities.put(id, new WikidataEntity(type, id));
+        }
+        Field<String> code = DSL.inline(type.code + "", WIKIDATA_ENTITY_LABELS.ENTITY_TYPE);
         DSLContext jooq = getJooq();
         try {
-            Result<Record2<Short, String>> result = jooq
-                    .select(Tables.WIKIDATA_ENTITY_LABELS.LANG_ID, Tables.WIKIDATA_ENTITY_LABELS.LABEL)
-                    .from(Tables.WIKIDATA_ENTITY_LABELS)
-                    .where(Tables.WIKIDATA_ENTITY_LABELS.ENTITY_TYPE.eq(type.code + ""))
-                    .and(Tables.WIKIDATA_ENTITY_LABELS.ENTITY_ID.eq(id))
+            Result<Record3<Integer, Short, String>> result = jooq
+                    .select(WIKIDATA_ENTITY_LABELS.ENTITY_ID, WIKIDATA_ENTITY_LABELS.LANG_ID, WIKIDATA_ENTITY_LABELS.LABEL)
+                    .from(WIKIDATA_ENTITY_LABELS)
+                    .where(WIKIDATA_ENTITY_LABELS.ENTITY_TYPE.eq(code))
+                    .and(inlinedIn(WIKIDATA_ENTITY_LABELS.ENTITY_ID, ids))
                     .fetch();
-            for (Record2<Short, String> record : result) {
-                entity.getLabels().put(Language.getById(record.value1()), record.value2());
+            for (Record3<Integer, Short, String> record : result) {
+                entities.get(record.value1()).getLabels().put(Language.getById(record.value2()), record.value3());
             }
-            Result<Record2<Short, String>> result2 = jooq
-                    .select(Tables.WIKIDATA_ENTITY_DESCRIPTIONS.LANG_ID, Tables.WIKIDATA_ENTITY_DESCRIPTIONS.DESCRIPTION)
-                    .from(Tables.WIKIDATA_ENTITY_DESCRIPTIONS)
-                    .where(Tables.WIKIDATA_ENTITY_DESCRIPTIONS.ENTITY_TYPE.eq(type.code + ""))
-                    .and(Tables.WIKIDATA_ENTITY_DESCRIPTIONS.ENTITY_ID.eq(id))
+            Result<Record3<Integer, Short, String>> result2 = jooq
+                    .select(WIKIDATA_ENTITY_DESCRIPTIONS.ENTITY_ID, WIKIDATA_ENTITY_DESCRIPTIONS.LANG_ID, WIKIDATA_ENTITY_DESCRIPTIONS.DESCRIPTION)
+                    .from(WIKIDATA_ENTITY_DESCRIPTIONS)
+                    .where(WIKIDATA_ENTITY_DESCRIPTIONS.ENTITY_TYPE.eq(code))
+                    .and(inlinedIn(WIKIDATA_ENTITY_DESCRIPTIONS.ENTITY_ID, ids))
                     .fetch();
-            for (Record2<Short, String> record : result2) {
-                entity.getDescriptions().put(Language.getById(record.value1()), record.value2());
+            for (Record3<Integer, Short, String> record : result2) {
+                entities.get(record.value1()).getDescriptions().put(Language.getById(record.value2()), record.value3());
             }
-            Result<Record2<Short, String>> result3 = jooq
-                    .select(Tables.WIKIDATA_ENTITY_ALIASES.LANG_ID, Tables.WIKIDATA_ENTITY_ALIASES.ALIAS)
-                    .from(Tables.WIKIDATA_ENTITY_ALIASES)
-                    .where(Tables.WIKIDATA_ENTITY_ALIASES.ENTITY_TYPE.eq(type.code + ""))
-                    .and(Tables.WIKIDATA_ENTITY_ALIASES.ENTITY_ID.eq(id))
+            Result<Record3<Integer, Short, String>> result3 = jooq
+                    .select(WIKIDATA_ENTITY_ALIASES.ENTITY_ID, WIKIDATA_ENTITY_ALIASES.LANG_ID, WIKIDATA_ENTITY_ALIASES.ALIAS)
+                    .from(WIKIDATA_ENTITY_ALIASES)
+                    .where(WIKIDATA_ENTITY_ALIASES.ENTITY_TYPE.eq(code))
+                    .and(inlinedIn(WIKIDATA_ENTITY_ALIASES.ENTITY_ID, ids))
                     .fetch();
-            Map<Language, List<String>> aliases = entity.getAliases();
-            for (Record2<Short, String> record : result3) {
-                Language lang = Language.getById(record.value1());
+            for (Record3<Integer, Short, String> record : result3) {
+                Map<Language, List<String>> aliases = entities.get(record.value1()).getAliases();
+                Language lang = Language.getById(record.value2());
                 if (!aliases.containsKey(lang)) {
                     aliases.put(lang, new ArrayList<String>());
                 }
-                aliases.get(lang).add(record.value2());
+                aliases.get(lang).add(record.value3());
             }
-            WikidataFilter filter = new WikidataFilter.Builder()
-                    .withEntityType(type)
-                    .withEntityId(id)
-                    .build();
-            entity.getStatements().addAll(IteratorUtils.toList(get(filter).iterator()));
-            return entity;
+
+            // Statements share a single stub of their entity rather than the entity itself.
+            Map<Integer, WikidataEntity> stubs = new HashMap<Integer, WikidataEntity>();
+            Result<Record> result4 = jooq
+                    .select(FIELDS)
+                    .from(WIKIDATA_STATEMENT)
+                    .where(WIKIDATA_STATEMENT.ENTITY_TYPE.eq(code))
+                    .and(inlinedIn(WIKIDATA_STATEMENT.ENTITY_ID, ids))
+                    .fetch();
+            for (Record record : result4) {
+                int id = record.getValue(WIKIDATA_STATEMENT.ENTITY_ID);
+                if (!stubs.containsKey(id)) {
+                    stubs.put(id, new WikidataEntity(type, id));
+                }
+                entities.get(id).getStatements().add(buildStatement(record, stubs.get(id)));
+            }
+            return entities;
         } finally {
             freeJooq(jooq);
         }
@@ -265,6 +336,7 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
                                     });
         }
         properties = new HashMap<Integer, WikidataEntity>();
+        entityCache.clear();
     }
 
     @Override
@@ -525,13 +597,18 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
                 WikidataEntity.Type.getByCode(record.getValue(Tables.WIKIDATA_STATEMENT.ENTITY_TYPE).charAt(0)),
                 record.getValue(Tables.WIKIDATA_STATEMENT.ENTITY_ID)
         );
+        return buildStatement(record, item);
+    }
+
+    private WikidataStatement buildStatement(Record record, WikidataEntity item) throws DaoException {
         WikidataEntity prop = getProperty(record.getValue(Tables.WIKIDATA_STATEMENT.PROP_ID));
         Short rankOrdinal = record.getValue(Tables.WIKIDATA_STATEMENT.RANK);
 
-        JsonElement json = new JsonParser().parse(record.getValue(Tables.WIKIDATA_STATEMENT.VAL_STR));
         WikidataValue val;
         try {
-            val = JsonUtils.jsonToValue( record.getValue(Tables.WIKIDATA_STATEMENT.VAL_TYPE), json);
+            val = JsonUtils.stringToValue(
+                    record.getValue(Tables.WIKIDATA_STATEMENT.VAL_TYPE),
+                    record.getValue(Tables.WIKIDATA_STATEMENT.VAL_STR));
         } catch (WpParseException e) {
             throw new DaoException(e);
         }
@@ -581,6 +658,9 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
                     cacheDir.mkdirs();
                 }
                 dao.useCache(cacheDir);
+                if (config.hasPath("entityCacheMB")) {
+                    dao.setEntityCacheSize(config.getLong("entityCacheMB") * 1024 * 1024);
+                }
                 return dao;
             } catch (DaoException e) {
                 throw new ConfigurationException(e);
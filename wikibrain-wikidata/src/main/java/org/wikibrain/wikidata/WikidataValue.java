@@ -23,6 +23,9 @@ public class WikidataValue implements Serializable {
     private Object value;
     private JsonElement jsonValue;
 
+    // json text of values decoded from the database, parsed into jsonValue on demand
+    private String json;
+
     public static WikidataValue forItem(int itemId) {
         JsonObject obj = new JsonObject();
         obj.addProperty("entity-type", "item");
@@ -60,12 +63,22 @@ public class WikidataValue implements Serializable {
         this.jsonValue = jsonValue;
     }
 
+    /**
+     * Creates a value whose json representation is only parsed if it is requested.
+     */
+    WikidataValue(Type type, Object value, String json) {
+        this.type = type;
+        this.typeName =  type.toString();
+        this.value = value;
+        this.json = json;
+    }
+
     private void writeObject(ObjectOutputStream o)
             throws IOException {
         o.writeObject(type);
         o.writeObject(typeName);
         o.writeObject(value);
-        o.writeObject(jsonValue.toString());
+        o.writeObject((jsonValue == null) ? json : jsonValue.toString());
     }
 
     private void readObject(ObjectInputStream o)
@@ -73,7 +86,7 @@ public class WikidataValue implements Serializable {
         type = (Type) o.readObject();
         typeName = (String) o.readObject();
         value = o.readObject();
-        jsonValue = new JsonParser().parse((String)o.readObject());
+        json = (String) o.readObject();
     }
 
     public Type getType() {
@@ -105,6 +118,9 @@ public class WikidataValue implements Serializable {
     }
 
     public JsonElement getJsonValue() {
+        if (jsonValue == null && json != null) {
+            jsonValue = new JsonParser().parse(json);
+        }
         return jsonValue;
     }
 
@@ -62,6 +62,37 @@ public class TestWikidataDao {
         FileUtils.deleteDirectory(cacheFile);
     }
 
+    @Test
+    public void testLoadJson() throws Exception {
+        File dir = File.createTempFile("dao", "json");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            WpDataSource ds = TestDaoUtil.getWpDataSource(dir);
+            MetaInfoDao md = new MetaInfoSqlDao(ds);
+            md.beginLoad();
+            WikidataSqlDao wd = new WikidataSqlDao(ds, null, null);
+            wd.beginLoad();
+
+            File json = new File(dir, "wikidata-test-all.json");
+            FileUtils.copyURLToFile(TestWikidataDao.class.getResource("/testDump.json"), json);
+            assertTrue(WikidataDumpLoader.isJsonDump(json));
+            WikidataDumpLoader loader = new WikidataDumpLoader(wd, md);
+            loader.setNumThreads(2);
+            loader.load(json);
+            wd.endLoad();
+            md.endLoad();
+
+            assertEquals("instance of", wd.getProperty(31).getLabels().get(EN));
+            WikidataEntity item = wd.getItem(157);
+            assertEquals("Fran\u00e7ois Hollande", item.getLabels().get(EN));
+            assertEquals(5, item.getStatements().size());
+            assertEquals(1, IteratorUtils.toList(wd.getByValue(wd.getProperty(31), WikidataValue.forItem(5)).iterator()).size());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
     @Test
     public void testProps() throws DaoException, IOException, ClassNotFoundException {
         WpDataSource ds = TestDaoUtil.getWpDataSource(dbDir);
@@ -112,6 +143,24 @@ public class TestWikidataDao {
         assertEquals(new TIntHashSet(new int[] {84020, 10855226, 13422143, 14539990}), ids);
     }
 
+    @Test
+    public void testItems() throws DaoException, IOException, ClassNotFoundException {
+        WpDataSource ds = TestDaoUtil.getWpDataSource(dbDir);
+        WikidataSqlDao wd = new WikidataSqlDao(ds, null, null);
+
+        Map<Integer, WikidataEntity> items = wd.getItems(Arrays.asList(157, 142, 157, -1));
+        assertEquals(3, items.size());
+        assertEquals("Fran\u00e7ois Hollande", items.get(157).getLabels().get(EN));
+        assertEquals(36, items.get(157).getStatements().size());
+        assertTrue(items.get(-1).getLabels().isEmpty());
+        assertEquals(wd.getItem(142).getLabels(), items.get(142).getLabels());
+        assertEquals(1, wd.getEntityCache().getHits());
+
+        // a second lookup is answered from the cache
+        assertSame(items.get(157), wd.getItems(Arrays.asList(157)).get(157));
+        assertEquals(2, wd.getEntityCache().getHits());
+    }
+
     @Test
     public void testLocalStatements() throws DaoException, IOException, ClassNotFoundException {
         WpDataSource ds = TestDaoUtil.getWpDataSource(dbDir);
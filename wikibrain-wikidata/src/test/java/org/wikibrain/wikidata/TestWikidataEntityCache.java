@@ -0,0 +1,62 @@
+package org.wikibrain.wikidata;
+
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+
+import static org.junit.Assert.*;
+
+public class TestWikidataEntityCache {
+    private static final Language EN = Language.getByLangCode("en");
+
+    private static WikidataEntity makeItem(int id) {
+        WikidataEntity entity = new WikidataEntity(WikidataEntity.Type.ITEM, id);
+        entity.getLabels().put(EN, "item " + id);
+        return entity;
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        WikidataEntityCache cache = new WikidataEntityCache(1024 * 1024);
+        assertNull(cache.get(1));
+        cache.put(makeItem(1));
+        assertEquals(1, cache.get(1).getId());
+        assertEquals("item 1", cache.get(1).getLabels().get(EN));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRate(), 0.0001);
+        assertEquals(WikidataEntityCache.estimateSize(makeItem(1)), cache.getBytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        int size = WikidataEntityCache.estimateSize(makeItem(1));
+        WikidataEntityCache cache = new WikidataEntityCache(3 * size);
+        cache.put(makeItem(1));
+        cache.put(makeItem(2));
+        cache.put(makeItem(3));
+        assertNotNull(cache.get(1));    // 2 is now the least recently used
+        cache.put(makeItem(4));
+
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertNotNull(cache.get(3));
+        assertNotNull(cache.get(4));
+        assertTrue(cache.getBytes() <= 3 * size);
+    }
+
+    @Test
+    public void testReplaceAndClear() {
+        WikidataEntityCache cache = new WikidataEntityCache(1024 * 1024);
+        cache.put(makeItem(1));
+        long bytes = cache.getBytes();
+        cache.put(makeItem(1));
+        assertEquals(1, cache.size());
+        assertEquals(bytes, cache.getBytes());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertNull(cache.get(1));
+    }
+}
@@ -4,6 +4,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.junit.Test;
+import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.parser.WpParseException;
@@ -12,7 +13,10 @@ import org.wikibrain.utils.WpIOUtils;
 
 import java.io.*;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -62,6 +66,48 @@ public class TestWikidataParser {
         }
     }
 
+    @Test
+    public void testJsonDump() throws IOException, WpParseException {
+        BufferedReader reader = WpIOUtils.openResource("/testDump.json");
+        WikidataJsonParser parser = new WikidataJsonParser();
+        List<WikidataEntity> entities = new ArrayList<WikidataEntity>();
+        for (String line : IOUtils.readLines(reader)) {
+            WikidataEntity entity = parser.parse(line);
+            if (entity != null) {
+                entities.add(entity);
+            }
+        }
+        reader.close();
+        assertEquals(3, entities.size());
+
+        WikidataEntity prop = entities.get(0);
+        assertEquals(WikidataEntity.Type.PROPERTY, prop.getType());
+        assertEquals(31, prop.getId());
+        assertEquals("instance of", prop.getLabels().get(Language.getByLangCode("en")));
+        assertEquals(Arrays.asList("is a", "is an"), prop.getAliases().get(Language.getByLangCode("en")));
+
+        WikidataEntity item = entities.get(1);
+        assertEquals(WikidataEntity.Type.ITEM, item.getType());
+        assertEquals(157, item.getId());
+        assertEquals(1, item.getLabels().size());
+        assertEquals("24th President of the French Republic", item.getDescriptions().get(Language.getByLangCode("en")));
+        assertEquals(Arrays.asList("Hollande"), item.getAliases().get(Language.getByLangCode("ca")));
+        assertEquals(5, item.getStatements().size());
+
+        WikidataStatement st = item.getStatements().get(0);
+        assertEquals("Q157$1", st.getId());
+        assertEquals(31, st.getProperty().getId());
+        assertEquals(WikidataStatement.Rank.PREFERRED, st.getRank());
+        assertEquals(WikidataValue.forItem(5).getJsonValue(), st.getValue().getJsonValue());
+        assertEquals("122353562", item.getStatements().get(1).getValue().getStringValue());
+        assertEquals(WikidataValue.Type.TIME, item.getStatements().get(2).getValue().getType());
+        assertEquals("quantity", item.getStatements().get(3).getValue().getTypeName());
+        assertEquals(WikidataValue.Type.SOMEVALUE, item.getStatements().get(4).getValue().getType());
+
+        assertTrue(entities.get(2).getStatements().isEmpty());
+        assertTrue(entities.get(2).getDescriptions().isEmpty());
+    }
+
     @Test
     public void testDateParser() throws ParseException {
         String s = "+00000001996-12-20T00:00:00Z";